@@ -0,0 +1,61 @@
+-- Schema of a new shelter database, as PetDbHelper.onCreate makes it, one statement per line.
+-- generateSeedDatabase (see seed.gradle) builds the seed database from it and fails when
+-- user_version doesn't match PetDbHelper.DATABASE_VERSION, so a schema change has to be made
+-- here too: add the statements of the new onCreate and bump the version.
+PRAGMA user_version = 9;
+CREATE TABLE pets(_id INTEGER PRIMARY KEY, name TEXT NOT NULL, breed TEXT, gender INTEGER NOT NULL, weight INTEGER NOT NULL DEFAULT 0, version INTEGER NOT NULL DEFAULT 0, sync_id TEXT, updated_at INTEGER NOT NULL DEFAULT 0);
+CREATE TRIGGER pets_bump_version AFTER UPDATE ON pets FOR EACH ROW WHEN NEW.version = OLD.version BEGIN UPDATE pets SET version = OLD.version + 1 WHERE _id = OLD._id; END;
+CREATE TABLE weights(_id INTEGER PRIMARY KEY, pet_id INTEGER NOT NULL, weight INTEGER NOT NULL, measured_at INTEGER NOT NULL);
+CREATE INDEX weights_pet_time ON weights(pet_id, measured_at);
+CREATE TRIGGER weights_require_pet BEFORE INSERT ON weights FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets WHERE _id = NEW.pet_id) BEGIN SELECT RAISE(ABORT, 'No such pet'); END;
+CREATE TRIGGER weights_append_only BEFORE UPDATE ON weights BEGIN SELECT RAISE(ABORT, 'Weight measurements are append-only'); END;
+CREATE TRIGGER pets_delete_weights AFTER DELETE ON pets FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets_archive WHERE _id = OLD._id) BEGIN DELETE FROM weights WHERE pet_id = OLD._id; DELETE FROM weights_day WHERE pet_id = OLD._id; DELETE FROM weights_week WHERE pet_id = OLD._id; DELETE FROM weights_month WHERE pet_id = OLD._id; END;
+CREATE TABLE weights_day(pet_id INTEGER NOT NULL, bucket_start INTEGER NOT NULL, measurement_count INTEGER NOT NULL, weight_sum INTEGER NOT NULL, weight_min INTEGER NOT NULL, weight_max INTEGER NOT NULL, PRIMARY KEY (pet_id, bucket_start));
+CREATE TRIGGER weights_day_rollup AFTER INSERT ON weights FOR EACH ROW BEGIN INSERT OR IGNORE INTO weights_day (pet_id, bucket_start, measurement_count, weight_sum, weight_min, weight_max) VALUES (NEW.pet_id, CAST(strftime('%s', NEW.measured_at / 1000, 'unixepoch', 'start of day') AS INTEGER) * 1000, 0, 0, NEW.weight, NEW.weight); UPDATE weights_day SET measurement_count = measurement_count + 1, weight_sum = weight_sum + NEW.weight, weight_min = MIN(weight_min, NEW.weight), weight_max = MAX(weight_max, NEW.weight) WHERE pet_id = NEW.pet_id AND bucket_start = CAST(strftime('%s', NEW.measured_at / 1000, 'unixepoch', 'start of day') AS INTEGER) * 1000; END;
+CREATE TABLE weights_week(pet_id INTEGER NOT NULL, bucket_start INTEGER NOT NULL, measurement_count INTEGER NOT NULL, weight_sum INTEGER NOT NULL, weight_min INTEGER NOT NULL, weight_max INTEGER NOT NULL, PRIMARY KEY (pet_id, bucket_start));
+CREATE TRIGGER weights_week_rollup AFTER INSERT ON weights FOR EACH ROW BEGIN INSERT OR IGNORE INTO weights_week (pet_id, bucket_start, measurement_count, weight_sum, weight_min, weight_max) VALUES (NEW.pet_id, CAST(strftime('%s', NEW.measured_at / 1000, 'unixepoch', 'start of day', 'weekday 0', '-6 days') AS INTEGER) * 1000, 0, 0, NEW.weight, NEW.weight); UPDATE weights_week SET measurement_count = measurement_count + 1, weight_sum = weight_sum + NEW.weight, weight_min = MIN(weight_min, NEW.weight), weight_max = MAX(weight_max, NEW.weight) WHERE pet_id = NEW.pet_id AND bucket_start = CAST(strftime('%s', NEW.measured_at / 1000, 'unixepoch', 'start of day', 'weekday 0', '-6 days') AS INTEGER) * 1000; END;
+CREATE TABLE weights_month(pet_id INTEGER NOT NULL, bucket_start INTEGER NOT NULL, measurement_count INTEGER NOT NULL, weight_sum INTEGER NOT NULL, weight_min INTEGER NOT NULL, weight_max INTEGER NOT NULL, PRIMARY KEY (pet_id, bucket_start));
+CREATE TRIGGER weights_month_rollup AFTER INSERT ON weights FOR EACH ROW BEGIN INSERT OR IGNORE INTO weights_month (pet_id, bucket_start, measurement_count, weight_sum, weight_min, weight_max) VALUES (NEW.pet_id, CAST(strftime('%s', NEW.measured_at / 1000, 'unixepoch', 'start of month') AS INTEGER) * 1000, 0, 0, NEW.weight, NEW.weight); UPDATE weights_month SET measurement_count = measurement_count + 1, weight_sum = weight_sum + NEW.weight, weight_min = MIN(weight_min, NEW.weight), weight_max = MAX(weight_max, NEW.weight) WHERE pet_id = NEW.pet_id AND bucket_start = CAST(strftime('%s', NEW.measured_at / 1000, 'unixepoch', 'start of month') AS INTEGER) * 1000; END;
+CREATE UNIQUE INDEX pets_sync_id ON pets(sync_id);
+CREATE TABLE pet_changes(seq INTEGER PRIMARY KEY AUTOINCREMENT, sync_id TEXT NOT NULL, deleted INTEGER NOT NULL, changed_at INTEGER NOT NULL);
+CREATE INDEX pet_changes_sync_id ON pet_changes(sync_id);
+CREATE TRIGGER pets_log_insert AFTER INSERT ON pets FOR EACH ROW WHEN NEW.sync_id IS NOT NULL BEGIN INSERT INTO pet_changes (sync_id, deleted, changed_at) VALUES (NEW.sync_id, 0, NEW.updated_at); END;
+CREATE TRIGGER pets_log_update AFTER UPDATE OF name, breed, gender, weight, sync_id, updated_at ON pets FOR EACH ROW WHEN NEW.sync_id IS NOT NULL BEGIN INSERT INTO pet_changes (sync_id, deleted, changed_at) VALUES (NEW.sync_id, 0, NEW.updated_at); END;
+CREATE TRIGGER pets_log_delete AFTER DELETE ON pets FOR EACH ROW WHEN OLD.sync_id IS NOT NULL AND NOT EXISTS (SELECT 1 FROM pets_archive WHERE _id = OLD._id) BEGIN INSERT INTO pet_changes (sync_id, deleted, changed_at) VALUES (OLD.sync_id, 1, CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)); END;
+CREATE TABLE pets_archive(_id INTEGER PRIMARY KEY, name TEXT NOT NULL, breed TEXT, gender INTEGER NOT NULL, weight INTEGER NOT NULL DEFAULT 0, version INTEGER NOT NULL DEFAULT 0, sync_id TEXT, updated_at INTEGER NOT NULL DEFAULT 0);
+CREATE UNIQUE INDEX pets_archive_sync_id ON pets_archive(sync_id);
+CREATE INDEX pets_updated_at ON pets(updated_at);
+CREATE TRIGGER pets_archive_delete_weights AFTER DELETE ON pets_archive FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets WHERE _id = OLD._id) BEGIN DELETE FROM weights WHERE pet_id = OLD._id; DELETE FROM weights_day WHERE pet_id = OLD._id; DELETE FROM weights_week WHERE pet_id = OLD._id; DELETE FROM weights_month WHERE pet_id = OLD._id; END;
+ALTER TABLE pets ADD COLUMN external_id TEXT;
+ALTER TABLE pets_archive ADD COLUMN external_id TEXT;
+CREATE UNIQUE INDEX pets_external_id ON pets(external_id);
+CREATE INDEX pets_archive_external_id ON pets_archive(external_id);
+CREATE TABLE maintenance_log(_id INTEGER PRIMARY KEY, started_at INTEGER NOT NULL, step TEXT NOT NULL, outcome TEXT NOT NULL, duration_millis INTEGER NOT NULL, detail TEXT);
+CREATE TABLE adopters(_id INTEGER PRIMARY KEY, name TEXT NOT NULL, contact TEXT);
+CREATE TABLE adoptions(_id INTEGER PRIMARY KEY, pet_id INTEGER NOT NULL, adopter_id INTEGER NOT NULL, adopted_at INTEGER NOT NULL);
+CREATE UNIQUE INDEX adoptions_pet_id ON adoptions(pet_id);
+CREATE INDEX adoptions_adopter_id ON adoptions(adopter_id);
+CREATE TRIGGER adoptions_require_pet BEFORE INSERT ON adoptions FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets WHERE _id = NEW.pet_id) BEGIN SELECT RAISE(ABORT, 'No such pet'); END;
+CREATE TRIGGER adoptions_require_pet_on_update BEFORE UPDATE OF pet_id ON adoptions FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets WHERE _id = NEW.pet_id) BEGIN SELECT RAISE(ABORT, 'No such pet'); END;
+CREATE TRIGGER adoptions_require_adopter BEFORE INSERT ON adoptions FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM adopters WHERE _id = NEW.adopter_id) BEGIN SELECT RAISE(ABORT, 'No such adopter'); END;
+CREATE TRIGGER adoptions_require_adopter_on_update BEFORE UPDATE OF adopter_id ON adoptions FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM adopters WHERE _id = NEW.adopter_id) BEGIN SELECT RAISE(ABORT, 'No such adopter'); END;
+CREATE TRIGGER adopters_keep_adoptions BEFORE DELETE ON adopters FOR EACH ROW WHEN EXISTS (SELECT 1 FROM adoptions WHERE adopter_id = OLD._id) BEGIN SELECT RAISE(ABORT, 'Adopter has adoptions'); END;
+CREATE TRIGGER pets_delete_adoptions AFTER DELETE ON pets FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets_archive WHERE _id = OLD._id) BEGIN DELETE FROM adoptions WHERE pet_id = OLD._id; END;
+CREATE TRIGGER pets_archive_delete_adoptions AFTER DELETE ON pets_archive FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM pets WHERE _id = OLD._id) BEGIN DELETE FROM adoptions WHERE pet_id = OLD._id; END;
+CREATE TABLE pet_catalog(_id INTEGER PRIMARY KEY, name TEXT NOT NULL, breed TEXT, gender INTEGER NOT NULL, weight INTEGER NOT NULL, version INTEGER NOT NULL, adopted_at INTEGER);
+CREATE TRIGGER pets_catalog_insert AFTER INSERT ON pets FOR EACH ROW BEGIN INSERT INTO pet_catalog (_id, name, breed, gender, weight, version, adopted_at) VALUES (NEW._id, NEW.name, NEW.breed, NEW.gender, NEW.weight, NEW.version, (SELECT adopted_at FROM adoptions WHERE pet_id = NEW._id)); END;
+CREATE TRIGGER pets_catalog_update AFTER UPDATE OF name, breed, gender, weight, version ON pets FOR EACH ROW BEGIN UPDATE pet_catalog SET name = NEW.name, breed = NEW.breed, gender = NEW.gender, weight = NEW.weight, version = NEW.version WHERE _id = OLD._id; END;
+CREATE TRIGGER pets_catalog_delete AFTER DELETE ON pets FOR EACH ROW BEGIN DELETE FROM pet_catalog WHERE _id = OLD._id; END;
+CREATE TRIGGER adoptions_catalog_insert AFTER INSERT ON adoptions FOR EACH ROW BEGIN UPDATE pet_catalog SET adopted_at = NEW.adopted_at WHERE _id = NEW.pet_id; END;
+CREATE TRIGGER adoptions_catalog_update AFTER UPDATE OF pet_id, adopted_at ON adoptions FOR EACH ROW BEGIN UPDATE pet_catalog SET adopted_at = NULL WHERE _id = OLD.pet_id; UPDATE pet_catalog SET adopted_at = NEW.adopted_at WHERE _id = NEW.pet_id; END;
+CREATE TRIGGER adoptions_catalog_delete AFTER DELETE ON adoptions FOR EACH ROW BEGIN UPDATE pet_catalog SET adopted_at = NULL WHERE _id = OLD.pet_id; END;
+INSERT INTO pet_catalog (_id, name, breed, gender, weight, version) SELECT _id, name, breed, gender, weight, version FROM pets;
+CREATE TABLE pet_blocking_keys(pet_id INTEGER PRIMARY KEY, name_code TEXT NOT NULL, breed_code TEXT NOT NULL, weight_band INTEGER NOT NULL);
+CREATE INDEX pet_blocking_keys_block ON pet_blocking_keys(name_code, breed_code, weight_band);
+CREATE TABLE pet_duplicate_queue(pet_id INTEGER PRIMARY KEY);
+CREATE TABLE pet_duplicates(_id INTEGER PRIMARY KEY, pet_id INTEGER NOT NULL, duplicate_of_id INTEGER NOT NULL, score REAL NOT NULL, found_at INTEGER NOT NULL, UNIQUE (pet_id, duplicate_of_id));
+CREATE INDEX pet_duplicates_duplicate_of_id ON pet_duplicates(duplicate_of_id);
+CREATE TRIGGER pets_queue_duplicates_insert AFTER INSERT ON pets FOR EACH ROW BEGIN INSERT OR IGNORE INTO pet_duplicate_queue (pet_id) VALUES (NEW._id); END;
+CREATE TRIGGER pets_queue_duplicates_update AFTER UPDATE OF name, breed, gender, weight ON pets FOR EACH ROW BEGIN INSERT OR IGNORE INTO pet_duplicate_queue (pet_id) VALUES (NEW._id); END;
+CREATE TRIGGER pets_delete_duplicates AFTER DELETE ON pets FOR EACH ROW BEGIN DELETE FROM pet_blocking_keys WHERE pet_id = OLD._id; DELETE FROM pet_duplicate_queue WHERE pet_id = OLD._id; DELETE FROM pet_duplicates WHERE pet_id = OLD._id OR duplicate_of_id = OLD._id; END;
+INSERT INTO pet_duplicate_queue (pet_id) SELECT _id FROM pets;
@@ -0,0 +1,130 @@
+package com.example.android.pets.debug;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.sync.PetSyncEngine;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs one of the debug tools (benchmarks, stress tests) on a background thread and logs its
+ * report. Only compiled into debug builds. Tools can run for longer than a receiver is allowed
+ * to, so keep the app in the foreground while one is running.
+ * <p>
+ * Usage: adb shell am broadcast -a com.example.android.pets.debug.RUN_TOOL -e tool [name]
+ */
+public class DebugToolsReceiver extends BroadcastReceiver {
+
+    public static final String LOG_TAG = DebugToolsReceiver.class.getSimpleName();
+
+    /**
+     * Name of the tool to run.
+     */
+    public static final String EXTRA_TOOL = "tool";
+
+    public static final String TOOL_CALL_BENCHMARK = "call_benchmark";
+    public static final String TOOL_SYNC_LOOPBACK = "sync_loopback";
+    public static final String TOOL_STRESS = "stress";
+    public static final String TOOL_TRACE_START = "trace_start";
+    public static final String TOOL_TRACE_STOP = "trace_stop";
+    public static final String TOOL_REPLAY = "replay";
+    public static final String TOOL_QUERY_CANCEL = "query_cancel";
+    public static final String TOOL_DUPLICATES = "duplicates";
+    public static final String TOOL_MAIN_THREAD = "main_thread";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Context appContext = context.getApplicationContext();
+        final String tool = intent.getStringExtra(EXTRA_TOOL);
+        final Intent toolIntent = intent;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Log.i(LOG_TAG, "Running " + tool + "\n" + runTool(appContext, tool, toolIntent));
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Tool " + tool + " failed", e);
+                }
+            }
+        }, "pets-debug-tool").start();
+    }
+
+    private static String runTool(Context context, String tool, Intent intent) {
+        if (TOOL_CALL_BENCHMARK.equals(tool)) {
+            return new PetCallBenchmark(context.getContentResolver(),
+                    intent.getIntExtra("rows", PetCallBenchmark.DEFAULT_ROWS)).run();
+        }
+        if (TOOL_SYNC_LOOPBACK.equals(tool)) {
+            return new SyncLoopbackTool(context,
+                    intent.getIntExtra("local", SyncLoopbackTool.DEFAULT_CHANGES),
+                    intent.getIntExtra("remote", SyncLoopbackTool.DEFAULT_CHANGES),
+                    intent.getIntExtra("batch_bytes", PetSyncEngine.DEFAULT_MAX_BATCH_BYTES)).run();
+        }
+        if (TOOL_STRESS.equals(tool)) {
+            String threads = intent.getStringExtra("threads");
+            return new PetStressTool(context,
+                    threads == null ? PetStressTool.DEFAULT_THREAD_COUNTS : threads,
+                    intent.getIntExtra("seconds", PetStressTool.DEFAULT_SECONDS),
+                    intent.getIntExtra("write_percent", PetStressTool.DEFAULT_WRITE_PERCENT),
+                    intent.getIntExtra("direct_writers", 0)).run();
+        }
+        if (TOOL_TRACE_START.equals(tool)) {
+            File traceFile = traceFile(context, intent);
+            context.getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                    PetContract.METHOD_TRACE_START, traceFile.getPath(), null);
+            return "Recording calls to " + traceFile;
+        }
+        if (TOOL_TRACE_STOP.equals(tool)) {
+            Bundle result = context.getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                    PetContract.METHOD_TRACE_STOP, null, null);
+            return "Recorded " + result.getLong(PetContract.EXTRA_COUNT) + " calls";
+        }
+        if (TOOL_REPLAY.equals(tool)) {
+            return new PetTraceReplayTool(context, traceFile(context, intent),
+                    "max".equals(intent.getStringExtra("speed"))).run();
+        }
+        if (TOOL_QUERY_CANCEL.equals(tool)) {
+            return new PetQueryCancelTool(context,
+                    intent.getIntExtra("pets", PetQueryCancelTool.DEFAULT_PETS)).run();
+        }
+        if (TOOL_DUPLICATES.equals(tool)) {
+            return new PetDuplicateTool(context,
+                    intent.getIntExtra("pets", PetDuplicateTool.DEFAULT_PETS),
+                    intent.getIntExtra("duplicates", PetDuplicateTool.DEFAULT_DUPLICATES)).run();
+        }
+        if (TOOL_MAIN_THREAD.equals(tool)) {
+            return new MainThreadGuardTool(context,
+                    intent.getIntExtra("seconds", MainThreadGuardTool.DEFAULT_SECONDS)).run();
+        }
+        throw new IllegalArgumentException("Unknown tool: " + tool);
+    }
+
+    /**
+     * Return the trace file named in the "file" extra, by default
+     * {@link PetTraceReplayTool#DEFAULT_TRACE_FILE}. Trace files always live in the files
+     * directory, so a broadcast can't make the app write anywhere else.
+     */
+    private static File traceFile(Context context, Intent intent) {
+        String name = intent.getStringExtra("file");
+        if (name == null) {
+            name = PetTraceReplayTool.DEFAULT_TRACE_FILE;
+        }
+        File filesDir = context.getFilesDir();
+        File file = new File(filesDir, name);
+        try {
+            if (!file.getCanonicalFile().getParentFile().equals(filesDir.getCanonicalFile())) {
+                throw new IllegalArgumentException("Trace files must be in " + filesDir + ": "
+                        + name);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid trace file " + name, e);
+        }
+        return file;
+    }
+}
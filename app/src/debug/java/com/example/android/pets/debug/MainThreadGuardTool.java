@@ -0,0 +1,177 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.android.pets.CatalogActivity;
+import com.example.android.pets.EditorActivity;
+import com.example.android.pets.data.MainThreadGuard;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the activities keep their database work off the main thread, using
+ * {@link MainThreadGuard}.
+ * <p>
+ * The tool first checks the guard itself: a query on the main thread has to be counted once,
+ * even though both the provider and the database engine see it, while a query on a background
+ * thread, or one with the guard off, must not be counted. Then it opens the catalog and the
+ * editor of the first pet, waits for them to load, and lists every call site that touched the
+ * database on the main thread meanwhile. Use the app as usual while it waits to cover more of
+ * it. The guard's mode is put back when the tool is done.
+ */
+public class MainThreadGuardTool {
+
+    public static final String LOG_TAG = MainThreadGuardTool.class.getSimpleName();
+
+    public static final int DEFAULT_SECONDS = 5;
+
+    private static final String[] PROJECTION = {PetEntry._ID};
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int mSeconds;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param seconds how long to wait for each activity to load.
+     */
+    public MainThreadGuardTool(Context context, int seconds) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Invalid number of seconds: " + seconds);
+        }
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mSeconds = seconds;
+    }
+
+    /**
+     * Run the checks and return the report.
+     */
+    public String run() {
+        StringBuilder report = new StringBuilder();
+        int mode = MainThreadGuard.getMode();
+        try {
+            checkGuard(report);
+            checkActivities(report);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.append("interrupted\n");
+        } finally {
+            MainThreadGuard.setMode(mode);
+            MainThreadGuard.reset();
+        }
+        return report.toString();
+    }
+
+    private void checkGuard(StringBuilder report) throws InterruptedException {
+        MainThreadGuard.setMode(MainThreadGuard.MODE_LOG);
+        MainThreadGuard.reset();
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                firstPetUri();
+            }
+        });
+        appendResult(report, "main thread query counted once", totalCount() == 1);
+
+        MainThreadGuard.reset();
+        firstPetUri();
+        appendResult(report, "background query not counted", totalCount() == 0);
+
+        MainThreadGuard.setMode(MainThreadGuard.MODE_OFF);
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                firstPetUri();
+            }
+        });
+        appendResult(report, "query with the guard off not counted", totalCount() == 0);
+    }
+
+    private void checkActivities(StringBuilder report) throws InterruptedException {
+        MainThreadGuard.setMode(MainThreadGuard.MODE_LOG);
+        MainThreadGuard.reset();
+        startActivity(new Intent(mContext, CatalogActivity.class));
+        Uri petUri = firstPetUri();
+        if (petUri != null) {
+            startActivity(new Intent(mContext, EditorActivity.class).setData(petUri));
+        } else {
+            report.append("no pets, the editor was opened for a new pet\n");
+            startActivity(new Intent(mContext, EditorActivity.class));
+        }
+
+        Map<String, Integer> callSites = MainThreadGuard.getCallSiteCounts();
+        appendResult(report, "no main thread database work", callSites.isEmpty());
+        for (Map.Entry<String, Integer> callSite : callSites.entrySet()) {
+            report.append(String.format(Locale.US, "%6d  %s%n", callSite.getValue(),
+                    callSite.getKey()));
+        }
+    }
+
+    private void startActivity(Intent intent) throws InterruptedException {
+        mContext.startActivity(intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+        SystemClock.sleep(TimeUnit.SECONDS.toMillis(mSeconds));
+        // Let the main thread finish what it started meanwhile.
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * Run the task on the main thread and wait for it.
+     */
+    private void onMainThread(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        done.await();
+    }
+
+    private Uri firstPetUri() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PROJECTION, null, null,
+                PetEntry._ID);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst()
+                    ? ContentUris.withAppendedId(PetEntry.CONTENT_URI, cursor.getLong(0)) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static int totalCount() {
+        int total = 0;
+        for (int count : MainThreadGuard.getCallSiteCounts().values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static void appendResult(StringBuilder report, String check, boolean passed) {
+        report.append(String.format(Locale.US, "%-38s %s%n", check, passed ? "ok" : "FAILED"));
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Locale;
+
+/**
+ * Compares the compound {@link ContentResolver#call} operations of the pets provider with the
+ * cursor based way of doing the same thing.
+ * <p>
+ * The benchmark inserts its own pets, marked with {@link #BENCHMARK_BREED}, and deletes them
+ * again when it's done.
+ */
+public class PetCallBenchmark {
+
+    public static final int DEFAULT_ROWS = 1000;
+
+    /**
+     * Number of times each read operation is repeated.
+     */
+    private static final int ITERATIONS = 200;
+
+    /**
+     * Breed given to the pets created by the benchmark so they can be told apart.
+     */
+    private static final String BENCHMARK_BREED = "__call_benchmark__";
+
+    private static final String BENCHMARK_SELECTION = PetEntry.COLUMN_PET_BREED + "=?";
+    private static final String[] BENCHMARK_SELECTION_ARGS = {BENCHMARK_BREED};
+
+    private final ContentResolver mResolver;
+    private final int mRows;
+    private final StringBuilder mReport = new StringBuilder();
+
+    public PetCallBenchmark(ContentResolver resolver, int rows) {
+        mResolver = resolver;
+        mRows = rows;
+    }
+
+    /**
+     * Run all comparisons and return a report with the average time per operation.
+     */
+    public String run() {
+        mReport.append(String.format(Locale.US, "%d rows, %d iterations%n", mRows, ITERATIONS));
+        insertPets();
+        try {
+            benchmarkCount();
+            benchmarkExists();
+            benchmarkListIds();
+            benchmarkDelete();
+        } finally {
+            mResolver.delete(PetEntry.CONTENT_URI, BENCHMARK_SELECTION, BENCHMARK_SELECTION_ARGS);
+        }
+        return mReport.toString();
+    }
+
+    private void insertPets() {
+        ContentValues[] rows = new ContentValues[mRows];
+        for (int i = 0; i < mRows; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, BENCHMARK_BREED);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i % 50);
+            rows[i] = values;
+        }
+        mResolver.bulkInsert(PetEntry.CONTENT_URI, rows);
+    }
+
+    private long[] listIds() {
+        Bundle extras = new Bundle();
+        extras.putString(PetContract.EXTRA_SELECTION, BENCHMARK_SELECTION);
+        extras.putStringArray(PetContract.EXTRA_SELECTION_ARGS, BENCHMARK_SELECTION_ARGS);
+        return mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_LIST_IDS, null, extras)
+                .getLongArray(PetContract.EXTRA_IDS);
+    }
+
+    private void benchmarkCount() {
+        Bundle extras = new Bundle();
+        extras.putString(PetContract.EXTRA_SELECTION, BENCHMARK_SELECTION);
+        extras.putStringArray(PetContract.EXTRA_SELECTION_ARGS, BENCHMARK_SELECTION_ARGS);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_COUNT, null, extras);
+        }
+        long callNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                    BENCHMARK_SELECTION, BENCHMARK_SELECTION_ARGS, null);
+            cursor.getCount();
+            cursor.close();
+        }
+        long cursorNanos = System.nanoTime() - start;
+        report("count", callNanos, cursorNanos, ITERATIONS);
+    }
+
+    private void benchmarkExists() {
+        long[] ids = listIds();
+        long id = ids[ids.length / 2];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_EXISTS, String.valueOf(id), null);
+        }
+        long callNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor cursor = mResolver.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                    new String[]{PetEntry._ID}, null, null, null);
+            cursor.moveToFirst();
+            cursor.close();
+        }
+        long cursorNanos = System.nanoTime() - start;
+        report("exists", callNanos, cursorNanos, ITERATIONS);
+    }
+
+    private void benchmarkListIds() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            listIds();
+        }
+        long callNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID},
+                    BENCHMARK_SELECTION, BENCHMARK_SELECTION_ARGS, null);
+            long[] ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                ids[cursor.getPosition()] = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        long cursorNanos = System.nanoTime() - start;
+        report("list ids", callNanos, cursorNanos, ITERATIONS);
+    }
+
+    /**
+     * Delete half of the benchmark pets with one call, the other half one by one.
+     */
+    private void benchmarkDelete() {
+        long[] ids = listIds();
+        int half = ids.length / 2;
+        long[] batch = new long[half];
+        System.arraycopy(ids, 0, batch, 0, half);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(PetContract.EXTRA_IDS, batch);
+        long start = System.nanoTime();
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_DELETE_IDS, null, extras);
+        long callNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = half; i < half * 2; i++) {
+            mResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, ids[i]), null, null);
+        }
+        long cursorNanos = System.nanoTime() - start;
+        report("delete " + half + " ids", callNanos, cursorNanos, 1);
+    }
+
+    private void report(String operation, long callNanos, long cursorNanos, int iterations) {
+        mReport.append(String.format(Locale.US, "%-16s call %8.1f us   cursor %8.1f us   x%.1f%n",
+                operation, callNanos / 1000.0 / iterations, cursorNanos / 1000.0 / iterations,
+                (double) cursorNanos / Math.max(1, callNanos)));
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.DuplicateEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Measures the duplicate detection on a scratch shelter: how long an import takes with the
+ * pets being queued, how long the background check takes to work through them, and how many
+ * of the planted duplicates it finds.
+ * <p>
+ * The tool imports random pets, then imports a misspelt copy of some of them (a letter
+ * dropped or doubled, the breed misspelt, the weight off by a kg) the way a second member of
+ * staff would enter them. The check runs through the provider like the background job does,
+ * which may be running at the same time; the time is until nothing waits to be checked. The
+ * scratch shelter's pets are deleted again when the tool is done.
+ */
+public class PetDuplicateTool {
+
+    public static final String LOG_TAG = PetDuplicateTool.class.getSimpleName();
+
+    public static final int DEFAULT_PETS = 10000;
+    public static final int DEFAULT_DUPLICATES = 200;
+
+    /**
+     * Shelter used by the tool, so the real shelters are left alone.
+     */
+    private static final long SCRATCH_SHELTER_ID = 9996;
+
+    private static final int INSERT_BATCH_SIZE = 500;
+
+    private static final String[] SYLLABLES = {"ba", "ko", "ri", "mu", "zel", "to", "ni", "fa",
+            "gor", "shi", "lu", "ven", "da", "pe", "quin", "ro", "sa", "wex", "yo", "ti"};
+
+    private static final String[] BREEDS = {"Tabby", "Siamese", "Persian", "Maine Coon",
+            "Bombay", "Labrador Retriever", "German Shepherd", "Beagle", "Border Terrier",
+            "Cocker Spaniel", "Pomeranian", "Greyhound"};
+
+    private final ContentResolver mResolver;
+    private final int mPets;
+    private final int mDuplicates;
+    private final Uri mShelterUri = PetEntry.contentUriForShelter(SCRATCH_SHELTER_ID);
+    private final Random mRandom = new Random(46);
+
+    /**
+     * @param pets       number of original pets in the scratch shelter.
+     * @param duplicates number of them that are entered a second time, misspelt.
+     */
+    public PetDuplicateTool(Context context, int pets, int duplicates) {
+        if (pets <= 0 || duplicates < 0 || duplicates > pets) {
+            throw new IllegalArgumentException("Invalid number of pets or duplicates: " + pets
+                    + ", " + duplicates);
+        }
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            throw new UnsupportedOperationException(
+                    "The in-memory store has no duplicate detection");
+        }
+        mResolver = context.getContentResolver();
+        mPets = pets;
+        mDuplicates = duplicates;
+    }
+
+    /**
+     * Import the pets, wait for the check and return the report.
+     */
+    public String run() {
+        try {
+            deleteScratchPets();
+
+            List<ContentValues> originals = new ArrayList<>(mPets);
+            for (int i = 0; i < mPets; i++) {
+                originals.add(pet(randomName(), BREEDS[mRandom.nextInt(BREEDS.length)],
+                        PetEntry.GENDER_UNKNOWN + mRandom.nextInt(3), 2 + mRandom.nextInt(40)));
+            }
+            long start = SystemClock.uptimeMillis();
+            insert(originals);
+            long importMillis = SystemClock.uptimeMillis() - start;
+            long firstDuplicateId = maxPetId() + 1;
+
+            List<ContentValues> copies = new ArrayList<>(mDuplicates);
+            for (int i = 0; i < mDuplicates; i++) {
+                copies.add(misspell(originals.get(mRandom.nextInt(originals.size()))));
+            }
+            start = SystemClock.uptimeMillis();
+            insert(copies);
+            long copiesMillis = SystemClock.uptimeMillis() - start;
+
+            start = SystemClock.uptimeMillis();
+            int checkedHere = drainQueue();
+            long checkMillis = SystemClock.uptimeMillis() - start;
+
+            int otherPairs = 0;
+            Set<Long> copiesWithPair = new HashSet<>();
+            Cursor cursor = mResolver.query(DuplicateEntry.contentUriForShelter(
+                    SCRATCH_SHELTER_ID), new String[]{DuplicateEntry.COLUMN_PET_ID}, null, null,
+                    null);
+            try {
+                while (cursor.moveToNext()) {
+                    long petId = cursor.getLong(0);
+                    if (petId >= firstDuplicateId) {
+                        copiesWithPair.add(petId);
+                    } else {
+                        otherPairs++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            int foundCopies = copiesWithPair.size();
+
+            return String.format(Locale.US, "%d pets imported in %d ms, %d misspelt copies in "
+                            + "%d ms%ncheck done %d ms later (%d pets checked by the tool, the "
+                            + "rest by the background job)%n%d of %d copies found (%.1f%%), "
+                            + "%d pairs among the originals%n",
+                    mPets, importMillis, mDuplicates, copiesMillis, checkMillis, checkedHere,
+                    foundCopies, mDuplicates,
+                    mDuplicates == 0 ? 100.0 : 100.0 * foundCopies / mDuplicates, otherPairs);
+        } finally {
+            deleteScratchPets();
+        }
+    }
+
+    /**
+     * Check queued pets until none are left, and return how many the tool checked itself.
+     */
+    private int drainQueue() {
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        int checked = 0;
+        while (true) {
+            Bundle result = mResolver.call(PetEntry.CONTENT_URI,
+                    PetContract.METHOD_FIND_DUPLICATES, null, extras);
+            int batchChecked = result.getInt(PetContract.EXTRA_ROWS_AFFECTED);
+            if (batchChecked == 0) {
+                return checked;
+            }
+            checked += batchChecked;
+        }
+    }
+
+    private void insert(List<ContentValues> pets) {
+        for (int i = 0; i < pets.size(); i += INSERT_BATCH_SIZE) {
+            List<ContentValues> batch = pets.subList(i, Math.min(pets.size(),
+                    i + INSERT_BATCH_SIZE));
+            mResolver.bulkInsert(mShelterUri, batch.toArray(new ContentValues[batch.size()]));
+        }
+    }
+
+    private long maxPetId() {
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        extras.putString(PetContract.EXTRA_SORT_ORDER, PetEntry._ID + " DESC");
+        long[] ids = mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_LIST_IDS, null,
+                extras).getLongArray(PetContract.EXTRA_IDS);
+        return ids.length == 0 ? 0 : ids[0];
+    }
+
+    private String randomName() {
+        StringBuilder name = new StringBuilder();
+        int syllables = 2 + mRandom.nextInt(2);
+        for (int i = 0; i < syllables; i++) {
+            name.append(SYLLABLES[mRandom.nextInt(SYLLABLES.length)]);
+        }
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+        return name.toString();
+    }
+
+    /**
+     * Return a copy of the pet as someone else might have entered it.
+     */
+    private ContentValues misspell(ContentValues original) {
+        String name = original.getAsString(PetEntry.COLUMN_PET_NAME);
+        // Keep the first letter, people rarely get that one wrong.
+        int at = 1 + mRandom.nextInt(name.length() - 1);
+        name = mRandom.nextBoolean() ? name.substring(0, at) + name.substring(at + 1)
+                : name.substring(0, at) + name.charAt(at) + name.substring(at);
+        String breed = original.getAsString(PetEntry.COLUMN_PET_BREED);
+        if (mRandom.nextBoolean()) {
+            breed = breed.toLowerCase(Locale.US).replace('e', 'a');
+        }
+        int weight = original.getAsInteger(PetEntry.COLUMN_PET_WEIGHT) + mRandom.nextInt(3) - 1;
+        return pet(name, breed, original.getAsInteger(PetEntry.COLUMN_PET_GENDER), weight);
+    }
+
+    private void deleteScratchPets() {
+        mResolver.delete(mShelterUri, null, null);
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        extras.putLong(PetContract.EXTRA_SYNC_LAST_SEQ, Long.MAX_VALUE);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_SYNC_ACK_CHANGES, null, extras);
+    }
+
+    private static ContentValues pet(String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that an abandoned query stops early and hands its connection back, the way a
+ * CursorLoader abandons one when the user leaves the screen.
+ * <p>
+ * The tool fills a scratch shelter and, for the shelter's URI and for the all-shelters URI,
+ * runs a deliberately slow query three ways:
+ * <ul>
+ * <li>to the end, to see how long the scan takes,</li>
+ * <li>cancelled after a quarter of that time, to see how long it keeps running once it's
+ * cancelled,</li>
+ * <li>with a signal that was cancelled before the query started, which must not scan at all.</li>
+ * </ul>
+ * Right after every cancelled query it times a read and a write of the scratch shelter. If the
+ * cancelled scan still held its connection, or the provider's lock, they would wait for the
+ * rest of the scan. The scratch shelter's pets are deleted again when the tool is done.
+ */
+public class PetQueryCancelTool {
+
+    public static final String LOG_TAG = PetQueryCancelTool.class.getSimpleName();
+
+    public static final int DEFAULT_PETS = 5000;
+
+    /**
+     * Shelter used by the tool, so the real shelters are left alone.
+     */
+    private static final long SCRATCH_SHELTER_ID = 9997;
+
+    private static final int INSERT_BATCH_SIZE = 500;
+
+    private static final String CANCEL_BREED = "Cancel";
+
+    /**
+     * Counts every pet's namesakes with an unindexed subquery, so the scan takes quadratic time
+     * in the number of pets before it returns its first row.
+     */
+    private static final String SLOW_SELECTION = "(SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME +
+            " AS other WHERE other." + PetEntry.COLUMN_PET_NAME + " = " + PetEntry.TABLE_NAME +
+            "." + PetEntry.COLUMN_PET_NAME + ") > 0";
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+
+    private final ContentResolver mResolver;
+    private final int mPets;
+    private final Uri mShelterUri = PetEntry.contentUriForShelter(SCRATCH_SHELTER_ID);
+
+    /**
+     * @param pets number of pets in the scratch shelter. The slow query takes quadratic time
+     *             in it.
+     */
+    public PetQueryCancelTool(Context context, int pets) {
+        if (pets <= 0) {
+            throw new IllegalArgumentException("Invalid number of pets: " + pets);
+        }
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            throw new UnsupportedOperationException(
+                    "The in-memory store doesn't support the tool's subquery");
+        }
+        mResolver = context.getContentResolver();
+        mPets = pets;
+    }
+
+    /**
+     * Run the queries and return the report.
+     */
+    public String run() {
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%d pets in the scratch shelter%n", mPets));
+        report.append("uri           full ms  cancel at ms  stopped after ms  rows    "
+                + "next read ms  next write ms  pre-cancelled\n");
+        try {
+            deleteScratchPets();
+            seed();
+            report.append(runRound("shelter", mShelterUri)).append('\n');
+            report.append(runRound("all shelters", PetEntry.ALL_SHELTERS_CONTENT_URI))
+                    .append('\n');
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.append("interrupted\n");
+        } finally {
+            deleteScratchPets();
+        }
+        return report.toString();
+    }
+
+    private String runRound(String name, Uri uri) throws InterruptedException {
+        long start = SystemClock.uptimeMillis();
+        int fullRows = count(uri, null);
+        long fullMillis = SystemClock.uptimeMillis() - start;
+
+        // Cancel the same query a quarter of the way in.
+        final CancellationSignal signal = new CancellationSignal();
+        final Uri queryUri = uri;
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] rows = {-1};
+        Thread query = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rows[0] = count(queryUri, signal);
+                } catch (OperationCanceledException e) {
+                    // Expected, rows stays -1.
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, "pets-cancel-query");
+        long cancelAt = fullMillis / 4;
+        query.start();
+        Thread.sleep(cancelAt);
+        long cancelledAt = SystemClock.uptimeMillis();
+        signal.cancel();
+        // Twice the full scan is plenty for a query that ignores the signal.
+        done.await(fullMillis * 2 + 1000, TimeUnit.MILLISECONDS);
+        long stoppedAfter = SystemClock.uptimeMillis() - cancelledAt;
+
+        start = SystemClock.uptimeMillis();
+        count(mShelterUri, null, PetEntry._ID + "=?", new String[]{"1"});
+        long readMillis = SystemClock.uptimeMillis() - start;
+        start = SystemClock.uptimeMillis();
+        mResolver.insert(mShelterUri, pet(0));
+        long writeMillis = SystemClock.uptimeMillis() - start;
+        query.join();
+
+        String preCancelled;
+        CancellationSignal cancelled = new CancellationSignal();
+        cancelled.cancel();
+        start = SystemClock.uptimeMillis();
+        try {
+            count(uri, cancelled);
+            preCancelled = "ran anyway";
+        } catch (OperationCanceledException e) {
+            preCancelled = "refused in " + (SystemClock.uptimeMillis() - start) + " ms";
+        }
+
+        return String.format(Locale.US, "%-12s  %7d  %12d  %16d  %-6s  %12d  %13d  %s",
+                name, fullMillis, cancelAt, stoppedAfter,
+                rows[0] < 0 ? "none" : rows[0] + "/" + fullRows, readMillis, writeMillis,
+                preCancelled);
+    }
+
+    private int count(Uri uri, CancellationSignal signal) {
+        return count(uri, signal, SLOW_SELECTION, null);
+    }
+
+    private int count(Uri uri, CancellationSignal signal, String selection,
+                      String[] selectionArgs) {
+        Cursor cursor = mResolver.query(uri, PROJECTION, selection, selectionArgs, null, signal);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void seed() {
+        ContentValues[] batch = new ContentValues[INSERT_BATCH_SIZE];
+        for (int i = 0; i < mPets; i += INSERT_BATCH_SIZE) {
+            int size = Math.min(INSERT_BATCH_SIZE, mPets - i);
+            if (size != batch.length) {
+                batch = new ContentValues[size];
+            }
+            for (int j = 0; j < size; j++) {
+                batch[j] = pet(i + j);
+            }
+            mResolver.bulkInsert(mShelterUri, batch);
+        }
+    }
+
+    private void deleteScratchPets() {
+        mResolver.delete(mShelterUri, null, null);
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        extras.putLong(PetContract.EXTRA_SYNC_LAST_SEQ, Long.MAX_VALUE);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_SYNC_ACK_CHANGES, null, extras);
+    }
+
+    private static ContentValues pet(int number) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Cancel " + number);
+        values.put(PetEntry.COLUMN_PET_BREED, CANCEL_BREED);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + number % 50);
+        return values;
+    }
+}
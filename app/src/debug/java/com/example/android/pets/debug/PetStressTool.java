@@ -0,0 +1,584 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetProvider;
+import com.example.android.pets.data.PetShardManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a mix of reader and writer threads against the pets provider of a scratch shelter for a
+ * fixed time, once per thread count, and checks that the shelter is consistent afterwards:
+ * <ul>
+ * <li>the number of pets matches what the writers inserted and deleted,</li>
+ * <li>every pet read, during and after the run, has valid field values,</li>
+ * <li>every write that changed a pet was followed by a change notification.</li>
+ * </ul>
+ * Each writer only updates and deletes the pets it inserted itself, so every update and delete
+ * has to affect exactly one row. Optionally some writers go around the provider and write to
+ * the shelter's database file through their own {@link PetDbHelper}, the way the activities
+ * used to; they don't trigger notifications, but they compete with the provider for the file
+ * lock and make it return SQLITE_BUSY ({@link SQLiteDatabaseLockedException}), which the tool
+ * retries with a backoff.
+ * <p>
+ * The report has one line per thread count with the throughput, the latency of the
+ * operations, the time spent waiting for the provider's lock, the busy retries and the number
+ * of broken invariants. The scratch shelter's pets are deleted again when the tool is done.
+ */
+public class PetStressTool {
+
+    public static final String LOG_TAG = PetStressTool.class.getSimpleName();
+
+    public static final String DEFAULT_THREAD_COUNTS = "1,2,4,8";
+    public static final int DEFAULT_SECONDS = 10;
+    public static final int DEFAULT_WRITE_PERCENT = 30;
+
+    /**
+     * Shelter used by the tool, so the real shelters are left alone.
+     */
+    private static final long SCRATCH_SHELTER_ID = 9998;
+
+    /**
+     * Pets inserted before every round, so the readers have something to read from the start.
+     */
+    private static final int SEED_PETS = 200;
+
+    private static final String STRESS_BREED = "Stress";
+
+    /**
+     * Number of times an operation is retried when the database is locked by another
+     * connection. Android already waits a while before reporting SQLITE_BUSY, so running out
+     * of retries means a writer was starved.
+     */
+    private static final int MAX_BUSY_RETRIES = 8;
+
+    /**
+     * How long to wait for notifications still on their way after the threads are done.
+     */
+    private static final long NOTIFICATION_DRAIN_MILLIS = 5000;
+
+    private static final String[] READ_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_VERSION
+    };
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int[] mThreadCounts;
+    private final int mSeconds;
+    private final int mWritePercent;
+    private final int mDirectWriters;
+    private final Uri mShelterUri = PetEntry.contentUriForShelter(SCRATCH_SHELTER_ID);
+
+    /**
+     * @param threadCounts  comma separated numbers of provider threads, one round each.
+     * @param seconds       how long each round runs.
+     * @param writePercent  share of the provider threads that write, the rest read.
+     * @param directWriters extra threads writing to the database file directly.
+     */
+    public PetStressTool(Context context, String threadCounts, int seconds, int writePercent,
+                         int directWriters) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("Invalid duration: " + seconds);
+        }
+        if (writePercent < 0 || writePercent > 100) {
+            throw new IllegalArgumentException("Invalid write percentage: " + writePercent);
+        }
+        if (directWriters < 0) {
+            throw new IllegalArgumentException("Invalid number of direct writers: " +
+                    directWriters);
+        }
+        if (directWriters > 0
+                && context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            throw new UnsupportedOperationException(
+                    "The in-memory store has no database file to write to directly");
+        }
+        String[] counts = threadCounts.split(",");
+        mThreadCounts = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            mThreadCounts[i] = Integer.parseInt(counts[i].trim());
+            if (mThreadCounts[i] <= 0) {
+                throw new IllegalArgumentException("Invalid thread count: " + counts[i]);
+            }
+        }
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mSeconds = seconds;
+        mWritePercent = writePercent;
+        mDirectWriters = directWriters;
+    }
+
+    /**
+     * Run one round per thread count and return the report.
+     */
+    public String run() {
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%d s per round, %d%% writers, %d direct writers%n", mSeconds, mWritePercent,
+                mDirectWriters));
+        report.append("threads  readers  writers     ops/s  reads/s  writes/s  avg us  p99 us"
+                + "  lock wait ms  busy retries  notifications  violations\n");
+        HandlerThread observerThread = new HandlerThread("pets-stress-observer");
+        observerThread.start();
+        try {
+            for (int threads : mThreadCounts) {
+                report.append(runRound(threads, new Handler(observerThread.getLooper())))
+                        .append('\n');
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            report.append("interrupted\n");
+        } finally {
+            observerThread.quit();
+            deleteScratchPets();
+        }
+        return report.toString();
+    }
+
+    private String runRound(int threads, Handler observerHandler) throws InterruptedException {
+        int writers = Math.round(threads * mWritePercent / 100f);
+        if (mWritePercent > 0 && writers == 0) {
+            writers = 1;
+        }
+        int readers = threads - writers;
+
+        deleteScratchPets();
+        ContentValues[] seed = new ContentValues[SEED_PETS];
+        for (int i = 0; i < SEED_PETS; i++) {
+            seed[i] = pet(new Random(i));
+        }
+        mResolver.bulkInsert(mShelterUri, seed);
+
+        // Registered after seeding: notifyChange() picks its observers when it is called, so
+        // none of the seed's notifications can still arrive here.
+        final AtomicLong notifications = new AtomicLong();
+        ContentObserver observer = new ContentObserver(observerHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                notifications.incrementAndGet();
+            }
+        };
+        mResolver.registerContentObserver(mShelterUri, true, observer);
+
+        PetDbHelper directHelper = null;
+        List<Worker> workers = new ArrayList<>();
+        long lockWaitBefore = getLockWaitNanos();
+        try {
+            for (int i = 0; i < readers; i++) {
+                workers.add(new Reader(i));
+            }
+            for (int i = 0; i < writers; i++) {
+                workers.add(new Writer(readers + i));
+            }
+            if (mDirectWriters > 0) {
+                directHelper = new PetDbHelper(mContext,
+                        PetShardManager.databaseName(SCRATCH_SHELTER_ID));
+                for (int i = 0; i < mDirectWriters; i++) {
+                    workers.add(new DirectWriter(threads + i, directHelper));
+                }
+            }
+
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> running = new ArrayList<>();
+            for (Worker worker : workers) {
+                Thread thread = new Thread(new WorkerRunnable(worker, start),
+                        "pets-stress-" + worker.mIndex);
+                running.add(thread);
+                thread.start();
+            }
+            long startedAt = SystemClock.elapsedRealtime();
+            long deadline = startedAt + mSeconds * 1000L;
+            for (Worker worker : workers) {
+                worker.mDeadline = deadline;
+            }
+            start.countDown();
+            for (Thread thread : running) {
+                thread.join();
+            }
+            long elapsedMillis = SystemClock.elapsedRealtime() - startedAt;
+            long lockWaitNanos = getLockWaitNanos() - lockWaitBefore;
+
+            Counters total = new Counters();
+            for (Worker worker : workers) {
+                total.add(worker);
+            }
+
+            // Notifications are delivered on the observer thread, wait for the last ones.
+            long drainUntil = SystemClock.elapsedRealtime() + NOTIFICATION_DRAIN_MILLIS;
+            while (notifications.get() < total.mNotifyingWrites
+                    && SystemClock.elapsedRealtime() < drainUntil) {
+                Thread.sleep(20);
+            }
+
+            total.mViolations += checkFinalState(SEED_PETS + total.mInserted - total.mDeleted);
+            if (notifications.get() < total.mNotifyingWrites) {
+                total.mViolations++;
+            }
+
+            double seconds = elapsedMillis / 1000.0;
+            return String.format(Locale.US,
+                    "%7d  %7d  %7d  %8.0f  %7.0f  %8.0f  %6d  %6d  %12.1f  %12d  %6d/%-6d  %10d",
+                    threads, readers, writers + mDirectWriters,
+                    (total.mReads + total.mWrites) / seconds, total.mReads / seconds,
+                    total.mWrites / seconds, total.averageMicros(), total.percentileMicros(0.99),
+                    lockWaitNanos / 1e6, total.mBusyRetries, notifications.get(),
+                    total.mNotifyingWrites, total.mViolations);
+        } finally {
+            mResolver.unregisterContentObserver(observer);
+            if (directHelper != null) {
+                directHelper.close();
+            }
+        }
+    }
+
+    /**
+     * Check the count and every pet of the scratch shelter once the threads are done.
+     *
+     * @return the number of broken invariants.
+     */
+    private int checkFinalState(long expectedCount) {
+        int violations = 0;
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        long count = mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_COUNT, null, extras)
+                .getLong(PetContract.EXTRA_COUNT);
+        if (count != expectedCount) {
+            violations++;
+        }
+        Cursor cursor = mResolver.query(mShelterUri, READ_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return violations + 1;
+        }
+        try {
+            if (cursor.getCount() != expectedCount) {
+                violations++;
+            }
+            while (cursor.moveToNext()) {
+                if (!isValid(cursor)) {
+                    violations++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return violations;
+    }
+
+    private static boolean isValid(Cursor cursor) {
+        String name = cursor.getString(1);
+        return name != null && !name.trim().isEmpty()
+                && PetEntry.isValidGender(cursor.getInt(2))
+                && cursor.getInt(3) >= 0
+                && cursor.getInt(4) >= 0;
+    }
+
+    /**
+     * Return the lock wait time of the provider, when it runs in this process.
+     */
+    private long getLockWaitNanos() {
+        ContentProviderClient client =
+                mResolver.acquireContentProviderClient(PetContract.CONTENT_AUTHORITY);
+        if (client == null) {
+            return 0;
+        }
+        try {
+            PetProvider provider = (PetProvider) client.getLocalContentProvider();
+            return provider == null ? 0 : provider.getLockWaitNanos();
+        } finally {
+            client.release();
+        }
+    }
+
+    private void deleteScratchPets() {
+        mResolver.delete(mShelterUri, null, null);
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        extras.putLong(PetContract.EXTRA_SYNC_LAST_SEQ, Long.MAX_VALUE);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_SYNC_ACK_CHANGES, null, extras);
+    }
+
+    private static ContentValues pet(Random random) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Stress " + random.nextInt(10000));
+        values.put(PetEntry.COLUMN_PET_BREED, STRESS_BREED);
+        values.put(PetEntry.COLUMN_PET_GENDER, random.nextInt(3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, random.nextInt(100));
+        return values;
+    }
+
+    /**
+     * Runs a worker's operations until its deadline, retrying the ones that hit a locked
+     * database. Any other failure counts as a broken invariant and stops the worker.
+     */
+    private static class WorkerRunnable implements Runnable {
+
+        private final Worker mWorker;
+        private final CountDownLatch mStart;
+
+        WorkerRunnable(Worker worker, CountDownLatch start) {
+            mWorker = worker;
+            mStart = start;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mStart.await();
+                while (SystemClock.elapsedRealtime() < mWorker.mDeadline) {
+                    long start = System.nanoTime();
+                    for (int attempt = 0; ; attempt++) {
+                        try {
+                            mWorker.step();
+                            break;
+                        } catch (SQLiteDatabaseLockedException e) {
+                            if (attempt == MAX_BUSY_RETRIES) {
+                                throw e;
+                            }
+                            mWorker.mBusyRetries++;
+                            Thread.sleep(1 << attempt);
+                        }
+                    }
+                    mWorker.record(System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Stress worker failed", e);
+                mWorker.mViolations++;
+            }
+        }
+    }
+
+    /**
+     * Counters of one thread, or of a whole round. Only the thread touches its counters until
+     * it has been joined.
+     */
+    private static class Counters {
+
+        long mReads;
+        long mWrites;
+        long mInserted;
+        long mDeleted;
+        long mNotifyingWrites;
+        long mBusyRetries;
+        long mViolations;
+        long mTotalNanos;
+        /**
+         * Operations by latency, bucket i holding those that took less than 2^i microseconds.
+         */
+        final long[] mLatencyBuckets = new long[32];
+
+        void record(long nanos) {
+            mTotalNanos += nanos;
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mLatencyBuckets[Math.min(bucket, mLatencyBuckets.length - 1)]++;
+        }
+
+        void add(Counters other) {
+            mReads += other.mReads;
+            mWrites += other.mWrites;
+            mInserted += other.mInserted;
+            mDeleted += other.mDeleted;
+            mNotifyingWrites += other.mNotifyingWrites;
+            mBusyRetries += other.mBusyRetries;
+            mViolations += other.mViolations;
+            mTotalNanos += other.mTotalNanos;
+            for (int i = 0; i < mLatencyBuckets.length; i++) {
+                mLatencyBuckets[i] += other.mLatencyBuckets[i];
+            }
+        }
+
+        long averageMicros() {
+            long ops = mReads + mWrites;
+            return ops == 0 ? 0 : mTotalNanos / ops / 1000;
+        }
+
+        /**
+         * Return the upper bound of the latency bucket holding the given percentile.
+         */
+        long percentileMicros(double percentile) {
+            long ops = mReads + mWrites;
+            long seen = 0;
+            for (int i = 0; i < mLatencyBuckets.length; i++) {
+                seen += mLatencyBuckets[i];
+                if (seen > 0 && seen >= ops * percentile) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A thread of the stress run, doing one operation per {@link #step}.
+     */
+    private abstract static class Worker extends Counters {
+
+        final int mIndex;
+        final Random mRandom;
+        volatile long mDeadline;
+
+        Worker(int index) {
+            mIndex = index;
+            mRandom = new Random(index);
+        }
+
+        abstract void step();
+    }
+
+    /**
+     * Alternates between reading every pet of the shelter and counting them.
+     */
+    private class Reader extends Worker {
+
+        Reader(int index) {
+            super(index);
+        }
+
+        @Override
+        void step() {
+            if (mRandom.nextBoolean()) {
+                Cursor cursor = mResolver.query(mShelterUri, READ_PROJECTION, null, null, null);
+                if (cursor == null) {
+                    mViolations++;
+                } else {
+                    try {
+                        while (cursor.moveToNext()) {
+                            if (!isValid(cursor)) {
+                                mViolations++;
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            } else {
+                Bundle extras = new Bundle();
+                extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+                long count = mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_COUNT, null,
+                        extras).getLong(PetContract.EXTRA_COUNT);
+                if (count < 0) {
+                    mViolations++;
+                }
+            }
+            mReads++;
+        }
+    }
+
+    /**
+     * Inserts pets through the provider, and updates and deletes the ones it inserted.
+     */
+    private class Writer extends Worker {
+
+        private final List<Long> mOwnIds = new ArrayList<>();
+
+        Writer(int index) {
+            super(index);
+        }
+
+        @Override
+        void step() {
+            int choice = mRandom.nextInt(10);
+            if (mOwnIds.isEmpty() || choice < 4) {
+                Uri uri = mResolver.insert(mShelterUri, pet(mRandom));
+                if (uri == null) {
+                    mViolations++;
+                } else {
+                    mOwnIds.add(ContentUris.parseId(uri));
+                    mInserted++;
+                    mNotifyingWrites++;
+                }
+            } else if (choice < 8) {
+                long id = mOwnIds.get(mRandom.nextInt(mOwnIds.size()));
+                ContentValues values = new ContentValues();
+                values.put(PetEntry.COLUMN_PET_WEIGHT, mRandom.nextInt(100));
+                values.put(PetEntry.COLUMN_PET_GENDER, mRandom.nextInt(3));
+                int rows = mResolver.update(ContentUris.withAppendedId(mShelterUri, id), values,
+                        null, null);
+                if (rows != 1) {
+                    mViolations++;
+                }
+                if (rows != 0) {
+                    mNotifyingWrites++;
+                }
+            } else {
+                long id = mOwnIds.remove(mRandom.nextInt(mOwnIds.size()));
+                int rows = mResolver.delete(ContentUris.withAppendedId(mShelterUri, id), null,
+                        null);
+                if (rows != 1) {
+                    mViolations++;
+                }
+                if (rows != 0) {
+                    mNotifyingWrites++;
+                }
+                mDeleted += rows;
+            }
+            mWrites++;
+        }
+    }
+
+    /**
+     * Inserts and deletes pets through its own connection to the shelter's database file,
+     * bypassing the provider and its notifications.
+     */
+    private static class DirectWriter extends Worker {
+
+        private final PetDbHelper mDbHelper;
+        private final List<Long> mOwnIds = new ArrayList<>();
+
+        DirectWriter(int index, PetDbHelper dbHelper) {
+            super(index);
+            mDbHelper = dbHelper;
+        }
+
+        @Override
+        void step() {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            if (mOwnIds.isEmpty() || mRandom.nextInt(10) < 6) {
+                ContentValues values = pet(mRandom);
+                values.put(PetEntry.COLUMN_PET_SYNC_ID, UUID.randomUUID().toString());
+                values.put(PetEntry.COLUMN_PET_UPDATED_AT, System.currentTimeMillis());
+                // insertOrThrow(), since insert() would swallow SQLITE_BUSY.
+                mOwnIds.add(db.insertOrThrow(PetEntry.TABLE_NAME, null, values));
+                mInserted++;
+            } else {
+                long id = mOwnIds.remove(mRandom.nextInt(mOwnIds.size()));
+                int rows = db.delete(PetEntry.TABLE_NAME, PetEntry._ID + "=?",
+                        new String[]{String.valueOf(id)});
+                if (rows != 1) {
+                    mViolations++;
+                }
+                mDeleted += rows;
+            }
+            mWrites++;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetTrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replays a trace recorded with {@link PetContract#METHOD_TRACE_START} against fresh scratch
+ * shelters and reports the latency of every kind of call, next to the latency it had when it
+ * was recorded.
+ * <p>
+ * Every shelter in the trace is replaced by an empty scratch shelter, restored from a new
+ * database before the replay, so the trace runs against the current schema and provider no
+ * matter what the device had when it was recorded. Pets get new IDs in the scratch shelters;
+ * later calls that refer to a pet the trace inserted are pointed at its new ID. Queries over
+ * all shelters are replayed as they are, so they read the real shelters too.
+ * <p>
+ * The calls of each recorded thread are replayed in order on a thread of their own. At the
+ * original speed every call waits for the time it started at in the recording; at maximum
+ * speed the threads run flat out, so calls of different threads can happen in another order
+ * than they did.
+ */
+public class PetTraceReplayTool {
+
+    public static final String LOG_TAG = PetTraceReplayTool.class.getSimpleName();
+
+    /**
+     * Trace file used when none is given, in the app's files directory.
+     */
+    public static final String DEFAULT_TRACE_FILE = "pets.trace";
+
+    /**
+     * Scratch shelters get IDs from here on, in the order the trace first uses their shelters.
+     */
+    private static final long FIRST_SCRATCH_SHELTER_ID = 9000;
+
+    private static final String EMPTY_DATABASE_NAME = "replay-empty.db";
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final File mTraceFile;
+    private final boolean mMaxSpeed;
+
+    /**
+     * Scratch shelter of every shelter in the trace.
+     */
+    private final Map<Long, Long> mScratchShelters = new LinkedHashMap<>();
+
+    /**
+     * New ID of every pet the replay inserted, by "shelter/recorded ID".
+     */
+    private final Map<String, Long> mPetIds = new ConcurrentHashMap<>();
+
+    /**
+     * Latencies by kind of call, filled by the replay threads.
+     */
+    private final Map<String, Latencies> mLatencies = new TreeMap<>();
+
+    /**
+     * @param traceFile the trace to replay.
+     * @param maxSpeed  whether to run the calls as fast as possible instead of at the pace
+     *                  they were recorded at.
+     */
+    public PetTraceReplayTool(Context context, File traceFile, boolean maxSpeed) {
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            throw new UnsupportedOperationException(
+                    "The in-memory store can't be reset for a replay");
+        }
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mTraceFile = traceFile;
+        mMaxSpeed = maxSpeed;
+    }
+
+    /**
+     * Replay the trace and return the report.
+     */
+    public String run() {
+        List<PetTrace.Call> calls = new ArrayList<>();
+        long recordedAt;
+        try {
+            PetTrace.Reader reader = new PetTrace.Reader(mTraceFile);
+            try {
+                recordedAt = reader.getStartedAtMillis();
+                PetTrace.Call call;
+                while ((call = reader.next()) != null) {
+                    calls.add(call);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + mTraceFile, e);
+        }
+
+        // Work out the shelters and the threads before anything runs.
+        Map<Long, List<PetTrace.Call>> byThread = new LinkedHashMap<>();
+        for (PetTrace.Call call : calls) {
+            scratchShelter(shelterOf(call));
+            List<PetTrace.Call> threadCalls = byThread.get(call.threadId);
+            if (threadCalls == null) {
+                threadCalls = new ArrayList<>();
+                byThread.put(call.threadId, threadCalls);
+            }
+            threadCalls.add(call);
+        }
+        for (long scratchId : mScratchShelters.values()) {
+            resetShelter(scratchId);
+        }
+
+        long elapsedMillis;
+        try {
+            final long startNanos = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            for (final Map.Entry<Long, List<PetTrace.Call>> entry : byThread.entrySet()) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (PetTrace.Call call : entry.getValue()) {
+                            if (!mMaxSpeed) {
+                                waitUntil(startNanos + call.startNanos);
+                            }
+                            replay(call);
+                        }
+                    }
+                }, "pets-replay-" + entry.getKey());
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "interrupted\n";
+        } finally {
+            for (long scratchId : mScratchShelters.values()) {
+                resetShelter(scratchId);
+            }
+        }
+
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "%s: %d calls on %d threads, %d shelters, recorded %tF %<tT, replayed in %d ms"
+                        + " at %s speed%n", mTraceFile.getName(), calls.size(), byThread.size(),
+                mScratchShelters.size(), recordedAt, elapsedMillis,
+                mMaxSpeed ? "maximum" : "original"));
+        report.append(String.format(Locale.US, "%-24s %7s %6s %6s  %9s %9s  %9s %9s %9s %9s%n",
+                "call", "count", "failed", "diffs", "rec p50", "rec p99", "p50 us", "p90 us",
+                "p99 us", "max us"));
+        for (Map.Entry<String, Latencies> entry : mLatencies.entrySet()) {
+            Latencies latencies = entry.getValue();
+            report.append(String.format(Locale.US,
+                    "%-24s %7d %6d %6d  %9d %9d  %9d %9d %9d %9d%n", entry.getKey(),
+                    latencies.mReplayed.size(), latencies.mFailed, latencies.mDiffs,
+                    percentileMicros(latencies.mRecorded, 0.5),
+                    percentileMicros(latencies.mRecorded, 0.99),
+                    percentileMicros(latencies.mReplayed, 0.5),
+                    percentileMicros(latencies.mReplayed, 0.9),
+                    percentileMicros(latencies.mReplayed, 0.99),
+                    percentileMicros(latencies.mReplayed, 1)));
+        }
+        return report.toString();
+    }
+
+    private static void waitUntil(long nanos) {
+        long waitMillis = (nanos - System.nanoTime()) / 1000000;
+        if (waitMillis > 0) {
+            SystemClock.sleep(waitMillis);
+        }
+    }
+
+    /**
+     * Run one call against the scratch shelters and record how long it took.
+     */
+    private void replay(PetTrace.Call call) {
+        long shelterId = shelterOf(call);
+        long result = -1;
+        boolean failed = false;
+        long start = System.nanoTime();
+        try {
+            result = execute(call, shelterId);
+        } catch (RuntimeException e) {
+            failed = true;
+        }
+        long nanos = System.nanoTime() - start;
+
+        String kind = call.op == PetTrace.OP_CALL ? "call " + call.target : opName(call.op);
+        synchronized (mLatencies) {
+            Latencies latencies = mLatencies.get(kind);
+            if (latencies == null) {
+                latencies = new Latencies();
+                mLatencies.put(kind, latencies);
+            }
+            latencies.mRecorded.add(call.durationNanos);
+            latencies.mReplayed.add(nanos);
+            if (failed) {
+                latencies.mFailed++;
+            } else if (call.op != PetTrace.OP_INSERT && result != call.result) {
+                // Inserted pets get new IDs, anything else should come out the same.
+                latencies.mDiffs++;
+            }
+        }
+    }
+
+    private long execute(PetTrace.Call call, long shelterId) {
+        switch (call.op) {
+            case PetTrace.OP_QUERY:
+                Cursor cursor = mResolver.query(rewrite(call.target), call.projection,
+                        call.selection, call.selectionArgs, call.sortOrder);
+                if (cursor == null) {
+                    return -1;
+                }
+                try {
+                    return cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            case PetTrace.OP_INSERT:
+                Uri newUri = mResolver.insert(rewrite(call.target), call.values[0]);
+                if (newUri == null) {
+                    return -1;
+                }
+                long newId = ContentUris.parseId(newUri);
+                if (call.result != -1 && isPetsUri(call.target)) {
+                    mPetIds.put(shelterId + "/" + call.result, newId);
+                }
+                return newId;
+            case PetTrace.OP_BULK_INSERT:
+                return mResolver.bulkInsert(rewrite(call.target), call.values);
+            case PetTrace.OP_UPDATE:
+                return mResolver.update(rewrite(call.target), call.values[0], call.selection,
+                        call.selectionArgs);
+            case PetTrace.OP_DELETE:
+                return mResolver.delete(rewrite(call.target), call.selection,
+                        call.selectionArgs);
+            case PetTrace.OP_CALL:
+                Bundle result = mResolver.call(PetEntry.CONTENT_URI, call.target,
+                        rewriteArg(call, shelterId), rewriteExtras(call.extras, shelterId));
+                return result == null ? -1 : result.getInt(PetContract.EXTRA_ROWS_AFFECTED, -1);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + call.op);
+        }
+    }
+
+    private static String opName(int op) {
+        switch (op) {
+            case PetTrace.OP_QUERY:
+                return "query";
+            case PetTrace.OP_INSERT:
+                return "insert";
+            case PetTrace.OP_BULK_INSERT:
+                return "bulk insert";
+            case PetTrace.OP_UPDATE:
+                return "update";
+            case PetTrace.OP_DELETE:
+                return "delete";
+            default:
+                return "op " + op;
+        }
+    }
+
+    /**
+     * Return the shelter a recorded call worked on, or -1 for queries over all shelters.
+     */
+    private static long shelterOf(PetTrace.Call call) {
+        if (call.op == PetTrace.OP_CALL) {
+            return call.extras == null ? PetContract.DEFAULT_SHELTER_ID
+                    : call.extras.getLong(PetContract.EXTRA_SHELTER_ID,
+                    PetContract.DEFAULT_SHELTER_ID);
+        }
+        return shelterOf(call.target);
+    }
+
+    /**
+     * Return the shelter of a pets URI, or -1 for the URI of all shelters.
+     */
+    private static long shelterOf(String target) {
+        List<String> segments = Uri.parse(target).getPathSegments();
+        int pets = segments.indexOf(PetContract.PATH_PETS);
+        if (pets == 0) {
+            return PetContract.DEFAULT_SHELTER_ID;
+        }
+        if (pets == 2) {
+            return Long.parseLong(segments.get(1));
+        }
+        return -1;
+    }
+
+    /**
+     * Return whether the URI is the pets of a shelter, i.e. what pet inserts go to.
+     */
+    private static boolean isPetsUri(String target) {
+        List<String> segments = Uri.parse(target).getPathSegments();
+        return segments.indexOf(PetContract.PATH_PETS) == segments.size() - 1;
+    }
+
+    private long scratchShelter(long shelterId) {
+        if (shelterId == -1) {
+            return -1;
+        }
+        synchronized (mScratchShelters) {
+            Long scratchId = mScratchShelters.get(shelterId);
+            if (scratchId == null) {
+                scratchId = FIRST_SCRATCH_SHELTER_ID + mScratchShelters.size();
+                mScratchShelters.put(shelterId, scratchId);
+            }
+            return scratchId;
+        }
+    }
+
+    private long petId(long shelterId, long recordedId) {
+        Long id = mPetIds.get(shelterId + "/" + recordedId);
+        return id == null ? recordedId : id;
+    }
+
+    /**
+     * Point a recorded URI at the scratch shelter, and at the new ID of the pet in it.
+     */
+    private Uri rewrite(String target) {
+        Uri uri = Uri.parse(target);
+        long shelterId = shelterOf(target);
+        if (shelterId == -1) {
+            return uri;
+        }
+        List<String> segments = uri.getPathSegments();
+        int pets = segments.indexOf(PetContract.PATH_PETS);
+        Uri.Builder builder = PetEntry.contentUriForShelter(scratchShelter(shelterId))
+                .buildUpon();
+        for (int i = pets + 1; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            if (i == pets + 1) {
+                segment = String.valueOf(petId(shelterId, Long.parseLong(segment)));
+            }
+            builder.appendPath(segment);
+        }
+        return builder.encodedQuery(uri.getEncodedQuery()).build();
+    }
+
+    private String rewriteArg(PetTrace.Call call, long shelterId) {
+        if (PetContract.METHOD_EXISTS.equals(call.target) && call.arg != null) {
+            return String.valueOf(petId(shelterId, Long.parseLong(call.arg)));
+        }
+        return call.arg;
+    }
+
+    private Bundle rewriteExtras(Bundle extras, long shelterId) {
+        Bundle rewritten = extras == null ? new Bundle() : new Bundle(extras);
+        rewritten.putLong(PetContract.EXTRA_SHELTER_ID, scratchShelter(shelterId));
+        long[] ids = rewritten.getLongArray(PetContract.EXTRA_IDS);
+        if (ids != null) {
+            long[] newIds = new long[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                newIds[i] = petId(shelterId, ids[i]);
+            }
+            rewritten.putLongArray(PetContract.EXTRA_IDS, newIds);
+        }
+        return rewritten;
+    }
+
+    /**
+     * Replace the scratch shelter's database with a new, empty one.
+     */
+    private void resetShelter(long scratchId) {
+        PetDbHelper helper = new PetDbHelper(mContext, EMPTY_DATABASE_NAME);
+        try {
+            helper.getWritableDatabase();
+        } finally {
+            helper.close();
+        }
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, scratchId);
+        try {
+            mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_RESTORE,
+                    mContext.getDatabasePath(EMPTY_DATABASE_NAME).getPath(), extras);
+        } finally {
+            mContext.deleteDatabase(EMPTY_DATABASE_NAME);
+        }
+    }
+
+    /**
+     * Return the latency at the given percentile, in microseconds.
+     */
+    private static long percentileMicros(List<Long> nanos, double percentile) {
+        if (nanos.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(nanos);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))) / 1000;
+    }
+
+    private static class Latencies {
+        final List<Long> mRecorded = new ArrayList<>();
+        final List<Long> mReplayed = new ArrayList<>();
+        int mFailed;
+        int mDiffs;
+    }
+}
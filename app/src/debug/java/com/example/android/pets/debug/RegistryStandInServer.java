@@ -0,0 +1,259 @@
+package com.example.android.pets.debug;
+
+import android.net.Uri;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal in-process stand-in for the shelter registry, speaking the protocol described in
+ * {@link com.example.android.pets.sync.RegistryClient}. It keeps every uploaded change in
+ * memory, in order, and the download cursor is simply the position in that list.
+ * <p>
+ * Listens on the loopback interface only and serves one connection at a time, which is all
+ * the sync engine needs.
+ */
+public class RegistryStandInServer {
+
+    public static final String LOG_TAG = RegistryStandInServer.class.getSimpleName();
+
+    /**
+     * A stored change and the device that uploaded it.
+     */
+    private static class Entry {
+        final String device;
+        final JSONObject change;
+
+        Entry(String device, JSONObject change) {
+            this.device = device;
+            this.change = change;
+        }
+    }
+
+    /*Shelter ID -> changes of that shelter, in upload order*/
+    private final Map<Long, List<Entry>> mChanges = new HashMap<>();
+
+    private ServerSocket mServerSocket;
+    private Thread mThread;
+
+    /**
+     * Start listening on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "registry-stand-in");
+        mThread.start();
+    }
+
+    /**
+     * Return the base URL to give to the sync engine.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not close server socket", e);
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Store a change as if another device had uploaded it.
+     */
+    public synchronized void addChange(long shelterId, String device, JSONObject change) {
+        changesOf(shelterId).add(new Entry(device, change));
+    }
+
+    /**
+     * Return how many changes of the given shelter have been stored.
+     */
+    public synchronized int getChangeCount(long shelterId) {
+        return changesOf(shelterId).size();
+    }
+
+    private List<Entry> changesOf(long shelterId) {
+        List<Entry> changes = mChanges.get(shelterId);
+        if (changes == null) {
+            changes = new ArrayList<>();
+            mChanges.put(shelterId, changes);
+        }
+        return changes;
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by stop().
+                return;
+            }
+            try {
+                handle(socket);
+            } catch (IOException | JSONException | RuntimeException e) {
+                Log.w(LOG_TAG, "Request failed", e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not close socket", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException, JSONException {
+        InputStream in = socket.getInputStream();
+        String[] requestLine = readLine(in).split(" ");
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+        String method = requestLine[0];
+        Uri uri = Uri.parse(requestLine[1]);
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != 3 || !"shelters".equals(segments.get(0))
+                || !"changes".equals(segments.get(2))) {
+            respond(socket, 404, null, false);
+            return;
+        }
+        long shelterId = Long.parseLong(segments.get(1));
+
+        if ("POST".equals(method)) {
+            byte[] body = new byte[Integer.parseInt(headers.get("content-length"))];
+            int read = 0;
+            while (read < body.length) {
+                int n = in.read(body, read, body.length - read);
+                if (n == -1) {
+                    throw new IOException("Request body cut short");
+                }
+                read += n;
+            }
+            InputStream bodyStream = new ByteArrayInputStream(body);
+            if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                bodyStream = new GZIPInputStream(bodyStream);
+            }
+            JSONObject request = new JSONObject(readFully(bodyStream));
+            String device = request.getString("device");
+            JSONArray changes = request.getJSONArray("changes");
+            synchronized (this) {
+                for (int i = 0; i < changes.length(); i++) {
+                    addChange(shelterId, device, changes.getJSONObject(i));
+                }
+            }
+            respond(socket, 204, null, false);
+        } else if ("GET".equals(method)) {
+            String device = uri.getQueryParameter("device");
+            String since = uri.getQueryParameter("since");
+            int limit = Integer.parseInt(uri.getQueryParameter("limit"));
+            int position = since == null || since.isEmpty() ? 0 : Integer.parseInt(since);
+            JSONArray page = new JSONArray();
+            boolean more;
+            synchronized (this) {
+                List<Entry> changes = changesOf(shelterId);
+                // Skip the device's own changes, it already has them.
+                while (position < changes.size() && page.length() < limit) {
+                    Entry entry = changes.get(position++);
+                    if (!entry.device.equals(device)) {
+                        page.put(entry.change);
+                    }
+                }
+                more = position < changes.size();
+            }
+            JSONObject response = new JSONObject();
+            response.put("cursor", String.valueOf(position));
+            response.put("more", more);
+            response.put("changes", page);
+            respond(socket, 200, response.toString(),
+                    "gzip".equalsIgnoreCase(headers.get("accept-encoding")));
+        } else {
+            respond(socket, 405, null, false);
+        }
+    }
+
+    private static void respond(Socket socket, int status, String body, boolean gzip)
+            throws IOException {
+        byte[] bytes = new byte[0];
+        if (body != null) {
+            bytes = body.getBytes("UTF-8");
+            if (gzip) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                GZIPOutputStream out = new GZIPOutputStream(compressed);
+                out.write(bytes);
+                out.close();
+                bytes = compressed.toByteArray();
+            }
+        }
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(" Stand-in\r\n");
+        head.append("Connection: close\r\n");
+        head.append("Content-Length: ").append(bytes.length).append("\r\n");
+        if (body != null) {
+            head.append("Content-Type: application/json\r\n");
+            if (gzip) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+        }
+        head.append("\r\n");
+        OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("US-ASCII"));
+        out.write(bytes);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString("UTF-8");
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.android.pets.debug;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.sync.PetSyncEngine;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Runs a full sync of a scratch shelter against a {@link RegistryStandInServer} and reports
+ * the throughput of both directions, checking that every change arrived on the other side.
+ * <p>
+ * The scratch shelter's pets are deleted again when the tool is done.
+ */
+public class SyncLoopbackTool {
+
+    public static final int DEFAULT_CHANGES = 2000;
+
+    /**
+     * Shelter used by the tool, so the real shelters and their sync state are left alone.
+     */
+    private static final long SCRATCH_SHELTER_ID = 9999;
+
+    private static final String REMOTE_DEVICE = "stand-in-remote-device";
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final int mLocalChanges;
+    private final int mRemoteChanges;
+    private final int mMaxBatchBytes;
+
+    public SyncLoopbackTool(Context context, int localChanges, int remoteChanges,
+                            int maxBatchBytes) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mLocalChanges = localChanges;
+        mRemoteChanges = remoteChanges;
+        mMaxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Run the sync and return the report.
+     */
+    public String run() {
+        Uri petsUri = PetEntry.contentUriForShelter(SCRATCH_SHELTER_ID);
+        RegistryStandInServer server = new RegistryStandInServer();
+        PetSyncEngine engine = null;
+        try {
+            server.start();
+            engine = new PetSyncEngine(mContext, server.getUrl());
+            engine.setMaxBatchBytes(mMaxBatchBytes);
+            engine.resetDownloadCursor(SCRATCH_SHELTER_ID);
+
+            // Start clean, then add local pets and remote changes that don't overlap.
+            mResolver.delete(petsUri, null, null);
+            acknowledgeEverything();
+            ContentValues[] pets = new ContentValues[mLocalChanges];
+            for (int i = 0; i < mLocalChanges; i++) {
+                pets[i] = pet("Local " + i, i % 50);
+            }
+            mResolver.bulkInsert(petsUri, pets);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < mRemoteChanges; i++) {
+                JSONObject change = new JSONObject();
+                change.put(PetEntry.COLUMN_PET_SYNC_ID, UUID.randomUUID().toString());
+                change.put(PetEntry.COLUMN_PET_NAME, "Remote " + i);
+                change.put(PetEntry.COLUMN_PET_BREED, "Stand-in");
+                change.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+                change.put(PetEntry.COLUMN_PET_WEIGHT, i % 50);
+                change.put(PetEntry.COLUMN_PET_UPDATED_AT, now);
+                server.addChange(SCRATCH_SHELTER_ID, REMOTE_DEVICE, change);
+            }
+
+            PetSyncEngine.Stats stats = engine.sync(SCRATCH_SHELTER_ID);
+
+            long localCount = count();
+            int serverCount = server.getChangeCount(SCRATCH_SHELTER_ID);
+            boolean ok = localCount == mLocalChanges + mRemoteChanges
+                    && serverCount == mLocalChanges + mRemoteChanges;
+            return String.format(Locale.US,
+                    "%d local and %d remote changes, batches of at most %d bytes%n%s%n"
+                            + "pets on device: %d, changes in registry: %d -> %s",
+                    mLocalChanges, mRemoteChanges, mMaxBatchBytes, stats, localCount,
+                    serverCount, ok ? "OK" : "MISMATCH");
+        } catch (IOException | JSONException e) {
+            throw new IllegalStateException("Sync loopback failed", e);
+        } finally {
+            mResolver.delete(petsUri, null, null);
+            acknowledgeEverything();
+            if (engine != null) {
+                engine.resetDownloadCursor(SCRATCH_SHELTER_ID);
+            }
+            server.stop();
+        }
+    }
+
+    /**
+     * Drop the scratch shelter's change log, so leftovers don't count towards the upload.
+     */
+    private void acknowledgeEverything() {
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        extras.putLong(PetContract.EXTRA_SYNC_LAST_SEQ, Long.MAX_VALUE);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_SYNC_ACK_CHANGES, null, extras);
+    }
+
+    private long count() {
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, SCRATCH_SHELTER_ID);
+        return mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_COUNT, null, extras)
+                .getLong(PetContract.EXTRA_COUNT);
+    }
+
+    private static ContentValues pet(String name, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, "Loopback");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+}
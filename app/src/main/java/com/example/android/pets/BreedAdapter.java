@@ -0,0 +1,88 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import com.example.android.pets.data.BreedSuggestions;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Drop-down of the breed field in the editor. The suggestions come from
+ * {@link BreedSuggestions}, which answers from memory, so filtering never queries the provider.
+ */
+public class BreedAdapter extends BaseAdapter implements Filterable {
+
+    private final LayoutInflater mInflater;
+    private final BreedSuggestions mSuggestions;
+
+    /**
+     * The suggestions currently shown. Only touched on the main thread.
+     */
+    private List<String> mBreeds = Collections.emptyList();
+
+    private final Filter mFilter = new Filter() {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            List<String> breeds = mSuggestions.suggest(constraint);
+            FilterResults results = new FilterResults();
+            results.values = breeds;
+            results.count = breeds.size();
+            return results;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            mBreeds = (List<String>) results.values;
+            if (results.count > 0) {
+                notifyDataSetChanged();
+            } else {
+                notifyDataSetInvalidated();
+            }
+        }
+    };
+
+    public BreedAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+        mSuggestions = BreedSuggestions.getInstance(context);
+    }
+
+    @Override
+    public int getCount() {
+        return mBreeds.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mBreeds.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(android.R.layout.simple_dropdown_item_1line,
+                    parent, false);
+        }
+        view.setText(getItem(position));
+        return view;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return mFilter;
+    }
+}
@@ -15,42 +15,78 @@
  */
 package com.example.android.pets;
 
-import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ActionMode;
+import android.view.MotionEvent;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.Toast;
 
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetArchiveService;
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetDuplicateService;
+import com.example.android.pets.data.PetMaintenanceService;
+import com.example.android.pets.data.PetRepository;
 
+import static com.example.android.pets.data.PetContract.CatalogEntry;
 import static com.example.android.pets.data.PetContract.PetEntry;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity implements PetRepository.Observer {
     public static final String LOG_TAG = CatalogActivity.class.getSimpleName();
 
-    private static final int URL_LOADER = 0;
+    /**
+     * Columns of the catalog query. Gender and weight aren't displayed in the list, but loading
+     * them here means the whole row can be handed to the EditorActivity without a second query.
+     */
+    private static final String[] CATALOG_PROJECTION = {
+            CatalogEntry._ID,
+            CatalogEntry.COLUMN_PET_NAME,
+            CatalogEntry.COLUMN_PET_BREED,
+            CatalogEntry.COLUMN_PET_GENDER,
+            CatalogEntry.COLUMN_PET_WEIGHT,
+            CatalogEntry.COLUMN_PET_VERSION,
+            CatalogEntry.COLUMN_ADOPTED_AT
+    };
 
     private PetCursorAdapter mPetCursorAdapter;
 
+    private ListView mPetListView;
+
+    /**
+     * Our subscription to the catalog query, cancelled when the activity is destroyed.
+     */
+    private PetRepository.Subscription mCatalogSubscription;
+
+    /**
+     * Row of the pet under the user's finger, copied out of the catalog cursor on touch-down so
+     * that the click only has to hand it over to the {@link EditorActivity}.
+     */
+    private ContentValues mPrefetchedPetValues;
+
+    /**
+     * ID of the pet in {@link #mPrefetchedPetValues}, or -1 if nothing has been prefetched.
+     */
+    private long mPrefetchedPetId = -1;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -67,6 +103,7 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
 
         //Find the ListView which will be populated with the pet data
         ListView petListView = (ListView) findViewById(R.id.list_view_pet);
+        mPetListView = petListView;
 
         //Find and set empty view on the ListView so that it only shows when the list has
         //0 items.
@@ -74,10 +111,24 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         petListView.setEmptyView(emptyView);
 
         //Setup an Adapter to create a list item for each row of pet data in the Cursor.
-        //Ths is no pet data yet (until the loader finishes) so pass in null for the Cursor.
+        //Ths is no pet data yet (until the first query finishes) so pass in null for the Cursor.
         mPetCursorAdapter = new PetCursorAdapter(this, null);
         petListView.setAdapter(mPetCursorAdapter);
 
+        //Prefetch the row of the pet as soon as the finger goes down, so that by the time the
+        //click is delivered the editor's data is already sitting in memory.
+        petListView.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                    ListView listView = (ListView) v;
+                    prefetchPet(listView.pointToPosition((int) event.getX(), (int) event.getY()));
+                }
+                //Don't consume the event, the ListView still has to handle the click.
+                return false;
+            }
+        });
+
         //Open Editor Activity when we click on a pet. Pass the Uri
         petListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -90,32 +141,66 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
                 //Pass the URI with the intent
                 intent.setData(currentPetUri);
+                //Hand over the row we already have so the editor doesn't need to query for it.
+                //Fall back to reading it now if the touch-down prefetch missed (e.g. keyboard).
+                if (mPrefetchedPetId != id) {
+                    prefetchPet(position);
+                }
+                if (mPrefetchedPetId == id) {
+                    intent.putExtra(EditorActivity.EXTRA_PET_VALUES, mPrefetchedPetValues);
+                }
                 startActivity(intent);
             }
         });
 
-        //Delete the list item on long click
-        petListView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+        //A long click starts selecting pets, which can then be deleted together.
+        petListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        petListView.setMultiChoiceModeListener(new AbsListView.MultiChoiceModeListener() {
             @Override
-            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
-                //id is the id of the list item in the database.
+            public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+                return true;
+            }
 
-                //Forms a URI that represents the specific pet that was clicked on.
-                Uri currentPetUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+            @Override
+            public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                return false;
+            }
 
-                getContentResolver().delete(currentPetUri, null, null);
+            @Override
+            public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                                  boolean checked) {
+                mode.setTitle(getString(R.string.catalog_selected_count,
+                        mPetListView.getCheckedItemCount()));
+            }
 
-                Log.v(LOG_TAG, "Entry deleted. ID: " + id);
-                Toast.makeText(CatalogActivity.this, "Deleted", Toast.LENGTH_SHORT).show();
-                return true;
+            @Override
+            public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                if (item.getItemId() == R.id.action_delete_selected) {
+                    deletePets(mPetListView.getCheckedItemIds());
+                    mode.finish();
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void onDestroyActionMode(ActionMode mode) {
             }
         });
 
-        //Kick off the loader
-        getLoaderManager().initLoader(URL_LOADER, null, CatalogActivity.this);
+        //Start observing the catalog, the pets with their adoption status kept in one table so
+        //no join is needed. The query runs on a background thread, and we are only called
+        //again when the list has actually changed.
+        mCatalogSubscription = PetRepository.getInstance(this).observe(CatalogEntry.CONTENT_URI,
+                CATALOG_PROJECTION, null, null, null, this);
 
-//        PetDbHelper mDbHelper = new PetDbHelper(this);
-//        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        //Keep moving pets that have been inactive for a long time out of the catalog.
+        PetArchiveService.schedule(this);
+        //Keep the shelter databases in shape while the app isn't used.
+        PetMaintenanceService.schedule(this);
+        //Finish checking any pets that still wait to be checked for duplicates.
+        PetDuplicateService.start(this);
     }
 
     @Override
@@ -142,26 +227,124 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Copy the row at the given list position out of the catalog cursor into
+     * {@link #mPrefetchedPetValues}, ready to be passed to the {@link EditorActivity}.
+     */
+    private void prefetchPet(int position) {
+        mPrefetchedPetId = -1;
+        mPrefetchedPetValues = null;
+        if (position == ListView.INVALID_POSITION) {
+            return;
+        }
+        Cursor cursor = (Cursor) mPetCursorAdapter.getItem(position);
+        if (cursor == null) {
+            return;
+        }
+        mPrefetchedPetValues = EditorActivity.petValuesFromCursor(cursor);
+        mPrefetchedPetId = mPetCursorAdapter.getItemId(position);
+    }
+
+    /**
+     * Insert a handful of sample pets through the provider, on a background thread.
+     */
     private void insertDummyData() {
-        PetDbHelper petDbHelper = new PetDbHelper(this);
-        SQLiteDatabase db = petDbHelper.getWritableDatabase();
-        db.execSQL("INSERT INTO pets ( name, breed, gender, weight) VALUES ( \"Tommy\", \"Pomeranian\", 1, 4);");
-        db.execSQL("INSERT INTO pets (name, breed, gender, weight) VALUES (\"Binx\", \"Bombay\", 1, 6);");
-        db.execSQL("INSERT INTO pets (name, breed, gender, weight)  VALUES ( \"Lady\", \"Cocker Spaniel\", 2, 14);");
-        db.execSQL("INSERT INTO pets (name, breed, gender, weight) VALUES (\"Duke\", \"Unknown\", 1, 70);");
-        db.execSQL("INSERT INTO pets (name, breed, gender, weight) VALUES (\"Cat\", \"Tabby\", 0, 7);");
-        db.execSQL("INSERT INTO pets (name, breed, gender, weight) VALUES (\"Baxter\", \"Border Terrier\", 1, 8);");
-        db.execSQL("INSERT INTO pets (name, gender, weight) VALUES (\"Arlene\", 2, 5);");
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Garfield");
-        values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 5);
-        Uri uri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-        Toast.makeText(this, R.string.dummy_data_inserted, Toast.LENGTH_SHORT).show();
-        Log.v(LOG_TAG, "Dummy Data Inserted. ID = " + uri);
+        final ContentValues[] pets = {
+                dummyPet("Tommy", "Pomeranian", PetEntry.GENDER_MALE, 4),
+                dummyPet("Binx", "Bombay", PetEntry.GENDER_MALE, 6),
+                dummyPet("Lady", "Cocker Spaniel", PetEntry.GENDER_FEMALE, 14),
+                dummyPet("Duke", "Unknown", PetEntry.GENDER_MALE, 70),
+                dummyPet("Cat", "Tabby", PetEntry.GENDER_UNKNOWN, 7),
+                dummyPet("Baxter", "Border Terrier", PetEntry.GENDER_MALE, 8),
+                dummyPet("Arlene", null, PetEntry.GENDER_FEMALE, 5),
+                dummyPet("Garfield", "Tabby", PetEntry.GENDER_MALE, 5)
+        };
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return getContentResolver().bulkInsert(PetEntry.CONTENT_URI, pets);
+            }
 
+            @Override
+            protected void onPostExecute(Integer rowsInserted) {
+                Toast.makeText(CatalogActivity.this, R.string.dummy_data_inserted, Toast.LENGTH_SHORT).show();
+                Log.v(LOG_TAG, "Dummy Data Inserted. Rows = " + rowsInserted);
+            }
+        }.execute();
+    }
+
+    /**
+     * Delete the selected pets with one call to the provider, on a background thread, and offer
+     * to undo it for as long as the provider keeps them.
+     */
+    private void deletePets(final long[] ids) {
+        if (ids.length == 0) {
+            return;
+        }
+        new AsyncTask<Void, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Void... params) {
+                Bundle extras = new Bundle();
+                extras.putLongArray(PetContract.EXTRA_IDS, ids);
+                extras.putBoolean(PetContract.EXTRA_UNDOABLE, true);
+                return getContentResolver().call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_DELETE_IDS, null, extras);
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                int rowsDeleted = result.getInt(PetContract.EXTRA_ROWS_AFFECTED);
+                Log.v(LOG_TAG, "Pets deleted: " + rowsDeleted);
+                final String undoToken = result.getString(PetContract.EXTRA_UNDO_TOKEN);
+                if (rowsDeleted == 0 || isFinishing()) {
+                    return;
+                }
+                Snackbar.make(mPetListView, getResources().getQuantityString(
+                        R.plurals.catalog_pets_deleted, rowsDeleted, rowsDeleted),
+                        Snackbar.LENGTH_LONG)
+                        .setAction(R.string.undo, new View.OnClickListener() {
+                            @Override
+                            public void onClick(View view) {
+                                undoDelete(undoToken);
+                            }
+                        })
+                        .show();
+            }
+        }.execute();
+    }
+
+    /**
+     * Put back the pets of the delete with the given undo token, on a background thread.
+     */
+    private void undoDelete(final String undoToken) {
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                Bundle extras = new Bundle();
+                extras.putString(PetContract.EXTRA_UNDO_TOKEN, undoToken);
+                return getContentResolver().call(PetEntry.CONTENT_URI,
+                        PetContract.METHOD_UNDO_DELETE, null, extras)
+                        .getInt(PetContract.EXTRA_ROWS_AFFECTED);
+            }
+
+            @Override
+            protected void onPostExecute(Integer rowsRestored) {
+                Log.v(LOG_TAG, "Pets restored: " + rowsRestored);
+            }
+        }.execute();
     }
+
+    private static ContentValues dummyPet(String name, String breed, int gender, int weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        if (breed != null) {
+            values.put(PetEntry.COLUMN_PET_BREED, breed);
+        }
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return values;
+    }
+
     private void showDeleteConfirmationDialog(){
         // Create an AlertDialog.Builder and set the message, and click listeners
         // for the postivie and negative buttons on the dialog.
@@ -188,40 +371,33 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         alertDialog.show();
     }
     private void deleteAllPets() {
-        int numberOfRowsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-        Toast.makeText(this, "All Pets Deleted", Toast.LENGTH_SHORT).show();
-        Toast.makeText(this, "Rows deleted: " + numberOfRowsDeleted, Toast.LENGTH_SHORT).show();
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+            }
+
+            @Override
+            protected void onPostExecute(Integer numberOfRowsDeleted) {
+                Toast.makeText(CatalogActivity.this, "All Pets Deleted", Toast.LENGTH_SHORT).show();
+                Toast.makeText(CatalogActivity.this, "Rows deleted: " + numberOfRowsDeleted, Toast.LENGTH_SHORT).show();
+            }
+        }.execute();
     }
 
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        //Define a projection that specifies the columns from the table we care about
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-        };
-        //This loader wil execute the ContentProvider's query method on a background thread
-        return new CursorLoader(
-                this,                   //Parent activity context
-                PetEntry.CONTENT_URI,   //Provider content URI to query
-                projection,             //Columns to include n the resulting Cursor
-                null,                   //No selection clause
-                null,                   //No selection Arguments
-                null);                  //Default sort order
+    protected void onDestroy() {
+        //The repository owns the cursor and closes it once we're no longer subscribed.
+        mPetCursorAdapter.swapCursor(null);
+        mCatalogSubscription.cancel();
+        super.onDestroy();
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, final Cursor cursor) {
-        //Update PetCursorAdapter with this cursor containing updated pets dat
+    public void onChanged(Cursor cursor) {
+        //Update PetCursorAdapter with this cursor containing updated pets data
         mPetCursorAdapter.swapCursor(cursor);
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        //callback called when the data needs to be deletec
-        mPetCursorAdapter.swapCursor(null);
-    }
-
 }
@@ -15,15 +15,14 @@
  */
 package com.example.android.pets;
 
-import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AlertDialog;
@@ -32,32 +31,39 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
-import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetRepository;
 
 /**
  * Allows user to create a new pet or edit an existing one.
  */
-public class EditorActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class EditorActivity extends AppCompatActivity implements PetRepository.Observer {
     private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
+    /**
+     * Intent extra holding the {@link ContentValues} of the pet being edited, as already loaded by
+     * the caller. When present, the editor shows it immediately and only confirms it against the
+     * provider in the background.
+     */
+    public static final String EXTRA_PET_VALUES = "com.example.android.pets.extra.PET_VALUES";
     /**
      * EditText field to enter the pet's name
      */
     private EditText mNameEditText;
 
     /**
-     * EditText field to enter the pet's breed
+     * EditText field to enter the pet's breed, suggesting known breeds as the user types
      */
-    private EditText mBreedEditText;
+    private AutoCompleteTextView mBreedEditText;
 
     /**
      * EditText field to enter the pet's weight
@@ -76,24 +82,28 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     private int mGender = PetContract.PetEntry.GENDER_UNKNOWN;
     private Uri mCurrentPetUri;
 
-    private PetDbHelper mDbHelper;
-
     /**
-     * Identifier for the pet data loader
+     * Columns read for the pet being edited.
      */
-    private static final int EXISTING_PET_LOADER = 0;
+    private static final String[] PET_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_VERSION
+    };
 
-    /*Boolean to check whether the data has changed.*/
-    private boolean mHasPetChanged = false;
+    /**
+     * Our subscription to the pet being edited, or null when adding a new pet.
+     */
+    private PetRepository.Subscription mPetSubscription;
 
-    //check if any changes were made
-    private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
-        @Override
-        public boolean onTouch(View v, MotionEvent event) {
-            mHasPetChanged = true;
-            return false;
-        }
-    };
+    /**
+     * The pet values currently shown in the fields, either handed over by the catalog or loaded
+     * from the provider.
+     */
+    private ContentValues mDisplayedValues;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -103,23 +113,27 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
         // Find all relevant views that we will need to read user input from
         mNameEditText = (EditText) findViewById(R.id.edit_pet_name);
-        mBreedEditText = (EditText) findViewById(R.id.edit_pet_breed);
+        mBreedEditText = (AutoCompleteTextView) findViewById(R.id.edit_pet_breed);
+        mBreedEditText.setAdapter(new BreedAdapter(this));
         mWeightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         mGenderSpinner = (Spinner) findViewById(R.id.spinner_gender);
 
         setupSpinner();
 
-        mNameEditText.setOnTouchListener(mTouchListener);
-        mBreedEditText.setOnTouchListener(mTouchListener);
-        mWeightEditText.setOnTouchListener(mTouchListener);
-        mGenderSpinner.setOnTouchListener(mTouchListener);
         // Get the Intent that started this activity and extract the uri
         Intent intent = getIntent();
         mCurrentPetUri = intent.getData();
         if (mCurrentPetUri != null) {
             //If there is a URI then it means that we need to edit the pet
             setTitle(getString(R.string.editor_activity_title_edit_pet));
-            getLoaderManager().initLoader(EXISTING_PET_LOADER, null, EditorActivity.this);
+            //If the catalog handed us the row, fill in the fields straight away. The query
+            //below still runs on a background thread to confirm it against the provider.
+            ContentValues petValues = intent.getParcelableExtra(EXTRA_PET_VALUES);
+            if (petValues != null) {
+                displayPet(petValues);
+            }
+            mPetSubscription = PetRepository.getInstance(this).observe(mCurrentPetUri,
+                    PET_PROJECTION, null, null, null, this);
         } else {
             //If there is no URI then it meant that we need to add a pet
             setTitle(getString(R.string.editor_activity_title_new_pet));
@@ -202,9 +216,9 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
+                //Save in the background. The activity closes once the save is done, unless it
+                //was rejected because the pet was changed elsewhere in the meantime.
                 savePet();
-                //Close activity and return to parent activity
-                finish();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -215,7 +229,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             case android.R.id.home:
                 // If the pet hasn't changed, continue with navigating up to parent activity
                 // which is the {@link CatalogActivity}.
-                if (!mHasPetChanged) {
+                if (!hasPetChanged()) {
                     NavUtils.navigateUpFromSameTask(EditorActivity.this);
                     return true;
                 }
@@ -239,18 +253,10 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         return super.onOptionsItemSelected(item);
     }
 
-    /*
-    *Get text from the EditText fields and save it to the database
-    */
-    private void savePet() {
-
-        //If the name field is left blank, return to CatalogActivity.
-        if (TextUtils.isEmpty(mNameEditText.getText().toString().trim())) {
-            Log.v(LOG_TAG, "No name value. Returning.");
-            return;
-        }
-
-        mDbHelper = new PetDbHelper(this);
+    /**
+     * Read the pet values currently entered in the input fields.
+     */
+    private ContentValues readPetFromFields() {
         ContentValues values = new ContentValues();
         values.put(PetEntry.COLUMN_PET_NAME, mNameEditText.getText().toString().trim()); //trim() removes starting and trailing whitespaces
         values.put(PetEntry.COLUMN_PET_BREED, mBreedEditText.getText().toString().trim());
@@ -261,27 +267,124 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             values.put(PetEntry.COLUMN_PET_WEIGHT, 0);
 
         }
+        return values;
+    }
+
+    /**
+     * Compare the input fields with the values that were loaded and return only the columns
+     * the user actually changed. Empty if nothing changed.
+     */
+    private ContentValues getChangedValues() {
+        ContentValues current = readPetFromFields();
+        ContentValues changed = new ContentValues();
+        for (String column : current.keySet()) {
+            Object newValue = current.get(column);
+            Object oldValue = mDisplayedValues == null ? null : mDisplayedValues.get(column);
+            // A null breed is shown as an empty field, so don't count that as a change.
+            if (oldValue == null && PetEntry.COLUMN_PET_BREED.equals(column)) {
+                oldValue = "";
+            }
+            if (!newValue.equals(oldValue)) {
+                if (newValue instanceof Integer) {
+                    changed.put(column, (Integer) newValue);
+                } else {
+                    changed.put(column, (String) newValue);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Whether the user has made a real edit, as opposed to just touching the fields.
+     */
+    private boolean hasPetChanged() {
+        if (mDisplayedValues == null) {
+            // A new pet has changed as soon as anything has been entered.
+            return !TextUtils.isEmpty(mNameEditText.getText().toString().trim())
+                    || !TextUtils.isEmpty(mBreedEditText.getText().toString().trim())
+                    || !TextUtils.isEmpty(mWeightEditText.getText().toString().trim())
+                    || mGender != PetEntry.GENDER_UNKNOWN;
+        }
+        return getChangedValues().size() > 0;
+    }
+
+    /**
+     * Get text from the EditText fields and save it to the database on a background thread,
+     * then close the activity. When editing, only the changed columns are written, and nothing
+     * at all if nothing changed. If the pet was changed elsewhere since it was loaded the save is
+     * rejected and the activity stays open.
+     */
+    private void savePet() {
+
+        //If the name field is left blank, return to CatalogActivity.
+        if (TextUtils.isEmpty(mNameEditText.getText().toString().trim())) {
+            Log.v(LOG_TAG, "No name value. Returning.");
+            finish();
+            return;
+        }
+
         if (mCurrentPetUri == null) {
             //If the uri is null that means we are inserting a new pet
-            Uri uri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-            if (uri == null) {
-                Toast.makeText(this, R.string.editor_insert_pet_failed, Toast.LENGTH_SHORT).show();
-                Log.v(LOG_TAG, "Pet insertion error. ID: " + uri);
-            } else {
-                Toast.makeText(this, R.string.editor_insert_pet_successful, Toast.LENGTH_SHORT).show();
-                Log.v(LOG_TAG, "New row inserted. URI: " + uri);
+            final ContentValues values = readPetFromFields();
+            new AsyncTask<Void, Void, Uri>() {
+                @Override
+                protected Uri doInBackground(Void... params) {
+                    return getContentResolver().insert(PetEntry.CONTENT_URI, values);
+                }
+
+                @Override
+                protected void onPostExecute(Uri uri) {
+                    if (uri == null) {
+                        Toast.makeText(EditorActivity.this, R.string.editor_insert_pet_failed, Toast.LENGTH_SHORT).show();
+                        Log.v(LOG_TAG, "Pet insertion error. ID: " + uri);
+                    } else {
+                        Toast.makeText(EditorActivity.this, R.string.editor_insert_pet_successful, Toast.LENGTH_SHORT).show();
+                        Log.v(LOG_TAG, "New row inserted. URI: " + uri);
+                    }
+                    finish();
+                }
+            }.execute();
+            return;
+        }
+
+        //If the url is not null then it means we are editing a pet.
+        final ContentValues values = getChangedValues();
+        if (values.size() == 0) {
+            //Nothing changed, so don't write anything or make observers requery.
+            Log.v(LOG_TAG, "Pet unchanged. ID: " + ContentUris.parseId(mCurrentPetUri));
+            finish();
+            return;
+        }
+        //Pass the version we loaded, so the update is rejected if someone else saved in between.
+        if (mDisplayedValues != null && mDisplayedValues.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+            values.put(PetEntry.COLUMN_PET_VERSION,
+                    mDisplayedValues.getAsInteger(PetEntry.COLUMN_PET_VERSION));
+        }
+        final Uri petUri = mCurrentPetUri;
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return getContentResolver().update(petUri, values, null, null);
             }
-        } else {
-            //If the url is not null then it means we are editing a pet.
-            int rowsUpdated = getContentResolver().update(mCurrentPetUri, values, null, null);
-            if (rowsUpdated != 0) {
-                Toast.makeText(this, "Pet Updated", Toast.LENGTH_SHORT).show();
-                Log.v(LOG_TAG, "Pet updated. ID: " + ContentUris.parseId(mCurrentPetUri));
-            } else {
-                Toast.makeText(this, "Pet update Failed", Toast.LENGTH_SHORT).show();
-                Log.v(LOG_TAG, "Pet update Failed. URI: " + mCurrentPetUri);
+
+            @Override
+            protected void onPostExecute(Integer rowsUpdated) {
+                if (rowsUpdated != 0) {
+                    Toast.makeText(EditorActivity.this, "Pet Updated", Toast.LENGTH_SHORT).show();
+                    Log.v(LOG_TAG, "Pet updated. ID: " + ContentUris.parseId(petUri));
+                } else if (values.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+                    Toast.makeText(EditorActivity.this, R.string.editor_update_pet_conflict, Toast.LENGTH_LONG).show();
+                    Log.v(LOG_TAG, "Pet changed elsewhere. URI: " + petUri);
+                    //Stay open so the user can see the new values and decide what to do.
+                    return;
+                } else {
+                    Toast.makeText(EditorActivity.this, "Pet update Failed", Toast.LENGTH_SHORT).show();
+                    Log.v(LOG_TAG, "Pet update Failed. URI: " + petUri);
+                }
+                finish();
             }
-        }
+        }.execute();
     }
 
     private void showDeleteConfirmationDialog() {
@@ -307,42 +410,66 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     }
 
     private void deletePet() {
-        getContentResolver().delete(mCurrentPetUri, null, null);
-        Toast.makeText(this, "Pet Deleted", Toast.LENGTH_SHORT).show();
-        Log.v(LOG_TAG, "Pet Deleted. ID: " + ContentUris.parseId(mCurrentPetUri));
+        //Delete on a background thread, the activity is closing anyway.
+        final Uri petUri = mCurrentPetUri;
+        final Context appContext = getApplicationContext();
+        new AsyncTask<Void, Void, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                return appContext.getContentResolver().delete(petUri, null, null);
+            }
+
+            @Override
+            protected void onPostExecute(Integer rowsDeleted) {
+                Toast.makeText(appContext, "Pet Deleted", Toast.LENGTH_SHORT).show();
+                Log.v(LOG_TAG, "Pet Deleted. ID: " + ContentUris.parseId(petUri));
+            }
+        }.execute();
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED,
-                PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT
-        };
-        return new CursorLoader(this, mCurrentPetUri, projection, null, null, null);
+    protected void onDestroy() {
+        if (mPetSubscription != null) {
+            mPetSubscription.cancel();
+        }
+        super.onDestroy();
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    public void onChanged(Cursor cursor) {
         // Bail early if the cursor is null or there is less than 1 row in the cursor
         if (cursor == null || cursor.getCount() < 1) {
             return;
         }
         cursor.moveToFirst();
-        String petName = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME));
-        String petBreed = cursor.getString(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED));
-        int gender = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER));
-        int petWeight = cursor.getInt(cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT));
+        ContentValues petValues = petValuesFromCursor(cursor);
+
+        // Nothing to do if the provider confirmed what we're already showing. Also leave the
+        // fields alone once the user has started editing them.
+        if (petValues.equals(mDisplayedValues) || hasPetChanged()) {
+            return;
+        }
+        displayPet(petValues);
+    }
+
+    /**
+     * Fill the input fields with the given pet values.
+     */
+    private void displayPet(ContentValues petValues) {
+        mDisplayedValues = petValues;
+        String petName = petValues.getAsString(PetEntry.COLUMN_PET_NAME);
+        String petBreed = petValues.getAsString(PetEntry.COLUMN_PET_BREED);
+        Integer gender = petValues.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        Integer petWeight = petValues.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
         mNameEditText.setText(petName);
         mBreedEditText.setText(petBreed);
-        mWeightEditText.setText(Integer.toString(petWeight));
+        mWeightEditText.setText(petWeight == null ? "" : Integer.toString(petWeight));
 
         // Gender is a dropdown spinner, so map the constant value from the database
         // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
         // Then call setSelection() so that option is displayed on screen as the current selection.
-        switch (gender) {
+        mGender = gender == null ? PetEntry.GENDER_UNKNOWN : gender;
+        switch (mGender) {
             case PetEntry.GENDER_MALE:
                 mGenderSpinner.setSelection(1);
                 break;
@@ -355,15 +482,37 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         }
     }
 
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        // If the loader is invalidated, clear out all the data from the input fields.
-        mNameEditText.setText("");
-        mBreedEditText.setText("");
-        mWeightEditText.setText("");
-        mGenderSpinner.setSelection(0); // Select "Unknown" gender
-
-
+    /**
+     * Read the pet columns present in the current row of the cursor into a {@link ContentValues},
+     * keeping their column types. Columns missing from the cursor are left out.
+     */
+    public static ContentValues petValuesFromCursor(Cursor cursor) {
+        ContentValues values = new ContentValues();
+        int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+        int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+        int versionColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_VERSION);
+        if (idColumnIndex != -1) {
+            values.put(PetEntry._ID, cursor.getLong(idColumnIndex));
+        }
+        if (nameColumnIndex != -1) {
+            values.put(PetEntry.COLUMN_PET_NAME, cursor.getString(nameColumnIndex));
+        }
+        if (breedColumnIndex != -1) {
+            values.put(PetEntry.COLUMN_PET_BREED, cursor.getString(breedColumnIndex));
+        }
+        if (genderColumnIndex != -1) {
+            values.put(PetEntry.COLUMN_PET_GENDER, cursor.getInt(genderColumnIndex));
+        }
+        if (weightColumnIndex != -1) {
+            values.put(PetEntry.COLUMN_PET_WEIGHT, cursor.getInt(weightColumnIndex));
+        }
+        if (versionColumnIndex != -1) {
+            values.put(PetEntry.COLUMN_PET_VERSION, cursor.getInt(versionColumnIndex));
+        }
+        return values;
     }
 
     private void showUnsavedChangesDialog(DialogInterface.OnClickListener discardButtonClickListener) {
@@ -400,7 +549,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     @Override
     public void onBackPressed() {
         // If the pet hasn't changed, continue with handling back button press
-        if (!mHasPetChanged) {
+        if (!hasPetChanged()) {
             super.onBackPressed();
             return;
         }
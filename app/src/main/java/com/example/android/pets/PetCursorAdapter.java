@@ -2,12 +2,14 @@ package com.example.android.pets;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.TextView;
 
+import com.example.android.pets.data.PetContract.CatalogEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
 
 /**
@@ -58,11 +60,17 @@ public class PetCursorAdapter extends CursorAdapter {
         // Find the columns of pet attributes that we're interested in
         int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
         int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        // Only the catalog has the adoption column, and not in the in-memory store.
+        int adoptedAtColumnIndex = cursor.getColumnIndex(CatalogEntry.COLUMN_ADOPTED_AT);
 
         // Read the pet attributes from the Cursor for the current pet
         // Extract properties from cursor
         String petName = cursor.getString(nameColumnIndex);
         String petBreed = cursor.getString(breedColumnIndex);
+        if (adoptedAtColumnIndex != -1 && !cursor.isNull(adoptedAtColumnIndex)) {
+            petBreed = TextUtils.isEmpty(petBreed) ? context.getString(R.string.catalog_adopted)
+                    : context.getString(R.string.catalog_breed_adopted, petBreed);
+        }
 
         // Populate fields with extracted properties
         petNameView.setText(petName);
@@ -0,0 +1,195 @@
+package com.example.android.pets.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prefix index of the breeds in the pets table, ranked by how many pets have them.
+ * <p>
+ * The index is a trie over the lower-cased breeds. Every node holds the best
+ * {@link #MAX_SUGGESTIONS} breeds below it, worked out when the index is built, so a lookup
+ * only walks the prefix. Spelling variants that differ in case share a node and show up with
+ * their most common spelling.
+ * <p>
+ * An index never changes once it's built, so it can be read from any thread without locking.
+ * {@link BreedSuggestions} builds a new one when the pets change.
+ */
+public class BreedIndex {
+
+    /**
+     * Number of suggestions returned for a prefix.
+     */
+    public static final int MAX_SUGGESTIONS = 8;
+
+    private static final String[] NO_BREEDS = new String[0];
+
+    /**
+     * A node of the trie. The children are sorted by their character, so they can be found
+     * with a binary search.
+     */
+    private static class Node {
+        final char[] labels;
+        final Node[] children;
+        final String[] suggestions;
+
+        Node(char[] labels, Node[] children, String[] suggestions) {
+            this.labels = labels;
+            this.children = children;
+            this.suggestions = suggestions;
+        }
+
+        Node child(char label) {
+            int index = Arrays.binarySearch(labels, label);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    /**
+     * A breed and the number of pets that have it, while the index is being built.
+     */
+    private static class Ranked {
+        final String breed;
+        int count;
+        int spellingCount;
+
+        Ranked(String breed) {
+            this.breed = breed;
+        }
+    }
+
+    /**
+     * Most pets first, then alphabetically.
+     */
+    private static final Comparator<Ranked> BY_RANK = new Comparator<Ranked>() {
+        @Override
+        public int compare(Ranked a, Ranked b) {
+            if (a.count != b.count) {
+                return a.count > b.count ? -1 : 1;
+            }
+            return a.breed.compareToIgnoreCase(b.breed);
+        }
+    };
+
+    /**
+     * Mutable trie node used while building.
+     */
+    private static class Builder {
+        final TreeMap<Character, Builder> children = new TreeMap<>();
+        Ranked breed;
+
+        /**
+         * Turn this subtree into nodes and return them, together with its best breeds in
+         * the given list.
+         */
+        Node freeze(List<Ranked> best) {
+            char[] labels = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            List<Ranked> candidates = new ArrayList<>();
+            if (breed != null) {
+                candidates.add(breed);
+            }
+            int i = 0;
+            for (Map.Entry<Character, Builder> entry : children.entrySet()) {
+                List<Ranked> childBest = new ArrayList<>();
+                labels[i] = entry.getKey();
+                nodes[i] = entry.getValue().freeze(childBest);
+                candidates.addAll(childBest);
+                i++;
+            }
+            Collections.sort(candidates, BY_RANK);
+            best.addAll(candidates.subList(0, Math.min(MAX_SUGGESTIONS, candidates.size())));
+            String[] suggestions = new String[best.size()];
+            for (int j = 0; j < suggestions.length; j++) {
+                suggestions[j] = best.get(j).breed;
+            }
+            return new Node(labels, nodes, suggestions);
+        }
+    }
+
+    /**
+     * Index without any breeds, e.g. until the first one is built.
+     */
+    public static final BreedIndex EMPTY = build(Collections.<String, Integer>emptyMap());
+
+    private final Node mRoot;
+    private final int mSize;
+
+    private BreedIndex(Node root, int size) {
+        mRoot = root;
+        mSize = size;
+    }
+
+    /**
+     * Build an index from the number of pets of each breed, as spelled in the pets table.
+     * Blank breeds are left out.
+     */
+    public static BreedIndex build(Map<String, Integer> counts) {
+        Map<String, Ranked> byKey = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            String breed = entry.getKey().trim();
+            if (breed.isEmpty()) {
+                continue;
+            }
+            String key = normalize(breed);
+            Ranked ranked = byKey.get(key);
+            int count = entry.getValue();
+            if (ranked == null || count > ranked.spellingCount) {
+                // The most common spelling is the one that's suggested.
+                Ranked spelling = new Ranked(breed);
+                spelling.spellingCount = count;
+                spelling.count = ranked == null ? 0 : ranked.count;
+                ranked = spelling;
+                byKey.put(key, ranked);
+            }
+            ranked.count += count;
+        }
+
+        Builder root = new Builder();
+        for (Map.Entry<String, Ranked> entry : byKey.entrySet()) {
+            Builder node = root;
+            String key = entry.getKey();
+            for (int i = 0; i < key.length(); i++) {
+                Builder child = node.children.get(key.charAt(i));
+                if (child == null) {
+                    child = new Builder();
+                    node.children.put(key.charAt(i), child);
+                }
+                node = child;
+            }
+            node.breed = entry.getValue();
+        }
+        return new BreedIndex(root.freeze(new ArrayList<Ranked>()), byKey.size());
+    }
+
+    private static String normalize(String breed) {
+        return breed.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Return the number of distinct breeds in the index.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Return the most common breeds starting with the given prefix, ignoring case, best first.
+     * An empty prefix returns the most common breeds overall.
+     */
+    public List<String> suggest(String prefix) {
+        String key = normalize(prefix);
+        Node node = mRoot;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.child(key.charAt(i));
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(node == null ? NO_BREEDS : node.suggestions));
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breed suggestions for the editor, served from a {@link BreedIndex} of every shelter's pets.
+ * <p>
+ * The index is built on a background thread when the suggestions are first needed, and built
+ * again once the provider has stopped reporting changes to the pets for a few seconds, so a
+ * burst of saves or a sync costs one build instead of one per change. Lookups only read the
+ * latest index, so typing never touches the database.
+ */
+public class BreedSuggestions {
+
+    public static final String LOG_TAG = BreedSuggestions.class.getSimpleName();
+
+    /**
+     * How long the idle build thread is kept around.
+     */
+    private static final long BUILD_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * How long after the last change the index is built again.
+     */
+    private static final long REBUILD_DELAY_MILLIS = 3000;
+
+    /**
+     * Longest a rebuild waits for the changes to stop, so a steady stream of them still gets
+     * the index updated now and then.
+     */
+    private static final long MAX_REBUILD_DELAY_MILLIS = 15000;
+
+    private static final String[] BREED_PROJECTION = {PetEntry.COLUMN_PET_BREED};
+
+    /*Also leaves out pets without a breed, a NULL doesn't compare. Works in the in-memory store.*/
+    private static final String BREED_SELECTION = PetEntry.COLUMN_PET_BREED + " != ?";
+    private static final String[] BREED_SELECTION_ARGS = {""};
+
+    private static BreedSuggestions sInstance;
+
+    private final ContentResolver mResolver;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    /*
+     * Whether a build is queued that hasn't started reading the pets yet, when the first change
+     * it waits for came in, and when it's due. Guarded by this.
+     */
+    private boolean mBuildQueued;
+    private long mFirstChangeAt;
+    private long mBuildDueAt;
+
+    /**
+     * Build the index once it's due, or wait some more if changes came in meanwhile.
+     */
+    private final Runnable mBuildTask = new Runnable() {
+        @Override
+        public void run() {
+            long wait;
+            synchronized (BreedSuggestions.this) {
+                wait = mBuildDueAt - SystemClock.elapsedRealtime();
+                if (wait <= 0) {
+                    // Changes from here on queue another build.
+                    mBuildQueued = false;
+                }
+            }
+            if (wait > 0) {
+                mExecutor.schedule(this, wait, TimeUnit.MILLISECONDS);
+                return;
+            }
+            build();
+        }
+    };
+
+    private volatile BreedIndex mIndex = BreedIndex.EMPTY;
+
+    public static synchronized BreedSuggestions getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BreedSuggestions(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BreedSuggestions(Context context) {
+        mResolver = context.getContentResolver();
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "breed-index");
+            }
+        });
+        mExecutor.setKeepAliveTime(BUILD_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        // The provider notifies the all-shelters URI for every change of any shelter. Without a
+        // handler the observer is called on a binder thread, which is fine for queueing a build.
+        mResolver.registerContentObserver(PetEntry.ALL_SHELTERS_CONTENT_URI, false,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        scheduleBuild(REBUILD_DELAY_MILLIS);
+                    }
+                });
+        scheduleBuild(0);
+    }
+
+    /**
+     * Return the most common breeds starting with the given prefix, best first. Can be called
+     * from any thread. Nothing is suggested until the first build has finished.
+     */
+    public List<String> suggest(CharSequence prefix) {
+        return mIndex.suggest(prefix == null ? "" : prefix.toString());
+    }
+
+    /**
+     * Build the index after the given delay, or push back the build that is already queued.
+     */
+    private synchronized void scheduleBuild(long delayMillis) {
+        long now = SystemClock.elapsedRealtime();
+        if (mBuildQueued) {
+            mBuildDueAt = Math.min(now + delayMillis, mFirstChangeAt + MAX_REBUILD_DELAY_MILLIS);
+            return;
+        }
+        mBuildQueued = true;
+        mFirstChangeAt = now;
+        mBuildDueAt = now + delayMillis;
+        mExecutor.schedule(mBuildTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Count the pets of each breed and swap in a new index.
+     */
+    private void build() {
+        Map<String, Integer> counts = new HashMap<>();
+        Cursor cursor;
+        try {
+            cursor = mResolver.query(PetEntry.ALL_SHELTERS_CONTENT_URI, BREED_PROJECTION,
+                    BREED_SELECTION, BREED_SELECTION_ARGS, null);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Could not read the breeds", e);
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+        try {
+            int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+            while (cursor.moveToNext()) {
+                String breed = cursor.getString(breedColumnIndex);
+                Integer count = counts.get(breed);
+                counts.put(breed, count == null ? 1 : count + 1);
+            }
+        } finally {
+            cursor.close();
+        }
+        mIndex = BreedIndex.build(counts);
+        Log.v(LOG_TAG, "Indexed " + mIndex.size() + " breeds");
+    }
+}
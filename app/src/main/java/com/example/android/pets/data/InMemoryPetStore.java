@@ -0,0 +1,872 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link PetStore} that keeps the pets in memory, for kiosks, tests and as a baseline to compare
+ * the SQLite engine against. Nothing is persisted.
+ * <p>
+ * Pets are stored column by column in primitive arrays. Lookups by ID go through a primitive
+ * long to int hash index and lookups by breed through a hash index of row lists, so filtering
+ * doesn't box any values. Only cursors handed back to callers hold boxed values.
+ * <p>
+ * Selections are limited to comparisons of a column with arguments, e.g. "column=?",
+ * "column>=?", "column LIKE ?" or "column IN (?, ?)", joined with AND, and sort orders to plain
+ * "column [ASC|DESC]" terms. Anything else throws {@link UnsupportedOperationException}.
+ */
+public class InMemoryPetStore implements PetStore {
+
+    private static final String[] ALL_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_VERSION
+    };
+
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_NAME = 1;
+    private static final int COLUMN_BREED = 2;
+    private static final int COLUMN_GENDER = 3;
+    private static final int COLUMN_WEIGHT = 4;
+    private static final int COLUMN_VERSION = 5;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /*How many rows a query copies between checks of its cancellation signal*/
+    private static final int CANCEL_CHECK_INTERVAL_ROWS = 256;
+
+    /*Number of pets, stored in rows [0, mSize) of the column arrays*/
+    private int mSize;
+    private long[] mIds = new long[INITIAL_CAPACITY];
+    private String[] mNames = new String[INITIAL_CAPACITY];
+    private String[] mBreeds = new String[INITIAL_CAPACITY];
+    private int[] mGenders = new int[INITIAL_CAPACITY];
+    private int[] mWeights = new int[INITIAL_CAPACITY];
+    private int[] mVersions = new int[INITIAL_CAPACITY];
+
+    /*Next ID handed out, like SQLite's rowid it's one more than the largest ID so far*/
+    private long mNextId = 1;
+
+    /*Pet ID -> row*/
+    private final LongIntMap mIdIndex = new LongIntMap();
+
+    /*Breed -> rows*/
+    private final HashMap<String, IntList> mBreedIndex = new HashMap<>();
+
+    @Override
+    public synchronized Cursor query(String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder,
+                                     CancellationSignal cancellationSignal) {
+        if (projection == null) {
+            projection = ALL_COLUMNS;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = columnIndex(projection[i]);
+        }
+        int[] rows = sortRows(findRows(Filter.parse(selection, selectionArgs)), sortOrder);
+        MatrixCursor cursor = new MatrixCursor(projection, rows.length);
+        for (int r = 0; r < rows.length; r++) {
+            // Copying the rows is the slow part here, so that's where cancellation is checked.
+            if (cancellationSignal != null && r % CANCEL_CHECK_INTERVAL_ROWS == 0) {
+                cancellationSignal.throwIfCanceled();
+            }
+            int row = rows[r];
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                values[i] = valueAt(row, columns[i]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized long insert(ContentValues values) {
+        for (String column : values.keySet()) {
+            if (columnIndexOrNegative(column) < 0) {
+                // SQLite would fail the insert for an unknown column too.
+                return -1;
+            }
+        }
+        long id;
+        if (values.containsKey(PetEntry._ID)) {
+            id = values.getAsLong(PetEntry._ID);
+            if (mIdIndex.get(id) >= 0) {
+                return -1;
+            }
+        } else {
+            id = mNextId;
+        }
+        mNextId = Math.max(mNextId, id + 1);
+
+        ensureCapacity(mSize + 1);
+        int row = mSize++;
+        mIds[row] = id;
+        mNames[row] = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        mBreeds[row] = values.getAsString(PetEntry.COLUMN_PET_BREED);
+        mGenders[row] = intOrDefault(values, PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        mWeights[row] = intOrDefault(values, PetEntry.COLUMN_PET_WEIGHT, 0);
+        mVersions[row] = intOrDefault(values, PetEntry.COLUMN_PET_VERSION, 0);
+        mIdIndex.put(id, row);
+        breedRows(mBreeds[row]).add(row);
+        return id;
+    }
+
+    @Override
+    public synchronized int update(ContentValues values, String selection, String[] selectionArgs) {
+        return updateRows(findRows(Filter.parse(selection, selectionArgs)), values);
+    }
+
+    @Override
+    public synchronized int delete(String selection, String[] selectionArgs) {
+        return deleteRows(findRows(Filter.parse(selection, selectionArgs)));
+    }
+
+    @Override
+    public synchronized long count(String selection, String[] selectionArgs) {
+        return findRows(Filter.parse(selection, selectionArgs)).length;
+    }
+
+    @Override
+    public synchronized boolean exists(long id) {
+        return mIdIndex.get(id) >= 0;
+    }
+
+    @Override
+    public synchronized long[] listIds(String selection, String[] selectionArgs, String sortOrder) {
+        int[] rows = sortRows(findRows(Filter.parse(selection, selectionArgs)), sortOrder);
+        long[] ids = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            ids[i] = mIds[rows[i]];
+        }
+        return ids;
+    }
+
+    @Override
+    public synchronized int deleteIds(long[] ids) {
+        return deleteRows(rowsForIds(ids));
+    }
+
+    @Override
+    public synchronized PetTombstone deleteIdsKeeping(long[] ids) {
+        int[] rows = rowsForIds(ids);
+        List<ContentValues> pets = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry._ID, mIds[row]);
+            values.put(PetEntry.COLUMN_PET_NAME, mNames[row]);
+            values.put(PetEntry.COLUMN_PET_BREED, mBreeds[row]);
+            values.put(PetEntry.COLUMN_PET_GENDER, mGenders[row]);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, mWeights[row]);
+            values.put(PetEntry.COLUMN_PET_VERSION, mVersions[row]);
+            pets.add(values);
+        }
+        deleteRows(rows);
+        return new PetTombstone(pets, Collections.<ContentValues>emptyList(),
+                Collections.<ContentValues>emptyList());
+    }
+
+    @Override
+    public synchronized int restore(PetTombstone tombstone) {
+        int restored = 0;
+        for (ContentValues pet : tombstone.mPets) {
+            ContentValues values = new ContentValues(pet);
+            if (mIdIndex.get(values.getAsLong(PetEntry._ID)) >= 0) {
+                values.remove(PetEntry._ID);
+            }
+            if (insert(values) != -1) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    @Override
+    public synchronized int updateIds(long[] ids, ContentValues values) {
+        return updateRows(rowsForIds(ids), values);
+    }
+
+    @Override
+    public synchronized void close() {
+        // Nothing to release, the pets live as long as the store.
+    }
+
+    private int[] rowsForIds(long[] ids) {
+        IntList rows = new IntList();
+        for (long id : ids) {
+            int row = mIdIndex.get(id);
+            if (row >= 0 && !rows.contains(row)) {
+                rows.add(row);
+            }
+        }
+        return rows.toArray();
+    }
+
+    /**
+     * Return the rows matching the filter, using an index when the filter allows it.
+     */
+    private int[] findRows(Filter filter) {
+        IntList rows = new IntList();
+        Term idTerm = filter.lookupTermFor(COLUMN_ID);
+        Term breedTerm = filter.lookupTermFor(COLUMN_BREED);
+        if (idTerm != null) {
+            for (int i = 0; i < idTerm.args.length; i++) {
+                int row = idTerm.numeric[i] ? mIdIndex.get(idTerm.longArgs[i]) : -1;
+                if (row >= 0 && filter.matches(this, row)
+                        && (idTerm.args.length == 1 || !rows.contains(row))) {
+                    rows.add(row);
+                }
+            }
+        } else if (breedTerm != null) {
+            for (int i = 0; i < breedTerm.args.length; i++) {
+                IntList candidates = mBreedIndex.get(breedTerm.args[i]);
+                for (int j = 0; candidates != null && j < candidates.size(); j++) {
+                    int row = candidates.get(j);
+                    if (filter.matches(this, row)
+                            && (breedTerm.args.length == 1 || !rows.contains(row))) {
+                        rows.add(row);
+                    }
+                }
+            }
+        } else {
+            for (int row = 0; row < mSize; row++) {
+                if (filter.matches(this, row)) {
+                    rows.add(row);
+                }
+            }
+        }
+        return rows.toArray();
+    }
+
+    private int updateRows(int[] rows, ContentValues values) {
+        if (values.containsKey(PetEntry._ID)) {
+            throw new UnsupportedOperationException("Pet IDs can't be changed");
+        }
+        for (String column : values.keySet()) {
+            columnIndex(column);
+        }
+        // Same rules as the SQLite engine: an expected version only updates rows that still
+        // have it, every updated row moves on to the next version.
+        boolean versioned = values.containsKey(PetEntry.COLUMN_PET_VERSION);
+        int expectedVersion = versioned ? values.getAsInteger(PetEntry.COLUMN_PET_VERSION) : 0;
+        int updated = 0;
+        for (int row : rows) {
+            if (versioned && mVersions[row] != expectedVersion) {
+                continue;
+            }
+            if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
+                mNames[row] = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            }
+            if (values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+                String breed = values.getAsString(PetEntry.COLUMN_PET_BREED);
+                if (!TextUtils.equals(breed, mBreeds[row])) {
+                    breedRows(mBreeds[row]).remove(row);
+                    breedRows(breed).add(row);
+                    mBreeds[row] = breed;
+                }
+            }
+            if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
+                mGenders[row] = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            }
+            if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+                mWeights[row] = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            }
+            mVersions[row]++;
+            updated++;
+        }
+        return updated;
+    }
+
+    /**
+     * Delete the given rows by moving the last row into each hole, highest row first so that the
+     * rows still to be deleted don't move.
+     */
+    private int deleteRows(int[] rows) {
+        Arrays.sort(rows);
+        for (int i = rows.length - 1; i >= 0; i--) {
+            int row = rows[i];
+            int last = mSize - 1;
+            mIdIndex.remove(mIds[row]);
+            breedRows(mBreeds[row]).remove(row);
+            if (row != last) {
+                mIds[row] = mIds[last];
+                mNames[row] = mNames[last];
+                mBreeds[row] = mBreeds[last];
+                mGenders[row] = mGenders[last];
+                mWeights[row] = mWeights[last];
+                mVersions[row] = mVersions[last];
+                mIdIndex.put(mIds[row], row);
+                breedRows(mBreeds[row]).replace(last, row);
+            }
+            mNames[last] = null;
+            mBreeds[last] = null;
+            mSize--;
+        }
+        return rows.length;
+    }
+
+    private IntList breedRows(String breed) {
+        IntList rows = mBreedIndex.get(breed);
+        if (rows == null) {
+            rows = new IntList();
+            mBreedIndex.put(breed, rows);
+        }
+        return rows;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mIds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, mIds.length * 2);
+        mIds = Arrays.copyOf(mIds, newCapacity);
+        mNames = Arrays.copyOf(mNames, newCapacity);
+        mBreeds = Arrays.copyOf(mBreeds, newCapacity);
+        mGenders = Arrays.copyOf(mGenders, newCapacity);
+        mWeights = Arrays.copyOf(mWeights, newCapacity);
+        mVersions = Arrays.copyOf(mVersions, newCapacity);
+    }
+
+    private Object valueAt(int row, int column) {
+        switch (column) {
+            case COLUMN_ID:
+                return mIds[row];
+            case COLUMN_NAME:
+                return mNames[row];
+            case COLUMN_BREED:
+                return mBreeds[row];
+            case COLUMN_GENDER:
+                return mGenders[row];
+            case COLUMN_WEIGHT:
+                return mWeights[row];
+            default:
+                return mVersions[row];
+        }
+    }
+
+    /**
+     * Integer value of a numeric column, for filtering and sorting without boxing.
+     */
+    private long longAt(int row, int column) {
+        switch (column) {
+            case COLUMN_ID:
+                return mIds[row];
+            case COLUMN_GENDER:
+                return mGenders[row];
+            case COLUMN_WEIGHT:
+                return mWeights[row];
+            default:
+                return mVersions[row];
+        }
+    }
+
+    private String stringAt(int row, int column) {
+        return column == COLUMN_NAME ? mNames[row] : mBreeds[row];
+    }
+
+    private static boolean isTextColumn(int column) {
+        return column == COLUMN_NAME || column == COLUMN_BREED;
+    }
+
+    private static int intOrDefault(ContentValues values, String column, int defaultValue) {
+        Integer value = values.getAsInteger(column);
+        return value == null ? defaultValue : value;
+    }
+
+    private static int columnIndexOrNegative(String column) {
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            if (ALL_COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int columnIndex(String column) {
+        int index = columnIndexOrNegative(column);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown column " + column);
+        }
+        return index;
+    }
+
+    /**
+     * Sort the rows by the given sort order, or by ID if there is none. Uses a merge sort over
+     * the row numbers so that no Integer objects are created.
+     */
+    private int[] sortRows(int[] rows, String sortOrder) {
+        final int[] sortColumns;
+        final boolean[] descending;
+        if (TextUtils.isEmpty(sortOrder)) {
+            sortColumns = new int[]{COLUMN_ID};
+            descending = new boolean[]{false};
+        } else {
+            String[] terms = sortOrder.split(",");
+            sortColumns = new int[terms.length];
+            descending = new boolean[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                String[] parts = terms[i].trim().split("\\s+");
+                if (parts.length > 2) {
+                    throw new UnsupportedOperationException("Unsupported sort order " + sortOrder);
+                }
+                sortColumns[i] = columnIndex(parts[0]);
+                if (parts.length == 2) {
+                    String direction = parts[1].toUpperCase(Locale.US);
+                    if (!direction.equals("ASC") && !direction.equals("DESC")) {
+                        throw new UnsupportedOperationException("Unsupported sort order " + sortOrder);
+                    }
+                    descending[i] = direction.equals("DESC");
+                }
+            }
+        }
+        int[] buffer = new int[rows.length];
+        mergeSort(rows, buffer, 0, rows.length, sortColumns, descending);
+        return rows;
+    }
+
+    private void mergeSort(int[] rows, int[] buffer, int from, int to, int[] sortColumns,
+                           boolean[] descending) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, buffer, from, middle, sortColumns, descending);
+        mergeSort(rows, buffer, middle, to, sortColumns, descending);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle
+                    && compareRows(rows[left], rows[right], sortColumns, descending) <= 0)) {
+                buffer[i] = rows[left++];
+            } else {
+                buffer[i] = rows[right++];
+            }
+        }
+        System.arraycopy(buffer, from, rows, from, to - from);
+    }
+
+    private int compareRows(int a, int b, int[] sortColumns, boolean[] descending) {
+        for (int i = 0; i < sortColumns.length; i++) {
+            int column = sortColumns[i];
+            int order;
+            if (isTextColumn(column)) {
+                String valueA = stringAt(a, column);
+                String valueB = stringAt(b, column);
+                // NULLs sort first, like in SQLite.
+                if (valueA == null || valueB == null) {
+                    order = valueA == null ? (valueB == null ? 0 : -1) : 1;
+                } else {
+                    order = valueA.compareTo(valueB);
+                }
+            } else {
+                long valueA = longAt(a, column);
+                long valueB = longAt(b, column);
+                order = valueA < valueB ? -1 : (valueA == valueB ? 0 : 1);
+            }
+            if (order != 0) {
+                return descending[i] ? -order : order;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A selection made of terms joined with AND. A term compares a column with arguments:
+     * "column=?", "column!=?", "column<?" and the other comparisons, "column LIKE ?" and
+     * "column IN (?, ...)". Comparisons follow SQLite: a number is smaller than any text that
+     * isn't a number, a NULL matches nothing, and LIKE ignores the case of ASCII letters.
+     */
+    private static final class Filter {
+        /*Case-insensitive: optional grouping parentheses around "column operator arguments"*/
+        private static final Pattern TERM_PATTERN = Pattern.compile("\\(*\\s*(?:\\w+\\.)?(\\w+)"
+                + "\\s*(==?|!=|<>|<=|>=|<|>|LIKE|IN)\\s*(\\?|\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))"
+                + "\\s*\\)*", Pattern.CASE_INSENSITIVE);
+
+        final Term[] terms;
+
+        private Filter(Term[] terms) {
+            this.terms = terms;
+        }
+
+        static Filter parse(String selection, String[] selectionArgs) {
+            if (TextUtils.isEmpty(selection)) {
+                return new Filter(new Term[0]);
+            }
+            if (selection.toUpperCase(Locale.US).matches(".*\\bOR\\b.*")) {
+                throw new UnsupportedOperationException("Unsupported selection " + selection);
+            }
+            String[] parts = selection.trim().split("(?i)\\s+AND\\s+");
+            Term[] terms = new Term[parts.length];
+            int argIndex = 0;
+            for (int i = 0; i < parts.length; i++) {
+                Matcher matcher = TERM_PATTERN.matcher(parts[i].trim());
+                if (!matcher.matches()) {
+                    throw new UnsupportedOperationException("Unsupported selection " + selection);
+                }
+                String placeholders = matcher.group(3);
+                String[] args = new String[placeholders.length()
+                        - placeholders.replace("?", "").length()];
+                for (int j = 0; j < args.length; j++, argIndex++) {
+                    if (selectionArgs == null || argIndex >= selectionArgs.length) {
+                        throw new IllegalArgumentException("Missing selection argument "
+                                + (argIndex + 1));
+                    }
+                    args[j] = selectionArgs[argIndex];
+                }
+                String operator = matcher.group(2).toUpperCase(Locale.US);
+                if (operator.equals("IN") != placeholders.startsWith("(")) {
+                    throw new UnsupportedOperationException("Unsupported selection " + selection);
+                }
+                terms[i] = new Term(columnIndex(matcher.group(1)), Term.operatorFor(operator),
+                        args);
+            }
+            return new Filter(terms);
+        }
+
+        /**
+         * Return the term that looks the given column up by value ("=" or "IN"), or null if
+         * there isn't one. An index on the column can then find the rows.
+         */
+        Term lookupTermFor(int column) {
+            for (Term term : terms) {
+                if (term.column == column
+                        && (term.operator == Term.EQUAL || term.operator == Term.IN)) {
+                    return term;
+                }
+            }
+            return null;
+        }
+
+        boolean matches(InMemoryPetStore store, int row) {
+            for (Term term : terms) {
+                if (!term.matches(store, row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * One term of a {@link Filter}.
+     */
+    private static final class Term {
+        /*Operators*/
+        static final int EQUAL = 0;
+        static final int NOT_EQUAL = 1;
+        static final int LESS = 2;
+        static final int LESS_OR_EQUAL = 3;
+        static final int GREATER = 4;
+        static final int GREATER_OR_EQUAL = 5;
+        static final int LIKE = 6;
+        static final int IN = 7;
+
+        /*Result of compare() when either side is NULL*/
+        private static final int NO_ORDER = Integer.MIN_VALUE;
+
+        final int column;
+        final int operator;
+        final String[] args;
+        /*Arguments of numeric columns as numbers, where numeric[i] says the argument is one*/
+        final long[] longArgs;
+        final boolean[] numeric;
+
+        Term(int column, int operator, String[] args) {
+            this.column = column;
+            this.operator = operator;
+            this.args = args;
+            longArgs = new long[args.length];
+            numeric = new boolean[args.length];
+            if (!isTextColumn(column)) {
+                for (int i = 0; i < args.length; i++) {
+                    try {
+                        longArgs[i] = Long.parseLong(args[i]);
+                        numeric[i] = true;
+                    } catch (NumberFormatException e) {
+                        // Compared like SQLite compares a number with text.
+                    }
+                }
+            }
+        }
+
+        static int operatorFor(String operator) {
+            switch (operator) {
+                case "=":
+                case "==":
+                    return EQUAL;
+                case "!=":
+                case "<>":
+                    return NOT_EQUAL;
+                case "<":
+                    return LESS;
+                case "<=":
+                    return LESS_OR_EQUAL;
+                case ">":
+                    return GREATER;
+                case ">=":
+                    return GREATER_OR_EQUAL;
+                case "LIKE":
+                    return LIKE;
+                default:
+                    return IN;
+            }
+        }
+
+        boolean matches(InMemoryPetStore store, int row) {
+            if (operator == LIKE) {
+                String value = isTextColumn(column) ? store.stringAt(row, column)
+                        : String.valueOf(store.longAt(row, column));
+                return value != null && args[0] != null && like(args[0], value);
+            }
+            if (operator == IN) {
+                for (int i = 0; i < args.length; i++) {
+                    if (compare(store, row, i) == 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            int order = compare(store, row, 0);
+            if (order == NO_ORDER) {
+                return false;
+            }
+            switch (operator) {
+                case EQUAL:
+                    return order == 0;
+                case NOT_EQUAL:
+                    return order != 0;
+                case LESS:
+                    return order < 0;
+                case LESS_OR_EQUAL:
+                    return order <= 0;
+                case GREATER:
+                    return order > 0;
+                default:
+                    return order >= 0;
+            }
+        }
+
+        /**
+         * Compare the row's value with the given argument, like {@link Comparable#compareTo}.
+         */
+        private int compare(InMemoryPetStore store, int row, int arg) {
+            if (args[arg] == null) {
+                return NO_ORDER;
+            }
+            if (isTextColumn(column)) {
+                String value = store.stringAt(row, column);
+                return value == null ? NO_ORDER : Integer.signum(value.compareTo(args[arg]));
+            }
+            if (!numeric[arg]) {
+                return -1;
+            }
+            long value = store.longAt(row, column);
+            return value < longArgs[arg] ? -1 : (value == longArgs[arg] ? 0 : 1);
+        }
+
+        /**
+         * SQLite's LIKE: "%" matches any run of characters, "_" any single one, and ASCII
+         * letters match either case.
+         */
+        private static boolean like(String pattern, String value) {
+            int p = 0;
+            int v = 0;
+            // Where to go on after the last "%" if the rest doesn't match.
+            int starPattern = -1;
+            int starValue = 0;
+            while (v < value.length()) {
+                if (p < pattern.length() && pattern.charAt(p) == '%') {
+                    starPattern = p++;
+                    starValue = v;
+                } else if (p < pattern.length() && (pattern.charAt(p) == '_'
+                        || equalsIgnoreAsciiCase(pattern.charAt(p), value.charAt(v)))) {
+                    p++;
+                    v++;
+                } else if (starPattern >= 0) {
+                    p = starPattern + 1;
+                    v = ++starValue;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '%') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+        private static boolean equalsIgnoreAsciiCase(char a, char b) {
+            if (a >= 'A' && a <= 'Z') {
+                a += 'a' - 'A';
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            return a == b;
+        }
+    }
+
+    /**
+     * Growable list of ints.
+     */
+    private static final class IntList {
+        private int[] mValues = new int[4];
+        private int mSize;
+
+        int size() {
+            return mSize;
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        boolean contains(int value) {
+            return indexOf(value) >= 0;
+        }
+
+        void remove(int value) {
+            int index = indexOf(value);
+            if (index >= 0) {
+                mValues[index] = mValues[--mSize];
+            }
+        }
+
+        void replace(int oldValue, int newValue) {
+            int index = indexOf(oldValue);
+            if (index >= 0) {
+                mValues[index] = newValue;
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+
+        private int indexOf(int value) {
+            for (int i = 0; i < mSize; i++) {
+                if (mValues[i] == value) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Open addressing hash map from long keys to non-negative int values, with linear probing
+     * and backward shift deletion so no tombstones are left behind.
+     */
+    private static final class LongIntMap {
+        private long[] mKeys = new long[32];
+        private int[] mValues = new int[32];
+        private boolean[] mUsed = new boolean[32];
+        private int mSize;
+
+        private int slot(long key, int mask) {
+            int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        /**
+         * Return the value of the key, or -1 if the key isn't in the map.
+         */
+        int get(long key) {
+            int mask = mKeys.length - 1;
+            for (int i = slot(key, mask); mUsed[i]; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return mValues[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                grow();
+            }
+            int mask = mKeys.length - 1;
+            int i = slot(key, mask);
+            while (mUsed[i] && mKeys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!mUsed[i]) {
+                mUsed[i] = true;
+                mKeys[i] = key;
+                mSize++;
+            }
+            mValues[i] = value;
+        }
+
+        void remove(long key) {
+            int mask = mKeys.length - 1;
+            int i = slot(key, mask);
+            while (mUsed[i] && mKeys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!mUsed[i]) {
+                return;
+            }
+            mUsed[i] = false;
+            mSize--;
+            // Shift the following entries of the probe sequence back into the hole, unless
+            // their home slot lies between the hole and where they are now.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (!mUsed[j]) {
+                    return;
+                }
+                int home = slot(mKeys[j], mask);
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    mKeys[i] = mKeys[j];
+                    mValues[i] = mValues[j];
+                    mUsed[i] = true;
+                    mUsed[j] = false;
+                    i = j;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = mKeys;
+            int[] oldValues = mValues;
+            boolean[] oldUsed = mUsed;
+            mKeys = new long[oldKeys.length * 2];
+            mValues = new int[oldKeys.length * 2];
+            mUsed = new boolean[oldKeys.length * 2];
+            mSize = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
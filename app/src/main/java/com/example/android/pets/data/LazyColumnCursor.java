@@ -0,0 +1,387 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pets cursor that loads the {@link PetEntry#WIDE_COLUMNS wide columns} of its projection the
+ * first time one of them is read, instead of with the rows.
+ * <p>
+ * The wrapped cursor holds the other columns. When a wide column is first read, the wide
+ * columns of all its rows are fetched in one go by ID, so a list that never shows them never
+ * pays for them, and one that does pays once. A pet deleted in the meantime reads as null.
+ * The fetch is a provider query, so the first read of a wide column belongs on a background
+ * thread like any other query. A cursor that is handed to the main thread has them loaded with
+ * {@link #loadWideColumns} first.
+ * <p>
+ * Only pets queries of one shelter can be loaded lazily, see {@link #query}.
+ */
+public class LazyColumnCursor extends CursorWrapper {
+
+    /**
+     * Number of pets fetched per query, below SQLite's limit of 999 arguments.
+     */
+    private static final int IDS_PER_QUERY = 500;
+
+    private final ContentResolver mResolver;
+    private final Uri mPetsUri;
+
+    /*Columns as the caller asked for them*/
+    private final String[] mColumns;
+
+    /*Column -> index in the wrapped cursor, or index in the wide values if mWide[column]*/
+    private final int[] mIndexes;
+    private final boolean[] mWide;
+    private final String[] mWideColumns;
+    private final int mIdIndex;
+
+    /*Pet ID -> its wide values, null until the first read of a wide column*/
+    private Map<Long, Object[]> mWideValues;
+
+    private LazyColumnCursor(ContentResolver resolver, Uri petsUri, Cursor cursor,
+                             String[] columns) {
+        super(cursor);
+        mResolver = resolver;
+        mPetsUri = petsUri;
+        mColumns = columns;
+        mIndexes = new int[columns.length];
+        mWide = new boolean[columns.length];
+        List<String> wideColumns = new ArrayList<>();
+        for (int i = 0; i < columns.length; i++) {
+            if (PetEntry.isWideColumn(columns[i])) {
+                mWide[i] = true;
+                mIndexes[i] = wideColumns.size();
+                wideColumns.add(columns[i]);
+            } else {
+                mIndexes[i] = cursor.getColumnIndexOrThrow(columns[i]);
+            }
+        }
+        mWideColumns = wideColumns.toArray(new String[wideColumns.size()]);
+        mIdIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+    }
+
+    /**
+     * Query pets like {@link ContentResolver#query}, leaving the wide columns of the projection
+     * to be loaded when they're first read. The ID and version are queried along with the
+     * other columns even if they weren't asked for: the ID to fetch the wide columns by, and
+     * the version because every change to a pet bumps it, so the rows that are loaded up
+     * front show when the wide columns changed too.
+     * <p>
+     * A projection without wide columns, and URIs other than the pets and pet URIs of a
+     * shelter, are queried as they are.
+     */
+    public static Cursor query(ContentResolver resolver, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder,
+                               CancellationSignal cancellationSignal) {
+        Uri petsUri = petsUriFor(uri);
+        if (petsUri == null || !hasWideColumn(projection)) {
+            return resolver.query(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : projection) {
+            if (!PetEntry.isWideColumn(column) && !columns.contains(column)) {
+                columns.add(column);
+            }
+        }
+        if (!columns.contains(PetEntry._ID)) {
+            columns.add(PetEntry._ID);
+        }
+        if (!columns.contains(PetEntry.COLUMN_PET_VERSION)) {
+            columns.add(PetEntry.COLUMN_PET_VERSION);
+        }
+        Cursor cursor = resolver.query(uri, columns.toArray(new String[columns.size()]),
+                selection, selectionArgs, sortOrder, cancellationSignal);
+        if (cursor == null) {
+            return null;
+        }
+        return new LazyColumnCursor(resolver, petsUri, cursor, projection.clone());
+    }
+
+    private static boolean hasWideColumn(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (PetEntry.isWideColumn(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the pets URI of the shelter the given pets or pet URI is in, with the same query
+     * parameters, e.g. the partition. Null for any other URI, including the pets of all
+     * shelters, whose IDs are only unique within a shelter.
+     * <p>
+     * Eg: content://com.example.android.pets/shelters/3/pets/5 ->
+     * content://com.example.android.pets/shelters/3/pets
+     */
+    static Uri petsUriFor(Uri uri) {
+        if (!PetContract.CONTENT_AUTHORITY.equals(uri.getAuthority())) {
+            return null;
+        }
+        List<String> segments = uri.getPathSegments();
+        int petsSegment;
+        if (!segments.isEmpty() && PetContract.PATH_PETS.equals(segments.get(0))) {
+            petsSegment = 0;
+        } else if (segments.size() >= 3 && PetContract.PATH_SHELTERS.equals(segments.get(0))
+                && TextUtils.isDigitsOnly(segments.get(1))
+                && PetContract.PATH_PETS.equals(segments.get(2))) {
+            petsSegment = 2;
+        } else {
+            return null;
+        }
+        if (segments.size() > petsSegment + 2 || (segments.size() == petsSegment + 2
+                && !TextUtils.isDigitsOnly(segments.get(petsSegment + 1)))) {
+            return null;
+        }
+        return uri.buildUpon().path(TextUtils.join("/", segments.subList(0, petsSegment + 1)))
+                .build();
+    }
+
+    /**
+     * Fetch the wide columns of every row now, unless they're loaded already, so reading them
+     * later doesn't query the provider. Call this on the thread that ran the query.
+     *
+     * @throws android.os.OperationCanceledException if the signal is cancelled meanwhile.
+     */
+    public void loadWideColumns(CancellationSignal cancellationSignal) {
+        if (mWideValues == null) {
+            mWideValues = fetchWideValues(cancellationSignal);
+        }
+    }
+
+    /**
+     * Return the wide values of the current row, fetching those of every row first if this is
+     * the first read of a wide column.
+     */
+    private Object[] wideRow() {
+        loadWideColumns(null);
+        return mWideValues.get(getWrappedCursor().getLong(mIdIndex));
+    }
+
+    private Map<Long, Object[]> fetchWideValues(CancellationSignal cancellationSignal) {
+        Cursor cursor = getWrappedCursor();
+        List<String> ids = new ArrayList<>(cursor.getCount());
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids.add(String.valueOf(cursor.getLong(mIdIndex)));
+        }
+        cursor.moveToPosition(position);
+
+        String[] projection = new String[mWideColumns.length + 1];
+        projection[0] = PetEntry._ID;
+        System.arraycopy(mWideColumns, 0, projection, 1, mWideColumns.length);
+        Map<Long, Object[]> values = new HashMap<>(ids.size() * 2);
+        for (int start = 0; start < ids.size(); start += IDS_PER_QUERY) {
+            List<String> batch = ids.subList(start, Math.min(ids.size(), start + IDS_PER_QUERY));
+            char[] placeholders = new char[batch.size() * 2 - 1];
+            Arrays.fill(placeholders, ',');
+            for (int i = 0; i < placeholders.length; i += 2) {
+                placeholders[i] = '?';
+            }
+            Cursor wide = mResolver.query(mPetsUri, projection,
+                    PetEntry._ID + " IN (" + new String(placeholders) + ")",
+                    batch.toArray(new String[batch.size()]), null, cancellationSignal);
+            if (wide == null) {
+                continue;
+            }
+            try {
+                while (wide.moveToNext()) {
+                    Object[] row = new Object[mWideColumns.length];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = valueAt(wide, i + 1);
+                    }
+                    values.put(wide.getLong(0), row);
+                }
+            } finally {
+                wide.close();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Return the value of the given column in the current row, keeping its type.
+     */
+    private static Object valueAt(Cursor cursor, int columnIndex) {
+        switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(columnIndex);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(columnIndex);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(columnIndex);
+            default:
+                return cursor.getString(columnIndex);
+        }
+    }
+
+    private Object wideValue(int columnIndex) {
+        Object[] row = wideRow();
+        return row == null ? null : row[mIndexes[columnIndex]];
+    }
+
+    private Number wideNumber(int columnIndex) {
+        Object value = wideValue(columnIndex);
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        // Like SQLite, text that isn't a number reads as 0.
+        try {
+            return Double.valueOf(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumns.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return mColumns[columnIndex];
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < mColumns.length; i++) {
+            if (mColumns[i].equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index == -1) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getType(mIndexes[columnIndex]);
+        }
+        Object value = wideValue(columnIndex);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.isNull(mIndexes[columnIndex]);
+        }
+        return wideValue(columnIndex) == null;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getString(mIndexes[columnIndex]);
+        }
+        Object value = wideValue(columnIndex);
+        if (value instanceof byte[]) {
+            throw new IllegalStateException("Column " + mColumns[columnIndex] + " is a blob");
+        }
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getBlob(mIndexes[columnIndex]);
+        }
+        Object value = wideValue(columnIndex);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return value.toString().getBytes();
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getLong(mIndexes[columnIndex]);
+        }
+        return wideNumber(columnIndex).longValue();
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getInt(mIndexes[columnIndex]);
+        }
+        return wideNumber(columnIndex).intValue();
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getShort(mIndexes[columnIndex]);
+        }
+        return wideNumber(columnIndex).shortValue();
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getDouble(mIndexes[columnIndex]);
+        }
+        return wideNumber(columnIndex).doubleValue();
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        if (!mWide[columnIndex]) {
+            return super.getFloat(mIndexes[columnIndex]);
+        }
+        return wideNumber(columnIndex).floatValue();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mWideValues = null;
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.pets.data;
+
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.pets.BuildConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Detects database work on the main thread.
+ * <p>
+ * {@link PetProvider} and {@link PetDbHelper} call {@link #check} for every operation. When the
+ * caller is the main looper's thread the guard either logs the stack trace or throws, depending
+ * on the mode, and counts how often each call site did it. It is on (logging) in debug builds and
+ * off in release builds.
+ */
+public final class MainThreadGuard {
+
+    public static final String LOG_TAG = MainThreadGuard.class.getSimpleName();
+
+    /*Possible modes*/
+    public static final int MODE_OFF = 0;
+    public static final int MODE_LOG = 1;
+    public static final int MODE_THROW = 2;
+
+    private static volatile int sMode = BuildConfig.DEBUG ? MODE_LOG : MODE_OFF;
+
+    /*Call site -> number of main thread operations from there*/
+    private static final Map<String, Integer> sCallSiteCounts = new HashMap<>();
+
+    private MainThreadGuard() {
+    }
+
+    /**
+     * Set the mode, one of {@link #MODE_OFF}, {@link #MODE_LOG} or {@link #MODE_THROW}.
+     */
+    public static void setMode(int mode) {
+        sMode = mode;
+    }
+
+    public static int getMode() {
+        return sMode;
+    }
+
+    /**
+     * Report the database operation if it's running on the main thread. The description is only
+     * put together for a report, so the check costs next to nothing when the guard is off or the
+     * caller is on a background thread.
+     *
+     * @param action  what the operation does, e.g. "query".
+     * @param subject what it does it to, e.g. the URI.
+     */
+    public static void check(String action, Object subject) {
+        if (sMode == MODE_OFF || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        String operation = action + " " + subject;
+        report(operation, new Throwable("Database " + operation + " on the main thread"));
+    }
+
+    /**
+     * Like {@link #check}, for the database engine. Operations that came through
+     * {@link PetProvider} have been reported by the provider already, so they're skipped.
+     */
+    static void checkEngine(String action, Object subject) {
+        if (sMode == MODE_OFF || Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        String operation = action + " " + subject;
+        Throwable trace = new Throwable("Database " + operation + " on the main thread");
+        for (StackTraceElement element : trace.getStackTrace()) {
+            if (element.getClassName().equals(PetProvider.class.getName())) {
+                return;
+            }
+        }
+        report(operation, trace);
+    }
+
+    private static void report(String operation, Throwable trace) {
+        String callSite = callSite(trace);
+        int count;
+        synchronized (sCallSiteCounts) {
+            Integer previous = sCallSiteCounts.get(callSite);
+            count = previous == null ? 1 : previous + 1;
+            sCallSiteCounts.put(callSite, count);
+        }
+        if (sMode == MODE_THROW) {
+            throw new IllegalStateException("Database " + operation + " on the main thread from "
+                    + callSite, trace);
+        }
+        Log.w(LOG_TAG, "Database " + operation + " on the main thread from " + callSite
+                + " (" + count + " times so far)", trace);
+    }
+
+    /**
+     * Return the first frame of app code outside the data package, which is the code that
+     * should have moved the work off the main thread.
+     */
+    private static String callSite(Throwable trace) {
+        String dataPackage = MainThreadGuard.class.getPackage().getName() + ".";
+        String appPackage = BuildConfig.APPLICATION_ID + ".";
+        StackTraceElement[] stack = trace.getStackTrace();
+        for (StackTraceElement element : stack) {
+            String className = element.getClassName();
+            if (className.startsWith(appPackage) && !className.startsWith(dataPackage)) {
+                return element.toString();
+            }
+        }
+        return stack.length > 2 ? stack[2].toString() : "unknown";
+    }
+
+    /**
+     * Return a copy of the number of main thread operations per call site.
+     */
+    public static Map<String, Integer> getCallSiteCounts() {
+        synchronized (sCallSiteCounts) {
+            return new HashMap<>(sCallSiteCounts);
+        }
+    }
+
+    /**
+     * Forget the counted call sites.
+     */
+    public static void reset() {
+        synchronized (sCallSiteCounts) {
+            sCallSiteCounts.clear();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.AdopterEntry;
+import com.example.android.pets.data.PetContract.AdoptionEntry;
+import com.example.android.pets.data.PetContract.CatalogEntry;
+
+/**
+ * Adopters and adoptions of the pets in a SQLite store, and the catalog that lists the pets
+ * with their adoption status. The catalog is kept up to date by the triggers created in
+ * {@link PetDbHelper}, so this class only ever reads it.
+ */
+public class PetAdoptions {
+
+    private final PetDbHelper mDbHelper;
+
+    public PetAdoptions(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Query the adopters, the adoptions or the catalog.
+     */
+    public Cursor query(String table, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        if (!CatalogEntry.TABLE_NAME.equals(table)) {
+            checkWritable(table);
+        }
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(table);
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return builder.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+                null, cancellationSignal);
+    }
+
+    /**
+     * Insert an adopter or an adoption.
+     *
+     * @return the ID of the new row, or -1 if it failed, e.g. because the adoption's pet or
+     * adopter doesn't exist or the pet is already adopted.
+     */
+    public long insert(String table, ContentValues values) {
+        checkWritable(table);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.insert(table, null, values);
+    }
+
+    /**
+     * Update adopters or adoptions. Pointing an adoption at a pet or adopter that doesn't exist
+     * throws an {@link android.database.sqlite.SQLiteConstraintException}.
+     */
+    public int update(String table, ContentValues values, String selection,
+                      String[] selectionArgs) {
+        checkWritable(table);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.update(table, values, selection, selectionArgs);
+    }
+
+    /**
+     * Delete adopters or adoptions. Deleting an adopter who still has an adoption throws an
+     * {@link android.database.sqlite.SQLiteConstraintException}.
+     */
+    public int delete(String table, String selection, String[] selectionArgs) {
+        checkWritable(table);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(table, selection, selectionArgs);
+    }
+
+    private static void checkWritable(String table) {
+        if (!AdopterEntry.TABLE_NAME.equals(table) && !AdoptionEntry.TABLE_NAME.equals(table)) {
+            throw new IllegalArgumentException("Unknown table " + table);
+        }
+    }
+}
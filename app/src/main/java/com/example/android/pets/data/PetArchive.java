@@ -0,0 +1,160 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Cold partition of the pets in a SQLite store.
+ * <p>
+ * Pets that have been inactive for a while are moved from the hot pets table to an archive
+ * table with the same columns, so the catalog, its indexes and vacuum only deal with the
+ * current residents. A moved pet keeps its ID, its weight history and its sync identity; the
+ * triggers created by {@link PetDbHelper} don't treat the move as a delete.
+ */
+public class PetArchive {
+
+    /**
+     * Name of the database table for the archived pets
+     */
+    public static final String TABLE_NAME = "pets_archive";
+
+    /**
+     * Number of pets moved per transaction, so writers aren't held up for long.
+     */
+    private static final int PETS_PER_BATCH = 500;
+
+    /**
+     * Every column of the pets table, in the order both tables declare them.
+     */
+    private static final String COLUMNS = PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+            PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_VERSION + ", " +
+            PetEntry.COLUMN_PET_SYNC_ID + ", " + PetEntry.COLUMN_PET_UPDATED_AT + ", " +
+            PetEntry.COLUMN_PET_EXTERNAL_ID;
+
+    private static final String BOTH_PARTITIONS = "(SELECT " + COLUMNS + " FROM " +
+            PetEntry.TABLE_NAME + " UNION ALL SELECT " + COLUMNS + " FROM " + TABLE_NAME + ")";
+
+    private final PetDbHelper mDbHelper;
+
+    public PetArchive(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Query the archive, or the hot table and the archive together, depending on the
+     * partition ({@link PetEntry#PARTITION_ARCHIVE} or {@link PetEntry#PARTITION_ALL}).
+     */
+    public Cursor query(String partition, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        switch (partition) {
+            case PetEntry.PARTITION_ARCHIVE:
+                builder.setTables(TABLE_NAME);
+                break;
+            case PetEntry.PARTITION_ALL:
+                builder.setTables(BOTH_PARTITIONS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown partition " + partition);
+        }
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return builder.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+                null, cancellationSignal);
+    }
+
+    /**
+     * Move the pets that haven't changed since the given time, and match the optional
+     * selection, to the archive. Runs in batches of {@link #PETS_PER_BATCH} pets, each in its
+     * own transaction.
+     *
+     * @return the number of pets moved.
+     */
+    public int archive(long inactiveSince, String selection, String[] selectionArgs) {
+        selection = SqlitePetStore.appendSelection(selection,
+                PetEntry.COLUMN_PET_UPDATED_AT + "<?");
+        selectionArgs = SqlitePetStore.appendSelectionArgs(selectionArgs,
+                String.valueOf(inactiveSince));
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int moved = 0;
+        while (true) {
+            int movedInBatch;
+            db.beginTransaction();
+            try {
+                movedInBatch = moveBatch(db, selection, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            moved += movedInBatch;
+            if (movedInBatch < PETS_PER_BATCH) {
+                return moved;
+            }
+        }
+    }
+
+    private static int moveBatch(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID}, selection,
+                selectionArgs, null, null, null, String.valueOf(PETS_PER_BATCH));
+        long[] ids;
+        try {
+            ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.length == 0) {
+            return 0;
+        }
+        String inIds = " WHERE " + PetEntry._ID + " IN (" +
+                SqlitePetStore.placeholders(ids.length) + ")";
+        // Copy first: the delete triggers check the archive to tell a move from a delete.
+        SQLiteStatement copy = db.compileStatement("INSERT INTO " + TABLE_NAME + " (" + COLUMNS +
+                ") SELECT " + COLUMNS + " FROM " + PetEntry.TABLE_NAME + inIds);
+        try {
+            SqlitePetStore.bindIds(copy, ids, 0, ids.length, 1);
+            copy.executeInsert();
+        } finally {
+            copy.close();
+        }
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + PetEntry.TABLE_NAME + inIds);
+        try {
+            SqlitePetStore.bindIds(delete, ids, 0, ids.length, 1);
+            return delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+    }
+
+    /**
+     * Move the archived pets matching the selection back to the pets table, keeping their IDs
+     * and weight history. Call inside a transaction.
+     *
+     * @return the number of pets moved back.
+     */
+    static int unarchive(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        // Insert first: the archive's delete trigger keeps the history of pets that are back.
+        db.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + COLUMNS + ") SELECT " + COLUMNS +
+                " FROM " + TABLE_NAME + " WHERE " + selection, selectionArgs);
+        return db.delete(TABLE_NAME, selection, selectionArgs);
+    }
+
+    /**
+     * Return the ID for a new pet. The hot table alone could hand out the ID of an archived pet
+     * again, so look at both. Call inside the transaction that inserts the pet.
+     */
+    static long nextPetId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT MAX(IFNULL((SELECT MAX(" + PetEntry._ID +
+                ") FROM " + PetEntry.TABLE_NAME + "), 0), IFNULL((SELECT MAX(" + PetEntry._ID +
+                ") FROM " + TABLE_NAME + "), 0)) + 1", null);
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.pets.data;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.pets.R;
+
+/**
+ * Background job that moves inactive pets of every shelter to the archive partition, see
+ * {@link PetArchive}. A pet is inactive when it hasn't been updated for the number of days in
+ * the archive_inactive_days resource. The job runs about once a day once {@link #schedule} has
+ * been called.
+ */
+public class PetArchiveService extends IntentService {
+
+    public static final String LOG_TAG = PetArchiveService.class.getSimpleName();
+
+    public PetArchiveService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Schedule the daily archive run, unless it's scheduled already. Fine to call on every start
+     * of the app.
+     */
+    public static void schedule(Context context) {
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            // Nothing to archive into.
+            return;
+        }
+        Intent intent = new Intent(context, PetArchiveService.class);
+        // The alarm keeps its pending intent alive, so finding one means we're scheduled.
+        // Scheduling again would push the first run back every time the app starts.
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent operation = PendingIntent.getService(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_DAY, operation);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        long inactiveSince = System.currentTimeMillis()
+                - getResources().getInteger(R.integer.archive_inactive_days) * DateUtils.DAY_IN_MILLIS;
+        Bundle shelters = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                PetContract.METHOD_LIST_SHELTERS, null, null);
+        for (long shelterId : shelters.getLongArray(PetContract.EXTRA_IDS)) {
+            Bundle extras = new Bundle();
+            extras.putLong(PetContract.EXTRA_SHELTER_ID, shelterId);
+            extras.putLong(PetContract.EXTRA_ARCHIVE_INACTIVE_SINCE, inactiveSince);
+            Bundle result = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                    PetContract.METHOD_ARCHIVE, null, extras);
+            Log.i(LOG_TAG, "Archived " + result.getInt(PetContract.EXTRA_ROWS_AFFECTED)
+                    + " pets of shelter " + shelterId);
+        }
+    }
+}
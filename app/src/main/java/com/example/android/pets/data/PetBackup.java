@@ -0,0 +1,369 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Online backup and restore of a pets database file.
+ * <p>
+ * A backup reads the live database through its own read-only connection, inside a single read
+ * transaction, so the copy is the database as it was at one moment: the tables the triggers
+ * keep in step with the pets, like the catalog and the change log, agree with them in the
+ * backup too. The live database is in WAL mode (see {@link PetDbHelper}), where a reader
+ * doesn't block the provider's writers, so they keep going while the backup runs; their
+ * changes just aren't in it. The rows are copied one small step at a time with a pause in
+ * between, which keeps the memory of the copy bounded and leaves the disk to the app.
+ * <p>
+ * A restore verifies the backup file first and copies it next to the live database, so that
+ * {@link PetProvider} only has to rename it into place.
+ */
+public class PetBackup {
+
+    public static final String LOG_TAG = PetBackup.class.getSimpleName();
+
+    /**
+     * Number of rows copied per step.
+     */
+    public static final int DEFAULT_ROWS_PER_STEP = 200;
+
+    /**
+     * Time to sleep between two steps, leaving the disk to the app.
+     */
+    public static final long DEFAULT_PAUSE_MILLIS = 5;
+
+    /**
+     * Table in which SQLite keeps the last rowid of every AUTOINCREMENT table.
+     */
+    private static final String SEQUENCE_TABLE = "sqlite_sequence";
+
+    private final int mRowsPerStep;
+    private final long mPauseMillis;
+
+    public PetBackup() {
+        this(DEFAULT_ROWS_PER_STEP, DEFAULT_PAUSE_MILLIS);
+    }
+
+    public PetBackup(int rowsPerStep, long pauseMillis) {
+        mRowsPerStep = rowsPerStep;
+        mPauseMillis = pauseMillis;
+    }
+
+    /**
+     * Statistics of a finished backup.
+     */
+    public static class Stats {
+        public long rows;
+        public long bytes;
+        public int steps;
+        public long durationMillis;
+        /**
+         * Longest time a single step took to read its rows and write them to the backup.
+         */
+        public long maxStepMillis;
+
+        public double rowsPerSecond() {
+            return durationMillis == 0 ? rows : rows * 1000.0 / durationMillis;
+        }
+
+        public double bytesPerSecond() {
+            return durationMillis == 0 ? bytes : bytes * 1000.0 / durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d rows, %d bytes in %d ms (%.0f rows/s, %.0f KB/s), "
+                            + "%d steps, longest step %d ms", rows, bytes, durationMillis,
+                    rowsPerSecond(), bytesPerSecond() / 1024, steps, maxStepMillis);
+        }
+    }
+
+    /**
+     * Back up the database at the given path into the destination file. The backup is written to
+     * a temporary file first and only renamed to the destination once it has been verified.
+     *
+     * @throws IOException if the database isn't in WAL mode, where the backup's read
+     *                     transaction would hold up every writer until it's done.
+     */
+    public Stats backup(File source, File destination) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Stats stats = new Stats();
+        File tempFile = new File(destination.getPath() + ".tmp");
+        deleteDatabaseFiles(tempFile);
+
+        SQLiteDatabase sourceDb = SQLiteDatabase.openDatabase(source.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        SQLiteDatabase backupDb = null;
+        try {
+            String journalMode = DatabaseUtils.stringForQuery(sourceDb, "PRAGMA journal_mode",
+                    null);
+            if (!"wal".equalsIgnoreCase(journalMode)) {
+                throw new IOException("Cannot back up " + source + " in " + journalMode
+                        + " journal mode");
+            }
+            backupDb = SQLiteDatabase.openOrCreateDatabase(tempFile, null);
+            // SAVEPOINT starts a deferred transaction, which is all a read-only connection can
+            // have: beginTransaction() would ask for the write lock.
+            sourceDb.execSQL("SAVEPOINT backup");
+            try {
+                copyDatabase(sourceDb, backupDb, stats);
+            } finally {
+                sourceDb.execSQL("RELEASE backup");
+            }
+        } finally {
+            sourceDb.close();
+            if (backupDb != null) {
+                backupDb.close();
+            }
+        }
+
+        String problem = verify(tempFile);
+        if (problem != null) {
+            deleteDatabaseFiles(tempFile);
+            throw new IOException("Backup failed verification: " + problem);
+        }
+        deleteDatabaseFiles(destination);
+        if (!tempFile.renameTo(destination)) {
+            throw new IOException("Could not move backup to " + destination);
+        }
+        stats.bytes = destination.length();
+        stats.durationMillis = SystemClock.elapsedRealtime() - start;
+        Log.i(LOG_TAG, "Backup of " + source + " finished: " + stats);
+        return stats;
+    }
+
+    /**
+     * Copy the schema and the rows, all read in the source's current transaction.
+     */
+    private void copyDatabase(SQLiteDatabase sourceDb, SQLiteDatabase backupDb, Stats stats) {
+        // Tables first, then their rows, then the indexes and triggers. Creating the triggers
+        // last keeps them from firing while the rows are copied.
+        List<String> deferredSql = new ArrayList<>();
+        Cursor schema = sourceDb.rawQuery("SELECT type, name, sql FROM sqlite_master"
+                + " WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%'"
+                + " AND name != 'android_metadata' ORDER BY rowid", null);
+        List<String> tables = new ArrayList<>();
+        try {
+            while (schema.moveToNext()) {
+                if ("table".equals(schema.getString(0))) {
+                    backupDb.execSQL(schema.getString(2));
+                    tables.add(schema.getString(1));
+                } else {
+                    deferredSql.add(schema.getString(2));
+                }
+            }
+        } finally {
+            schema.close();
+        }
+        for (String table : tables) {
+            copyTable(sourceDb, backupDb, table, stats);
+        }
+        // The AUTOINCREMENT counters, e.g. of the change log. Copying the rows only moves them
+        // up to the highest rowid left, so the sequence numbers of rows deleted since could be
+        // handed out again after a restore. The backup created the table with the first
+        // AUTOINCREMENT table and filled it while copying the rows.
+        if (DatabaseUtils.queryNumEntries(sourceDb, "sqlite_master", "type='table' AND name=?",
+                new String[]{SEQUENCE_TABLE}) != 0) {
+            backupDb.delete(SEQUENCE_TABLE, null, null);
+            copyTable(sourceDb, backupDb, SEQUENCE_TABLE, stats);
+        }
+        for (String sql : deferredSql) {
+            backupDb.execSQL(sql);
+        }
+        backupDb.setVersion(sourceDb.getVersion());
+    }
+
+    /**
+     * Copy a table in steps of {@link #mRowsPerStep} rows, ordered by rowid.
+     */
+    private void copyTable(SQLiteDatabase sourceDb, SQLiteDatabase backupDb, String table,
+                           Stats stats) {
+        long lastRowId = Long.MIN_VALUE;
+        SQLiteStatement insert = null;
+        try {
+            while (true) {
+                long stepStart = SystemClock.elapsedRealtime();
+                Cursor cursor = sourceDb.rawQuery("SELECT rowid, * FROM " + table
+                                + " WHERE rowid > ? ORDER BY rowid LIMIT " + mRowsPerStep,
+                        new String[]{String.valueOf(lastRowId)});
+                int rowsInStep;
+                try {
+                    rowsInStep = cursor.getCount();
+                    if (insert == null) {
+                        insert = backupDb.compileStatement(insertSql(table, cursor));
+                    }
+                    backupDb.beginTransaction();
+                    try {
+                        while (cursor.moveToNext()) {
+                            bindRow(insert, cursor);
+                            insert.executeInsert();
+                            lastRowId = cursor.getLong(0);
+                        }
+                        backupDb.setTransactionSuccessful();
+                    } finally {
+                        backupDb.endTransaction();
+                    }
+                } finally {
+                    cursor.close();
+                }
+                stats.maxStepMillis = Math.max(stats.maxStepMillis,
+                        SystemClock.elapsedRealtime() - stepStart);
+                stats.rows += rowsInStep;
+                stats.steps++;
+                if (rowsInStep < mRowsPerStep) {
+                    return;
+                }
+                // Yield to the other connections before the next step.
+                SystemClock.sleep(mPauseMillis);
+            }
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+        }
+    }
+
+    /**
+     * Build "INSERT INTO table (rowid, a, b, ...) VALUES (?, ?, ?, ...)" for the cursor's columns.
+     * The first column of the cursor is the rowid.
+     */
+    private static String insertSql(String table, Cursor cursor) {
+        StringBuilder columns = new StringBuilder("rowid");
+        StringBuilder values = new StringBuilder("?");
+        for (int i = 1; i < cursor.getColumnCount(); i++) {
+            columns.append(", ").append(cursor.getColumnName(i));
+            values.append(", ?");
+        }
+        return "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")";
+    }
+
+    private static void bindRow(SQLiteStatement statement, Cursor cursor) {
+        for (int i = 0; i < cursor.getColumnCount(); i++) {
+            switch (cursor.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    statement.bindNull(i + 1);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    statement.bindLong(i + 1, cursor.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    statement.bindDouble(i + 1, cursor.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    statement.bindBlob(i + 1, cursor.getBlob(i));
+                    break;
+                default:
+                    statement.bindString(i + 1, cursor.getString(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Check that the file is an intact pets database this version of the app can open.
+     *
+     * @return null if the file is fine, otherwise a description of the problem.
+     */
+    public static String verify(File file) {
+        if (!file.isFile()) {
+            return "no such file " + file;
+        }
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        } catch (RuntimeException e) {
+            return "cannot open " + file + ": " + e.getMessage();
+        }
+        try {
+            String integrity = DatabaseUtils.stringForQuery(db, "PRAGMA integrity_check", null);
+            if (!"ok".equals(integrity)) {
+                return "integrity check failed: " + integrity;
+            }
+            if (DatabaseUtils.queryNumEntries(db, "sqlite_master", "type='table' AND name=?",
+                    new String[]{PetContract.PetEntry.TABLE_NAME}) == 0) {
+                return "no " + PetContract.PetEntry.TABLE_NAME + " table";
+            }
+            if (db.getVersion() > PetDbHelper.DATABASE_VERSION) {
+                return "database version " + db.getVersion() + " is newer than "
+                        + PetDbHelper.DATABASE_VERSION;
+            }
+            return null;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Verify the backup and copy it next to the live database, ready to be renamed into place.
+     *
+     * @return the copied file.
+     */
+    public static File prepareRestore(File backup, File database) throws IOException {
+        String problem = verify(backup);
+        if (problem != null) {
+            throw new IOException("Cannot restore " + backup + ": " + problem);
+        }
+        File restoreFile = new File(database.getPath() + ".restore");
+        deleteDatabaseFiles(restoreFile);
+        copyFile(backup, restoreFile);
+        return restoreFile;
+    }
+
+    /**
+     * Stream the file contents over to the destination and sync it to the disk, so it can be
+     * renamed into place without a crash leaving a partly written file behind the new name.
+     */
+    static void copyFile(File source, File destination) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                copyStream(in, out);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stream everything left in the input over to the output and return the number of bytes.
+     * Neither stream is closed.
+     */
+    static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long bytes = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            bytes += read;
+        }
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * Delete a database file together with its journal files.
+     */
+    static void deleteDatabaseFiles(File file) {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Change log of the pets in a SQLite store, used to sync them with the shelter registry.
+ * <p>
+ * Triggers created by {@link PetDbHelper} add an entry for every insert, update and delete of
+ * a pet. The entries stay until the registry has acknowledged them, so the log always holds
+ * exactly the changes that still have to be uploaded. Remote changes are applied by
+ * {@link #apply} in a single transaction and don't leave entries behind.
+ */
+public class PetChangeLog {
+
+    public static final String LOG_TAG = PetChangeLog.class.getSimpleName();
+
+    /**
+     * Name of the database table for the change log
+     */
+    public static final String TABLE_NAME = "pet_changes";
+
+    /*Columns of the change log*/
+    public static final String COLUMN_SEQ = "seq";
+    public static final String COLUMN_SYNC_ID = "sync_id";
+    public static final String COLUMN_DELETED = "deleted";
+    public static final String COLUMN_CHANGED_AT = "changed_at";
+
+    /**
+     * Key of the flag marking a deleted pet in the JSON of a change. The other keys are the
+     * pet's column names.
+     */
+    public static final String JSON_DELETED = "deleted";
+
+    /**
+     * The newest change of every pet in the log, together with the pet's current values from
+     * the pets table or the archive. A pet that is in neither was deleted.
+     */
+    private static final String SQL_PENDING_CHANGES =
+            "SELECT c." + COLUMN_SEQ + ", c." + COLUMN_SYNC_ID + ", c." + COLUMN_CHANGED_AT +
+                    ", " + currentValue(PetEntry._ID) +
+                    ", " + currentValue(PetEntry.COLUMN_PET_NAME) +
+                    ", " + currentValue(PetEntry.COLUMN_PET_BREED) +
+                    ", " + currentValue(PetEntry.COLUMN_PET_GENDER) +
+                    ", " + currentValue(PetEntry.COLUMN_PET_WEIGHT) +
+                    ", " + currentValue(PetEntry.COLUMN_PET_UPDATED_AT) +
+                    " FROM (SELECT MAX(" + COLUMN_SEQ + ") AS latest FROM " + TABLE_NAME +
+                    " GROUP BY " + COLUMN_SYNC_ID + ") l JOIN " + TABLE_NAME + " c ON c." +
+                    COLUMN_SEQ + " = l.latest LEFT JOIN " + PetEntry.TABLE_NAME + " p ON p." +
+                    PetEntry.COLUMN_PET_SYNC_ID + " = c." + COLUMN_SYNC_ID + " LEFT JOIN " +
+                    PetArchive.TABLE_NAME + " a ON a." + PetEntry.COLUMN_PET_SYNC_ID + " = c." +
+                    COLUMN_SYNC_ID + " ORDER BY c." + COLUMN_SEQ;
+
+    private static String currentValue(String column) {
+        return "CASE WHEN p." + PetEntry._ID + " IS NULL THEN a." + column + " ELSE p." + column +
+                " END";
+    }
+
+    /**
+     * A batch of local changes read by {@link #readPending}.
+     */
+    public static class Batch {
+        /**
+         * The changes as a JSON array.
+         */
+        public final String json;
+        /**
+         * Number of changes in the batch.
+         */
+        public final int count;
+        /**
+         * Change log position covered by the batch, to pass to {@link #acknowledge}.
+         */
+        public final long lastSeq;
+
+        Batch(String json, int count, long lastSeq) {
+            this.json = json;
+            this.count = count;
+            this.lastSeq = lastSeq;
+        }
+    }
+
+    private final PetDbHelper mDbHelper;
+
+    public PetChangeLog(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Read the pending changes, oldest first and at most one per pet, until the JSON of the
+     * batch would grow past the given size. The first change is always included.
+     */
+    public Batch readPending(int maxBytes) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        JSONArray changes = new JSONArray();
+        long lastSeq = 0;
+        // Two bytes for the brackets of the array.
+        int bytes = 2;
+        Cursor cursor = db.rawQuery(SQL_PENDING_CHANGES, null);
+        try {
+            while (cursor.moveToNext()) {
+                JSONObject change = new JSONObject();
+                change.put(PetEntry.COLUMN_PET_SYNC_ID, cursor.getString(1));
+                if (cursor.isNull(3)) {
+                    change.put(JSON_DELETED, true);
+                    change.put(PetEntry.COLUMN_PET_UPDATED_AT, cursor.getLong(2));
+                } else {
+                    change.put(PetEntry.COLUMN_PET_NAME, cursor.getString(4));
+                    if (!cursor.isNull(5)) {
+                        change.put(PetEntry.COLUMN_PET_BREED, cursor.getString(5));
+                    }
+                    change.put(PetEntry.COLUMN_PET_GENDER, cursor.getInt(6));
+                    change.put(PetEntry.COLUMN_PET_WEIGHT, cursor.getInt(7));
+                    change.put(PetEntry.COLUMN_PET_UPDATED_AT, cursor.getLong(8));
+                }
+                // One more byte for the comma between changes.
+                int changeBytes = change.toString().length() + 1;
+                if (changes.length() > 0 && bytes + changeBytes > maxBytes) {
+                    break;
+                }
+                changes.put(change);
+                bytes += changeBytes;
+                lastSeq = cursor.getLong(0);
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException("Could not encode change", e);
+        } finally {
+            cursor.close();
+        }
+        return new Batch(changes.toString(), changes.length(), lastSeq);
+    }
+
+    /**
+     * Forget the changes up to the given position once the registry has stored them. A pet that
+     * changed again after the batch was read still has its newer entry, so it's sent again.
+     */
+    public int acknowledge(long lastSeq) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(TABLE_NAME, COLUMN_SEQ + "<=?", new String[]{String.valueOf(lastSeq)});
+    }
+
+    /**
+     * Apply remote changes in one transaction. A remote change wins if its updated_at is the
+     * same as or newer than the local pet's (or the local delete's), so every device ends up with
+     * the same result whatever order the changes arrive in. Changes that lose, or are invalid,
+     * are skipped.
+     *
+     * @return the number of applied changes in [0] and of skipped changes in [1].
+     */
+    public int[] apply(JSONArray changes) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int applied = 0;
+        int skipped = 0;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < changes.length(); i++) {
+                if (applyChange(db, changes.getJSONObject(i))) {
+                    applied++;
+                } else {
+                    skipped++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Malformed change", e);
+        } finally {
+            db.endTransaction();
+        }
+        return new int[]{applied, skipped};
+    }
+
+    private boolean applyChange(SQLiteDatabase db, JSONObject change) throws JSONException {
+        String syncId = change.getString(PetEntry.COLUMN_PET_SYNC_ID);
+        long updatedAt = change.getLong(PetEntry.COLUMN_PET_UPDATED_AT);
+        String[] syncIdArgs = {syncId};
+
+        // Look for the pet among the current residents first, then in the archive.
+        String localTable = PetEntry.TABLE_NAME;
+        long[] local = findPet(db, PetEntry.TABLE_NAME, syncIdArgs);
+        if (local == null) {
+            localTable = PetArchive.TABLE_NAME;
+            local = findPet(db, PetArchive.TABLE_NAME, syncIdArgs);
+        }
+
+        if (change.optBoolean(JSON_DELETED)) {
+            if (local == null || local[1] > updatedAt) {
+                return false;
+            }
+            db.delete(localTable, PetEntry._ID + "=?", new String[]{String.valueOf(local[0])});
+        } else {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, change.getString(PetEntry.COLUMN_PET_NAME));
+            values.put(PetEntry.COLUMN_PET_BREED, change.isNull(PetEntry.COLUMN_PET_BREED)
+                    ? null : change.getString(PetEntry.COLUMN_PET_BREED));
+            values.put(PetEntry.COLUMN_PET_GENDER, change.getInt(PetEntry.COLUMN_PET_GENDER));
+            values.put(PetEntry.COLUMN_PET_WEIGHT, change.getInt(PetEntry.COLUMN_PET_WEIGHT));
+            values.put(PetEntry.COLUMN_PET_UPDATED_AT, updatedAt);
+            if (!isValid(values)) {
+                Log.w(LOG_TAG, "Skipping invalid change of pet " + syncId);
+                return false;
+            }
+            if (local == null) {
+                // Don't bring back a pet that was deleted here later than the remote change.
+                long deletedAt = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" +
+                        COLUMN_CHANGED_AT + "), -1) FROM " + TABLE_NAME + " WHERE " +
+                        COLUMN_SYNC_ID + "=? AND " + COLUMN_DELETED + "=1", syncIdArgs);
+                if (deletedAt > updatedAt) {
+                    return false;
+                }
+                values.put(PetEntry._ID, PetArchive.nextPetId(db));
+                values.put(PetEntry.COLUMN_PET_SYNC_ID, syncId);
+                db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+            } else if (local[1] > updatedAt) {
+                return false;
+            } else if (PetEntry.TABLE_NAME.equals(localTable)) {
+                db.update(PetEntry.TABLE_NAME, values, PetEntry._ID + "=?",
+                        new String[]{String.valueOf(local[0])});
+            } else {
+                // A remote change makes an archived pet current again. Insert it first, so
+                // deleting it from the archive keeps its weight history.
+                values.put(PetEntry._ID, local[0]);
+                values.put(PetEntry.COLUMN_PET_SYNC_ID, syncId);
+                db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+                db.delete(PetArchive.TABLE_NAME, PetEntry._ID + "=?",
+                        new String[]{String.valueOf(local[0])});
+            }
+        }
+        // The pet now matches the remote side, so neither the write we just did nor any local
+        // change that lost against it has to be uploaded.
+        db.delete(TABLE_NAME, COLUMN_SYNC_ID + "=?", syncIdArgs);
+        return true;
+    }
+
+    /**
+     * Return the ID and updated_at of the pet with the given sync ID in the given table, or null
+     * if it isn't there.
+     */
+    private static long[] findPet(SQLiteDatabase db, String table, String[] syncIdArgs) {
+        Cursor cursor = db.query(table, new String[]{PetEntry._ID, PetEntry.COLUMN_PET_UPDATED_AT},
+                PetEntry.COLUMN_PET_SYNC_ID + "=?", syncIdArgs, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                return new long[]{cursor.getLong(0), cursor.getLong(1)};
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean isValid(ContentValues values) {
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        return name != null && !name.trim().isEmpty()
+                && gender != null && PetEntry.isValidGender(gender)
+                && weight != null && weight >= 0;
+    }
+}
@@ -4,6 +4,8 @@ import android.content.ContentResolver;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.Arrays;
+
 /**
  * Created by Nissan on 6/13/2017.
  */
@@ -41,6 +43,223 @@ public final class PetContract {
      */
     public static final String PATH_PETS = "pets";
 
+    /**
+     * Path for shelters. Pets of a particular shelter live under
+     * content://com.example.android.pets/shelters/#/pets, and
+     * content://com.example.android.pets/shelters/pets queries the pets of all shelters at once.
+     */
+    public static final String PATH_SHELTERS = "shelters";
+
+    /**
+     * Path for the weight history of a pet, appended to the pet's URI, e.g.
+     * content://com.example.android.pets/pets/5/weights
+     */
+    public static final String PATH_WEIGHTS = "weights";
+
+    /**
+     * Paths for the adopters and adoptions of a shelter, e.g.
+     * content://com.example.android.pets/adoptions or
+     * content://com.example.android.pets/shelters/3/adoptions
+     */
+    public static final String PATH_ADOPTERS = "adopters";
+    public static final String PATH_ADOPTIONS = "adoptions";
+
+    /**
+     * Path for the catalog of a shelter, the list of its pets as the catalog screen shows it,
+     * e.g. content://com.example.android.pets/catalog
+     */
+    public static final String PATH_CATALOG = "catalog";
+
+    /**
+     * Path for the likely duplicates among a shelter's pets, e.g.
+     * content://com.example.android.pets/duplicates
+     */
+    public static final String PATH_DUPLICATES = "duplicates";
+
+    /**
+     * The shelter addressed by the plain {@link PetEntry#CONTENT_URI}.
+     */
+    public static final long DEFAULT_SHELTER_ID = 0;
+
+    /*
+     * Compound operations supported by ContentResolver.call() on the pets provider. Each one
+     * runs in a single transaction and returns a small Bundle instead of a Cursor.
+     */
+
+    /**
+     * Count the pets matching {@link #EXTRA_SELECTION} and {@link #EXTRA_SELECTION_ARGS}
+     * (both optional). The result is a long in {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_COUNT = "count";
+
+    /**
+     * Check whether the pet whose ID is passed as the call argument exists. The result is a
+     * boolean in {@link #EXTRA_EXISTS}.
+     */
+    public static final String METHOD_EXISTS = "exists";
+
+    /**
+     * List the IDs of the pets matching {@link #EXTRA_SELECTION}, {@link #EXTRA_SELECTION_ARGS}
+     * and {@link #EXTRA_SORT_ORDER} (all optional). The result is a long[] in {@link #EXTRA_IDS}.
+     */
+    public static final String METHOD_LIST_IDS = "list_ids";
+
+    /**
+     * Delete the pets whose IDs are given as a long[] in {@link #EXTRA_IDS}. The number of
+     * deleted pets is returned as an int in {@link #EXTRA_ROWS_AFFECTED}.
+     * <p>
+     * If the boolean {@link #EXTRA_UNDOABLE} is set, the deleted pets are kept for
+     * {@link #UNDO_WINDOW_MILLIS} and the result also holds a String in
+     * {@link #EXTRA_UNDO_TOKEN} that can be passed to {@link #METHOD_UNDO_DELETE}.
+     */
+    public static final String METHOD_DELETE_IDS = "delete_ids";
+
+    /**
+     * Put back the pets deleted by the undoable {@link #METHOD_DELETE_IDS} whose token is given
+     * in {@link #EXTRA_UNDO_TOKEN}, with their weight history. Pass the same
+     * {@link #EXTRA_SHELTER_ID} as for the delete. The number of restored pets is
+     * returned as an int in {@link #EXTRA_ROWS_AFFECTED}; it is 0 once the undo window is over.
+     */
+    public static final String METHOD_UNDO_DELETE = "undo_delete";
+
+    /**
+     * How long the pets deleted by an undoable {@link #METHOD_DELETE_IDS} can be put back.
+     */
+    public static final long UNDO_WINDOW_MILLIS = 10000;
+
+    /**
+     * Apply the {@link android.content.ContentValues} in {@link #EXTRA_VALUES} to the pets whose
+     * IDs are given as a long[] in {@link #EXTRA_IDS}. The number of updated pets is returned as
+     * an int in {@link #EXTRA_ROWS_AFFECTED}. The values can't contain
+     * {@link PetEntry#COLUMN_PET_VERSION}; update pets one by one to check their versions.
+     */
+    public static final String METHOD_UPDATE_IDS = "update_ids";
+
+    /**
+     * Back up the live database to the file whose path is passed as the call argument, without
+     * stopping readers or writers. The result holds {@link #EXTRA_BACKUP_ROWS},
+     * {@link #EXTRA_BACKUP_BYTES}, {@link #EXTRA_BACKUP_DURATION_MILLIS},
+     * {@link #EXTRA_BACKUP_MAX_STEP_MILLIS} and {@link #EXTRA_BACKUP_MAX_WRITER_STALL_MILLIS},
+     * all longs.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * Verify the backup file whose path is passed as the call argument and atomically swap it in
+     * as the live database. The restore fails, leaving the database as it was, if cursors from
+     * earlier queries of the shelter are still open after a few seconds.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * Move the pets that haven't been updated since the long in
+     * {@link #EXTRA_ARCHIVE_INACTIVE_SINCE} (milliseconds since the epoch), and match the
+     * optional {@link #EXTRA_SELECTION} and {@link #EXTRA_SELECTION_ARGS}, to the archive
+     * partition. The number of moved pets is returned as an int in {@link #EXTRA_ROWS_AFFECTED}.
+     */
+    public static final String METHOD_ARCHIVE = "archive";
+
+    /**
+     * List the IDs of all shelters that have pets stored, as a long[] in {@link #EXTRA_IDS}.
+     */
+    public static final String METHOD_LIST_SHELTERS = "list_shelters";
+
+    /**
+     * Run the database maintenance of a shelter, see {@link PetMaintenance}. Nothing is done
+     * unless the provider has been idle for a while, in which case the boolean
+     * {@link #EXTRA_MAINTENANCE_SKIPPED} is set. Otherwise the steps are returned as a String[]
+     * in {@link #EXTRA_MAINTENANCE_STEPS}, one line per step.
+     */
+    public static final String METHOD_MAINTAIN = "maintain";
+
+    /**
+     * Check the next batch of new and changed pets of a shelter for likely duplicates, see
+     * {@link DuplicateEntry}. The number of checked pets is returned as an int in
+     * {@link #EXTRA_ROWS_AFFECTED}, 0 once every pet has been checked, and the number of
+     * duplicates found as an int in {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_FIND_DUPLICATES = "find_duplicates";
+
+    /**
+     * Start recording every query, insert, update, delete and call to a binary trace file at
+     * the path in the arg, see {@link PetTrace}. Meant for capturing a real workload once and
+     * replaying it after provider or schema changes.
+     */
+    public static final String METHOD_TRACE_START = "trace_start";
+
+    /**
+     * Stop recording the trace started by {@link #METHOD_TRACE_START}. The number of recorded
+     * calls is returned as a long in {@link #EXTRA_COUNT}.
+     */
+    public static final String METHOD_TRACE_STOP = "trace_stop";
+
+    /*
+     * Call methods used by the sync engine in com.example.android.pets.sync. Every local change
+     * to a pet is recorded in a change log until the registry has acknowledged it.
+     */
+
+    /**
+     * Read the pending local changes, at most one per pet with the pet's current values, as a
+     * JSON array in {@link #EXTRA_SYNC_CHANGES}. The batch stops once its JSON would grow past
+     * the int in {@link #EXTRA_SYNC_MAX_BYTES}. The long in {@link #EXTRA_SYNC_LAST_SEQ} is the
+     * change log position the batch covers, to be passed to {@link #METHOD_SYNC_ACK_CHANGES}.
+     */
+    public static final String METHOD_SYNC_READ_CHANGES = "sync_read_changes";
+
+    /**
+     * Forget the changes up to the change log position in {@link #EXTRA_SYNC_LAST_SEQ}, once
+     * the registry has stored them.
+     */
+    public static final String METHOD_SYNC_ACK_CHANGES = "sync_ack_changes";
+
+    /**
+     * Apply the JSON array of remote changes in {@link #EXTRA_SYNC_CHANGES} in one transaction.
+     * A change wins when its updated_at is the same as or newer than the local one, so both
+     * sides end up with the same pet regardless of the order they sync in. The numbers of
+     * applied and skipped changes are returned as ints in {@link #EXTRA_SYNC_APPLIED} and
+     * {@link #EXTRA_SYNC_SKIPPED}.
+     */
+    public static final String METHOD_SYNC_APPLY_CHANGES = "sync_apply_changes";
+
+    /**
+     * Optional long extra of every call method, selecting the shelter to operate on.
+     * Defaults to {@link #DEFAULT_SHELTER_ID}.
+     */
+    public static final String EXTRA_SHELTER_ID = "shelter_id";
+
+    public static final String EXTRA_SELECTION = "selection";
+    public static final String EXTRA_SELECTION_ARGS = "selection_args";
+    public static final String EXTRA_SORT_ORDER = "sort_order";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_VALUES = "values";
+    public static final String EXTRA_COUNT = "count";
+    public static final String EXTRA_EXISTS = "exists";
+    public static final String EXTRA_ROWS_AFFECTED = "rows_affected";
+    public static final String EXTRA_UNDOABLE = "undoable";
+    public static final String EXTRA_UNDO_TOKEN = "undo_token";
+    public static final String EXTRA_BACKUP_ROWS = "backup_rows";
+    public static final String EXTRA_BACKUP_BYTES = "backup_bytes";
+    public static final String EXTRA_BACKUP_DURATION_MILLIS = "backup_duration_millis";
+    /**
+     * Longest time the backup took to copy one step of rows, in milliseconds.
+     */
+    public static final String EXTRA_BACKUP_MAX_STEP_MILLIS = "backup_max_step_millis";
+    /**
+     * Longest time a write through the provider took while the backup was running, from waiting
+     * for the database to finishing, in milliseconds. The backup reads a snapshot of the
+     * database, so this should stay close to what the same write takes without a backup.
+     */
+    public static final String EXTRA_BACKUP_MAX_WRITER_STALL_MILLIS =
+            "backup_max_writer_stall_millis";
+    public static final String EXTRA_ARCHIVE_INACTIVE_SINCE = "archive_inactive_since";
+    public static final String EXTRA_MAINTENANCE_SKIPPED = "maintenance_skipped";
+    public static final String EXTRA_MAINTENANCE_STEPS = "maintenance_steps";
+    public static final String EXTRA_SYNC_CHANGES = "sync_changes";
+    public static final String EXTRA_SYNC_MAX_BYTES = "sync_max_bytes";
+    public static final String EXTRA_SYNC_LAST_SEQ = "sync_last_seq";
+    public static final String EXTRA_SYNC_APPLIED = "sync_applied";
+    public static final String EXTRA_SYNC_SKIPPED = "sync_skipped";
+
     public static class PetEntry implements BaseColumns {
 
         /**
@@ -49,6 +268,98 @@ public final class PetContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to query the pets of all shelters at once. Only queries are supported,
+         * each row gets an extra {@link #COLUMN_SHELTER_ID} column.
+         * ALL_SHELTERS_CONTENT_URI = content://com.example.android.pets/shelters/pets
+         */
+        public static final Uri ALL_SHELTERS_CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SHELTERS).appendPath(PATH_PETS).build();
+
+        /**
+         * Return the content URI of the pets of one shelter, e.g.
+         * content://com.example.android.pets/shelters/3/pets. The default shelter is
+         * {@link #CONTENT_URI}.
+         */
+        public static Uri contentUriForShelter(long shelterId) {
+            if (shelterId == DEFAULT_SHELTER_ID) {
+                return CONTENT_URI;
+            }
+            return BASE_CONTENT_URI.buildUpon().appendPath(PATH_SHELTERS)
+                    .appendPath(String.valueOf(shelterId)).appendPath(PATH_PETS).build();
+        }
+
+        /**
+         * Query parameter selecting which pets a query reads: {@link #PARTITION_HOT} (the
+         * default), {@link #PARTITION_ARCHIVE} or {@link #PARTITION_ALL}. Only queries take it,
+         * inserts, updates and deletes always work on the current residents.
+         */
+        public static final String QUERY_PARAMETER_PARTITION = "partition";
+
+        /*Possible values for the partition*/
+        /**
+         * The current residents, i.e. every pet that hasn't been archived.
+         */
+        public static final String PARTITION_HOT = "hot";
+        /**
+         * Only the pets that were moved to the archive for being inactive.
+         */
+        public static final String PARTITION_ARCHIVE = "archive";
+        /**
+         * Both the current residents and the archived pets.
+         */
+        public static final String PARTITION_ALL = "all";
+
+        public static boolean isValidPartition(String partition) {
+            return PARTITION_HOT.equals(partition) || PARTITION_ARCHIVE.equals(partition)
+                    || PARTITION_ALL.equals(partition);
+        }
+
+        /**
+         * Query parameter turning an insert (or bulk insert) into an upsert keyed by the column
+         * it names, {@link #COLUMN_PET_EXTERNAL_ID} or {@link #COLUMN_PET_SYNC_ID}. A pet that
+         * already has the key's value is updated instead, and left alone if nothing changed.
+         * The URI returned by the insert carries the outcome, see {@link #getUpsertResult}. A
+         * bulk insert counts the pets that were inserted or updated; for the outcome of every
+         * row, send the inserts through {@link ContentResolver#applyBatch} instead.
+         * Only the SQLite store supports upserts.
+         */
+        public static final String QUERY_PARAMETER_UPSERT = "upsert";
+
+        /**
+         * Query parameter of the URI returned by an upsert, holding its outcome.
+         */
+        public static final String QUERY_PARAMETER_UPSERT_RESULT = "upsert_result";
+
+        /*Possible outcomes of an upsert*/
+        public static final String UPSERT_RESULT_INSERTED = "inserted";
+        public static final String UPSERT_RESULT_UPDATED = "updated";
+        public static final String UPSERT_RESULT_UNCHANGED = "unchanged";
+
+        /**
+         * Columns that can key an upsert. Each has a unique index.
+         */
+        public static boolean isValidUpsertKey(String column) {
+            return COLUMN_PET_EXTERNAL_ID.equals(column) || COLUMN_PET_SYNC_ID.equals(column);
+        }
+
+        /**
+         * Return the URI to upsert pets into the given pets URI, keyed by the given column.
+         */
+        public static Uri contentUriForUpsert(Uri petsUri, String keyColumn) {
+            return petsUri.buildUpon().appendQueryParameter(QUERY_PARAMETER_UPSERT, keyColumn)
+                    .build();
+        }
+
+        /**
+         * Return the outcome of the upsert that returned the given pet URI, one of
+         * {@link #UPSERT_RESULT_INSERTED}, {@link #UPSERT_RESULT_UPDATED} or
+         * {@link #UPSERT_RESULT_UNCHANGED}, or null if it wasn't an upsert.
+         */
+        public static String getUpsertResult(Uri petUri) {
+            return petUri.getQueryParameter(QUERY_PARAMETER_UPSERT_RESULT);
+        }
+
         /**
          * The MIME type for a list of pets.
          */
@@ -103,6 +414,90 @@ public final class PetContract {
          */
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Version of the pet record, incremented by the database on every update and when a
+         * deleted pet is put back.
+         * <p>
+         * Used for optimistic concurrency: when this column is included in the values passed to
+         * update, it is taken as the version the caller last read. The update is then only
+         * applied if the row still has that version, otherwise no rows are updated.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PET_VERSION = "version";
+
+        /**
+         * Identity of the pet shared with the shelter registry, the same on every device.
+         * Generated when the pet is inserted, unless given. Pets that came with the seed database
+         * have none until they're first updated.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_PET_SYNC_ID = "sync_id";
+
+        /**
+         * Time of the last change to the pet in milliseconds since the epoch, set on every
+         * insert and update. Sync uses it to decide which side of a conflict wins.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PET_UPDATED_AT = "updated_at";
+
+        /**
+         * Identity of the pet in a partner's system, e.g. the ID in an intake feed. Optional,
+         * but unique among the current residents when set, so it can key an upsert.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_PET_EXTERNAL_ID = "external_id";
+
+        /**
+         * Shelter a pet belongs to. Not stored, only added to the rows of
+         * {@link #ALL_SHELTERS_CONTENT_URI} queries.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_SHELTER_ID = "shelter_id";
+
+        /**
+         * Columns of a pets query without a projection. Queries of pets only return the columns
+         * they name, so a row stays the same size as columns are added to the table; a query
+         * without a projection gets these and a warning in the log. {@link #_COUNT} counts the
+         * pets, once per shelter for {@link #ALL_SHELTERS_CONTENT_URI}. Anything else that
+         * isn't a pet column, e.g. "*" or an expression, is queried as it is, with a warning.
+         */
+        public static final String[] DEFAULT_PROJECTION = {
+                _ID,
+                COLUMN_PET_NAME,
+                COLUMN_PET_BREED,
+                COLUMN_PET_GENDER,
+                COLUMN_PET_WEIGHT,
+                COLUMN_PET_VERSION
+        };
+
+        /**
+         * Pet columns that are only read now and then, so they're left out of
+         * {@link #DEFAULT_PROJECTION}. Only the SQLite store has them. {@link LazyColumnCursor}
+         * loads them on first use instead of with every row.
+         */
+        public static final String[] WIDE_COLUMNS = {
+                COLUMN_PET_SYNC_ID,
+                COLUMN_PET_UPDATED_AT,
+                COLUMN_PET_EXTERNAL_ID
+        };
+
+        public static boolean isWideColumn(String column) {
+            return COLUMN_PET_SYNC_ID.equals(column) || COLUMN_PET_UPDATED_AT.equals(column)
+                    || COLUMN_PET_EXTERNAL_ID.equals(column);
+        }
+
+        /**
+         * Columns a pets query can ask for: the default and the wide ones.
+         */
+        public static boolean isValidColumn(String column) {
+            return Arrays.asList(DEFAULT_PROJECTION).contains(column) || isWideColumn(column);
+        }
+
         /*Possible values for gender*/
         public static final int GENDER_UNKNOWN = 0;
         public static final int GENDER_MALE = 1;
@@ -112,4 +507,340 @@ public final class PetContract {
             return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
         }
     }
+
+    /**
+     * Return the content URI of the given path in one shelter, e.g.
+     * content://com.example.android.pets/shelters/3/adoptions. The default shelter's URI has no
+     * shelter in it.
+     */
+    private static Uri contentUriForShelter(String path, long shelterId) {
+        if (shelterId == DEFAULT_SHELTER_ID) {
+            return Uri.withAppendedPath(BASE_CONTENT_URI, path);
+        }
+        return BASE_CONTENT_URI.buildUpon().appendPath(PATH_SHELTERS)
+                .appendPath(String.valueOf(shelterId)).appendPath(path).build();
+    }
+
+    /**
+     * People who adopted pets from the shelter. An adopter can't be deleted while one of their
+     * adoptions is still on record. Only the SQLite store has adopters.
+     */
+    public static final class AdopterEntry implements BaseColumns {
+
+        /**
+         * CONTENT_URI = content://com.example.android.pets/adopters
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI,
+                PATH_ADOPTERS);
+
+        public static Uri contentUriForShelter(long shelterId) {
+            return PetContract.contentUriForShelter(PATH_ADOPTERS, shelterId);
+        }
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_ADOPTERS;
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_ADOPTERS;
+
+        public static final String TABLE_NAME = "adopters";
+
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the adopter. Required.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_ADOPTER_NAME = "name";
+
+        /**
+         * How to reach the adopter, e.g. a phone number or an email address. Optional.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_ADOPTER_CONTACT = "contact";
+    }
+
+    /**
+     * Adoptions of the shelter's pets, one per pet at most. Deleting an adoption makes the pet
+     * available again, deleting the pet deletes its adoption. Only the SQLite store has
+     * adoptions.
+     */
+    public static final class AdoptionEntry implements BaseColumns {
+
+        /**
+         * CONTENT_URI = content://com.example.android.pets/adoptions
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI,
+                PATH_ADOPTIONS);
+
+        public static Uri contentUriForShelter(long shelterId) {
+            return PetContract.contentUriForShelter(PATH_ADOPTIONS, shelterId);
+        }
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_ADOPTIONS;
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_ADOPTIONS;
+
+        public static final String TABLE_NAME = "adoptions";
+
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the adopted pet, which has to be one of the current residents. Required.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ADOPTION_PET_ID = "pet_id";
+
+        /**
+         * ID of the adopter, see {@link AdopterEntry}. Required.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ADOPTION_ADOPTER_ID = "adopter_id";
+
+        /**
+         * Time of the adoption in milliseconds since the epoch. Defaults to the time of the
+         * insert.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ADOPTION_ADOPTED_AT = "adopted_at";
+    }
+
+    /**
+     * The shelter's current residents as the catalog lists them, with their adoption status.
+     * <p>
+     * This is a copy of the pet columns the catalog screen reads, the ones it shows and the ones
+     * it hands to the editor, next to the date of each pet's adoption. Triggers on the pets and
+     * adoptions tables keep it up to date. The catalog reads
+     * this one narrow table instead of joining the pets with their adoptions on every refresh.
+     * It's read-only: change the pets and adoptions instead. Its rows have the pet's ID, so
+     * {@link PetEntry#CONTENT_URI} plus the row's ID is the pet.
+     * <p>
+     * The in-memory store has no adoptions, there the catalog is the pets table itself without
+     * {@link #COLUMN_ADOPTED_AT}.
+     */
+    public static final class CatalogEntry implements BaseColumns {
+
+        /**
+         * CONTENT_URI = content://com.example.android.pets/catalog
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CATALOG);
+
+        public static Uri contentUriForShelter(long shelterId) {
+            return PetContract.contentUriForShelter(PATH_CATALOG, shelterId);
+        }
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_CATALOG;
+
+        public static final String TABLE_NAME = "pet_catalog";
+
+        /*Same names as in the pets table, so a catalog row reads like a pet*/
+        public static final String _ID = PetEntry._ID;
+        public static final String COLUMN_PET_NAME = PetEntry.COLUMN_PET_NAME;
+        public static final String COLUMN_PET_BREED = PetEntry.COLUMN_PET_BREED;
+        public static final String COLUMN_PET_GENDER = PetEntry.COLUMN_PET_GENDER;
+        public static final String COLUMN_PET_WEIGHT = PetEntry.COLUMN_PET_WEIGHT;
+        public static final String COLUMN_PET_VERSION = PetEntry.COLUMN_PET_VERSION;
+
+        /**
+         * When the pet was adopted, or null while it's available.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_ADOPTED_AT = AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT;
+    }
+
+    /**
+     * Likely duplicates among the shelter's current residents, e.g. the same animal entered
+     * twice under slightly different names. Each row pairs a pet with an older pet it's probably
+     * a copy of. The pairs are found in the background after pets are inserted or changed, see
+     * {@link PetContract#METHOD_FIND_DUPLICATES}, and go away when either pet is deleted or
+     * archived. Read-only, and only the SQLite store has them.
+     */
+    public static final class DuplicateEntry implements BaseColumns {
+
+        /**
+         * CONTENT_URI = content://com.example.android.pets/duplicates
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI,
+                PATH_DUPLICATES);
+
+        public static Uri contentUriForShelter(long shelterId) {
+            return PetContract.contentUriForShelter(PATH_DUPLICATES, shelterId);
+        }
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_DUPLICATES;
+
+        public static final String TABLE_NAME = "pet_duplicates";
+
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the newer pet of the pair, the likely duplicate.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PET_ID = "pet_id";
+
+        /**
+         * ID of the older pet of the pair.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DUPLICATE_OF_ID = "duplicate_of_id";
+
+        /**
+         * How alike the two pets are, from 0.85 to 1 for the same name, breed and weight.
+         * <p>
+         * Type: REAL
+         */
+        public static final String COLUMN_SCORE = "score";
+
+        /**
+         * When the pair was found, in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_FOUND_AT = "found_at";
+    }
+
+    /**
+     * Weight measurements of a pet, and their daily, weekly and monthly rollups.
+     * <p>
+     * Measurements are append-only: they can be inserted and queried, but not updated or
+     * deleted. They are deleted together with their pet. Every insert also updates the rollup
+     * tables, so a trend query reads one row per bucket instead of every measurement. Buckets
+     * are aligned to UTC days, weeks starting on Monday, and calendar months.
+     */
+    public static final class WeightEntry implements BaseColumns {
+
+        /**
+         * Return the content URI of the weight history of the pet with the given content URI,
+         * e.g. content://com.example.android.pets/pets/5/weights
+         */
+        public static Uri contentUriForPet(Uri petUri) {
+            return Uri.withAppendedPath(petUri, PATH_WEIGHTS);
+        }
+
+        /**
+         * Return the content URI of the weight history at the given resolution, one of
+         * {@link #RESOLUTION_RAW}, {@link #RESOLUTION_DAY}, {@link #RESOLUTION_WEEK} or
+         * {@link #RESOLUTION_MONTH}.
+         */
+        public static Uri contentUriForPet(Uri petUri, String resolution) {
+            return contentUriForPet(petUri).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_RESOLUTION, resolution).build();
+        }
+
+        /**
+         * The MIME type for a list of weight measurements or rollup buckets.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_WEIGHTS;
+
+        /**
+         * Query parameter selecting what a weights query returns. Defaults to
+         * {@link #RESOLUTION_RAW}.
+         */
+        public static final String QUERY_PARAMETER_RESOLUTION = "resolution";
+
+        /*Possible values for the resolution*/
+        /**
+         * Every measurement, with the columns {@link #_ID}, {@link #COLUMN_WEIGHT_PET_ID},
+         * {@link #COLUMN_WEIGHT_VALUE} and {@link #COLUMN_WEIGHT_MEASURED_AT}.
+         */
+        public static final String RESOLUTION_RAW = "raw";
+        /**
+         * One row per bucket, with the columns {@link #COLUMN_WEIGHT_PET_ID},
+         * {@link #COLUMN_BUCKET_START}, {@link #COLUMN_MEASUREMENT_COUNT},
+         * {@link #COLUMN_WEIGHT_SUM}, {@link #COLUMN_WEIGHT_MIN}, {@link #COLUMN_WEIGHT_MAX} and
+         * {@link #COLUMN_WEIGHT_AVERAGE}. The same goes for the week and month resolutions.
+         */
+        public static final String RESOLUTION_DAY = "day";
+        public static final String RESOLUTION_WEEK = "week";
+        public static final String RESOLUTION_MONTH = "month";
+
+        /**
+         * Name of database table for the measurements
+         */
+        public static final String TABLE_NAME = "weights";
+
+        /*Names of the database tables for the rollups*/
+        public static final String TABLE_NAME_DAY = "weights_day";
+        public static final String TABLE_NAME_WEEK = "weights_week";
+        public static final String TABLE_NAME_MONTH = "weights_month";
+
+        /**
+         * Unique ID number for the measurement (only for use in the database table).
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the pet that was weighed. Taken from the URI on insert.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_WEIGHT_PET_ID = "pet_id";
+
+        /**
+         * Measured weight, in the same unit as {@link PetEntry#COLUMN_PET_WEIGHT}.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_WEIGHT_VALUE = "weight";
+
+        /**
+         * Time of the measurement in milliseconds since the epoch. Defaults to the time of the
+         * insert.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_WEIGHT_MEASURED_AT = "measured_at";
+
+        /**
+         * Start of the rollup bucket in milliseconds since the epoch.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_BUCKET_START = "bucket_start";
+
+        /**
+         * Number of measurements in the bucket.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_MEASUREMENT_COUNT = "measurement_count";
+
+        /**
+         * Sum, lowest and highest of the measurements in the bucket.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_WEIGHT_SUM = "weight_sum";
+        public static final String COLUMN_WEIGHT_MIN = "weight_min";
+        public static final String COLUMN_WEIGHT_MAX = "weight_max";
+
+        /**
+         * Average of the measurements in the bucket. Not stored, computed from the sum and count.
+         * <p>
+         * Type: REAL
+         */
+        public static final String COLUMN_WEIGHT_AVERAGE = "weight_average";
+
+        /**
+         * Return whether the given string is one of the resolutions.
+         */
+        public static boolean isValidResolution(String resolution) {
+            return RESOLUTION_RAW.equals(resolution) || RESOLUTION_DAY.equals(resolution)
+                    || RESOLUTION_WEEK.equals(resolution) || RESOLUTION_MONTH.equals(resolution);
+        }
+    }
 }
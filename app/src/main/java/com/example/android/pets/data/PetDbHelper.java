@@ -3,9 +3,21 @@ package com.example.android.pets.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.AdopterEntry;
+import com.example.android.pets.data.PetContract.AdoptionEntry;
+import com.example.android.pets.data.PetContract.CatalogEntry;
+import com.example.android.pets.data.PetContract.DuplicateEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeightEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Created by Nissan on 6/13/2017.
@@ -15,33 +27,752 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
     public static final String LOG_TAG = PetDbHelper.class.getSimpleName();
 
-    public static final int DATABASE_VERSION = 1;
+    /**
+     * Version 1: initial pets table.
+     * Version 2: added {@link PetEntry#COLUMN_PET_VERSION} and the trigger that bumps it.
+     * Version 3: added the weight history and its rollup tables.
+     * Version 4: added {@link PetEntry#COLUMN_PET_SYNC_ID}, {@link PetEntry#COLUMN_PET_UPDATED_AT}
+     * and the change log for sync.
+     * Version 5: added the archive partition.
+     * Version 6: added {@link PetEntry#COLUMN_PET_EXTERNAL_ID} for upserts.
+     * Version 7: added the maintenance log, see {@link PetMaintenance}.
+     * Version 8: added the adopters and adoptions, and the catalog table.
+     * Version 9: added the duplicate detection tables, see {@link PetDuplicates}.
+     * <p>
+     * app/seed/schema.sql has to follow every change of the schema, the seed database build
+     * fails while its version is behind.
+     */
+    public static final int DATABASE_VERSION = 9;
     public static final String DATABASE_NAME = "shelter.db";
-    public static final String SQL_CREATE_PETS_TABLE =
-            "CREATE TABLE " + PetEntry.TABLE_NAME + "(" +
-                    PetEntry._ID + " INTEGER PRIMARY KEY, " +
-                    PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
-                    PetEntry.COLUMN_PET_BREED + " TEXT, " +
-                    PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
-                    PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);";
+
+    /**
+     * Pre-populated database of the default shelter, built from app/seed by the
+     * generateSeedDatabase Gradle task. Only the builds for training devices include it.
+     */
+    public static final String SEED_ASSET = "seed/" + DATABASE_NAME;
+
+    public static final String SQL_CREATE_PETS_TABLE = createPetsTable(PetEntry.TABLE_NAME);
+
+    /**
+     * The archive has the same columns as the pets table, see {@link PetArchive}.
+     */
+    public static final String SQL_CREATE_ARCHIVE_TABLE = createPetsTable(PetArchive.TABLE_NAME);
+
+    public static final String[] SQL_CREATE_ARCHIVE_INDEXES = {
+            "CREATE UNIQUE INDEX pets_archive_sync_id ON " + PetArchive.TABLE_NAME + "(" +
+                    PetEntry.COLUMN_PET_SYNC_ID + ");",
+            // The archive job looks for pets that haven't been updated for a while.
+            "CREATE INDEX pets_updated_at ON " + PetEntry.TABLE_NAME + "(" +
+                    PetEntry.COLUMN_PET_UPDATED_AT + ");"
+    };
+
+    /**
+     * Upserts find the pet by its external ID, among the current residents and then in the
+     * archive. Only the pets table needs it to be unique, an archived pet is moved back before
+     * it's updated.
+     */
+    public static final String[] SQL_CREATE_EXTERNAL_ID_INDEXES = {
+            "CREATE UNIQUE INDEX pets_external_id ON " + PetEntry.TABLE_NAME + "(" +
+                    PetEntry.COLUMN_PET_EXTERNAL_ID + ");",
+            "CREATE INDEX pets_archive_external_id ON " + PetArchive.TABLE_NAME + "(" +
+                    PetEntry.COLUMN_PET_EXTERNAL_ID + ");"
+    };
+
+    /**
+     * Delete triggers on the pets table only act when the pet wasn't moved to the archive.
+     */
+    private static final String NOT_ARCHIVED = "NOT EXISTS (SELECT 1 FROM " +
+            PetArchive.TABLE_NAME + " WHERE " + PetEntry._ID + " = OLD." + PetEntry._ID + ")";
+
+    /**
+     * Bump the version of a pet on every update that doesn't set the version itself.
+     * Optimistic updates from {@link PetProvider} set it explicitly, so they don't fire this.
+     */
+    public static final String SQL_CREATE_VERSION_TRIGGER =
+            "CREATE TRIGGER pets_bump_version AFTER UPDATE ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN NEW." + PetEntry.COLUMN_PET_VERSION +
+                    " = OLD." + PetEntry.COLUMN_PET_VERSION + " BEGIN " +
+                    "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_VERSION +
+                    " = OLD." + PetEntry.COLUMN_PET_VERSION + " + 1 WHERE " +
+                    PetEntry._ID + " = OLD." + PetEntry._ID + "; END;";
+
+    /**
+     * A random UUID in the same form as {@link java.util.UUID#randomUUID()}, which gives new pets
+     * their sync IDs. Each call of randomblob() is evaluated for every row, so every row of an
+     * UPDATE gets its own.
+     */
+    static final String SQL_RANDOM_UUID = "lower(hex(randomblob(4)) || '-' || " +
+            "hex(randomblob(2)) || '-4' || substr(hex(randomblob(2)), 2) || '-' || " +
+            "substr('89ab', (random() & 3) + 1, 1) || substr(hex(randomblob(2)), 2) || '-' || " +
+            "hex(randomblob(6)))";
+
+    public static final String SQL_CREATE_SYNC_ID_INDEX =
+            "CREATE UNIQUE INDEX pets_sync_id ON " + PetEntry.TABLE_NAME + "(" +
+                    PetEntry.COLUMN_PET_SYNC_ID + ");";
+
+    public static final String SQL_CREATE_CHANGE_LOG_TABLE =
+            "CREATE TABLE " + PetChangeLog.TABLE_NAME + "(" +
+                    PetChangeLog.COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    PetChangeLog.COLUMN_SYNC_ID + " TEXT NOT NULL, " +
+                    PetChangeLog.COLUMN_DELETED + " INTEGER NOT NULL, " +
+                    PetChangeLog.COLUMN_CHANGED_AT + " INTEGER NOT NULL);";
+
+    /**
+     * Applying remote changes looks up the pending changes of a pet.
+     */
+    public static final String SQL_CREATE_CHANGE_LOG_INDEX =
+            "CREATE INDEX pet_changes_sync_id ON " + PetChangeLog.TABLE_NAME + "(" +
+                    PetChangeLog.COLUMN_SYNC_ID + ");";
+
+    /**
+     * Record every insert, update and delete of a pet in the change log. The update trigger
+     * only watches the data columns, so the version bump doesn't log the change twice.
+     */
+    public static final String[] SQL_CREATE_CHANGE_LOG_TRIGGERS = {
+            "CREATE TRIGGER pets_log_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN NEW." + PetEntry.COLUMN_PET_SYNC_ID + " IS NOT NULL" +
+                    " BEGIN " + logChange("NEW", "0", "NEW." + PetEntry.COLUMN_PET_UPDATED_AT) +
+                    " END;",
+            "CREATE TRIGGER pets_log_update AFTER UPDATE OF " + PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_SYNC_ID + ", " +
+                    PetEntry.COLUMN_PET_UPDATED_AT + " ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN NEW." + PetEntry.COLUMN_PET_SYNC_ID + " IS NOT NULL" +
+                    " BEGIN " + logChange("NEW", "0", "NEW." + PetEntry.COLUMN_PET_UPDATED_AT) +
+                    " END;"
+    };
+
+    public static final String SQL_CREATE_CHANGE_LOG_DELETE_TRIGGER =
+            "CREATE TRIGGER pets_log_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN OLD." + PetEntry.COLUMN_PET_SYNC_ID + " IS NOT NULL" +
+                    " AND " + NOT_ARCHIVED + " BEGIN " + logChange("OLD", "1",
+                    "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)") + " END;";
+
+    public static final String SQL_CREATE_WEIGHTS_TABLE =
+            "CREATE TABLE " + WeightEntry.TABLE_NAME + "(" +
+                    WeightEntry._ID + " INTEGER PRIMARY KEY, " +
+                    WeightEntry.COLUMN_WEIGHT_PET_ID + " INTEGER NOT NULL, " +
+                    WeightEntry.COLUMN_WEIGHT_VALUE + " INTEGER NOT NULL, " +
+                    WeightEntry.COLUMN_WEIGHT_MEASURED_AT + " INTEGER NOT NULL);";
+
+    /**
+     * Raw history queries read one pet's measurements in time order.
+     */
+    public static final String SQL_CREATE_WEIGHTS_INDEX =
+            "CREATE INDEX weights_pet_time ON " + WeightEntry.TABLE_NAME + "(" +
+                    WeightEntry.COLUMN_WEIGHT_PET_ID + ", " +
+                    WeightEntry.COLUMN_WEIGHT_MEASURED_AT + ");";
+
+    /**
+     * Measurements can only be added for pets that exist, and never changed afterwards.
+     */
+    public static final String[] SQL_CREATE_WEIGHTS_CHECK_TRIGGERS = {
+            "CREATE TRIGGER weights_require_pet BEFORE INSERT ON " + WeightEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM " + PetEntry.TABLE_NAME +
+                    " WHERE " + PetEntry._ID + " = NEW." + WeightEntry.COLUMN_WEIGHT_PET_ID +
+                    ") BEGIN SELECT RAISE(ABORT, 'No such pet'); END;",
+            "CREATE TRIGGER weights_append_only BEFORE UPDATE ON " + WeightEntry.TABLE_NAME +
+                    " BEGIN SELECT RAISE(ABORT, 'Weight measurements are append-only'); END;"
+    };
+
+    /**
+     * Deleting a pet deletes its history too.
+     */
+    public static final String SQL_CREATE_WEIGHTS_CLEANUP_TRIGGER =
+            "CREATE TRIGGER pets_delete_weights AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN " + NOT_ARCHIVED + " BEGIN " +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME) +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME_DAY) +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME_WEEK) +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME_MONTH) + "END;";
+
+    /**
+     * Deleting an archived pet deletes its history too, unless it's being moved back to the
+     * pets table.
+     */
+    public static final String SQL_CREATE_ARCHIVE_CLEANUP_TRIGGER =
+            "CREATE TRIGGER pets_archive_delete_weights AFTER DELETE ON " + PetArchive.TABLE_NAME +
+                    " FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM " + PetEntry.TABLE_NAME +
+                    " WHERE " + PetEntry._ID + " = OLD." + PetEntry._ID + ") BEGIN " +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME) +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME_DAY) +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME_WEEK) +
+                    deleteWeightsOfPet(WeightEntry.TABLE_NAME_MONTH) + "END;";
+
+    /*
+     * Start of the bucket a measurement falls into, in milliseconds. SQLite's date functions
+     * work in seconds, so measured_at is converted on the way in and out. 'weekday 0' moves
+     * forward to Sunday (or stays there), so going back 6 days lands on that week's Monday.
+     */
+    private static final String MEASURED_AT_SECONDS =
+            "NEW." + WeightEntry.COLUMN_WEIGHT_MEASURED_AT + " / 1000, 'unixepoch'";
+    private static final String DAY_BUCKET = "CAST(strftime('%s', " + MEASURED_AT_SECONDS +
+            ", 'start of day') AS INTEGER) * 1000";
+    private static final String WEEK_BUCKET = "CAST(strftime('%s', " + MEASURED_AT_SECONDS +
+            ", 'start of day', 'weekday 0', '-6 days') AS INTEGER) * 1000";
+    private static final String MONTH_BUCKET = "CAST(strftime('%s', " + MEASURED_AT_SECONDS +
+            ", 'start of month') AS INTEGER) * 1000";
+
+    public static final String[] SQL_CREATE_WEIGHT_ROLLUPS = {
+            createRollupTable(WeightEntry.TABLE_NAME_DAY),
+            createRollupTrigger(WeightEntry.TABLE_NAME_DAY, DAY_BUCKET),
+            createRollupTable(WeightEntry.TABLE_NAME_WEEK),
+            createRollupTrigger(WeightEntry.TABLE_NAME_WEEK, WEEK_BUCKET),
+            createRollupTable(WeightEntry.TABLE_NAME_MONTH),
+            createRollupTrigger(WeightEntry.TABLE_NAME_MONTH, MONTH_BUCKET)
+    };
+
+    public static final String SQL_CREATE_ADOPTERS_TABLE =
+            "CREATE TABLE " + AdopterEntry.TABLE_NAME + "(" +
+                    AdopterEntry._ID + " INTEGER PRIMARY KEY, " +
+                    AdopterEntry.COLUMN_ADOPTER_NAME + " TEXT NOT NULL, " +
+                    AdopterEntry.COLUMN_ADOPTER_CONTACT + " TEXT);";
+
+    public static final String SQL_CREATE_ADOPTIONS_TABLE =
+            "CREATE TABLE " + AdoptionEntry.TABLE_NAME + "(" +
+                    AdoptionEntry._ID + " INTEGER PRIMARY KEY, " +
+                    AdoptionEntry.COLUMN_ADOPTION_PET_ID + " INTEGER NOT NULL, " +
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID + " INTEGER NOT NULL, " +
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT + " INTEGER NOT NULL);";
+
+    /**
+     * A pet is adopted at most once. The catalog triggers look adoptions up by pet, deleting an
+     * adopter looks them up by adopter.
+     */
+    public static final String[] SQL_CREATE_ADOPTION_INDEXES = {
+            "CREATE UNIQUE INDEX adoptions_pet_id ON " + AdoptionEntry.TABLE_NAME + "(" +
+                    AdoptionEntry.COLUMN_ADOPTION_PET_ID + ");",
+            "CREATE INDEX adoptions_adopter_id ON " + AdoptionEntry.TABLE_NAME + "(" +
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID + ");"
+    };
+
+    /**
+     * Adoptions can only refer to a current resident and an existing adopter, and an adopter
+     * can't be deleted while an adoption refers to them. Deleting a pet deletes its adoption,
+     * unless the pet is only being moved to or from the archive.
+     */
+    public static final String[] SQL_CREATE_ADOPTION_TRIGGERS = {
+            requireParent("adoptions_require_pet", "INSERT", AdoptionEntry.COLUMN_ADOPTION_PET_ID,
+                    PetEntry.TABLE_NAME, "No such pet"),
+            requireParent("adoptions_require_pet_on_update",
+                    "UPDATE OF " + AdoptionEntry.COLUMN_ADOPTION_PET_ID,
+                    AdoptionEntry.COLUMN_ADOPTION_PET_ID, PetEntry.TABLE_NAME, "No such pet"),
+            requireParent("adoptions_require_adopter", "INSERT",
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID, AdopterEntry.TABLE_NAME,
+                    "No such adopter"),
+            requireParent("adoptions_require_adopter_on_update",
+                    "UPDATE OF " + AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID,
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID, AdopterEntry.TABLE_NAME,
+                    "No such adopter"),
+            "CREATE TRIGGER adopters_keep_adoptions BEFORE DELETE ON " + AdopterEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN EXISTS (SELECT 1 FROM " + AdoptionEntry.TABLE_NAME +
+                    " WHERE " + AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID + " = OLD." +
+                    AdopterEntry._ID + ") BEGIN SELECT RAISE(ABORT, 'Adopter has adoptions'); END;",
+            "CREATE TRIGGER pets_delete_adoptions AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW WHEN " + NOT_ARCHIVED + " BEGIN " + deleteAdoptionOfPet() +
+                    "END;",
+            "CREATE TRIGGER pets_archive_delete_adoptions AFTER DELETE ON " +
+                    PetArchive.TABLE_NAME + " FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM " +
+                    PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = OLD." + PetEntry._ID +
+                    ") BEGIN " + deleteAdoptionOfPet() + "END;"
+    };
+
+    public static final String SQL_CREATE_CATALOG_TABLE =
+            "CREATE TABLE " + CatalogEntry.TABLE_NAME + "(" +
+                    CatalogEntry._ID + " INTEGER PRIMARY KEY, " +
+                    CatalogEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+                    CatalogEntry.COLUMN_PET_BREED + " TEXT, " +
+                    CatalogEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+                    CatalogEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL, " +
+                    CatalogEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL, " +
+                    CatalogEntry.COLUMN_ADOPTED_AT + " INTEGER);";
+
+    /*Columns the catalog copies from the pets table*/
+    private static final String CATALOG_PET_COLUMNS = CatalogEntry._ID + ", " +
+            CatalogEntry.COLUMN_PET_NAME + ", " + CatalogEntry.COLUMN_PET_BREED + ", " +
+            CatalogEntry.COLUMN_PET_GENDER + ", " + CatalogEntry.COLUMN_PET_WEIGHT + ", " +
+            CatalogEntry.COLUMN_PET_VERSION;
+
+    /**
+     * Copy every insert, update and delete of a current resident to the catalog, and every
+     * change of an adoption to the catalog row of its pet. A pet that comes back from the
+     * archive brings its adoption with it. The version bump runs its own UPDATE, which fires
+     * the update trigger again, so the catalog has the final version too.
+     */
+    public static final String[] SQL_CREATE_CATALOG_TRIGGERS = {
+            "CREATE TRIGGER pets_catalog_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN INSERT INTO " + CatalogEntry.TABLE_NAME + " (" +
+                    CATALOG_PET_COLUMNS + ", " + CatalogEntry.COLUMN_ADOPTED_AT + ") VALUES (" +
+                    "NEW." + PetEntry._ID + ", NEW." + PetEntry.COLUMN_PET_NAME + ", NEW." +
+                    PetEntry.COLUMN_PET_BREED + ", NEW." + PetEntry.COLUMN_PET_GENDER + ", NEW." +
+                    PetEntry.COLUMN_PET_WEIGHT + ", NEW." + PetEntry.COLUMN_PET_VERSION +
+                    ", (SELECT " + AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT + " FROM " +
+                    AdoptionEntry.TABLE_NAME + " WHERE " + AdoptionEntry.COLUMN_ADOPTION_PET_ID +
+                    " = NEW." + PetEntry._ID + ")); END;",
+            "CREATE TRIGGER pets_catalog_update AFTER UPDATE OF " + PetEntry.COLUMN_PET_NAME +
+                    ", " + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_VERSION + " ON " +
+                    PetEntry.TABLE_NAME + " FOR EACH ROW BEGIN UPDATE " +
+                    CatalogEntry.TABLE_NAME + " SET " +
+                    CatalogEntry.COLUMN_PET_NAME + " = NEW." + PetEntry.COLUMN_PET_NAME + ", " +
+                    CatalogEntry.COLUMN_PET_BREED + " = NEW." + PetEntry.COLUMN_PET_BREED + ", " +
+                    CatalogEntry.COLUMN_PET_GENDER + " = NEW." + PetEntry.COLUMN_PET_GENDER + ", " +
+                    CatalogEntry.COLUMN_PET_WEIGHT + " = NEW." + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                    CatalogEntry.COLUMN_PET_VERSION + " = NEW." + PetEntry.COLUMN_PET_VERSION +
+                    " WHERE " + CatalogEntry._ID + " = OLD." + PetEntry._ID + "; END;",
+            "CREATE TRIGGER pets_catalog_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN DELETE FROM " + CatalogEntry.TABLE_NAME + " WHERE " +
+                    CatalogEntry._ID + " = OLD." + PetEntry._ID + "; END;",
+            "CREATE TRIGGER adoptions_catalog_insert AFTER INSERT ON " + AdoptionEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN " + setCatalogAdoptedAt("NEW", "NEW") + "END;",
+            "CREATE TRIGGER adoptions_catalog_update AFTER UPDATE OF " +
+                    AdoptionEntry.COLUMN_ADOPTION_PET_ID + ", " +
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT + " ON " + AdoptionEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN " + setCatalogAdoptedAt("OLD", null) +
+                    setCatalogAdoptedAt("NEW", "NEW") + "END;",
+            "CREATE TRIGGER adoptions_catalog_delete AFTER DELETE ON " + AdoptionEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN " + setCatalogAdoptedAt("OLD", null) + "END;"
+    };
+
+    /**
+     * Fill the catalog of a database that had pets before it had a catalog.
+     */
+    private static final String SQL_FILL_CATALOG = "INSERT INTO " + CatalogEntry.TABLE_NAME +
+            " (" + CATALOG_PET_COLUMNS + ") SELECT " + CATALOG_PET_COLUMNS + " FROM " +
+            PetEntry.TABLE_NAME;
+
+    public static final String SQL_CREATE_BLOCKING_KEYS_TABLE =
+            "CREATE TABLE " + PetDuplicates.TABLE_BLOCKING_KEYS + "(" +
+                    PetDuplicates.COLUMN_PET_ID + " INTEGER PRIMARY KEY, " +
+                    PetDuplicates.COLUMN_NAME_CODE + " TEXT NOT NULL, " +
+                    PetDuplicates.COLUMN_BREED_CODE + " TEXT NOT NULL, " +
+                    PetDuplicates.COLUMN_WEIGHT_BAND + " INTEGER NOT NULL);";
+
+    /**
+     * A pet's candidates are the pets with the same codes in a range of weight bands, so the
+     * band comes last.
+     */
+    public static final String SQL_CREATE_BLOCKING_KEYS_INDEX =
+            "CREATE INDEX pet_blocking_keys_block ON " + PetDuplicates.TABLE_BLOCKING_KEYS + "(" +
+                    PetDuplicates.COLUMN_NAME_CODE + ", " + PetDuplicates.COLUMN_BREED_CODE + ", " +
+                    PetDuplicates.COLUMN_WEIGHT_BAND + ");";
+
+    public static final String SQL_CREATE_DUPLICATE_QUEUE_TABLE =
+            "CREATE TABLE " + PetDuplicates.TABLE_QUEUE + "(" +
+                    PetDuplicates.COLUMN_PET_ID + " INTEGER PRIMARY KEY);";
+
+    public static final String SQL_CREATE_DUPLICATES_TABLE =
+            "CREATE TABLE " + DuplicateEntry.TABLE_NAME + "(" +
+                    DuplicateEntry._ID + " INTEGER PRIMARY KEY, " +
+                    DuplicateEntry.COLUMN_PET_ID + " INTEGER NOT NULL, " +
+                    DuplicateEntry.COLUMN_DUPLICATE_OF_ID + " INTEGER NOT NULL, " +
+                    DuplicateEntry.COLUMN_SCORE + " REAL NOT NULL, " +
+                    DuplicateEntry.COLUMN_FOUND_AT + " INTEGER NOT NULL, " +
+                    "UNIQUE (" + DuplicateEntry.COLUMN_PET_ID + ", " +
+                    DuplicateEntry.COLUMN_DUPLICATE_OF_ID + "));";
+
+    /**
+     * The unique constraint finds the pairs of a pet by its ID, this finds them by the other one.
+     */
+    public static final String SQL_CREATE_DUPLICATES_INDEX =
+            "CREATE INDEX pet_duplicates_duplicate_of_id ON " + DuplicateEntry.TABLE_NAME + "(" +
+                    DuplicateEntry.COLUMN_DUPLICATE_OF_ID + ");";
+
+    /**
+     * Queue every inserted pet, and every pet whose compared columns change, for
+     * {@link PetDuplicates#findDuplicates}. A pet that leaves the pets table, for good or for
+     * the archive, takes its key and pairs with it; one coming back from the archive is queued
+     * again like any insert.
+     */
+    public static final String[] SQL_CREATE_DUPLICATE_TRIGGERS = {
+            "CREATE TRIGGER pets_queue_duplicates_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN " + queueForDuplicates() + "END;",
+            "CREATE TRIGGER pets_queue_duplicates_update AFTER UPDATE OF " +
+                    PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + " ON " +
+                    PetEntry.TABLE_NAME + " FOR EACH ROW BEGIN " + queueForDuplicates() + "END;",
+            "CREATE TRIGGER pets_delete_duplicates AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                    " FOR EACH ROW BEGIN DELETE FROM " + PetDuplicates.TABLE_BLOCKING_KEYS +
+                    " WHERE " + PetDuplicates.COLUMN_PET_ID + " = OLD." + PetEntry._ID +
+                    "; DELETE FROM " + PetDuplicates.TABLE_QUEUE + " WHERE " +
+                    PetDuplicates.COLUMN_PET_ID + " = OLD." + PetEntry._ID + "; DELETE FROM " +
+                    DuplicateEntry.TABLE_NAME + " WHERE " + DuplicateEntry.COLUMN_PET_ID +
+                    " = OLD." + PetEntry._ID + " OR " + DuplicateEntry.COLUMN_DUPLICATE_OF_ID +
+                    " = OLD." + PetEntry._ID + "; END;"
+    };
+
+    /**
+     * Queue the pets of a database that had pets before it had duplicate detection.
+     */
+    private static final String SQL_QUEUE_ALL_FOR_DUPLICATES = "INSERT INTO " +
+            PetDuplicates.TABLE_QUEUE + " (" + PetDuplicates.COLUMN_PET_ID + ") SELECT " +
+            PetEntry._ID + " FROM " + PetEntry.TABLE_NAME;
 
     public static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + PetEntry.TABLE_NAME;
 
+    /*Tables next to the pets table. Dropping a table also drops its indexes and triggers*/
+    private static final String[] SQL_DELETE_SIDE_TABLES = {
+            "DROP TABLE IF EXISTS " + WeightEntry.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + WeightEntry.TABLE_NAME_DAY,
+            "DROP TABLE IF EXISTS " + WeightEntry.TABLE_NAME_WEEK,
+            "DROP TABLE IF EXISTS " + WeightEntry.TABLE_NAME_MONTH,
+            "DROP TABLE IF EXISTS " + PetChangeLog.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + PetArchive.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + PetMaintenance.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + AdopterEntry.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + AdoptionEntry.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + CatalogEntry.TABLE_NAME,
+            "DROP TABLE IF EXISTS " + PetDuplicates.TABLE_BLOCKING_KEYS,
+            "DROP TABLE IF EXISTS " + PetDuplicates.TABLE_QUEUE,
+            "DROP TABLE IF EXISTS " + DuplicateEntry.TABLE_NAME
+    };
+
+    private static String createPetsTable(String table) {
+        return "CREATE TABLE " + table + "(" +
+                PetEntry._ID + " INTEGER PRIMARY KEY, " +
+                PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, " +
+                PetEntry.COLUMN_PET_BREED + " TEXT, " +
+                PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, " +
+                PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0, " +
+                PetEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                PetEntry.COLUMN_PET_SYNC_ID + " TEXT, " +
+                PetEntry.COLUMN_PET_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0);";
+    }
+
+    private static String logChange(String row, String deleted, String changedAt) {
+        return "INSERT INTO " + PetChangeLog.TABLE_NAME + " (" + PetChangeLog.COLUMN_SYNC_ID +
+                ", " + PetChangeLog.COLUMN_DELETED + ", " + PetChangeLog.COLUMN_CHANGED_AT +
+                ") VALUES (" + row + "." + PetEntry.COLUMN_PET_SYNC_ID + ", " + deleted + ", " +
+                changedAt + ");";
+    }
+
+    private static String createRollupTable(String table) {
+        return "CREATE TABLE " + table + "(" +
+                WeightEntry.COLUMN_WEIGHT_PET_ID + " INTEGER NOT NULL, " +
+                WeightEntry.COLUMN_BUCKET_START + " INTEGER NOT NULL, " +
+                WeightEntry.COLUMN_MEASUREMENT_COUNT + " INTEGER NOT NULL, " +
+                WeightEntry.COLUMN_WEIGHT_SUM + " INTEGER NOT NULL, " +
+                WeightEntry.COLUMN_WEIGHT_MIN + " INTEGER NOT NULL, " +
+                WeightEntry.COLUMN_WEIGHT_MAX + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + WeightEntry.COLUMN_WEIGHT_PET_ID + ", " +
+                WeightEntry.COLUMN_BUCKET_START + "));";
+    }
+
+    /**
+     * Fold every new measurement into its bucket of the given rollup table, creating the bucket
+     * first if this is its first measurement. Runs in the same statement as the insert, so the
+     * rollups can't get out of step with the measurements.
+     */
+    private static String createRollupTrigger(String table, String bucketStart) {
+        return "CREATE TRIGGER " + table + "_rollup AFTER INSERT ON " + WeightEntry.TABLE_NAME +
+                " FOR EACH ROW BEGIN " +
+                "INSERT OR IGNORE INTO " + table + " (" +
+                WeightEntry.COLUMN_WEIGHT_PET_ID + ", " + WeightEntry.COLUMN_BUCKET_START + ", " +
+                WeightEntry.COLUMN_MEASUREMENT_COUNT + ", " + WeightEntry.COLUMN_WEIGHT_SUM + ", " +
+                WeightEntry.COLUMN_WEIGHT_MIN + ", " + WeightEntry.COLUMN_WEIGHT_MAX + ") VALUES (" +
+                "NEW." + WeightEntry.COLUMN_WEIGHT_PET_ID + ", " + bucketStart + ", 0, 0, " +
+                "NEW." + WeightEntry.COLUMN_WEIGHT_VALUE + ", " +
+                "NEW." + WeightEntry.COLUMN_WEIGHT_VALUE + "); " +
+                "UPDATE " + table + " SET " +
+                WeightEntry.COLUMN_MEASUREMENT_COUNT + " = " +
+                WeightEntry.COLUMN_MEASUREMENT_COUNT + " + 1, " +
+                WeightEntry.COLUMN_WEIGHT_SUM + " = " + WeightEntry.COLUMN_WEIGHT_SUM +
+                " + NEW." + WeightEntry.COLUMN_WEIGHT_VALUE + ", " +
+                WeightEntry.COLUMN_WEIGHT_MIN + " = MIN(" + WeightEntry.COLUMN_WEIGHT_MIN +
+                ", NEW." + WeightEntry.COLUMN_WEIGHT_VALUE + "), " +
+                WeightEntry.COLUMN_WEIGHT_MAX + " = MAX(" + WeightEntry.COLUMN_WEIGHT_MAX +
+                ", NEW." + WeightEntry.COLUMN_WEIGHT_VALUE + ") WHERE " +
+                WeightEntry.COLUMN_WEIGHT_PET_ID + " = NEW." + WeightEntry.COLUMN_WEIGHT_PET_ID +
+                " AND " + WeightEntry.COLUMN_BUCKET_START + " = " + bucketStart + "; END;";
+    }
+
+    /**
+     * Abort an insert or update of an adoption whose column doesn't refer to a row of the
+     * parent table.
+     */
+    private static String requireParent(String name, String event, String column,
+                                        String parentTable, String message) {
+        return "CREATE TRIGGER " + name + " BEFORE " + event + " ON " + AdoptionEntry.TABLE_NAME +
+                " FOR EACH ROW WHEN NOT EXISTS (SELECT 1 FROM " + parentTable + " WHERE " +
+                BaseColumns._ID + " = NEW." + column + ") BEGIN SELECT RAISE(ABORT, '" + message +
+                "'); END;";
+    }
+
+    private static String deleteAdoptionOfPet() {
+        return "DELETE FROM " + AdoptionEntry.TABLE_NAME + " WHERE " +
+                AdoptionEntry.COLUMN_ADOPTION_PET_ID + " = OLD." + PetEntry._ID + "; ";
+    }
+
+    /**
+     * Set the adoption time of the catalog row of the adoption's pet, from the given row of the
+     * adoption, or to null if there is none.
+     */
+    private static String setCatalogAdoptedAt(String petRow, String adoptedAtRow) {
+        return "UPDATE " + CatalogEntry.TABLE_NAME + " SET " + CatalogEntry.COLUMN_ADOPTED_AT +
+                " = " + (adoptedAtRow == null ? "NULL"
+                : adoptedAtRow + "." + AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT) + " WHERE " +
+                CatalogEntry._ID + " = " + petRow + "." + AdoptionEntry.COLUMN_ADOPTION_PET_ID +
+                "; ";
+    }
+
+    private static String queueForDuplicates() {
+        return "INSERT OR IGNORE INTO " + PetDuplicates.TABLE_QUEUE + " (" +
+                PetDuplicates.COLUMN_PET_ID + ") VALUES (NEW." + PetEntry._ID + "); ";
+    }
+
+    private static String deleteWeightsOfPet(String table) {
+        return "DELETE FROM " + table + " WHERE " + WeightEntry.COLUMN_WEIGHT_PET_ID +
+                " = OLD." + PetEntry._ID + "; ";
+    }
+
+    private final Context mContext;
+
+    /**
+     * Whether {@link #installSeed} already ran for this helper.
+     */
+    private boolean mSeedChecked;
+
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Create a helper for the pets database in the given file, e.g. one shelter's shard.
+     */
+    public PetDbHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        mContext = context;
+        // With a write-ahead log, readers see a snapshot and don't block writers, which lets
+        // PetBackup read the whole database in one transaction while the app keeps saving.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        MainThreadGuard.checkEngine("read from", getDatabaseName());
+        installSeed();
+        return super.getReadableDatabase();
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        MainThreadGuard.checkEngine("write to", getDatabaseName());
+        installSeed();
+        return super.getWritableDatabase();
+    }
+
+    /**
+     * On first launch, copy the seed database into place if the build has one, so the default
+     * shelter starts out with its pets instead of going through {@link #onCreate} and an insert
+     * per pet. The copy takes as long as the file takes to stream, however many pets it holds.
+     * A seed from an older build is upgraded by {@link #onUpgrade} like any other database.
+     */
+    private synchronized void installSeed() {
+        if (mSeedChecked) {
+            return;
+        }
+        mSeedChecked = true;
+        if (!DATABASE_NAME.equals(getDatabaseName())) {
+            return;
+        }
+        File database = mContext.getDatabasePath(DATABASE_NAME);
+        if (database.exists()) {
+            return;
+        }
+        InputStream in;
+        try {
+            in = mContext.getAssets().open(SEED_ASSET);
+        } catch (IOException e) {
+            // No seed in this build, onCreate makes an empty database.
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        // Copy next to the database and rename it, so a copy that gets interrupted is never
+        // mistaken for the database.
+        File seedFile = new File(database.getPath() + "-seed");
+        try {
+            long bytes;
+            try {
+                File directory = database.getParentFile();
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Could not create " + directory);
+                }
+                FileOutputStream out = new FileOutputStream(seedFile);
+                try {
+                    bytes = PetBackup.copyStream(in, out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            // A journal left behind by an earlier database would be applied to the seed.
+            PetBackup.deleteDatabaseFiles(database);
+            if (!seedFile.renameTo(database)) {
+                throw new IOException("Could not move " + seedFile + " into place");
+            }
+            Log.i(LOG_TAG, "Installed the seed database, " + bytes + " bytes in " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not install the seed database, starting empty", e);
+            seedFile.delete();
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+        // Let PetMaintenance give free pages back a few at a time. This only takes effect on
+        // new databases, older ones are converted by PetMaintenance itself.
+        sqLiteDatabase.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         Log.v(LOG_TAG,SQL_CREATE_PETS_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_PETS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_VERSION_TRIGGER);
+        createWeightHistory(sqLiteDatabase);
+        createChangeLog(sqLiteDatabase);
+        createArchive(sqLiteDatabase);
+        createExternalIds(sqLiteDatabase);
+        sqLiteDatabase.execSQL(PetMaintenance.SQL_CREATE_LOG_TABLE);
+        createAdoptions(sqLiteDatabase);
+        createDuplicateDetection(sqLiteDatabase);
+    }
+
+    /**
+     * Create the adopters, the adoptions and the catalog, and fill the catalog with the pets
+     * that are already there.
+     */
+    private static void createAdoptions(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_ADOPTERS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_ADOPTIONS_TABLE);
+        for (String sql : SQL_CREATE_ADOPTION_INDEXES) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        for (String sql : SQL_CREATE_ADOPTION_TRIGGERS) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(SQL_CREATE_CATALOG_TABLE);
+        for (String sql : SQL_CREATE_CATALOG_TRIGGERS) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(SQL_FILL_CATALOG);
+    }
+
+    /**
+     * Create the blocking keys, the queue and the duplicates, and queue the pets that are
+     * already there.
+     */
+    private static void createDuplicateDetection(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_BLOCKING_KEYS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_BLOCKING_KEYS_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_DUPLICATE_QUEUE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_DUPLICATES_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_DUPLICATES_INDEX);
+        for (String sql : SQL_CREATE_DUPLICATE_TRIGGERS) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(SQL_QUEUE_ALL_FOR_DUPLICATES);
+    }
+
+    private static void createChangeLog(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_ID_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_CHANGE_LOG_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_CHANGE_LOG_INDEX);
+        for (String sql : SQL_CREATE_CHANGE_LOG_TRIGGERS) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(SQL_CREATE_CHANGE_LOG_DELETE_TRIGGER);
+    }
+
+    private static void createArchive(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+        for (String sql : SQL_CREATE_ARCHIVE_INDEXES) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_CLEANUP_TRIGGER);
+    }
+
+    /**
+     * Add the external ID to the pets table and the archive. It's added with ALTER TABLE on new
+     * databases too, so both tables end up with the same column order however they were made.
+     */
+    private static void createExternalIds(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_PET_EXTERNAL_ID + " TEXT");
+        sqLiteDatabase.execSQL("ALTER TABLE " + PetArchive.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_PET_EXTERNAL_ID + " TEXT");
+        for (String sql : SQL_CREATE_EXTERNAL_ID_INDEXES) {
+            sqLiteDatabase.execSQL(sql);
+        }
+    }
 
+    private static void createWeightHistory(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHTS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHTS_INDEX);
+        for (String sql : SQL_CREATE_WEIGHTS_CHECK_TRIGGERS) {
+            sqLiteDatabase.execSQL(sql);
+        }
+        sqLiteDatabase.execSQL(SQL_CREATE_WEIGHTS_CLEANUP_TRIGGER);
+        for (String sql : SQL_CREATE_WEIGHT_ROLLUPS) {
+            sqLiteDatabase.execSQL(sql);
+        }
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        sqLiteDatabase.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Migrate one version at a time so existing pets are kept.
+        // Each case falls through to the next one, only the latest breaks.
+        switch (oldVersion) {
+            case 1:
+                sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL DEFAULT 0");
+                sqLiteDatabase.execSQL(SQL_CREATE_VERSION_TRIGGER);
+            case 2:
+                createWeightHistory(sqLiteDatabase);
+            case 3:
+                sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_SYNC_ID + " TEXT");
+                sqLiteDatabase.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                        PetEntry.COLUMN_PET_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+                // The existing pets count as changed now. Left at 0, the archive job would take
+                // them all for pets that haven't changed in years.
+                sqLiteDatabase.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " +
+                        PetEntry.COLUMN_PET_UPDATED_AT + " = " + System.currentTimeMillis());
+                sqLiteDatabase.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " +
+                        PetEntry.COLUMN_PET_SYNC_ID + " = " + SQL_RANDOM_UUID);
+                createChangeLog(sqLiteDatabase);
+                // Log the existing pets, so the first sync uploads them.
+                sqLiteDatabase.execSQL("INSERT INTO " + PetChangeLog.TABLE_NAME + " (" +
+                        PetChangeLog.COLUMN_SYNC_ID + ", " + PetChangeLog.COLUMN_DELETED + ", " +
+                        PetChangeLog.COLUMN_CHANGED_AT + ") SELECT " + PetEntry.COLUMN_PET_SYNC_ID +
+                        ", 0, " + PetEntry.COLUMN_PET_UPDATED_AT + " FROM " + PetEntry.TABLE_NAME);
+            case 4:
+                createArchive(sqLiteDatabase);
+                // Recreate the delete triggers of older databases, so they skip archived pets.
+                sqLiteDatabase.execSQL("DROP TRIGGER IF EXISTS pets_delete_weights");
+                sqLiteDatabase.execSQL(SQL_CREATE_WEIGHTS_CLEANUP_TRIGGER);
+                sqLiteDatabase.execSQL("DROP TRIGGER IF EXISTS pets_log_delete");
+                sqLiteDatabase.execSQL(SQL_CREATE_CHANGE_LOG_DELETE_TRIGGER);
+            case 5:
+                createExternalIds(sqLiteDatabase);
+            case 6:
+                sqLiteDatabase.execSQL(PetMaintenance.SQL_CREATE_LOG_TABLE);
+            case 7:
+                createAdoptions(sqLiteDatabase);
+            case 8:
+                createDuplicateDetection(sqLiteDatabase);
+                break;
+            default:
+                // Unknown version, start from scratch.
+                sqLiteDatabase.execSQL(SQL_DELETE_ENTRIES);
+                for (String sql : SQL_DELETE_SIDE_TABLES) {
+                    sqLiteDatabase.execSQL(sql);
+                }
+                onCreate(sqLiteDatabase);
+        }
     }
 }
@@ -0,0 +1,141 @@
+package com.example.android.pets.data;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.android.pets.R;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Background job that checks new and changed pets for likely duplicates, see
+ * {@link PetDuplicates}. The provider schedules it for a shelter whenever its pets change, so
+ * the check stays off the write path; {@link #start(Context)} also picks up pets that are still
+ * waiting in every shelter, e.g. after the app was killed mid-check.
+ */
+public class PetDuplicateService extends IntentService {
+
+    public static final String LOG_TAG = PetDuplicateService.class.getSimpleName();
+
+    /**
+     * Shelters with a check on its way. A bulk import notifies once per pet, but one check
+     * covers all of them, so the service is only started again once the pending check began.
+     */
+    private static final Set<Long> sPendingShelters = new HashSet<>();
+
+    /**
+     * How long {@link #schedule} waits before starting the check, so the changes made in the
+     * meantime, e.g. the rest of an import, are checked along with the first one.
+     */
+    private static final long SCHEDULE_DELAY_MILLIS = 2000;
+
+    /**
+     * Shelters whose check has been scheduled but not started yet.
+     */
+    private static final Set<Long> sScheduledShelters = new HashSet<>();
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    public PetDuplicateService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Check the waiting pets of every shelter. Fine to call on every start of the app.
+     */
+    public static void start(Context context) {
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            // No duplicate detection in the in-memory store.
+            return;
+        }
+        context.startService(new Intent(context, PetDuplicateService.class));
+    }
+
+    /**
+     * Check the waiting pets of the given shelter, unless a check is already on its way.
+     */
+    public static void start(Context context, long shelterId) {
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            return;
+        }
+        synchronized (sPendingShelters) {
+            if (!sPendingShelters.add(shelterId)) {
+                return;
+            }
+        }
+        Intent intent = new Intent(context, PetDuplicateService.class);
+        intent.putExtra(PetContract.EXTRA_SHELTER_ID, shelterId);
+        context.startService(intent);
+    }
+
+    /**
+     * Check the waiting pets of the given shelter in a little while, see
+     * {@link #SCHEDULE_DELAY_MILLIS}. Cheap enough to call on every change: until the check
+     * starts, calling it again for the same shelter does nothing.
+     */
+    public static void schedule(Context context, final long shelterId) {
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            return;
+        }
+        synchronized (sScheduledShelters) {
+            if (!sScheduledShelters.add(shelterId)) {
+                return;
+            }
+        }
+        final Context appContext = context.getApplicationContext();
+        sHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sScheduledShelters) {
+                    sScheduledShelters.remove(shelterId);
+                }
+                start(appContext, shelterId);
+            }
+        }, SCHEDULE_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        long[] shelterIds;
+        if (intent.hasExtra(PetContract.EXTRA_SHELTER_ID)) {
+            long shelterId = intent.getLongExtra(PetContract.EXTRA_SHELTER_ID,
+                    PetContract.DEFAULT_SHELTER_ID);
+            // Changes from here on need another check.
+            synchronized (sPendingShelters) {
+                sPendingShelters.remove(shelterId);
+            }
+            shelterIds = new long[]{shelterId};
+        } else {
+            Bundle shelters = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                    PetContract.METHOD_LIST_SHELTERS, null, null);
+            shelterIds = shelters.getLongArray(PetContract.EXTRA_IDS);
+        }
+        for (long shelterId : shelterIds) {
+            Bundle extras = new Bundle();
+            extras.putLong(PetContract.EXTRA_SHELTER_ID, shelterId);
+            int checked = 0;
+            int found = 0;
+            // One batch per call, so the provider is free for the app between batches.
+            while (true) {
+                Bundle result = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                        PetContract.METHOD_FIND_DUPLICATES, null, extras);
+                int batchChecked = result.getInt(PetContract.EXTRA_ROWS_AFFECTED);
+                if (batchChecked == 0) {
+                    break;
+                }
+                checked += batchChecked;
+                found += result.getInt(PetContract.EXTRA_COUNT);
+            }
+            if (checked != 0) {
+                Log.i(LOG_TAG, "Checked " + checked + " pets of shelter " + shelterId + ", "
+                        + found + " likely duplicates");
+            }
+        }
+    }
+}
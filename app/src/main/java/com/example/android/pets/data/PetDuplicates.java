@@ -0,0 +1,368 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.DuplicateEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Likely duplicates among the pets in a SQLite store, e.g. the same animal entered twice by
+ * different staff as "Tommy" and "Tomy".
+ * <p>
+ * Comparing every new pet with every other pet doesn't scale, so each pet gets a blocking key:
+ * the Soundex code of its name, the Soundex code of its breed and a weight band. Only pets with
+ * the same codes and a neighbouring band are compared, found through an index on the keys.
+ * <p>
+ * The triggers created by {@link PetDbHelper} only queue the pets that were inserted or
+ * changed, so writes don't pay for the check. {@link #findDuplicates} works through the queue
+ * later, on {@link PetDuplicateService}'s thread. Deleting a pet deletes its key and pairs.
+ */
+public class PetDuplicates {
+
+    /**
+     * Name of the database table for the blocking keys, one row per checked pet
+     */
+    public static final String TABLE_BLOCKING_KEYS = "pet_blocking_keys";
+
+    /**
+     * Name of the database table for the pets waiting to be checked
+     */
+    public static final String TABLE_QUEUE = "pet_duplicate_queue";
+
+    /*Columns of the blocking keys and the queue*/
+    public static final String COLUMN_PET_ID = "pet_id";
+    public static final String COLUMN_NAME_CODE = "name_code";
+    public static final String COLUMN_BREED_CODE = "breed_code";
+    public static final String COLUMN_WEIGHT_BAND = "weight_band";
+
+    /**
+     * Width of a weight band in kg. A pet is compared with the pets of its own band and the
+     * ones next to it, so a weight close to the edge of a band doesn't hide a duplicate.
+     */
+    static final int WEIGHT_BAND_KG = 5;
+
+    /**
+     * Lowest score of a pair that is kept as a likely duplicate. The same name and breed only
+     * make 0.85 of it, so the weights have to be close as well.
+     */
+    static final double MIN_SCORE = 0.9;
+
+    /**
+     * Number of queued pets checked per transaction, so writers aren't held up for long.
+     */
+    private static final int PETS_PER_BATCH = 200;
+
+    private static final String SQL_QUEUED_PETS = "SELECT p." + PetEntry._ID + ", p." +
+            PetEntry.COLUMN_PET_NAME + ", p." + PetEntry.COLUMN_PET_BREED + ", p." +
+            PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT + ", q." +
+            COLUMN_PET_ID + " FROM " + TABLE_QUEUE + " q LEFT JOIN " + PetEntry.TABLE_NAME +
+            " p ON p." + PetEntry._ID + " = q." + COLUMN_PET_ID + " ORDER BY q." + COLUMN_PET_ID +
+            " LIMIT " + PETS_PER_BATCH;
+
+    private static final String SQL_CANDIDATES = "SELECT p." + PetEntry._ID + ", p." +
+            PetEntry.COLUMN_PET_NAME + ", p." + PetEntry.COLUMN_PET_BREED + ", p." +
+            PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT + " FROM " +
+            TABLE_BLOCKING_KEYS + " k JOIN " + PetEntry.TABLE_NAME + " p ON p." + PetEntry._ID +
+            " = k." + COLUMN_PET_ID + " WHERE k." + COLUMN_NAME_CODE + " = ? AND k." +
+            COLUMN_BREED_CODE + " = ? AND k." + COLUMN_WEIGHT_BAND + " BETWEEN ? AND ? AND k." +
+            COLUMN_PET_ID + " != ?";
+
+    /**
+     * Outcome of one {@link #findDuplicates} batch.
+     */
+    public static class Batch {
+        /**
+         * Number of queued pets that were checked, 0 once the queue is empty.
+         */
+        public final int checked;
+        /**
+         * Number of likely duplicates found among them.
+         */
+        public final int found;
+
+        Batch(int checked, int found) {
+            this.checked = checked;
+            this.found = found;
+        }
+    }
+
+    /**
+     * The values of a pet that are compared.
+     */
+    private static class Pet {
+        final long id;
+        final String name;
+        final String breed;
+        final int gender;
+        final int weight;
+
+        Pet(Cursor cursor) {
+            id = cursor.getLong(0);
+            name = normalize(cursor.getString(1));
+            breed = normalize(cursor.getString(2));
+            gender = cursor.getInt(3);
+            weight = cursor.getInt(4);
+        }
+    }
+
+    private final PetDbHelper mDbHelper;
+
+    public PetDuplicates(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Query the likely duplicates, the most likely first unless a sort order is given.
+     */
+    public Cursor query(String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(DuplicateEntry.TABLE_NAME);
+        if (sortOrder == null) {
+            sortOrder = DuplicateEntry.COLUMN_SCORE + " DESC";
+        }
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return builder.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+                null, cancellationSignal);
+    }
+
+    /**
+     * Check the next batch of queued pets, in one transaction. Every pet gets a fresh blocking
+     * key and its pairs are scored again, since a change of the pet can make or break them.
+     * Call it until nothing is checked any more to work through the whole queue.
+     */
+    public Batch findDuplicates() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int checked = 0;
+        int found = 0;
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            List<Pet> pets = new ArrayList<>();
+            List<Long> queued = new ArrayList<>();
+            Cursor cursor = db.rawQuery(SQL_QUEUED_PETS, null);
+            try {
+                while (cursor.moveToNext()) {
+                    // A pet that was deleted again before it was checked has nothing to join.
+                    if (!cursor.isNull(0)) {
+                        pets.add(new Pet(cursor));
+                    }
+                    queued.add(cursor.getLong(5));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (Pet pet : pets) {
+                String nameCode = soundex(pet.name);
+                String breedCode = soundex(pet.breed);
+                int weightBand = pet.weight / WEIGHT_BAND_KG;
+                ContentValues key = new ContentValues();
+                key.put(COLUMN_PET_ID, pet.id);
+                key.put(COLUMN_NAME_CODE, nameCode);
+                key.put(COLUMN_BREED_CODE, breedCode);
+                key.put(COLUMN_WEIGHT_BAND, weightBand);
+                db.insertWithOnConflict(TABLE_BLOCKING_KEYS, null, key,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+
+                String[] petArgs = {String.valueOf(pet.id), String.valueOf(pet.id)};
+                db.delete(DuplicateEntry.TABLE_NAME, DuplicateEntry.COLUMN_PET_ID + "=? OR " +
+                        DuplicateEntry.COLUMN_DUPLICATE_OF_ID + "=?", petArgs);
+                String[] blockArgs = {nameCode, breedCode, String.valueOf(weightBand - 1),
+                        String.valueOf(weightBand + 1), String.valueOf(pet.id)};
+                Cursor candidates = db.rawQuery(SQL_CANDIDATES, blockArgs);
+                try {
+                    while (candidates.moveToNext()) {
+                        Pet candidate = new Pet(candidates);
+                        double score = score(pet, candidate);
+                        if (score < MIN_SCORE) {
+                            continue;
+                        }
+                        // The newer pet is the duplicate of the older one.
+                        ContentValues pair = new ContentValues();
+                        pair.put(DuplicateEntry.COLUMN_PET_ID, Math.max(pet.id, candidate.id));
+                        pair.put(DuplicateEntry.COLUMN_DUPLICATE_OF_ID,
+                                Math.min(pet.id, candidate.id));
+                        pair.put(DuplicateEntry.COLUMN_SCORE, score);
+                        pair.put(DuplicateEntry.COLUMN_FOUND_AT, now);
+                        db.insertWithOnConflict(DuplicateEntry.TABLE_NAME, null, pair,
+                                SQLiteDatabase.CONFLICT_REPLACE);
+                        found++;
+                    }
+                } finally {
+                    candidates.close();
+                }
+            }
+
+            for (long petId : queued) {
+                db.delete(TABLE_QUEUE, COLUMN_PET_ID + "=?", new String[]{String.valueOf(petId)});
+            }
+            checked = queued.size();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return new Batch(checked, found);
+    }
+
+    /**
+     * Return how likely the two pets are the same animal, from 0 to 1. Pets whose genders are
+     * both known and differ are never the same.
+     */
+    private static double score(Pet a, Pet b) {
+        if (a.gender != PetEntry.GENDER_UNKNOWN && b.gender != PetEntry.GENDER_UNKNOWN
+                && a.gender != b.gender) {
+            return 0;
+        }
+        double breedSimilarity;
+        if (a.breed.isEmpty() && b.breed.isEmpty()) {
+            breedSimilarity = 1;
+        } else if (a.breed.isEmpty() || b.breed.isEmpty()) {
+            breedSimilarity = 0.5;
+        } else {
+            breedSimilarity = jaroWinkler(a.breed, b.breed);
+        }
+        int heavier = Math.max(a.weight, b.weight);
+        double weightSimilarity = heavier == 0 ? 1
+                : 1 - (double) Math.abs(a.weight - b.weight) / heavier;
+        return 0.6 * jaroWinkler(a.name, b.name) + 0.25 * breedSimilarity
+                + 0.15 * weightSimilarity;
+    }
+
+    /**
+     * Lower-case the text and keep only its letters and digits, with single spaces between
+     * the words. Null becomes the empty string.
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                normalized.append(Character.toLowerCase(c));
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Return the American Soundex code of the text's letters, e.g. "R163" for both "Robert"
+     * and "Rupert", or the empty string if it has no letters a to z.
+     */
+    static String soundex(String text) {
+        StringBuilder code = new StringBuilder(4);
+        char last = 0;
+        for (int i = 0; i < text.length() && code.length() < 4; i++) {
+            char c = Character.toUpperCase(text.charAt(i));
+            if (c < 'A' || c > 'Z') {
+                continue;
+            }
+            char digit = soundexDigit(c);
+            if (code.length() == 0) {
+                code.append(c);
+            } else if (digit != '0' && digit != last) {
+                code.append(digit);
+            }
+            // H and W don't separate two letters with the same code, vowels do.
+            if (c != 'H' && c != 'W') {
+                last = digit;
+            }
+        }
+        if (code.length() == 0) {
+            return "";
+        }
+        while (code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+
+    private static char soundexDigit(char c) {
+        switch (c) {
+            case 'B': case 'F': case 'P': case 'V':
+                return '1';
+            case 'C': case 'G': case 'J': case 'K': case 'Q': case 'S': case 'X': case 'Z':
+                return '2';
+            case 'D': case 'T':
+                return '3';
+            case 'L':
+                return '4';
+            case 'M': case 'N':
+                return '5';
+            case 'R':
+                return '6';
+            default:
+                return '0';
+        }
+    }
+
+    /**
+     * Return the Jaro-Winkler similarity of the two strings, from 0 for nothing in common to 1
+     * for equal strings. Typos and a common start score high, which suits short names.
+     */
+    static double jaroWinkler(String a, String b) {
+        if (a.equals(b)) {
+            return 1;
+        }
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int window = Math.max(0, Math.max(a.length(), b.length()) / 2 - 1);
+        boolean[] matchedA = new boolean[a.length()];
+        boolean[] matchedB = new boolean[b.length()];
+        int matches = 0;
+        for (int i = 0; i < a.length(); i++) {
+            int end = Math.min(i + window + 1, b.length());
+            for (int j = Math.max(0, i - window); j < end; j++) {
+                if (!matchedB[j] && a.charAt(i) == b.charAt(j)) {
+                    matchedA[i] = true;
+                    matchedB[j] = true;
+                    matches++;
+                    break;
+                }
+            }
+        }
+        if (matches == 0) {
+            return 0;
+        }
+        int transpositions = 0;
+        int j = 0;
+        for (int i = 0; i < a.length(); i++) {
+            if (!matchedA[i]) {
+                continue;
+            }
+            while (!matchedB[j]) {
+                j++;
+            }
+            if (a.charAt(i) != b.charAt(j)) {
+                transpositions++;
+            }
+            j++;
+        }
+        double jaro = ((double) matches / a.length() + (double) matches / b.length()
+                + (matches - transpositions / 2.0) / matches) / 3;
+        int prefix = 0;
+        while (prefix < 4 && prefix < a.length() && prefix < b.length()
+                && a.charAt(prefix) == b.charAt(prefix)) {
+            prefix++;
+        }
+        return jaro + prefix * 0.1 * (1 - jaro);
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeightEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Housekeeping of a SQLite store, run by {@link PetProvider} while the app is idle.
+ * <p>
+ * A run refreshes the planner statistics, checkpoints the write-ahead log and gives free pages
+ * back to the file system, in that order. Every statement runs with a cancellation signal, so
+ * it's interrupted when its step runs out of time or when {@link #yieldToForeground} is called
+ * because the app needs the database again. An interrupted statement rolls back. Once the app
+ * needs the database the remaining steps are skipped; whatever is left is picked up by the
+ * next run. Each step is recorded in the {@link #TABLE_NAME} table with its outcome and how
+ * long it took.
+ */
+public class PetMaintenance {
+
+    public static final String LOG_TAG = PetMaintenance.class.getSimpleName();
+
+    /**
+     * Name of the database table for the maintenance log
+     */
+    public static final String TABLE_NAME = "maintenance_log";
+
+    /*Columns of the maintenance log*/
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_STARTED_AT = "started_at";
+    public static final String COLUMN_STEP = "step";
+    public static final String COLUMN_OUTCOME = "outcome";
+    public static final String COLUMN_DURATION_MILLIS = "duration_millis";
+    public static final String COLUMN_DETAIL = "detail";
+
+    /*Steps of a run*/
+    public static final String STEP_ANALYZE = "analyze";
+    public static final String STEP_CHECKPOINT = "checkpoint";
+    public static final String STEP_VACUUM = "vacuum";
+
+    /*Outcomes of a step*/
+    public static final String OUTCOME_DONE = "done";
+    public static final String OUTCOME_SKIPPED = "skipped";
+    public static final String OUTCOME_TIMED_OUT = "timed out";
+    public static final String OUTCOME_YIELDED = "yielded";
+
+    /**
+     * Longest time a single step may take, in milliseconds.
+     */
+    private static final long STEP_BUDGET_MILLIS = 250;
+
+    /**
+     * Number of free pages released per incremental vacuum statement. Small enough that a
+     * foreground operation never waits long for the statement to notice the interrupt.
+     */
+    private static final int VACUUM_PAGES_PER_STATEMENT = 32;
+
+    /**
+     * Databases created before incremental vacuum was turned on are converted with a full
+     * VACUUM once they have this many free pages, but only if they are small enough for it
+     * to fit in a step.
+     */
+    private static final int CONVERT_MIN_FREE_PAGES = 256;
+    private static final long CONVERT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Older SQLite versions don't have PRAGMA optimize. A table is analyzed again once its
+     * row count is this many times off from the one in its statistics.
+     */
+    private static final int STALE_STATS_FACTOR = 2;
+
+    /**
+     * Number of runs kept in the maintenance log.
+     */
+    private static final int MAX_LOG_ENTRIES = 100;
+
+    /**
+     * Tables whose statistics the planner uses.
+     */
+    private static final String[] ANALYZED_TABLES = {
+            PetEntry.TABLE_NAME,
+            PetArchive.TABLE_NAME,
+            WeightEntry.TABLE_NAME,
+            WeightEntry.TABLE_NAME_DAY,
+            WeightEntry.TABLE_NAME_WEEK,
+            WeightEntry.TABLE_NAME_MONTH,
+            PetChangeLog.TABLE_NAME
+    };
+
+    public static final String SQL_CREATE_LOG_TABLE =
+            "CREATE TABLE " + TABLE_NAME + "(" +
+                    COLUMN_ID + " INTEGER PRIMARY KEY, " +
+                    COLUMN_STARTED_AT + " INTEGER NOT NULL, " +
+                    COLUMN_STEP + " TEXT NOT NULL, " +
+                    COLUMN_OUTCOME + " TEXT NOT NULL, " +
+                    COLUMN_DURATION_MILLIS + " INTEGER NOT NULL, " +
+                    COLUMN_DETAIL + " TEXT);";
+
+    /**
+     * What one step of a run did.
+     */
+    public static class Step {
+        public final String name;
+        public final String outcome;
+        public final long durationMillis;
+        /**
+         * What the step worked on, for the log. May be null.
+         */
+        public final String detail;
+
+        Step(String name, String outcome, long durationMillis, String detail) {
+            this.name = name;
+            this.outcome = outcome;
+            this.durationMillis = durationMillis;
+            this.detail = detail;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + outcome + " in " + durationMillis + " ms" +
+                    (detail == null ? "" : " (" + detail + ")");
+        }
+    }
+
+    /**
+     * Thrown when the running statement was interrupted. Ends the step.
+     */
+    private static class InterruptedStep extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final String outcome;
+
+        InterruptedStep(String outcome) {
+            this.outcome = outcome;
+        }
+    }
+
+    private final PetDbHelper mDbHelper;
+
+    /**
+     * Cancels the running statement when its step runs out of time.
+     */
+    private ScheduledExecutorService mWatchdog;
+
+    /**
+     * Signal of the running statement, or null.
+     */
+    private volatile CancellationSignal mSignal;
+
+    private volatile boolean mYielded;
+    private long mStepDeadline;
+
+    public PetMaintenance(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Stop the run as soon as possible because the app needs the database. Interrupts the
+     * running statement. Can be called from any thread.
+     */
+    public void yieldToForeground() {
+        mYielded = true;
+        CancellationSignal signal = mSignal;
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
+    /**
+     * Run every step, record them in the maintenance log and return them. Each run must use a
+     * new instance.
+     */
+    public List<Step> run() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long startedAt = System.currentTimeMillis();
+        List<Step> steps = new ArrayList<>();
+        mWatchdog = Executors.newSingleThreadScheduledExecutor();
+        try {
+            String[] names = {STEP_ANALYZE, STEP_CHECKPOINT, STEP_VACUUM};
+            for (String name : names) {
+                if (mYielded) {
+                    steps.add(new Step(name, OUTCOME_SKIPPED, 0, "app busy"));
+                    continue;
+                }
+                long start = SystemClock.elapsedRealtime();
+                mStepDeadline = start + STEP_BUDGET_MILLIS;
+                String outcome = OUTCOME_DONE;
+                List<String> detail = new ArrayList<>();
+                try {
+                    runStep(db, name, detail);
+                } catch (InterruptedStep e) {
+                    outcome = e.outcome;
+                }
+                if (detail.isEmpty() && OUTCOME_DONE.equals(outcome)) {
+                    outcome = OUTCOME_SKIPPED;
+                }
+                steps.add(new Step(name, outcome, SystemClock.elapsedRealtime() - start,
+                        detail.isEmpty() ? null : TextUtils.join(", ", detail)));
+            }
+        } finally {
+            mWatchdog.shutdownNow();
+        }
+        record(db, startedAt, steps);
+        return steps;
+    }
+
+    private void runStep(SQLiteDatabase db, String name, List<String> detail)
+            throws InterruptedStep {
+        switch (name) {
+            case STEP_ANALYZE:
+                analyze(db, detail);
+                break;
+            case STEP_CHECKPOINT:
+                checkpoint(db, detail);
+                break;
+            case STEP_VACUUM:
+                vacuum(db, detail);
+                break;
+        }
+    }
+
+    /**
+     * Refresh the planner statistics. PRAGMA optimize decides by itself which tables need it;
+     * on older SQLite versions the tables whose statistics are missing or far off are analyzed
+     * one at a time.
+     */
+    private void analyze(SQLiteDatabase db, List<String> detail) throws InterruptedStep {
+        if (sqliteVersionAtLeast(db, 3, 18)) {
+            execute(db, "PRAGMA optimize");
+            detail.add("optimize");
+            return;
+        }
+        for (String table : ANALYZED_TABLES) {
+            if (statsAreCurrent(db, table)) {
+                continue;
+            }
+            execute(db, "ANALYZE " + table);
+            detail.add(table);
+        }
+    }
+
+    private static boolean sqliteVersionAtLeast(SQLiteDatabase db, int major, int minor) {
+        String[] parts = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null)
+                .split("\\.");
+        int actualMajor = Integer.parseInt(parts[0]);
+        int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+    }
+
+    /**
+     * Return whether the row count in the statistics of the given table is still about right.
+     */
+    private static boolean statsAreCurrent(SQLiteDatabase db, String table) {
+        if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE name = ?",
+                new String[]{"sqlite_stat1"}) == 0) {
+            return false;
+        }
+        Cursor cursor = db.rawQuery("SELECT stat FROM sqlite_stat1 WHERE tbl = ? LIMIT 1",
+                new String[]{table});
+        long estimate;
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            // The first number of a stat is the row count of the table.
+            String stat = cursor.getString(0);
+            int end = stat.indexOf(' ');
+            estimate = Long.parseLong(end < 0 ? stat : stat.substring(0, end));
+        } finally {
+            cursor.close();
+        }
+        long rows = DatabaseUtils.queryNumEntries(db, table);
+        return rows <= Math.max(estimate, 1) * STALE_STATS_FACTOR
+                && estimate <= Math.max(rows, 1) * STALE_STATS_FACTOR;
+    }
+
+    /**
+     * Copy the write-ahead log back into the database and truncate it. Nothing to do with a
+     * rollback journal, which SQLite already cuts down after every transaction.
+     */
+    private void checkpoint(SQLiteDatabase db, List<String> detail) throws InterruptedStep {
+        if (!db.isWriteAheadLoggingEnabled()) {
+            return;
+        }
+        Cursor cursor = query(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+        try {
+            if (cursor.moveToFirst()) {
+                detail.add(cursor.getInt(2) + " of " + cursor.getInt(1) + " frames" +
+                        (cursor.getInt(0) != 0 ? ", busy" : ""));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Release free pages a few at a time until none are left or the step runs out of time.
+     * Databases created before incremental vacuum was turned on by {@link PetDbHelper} are
+     * converted by a full VACUUM first, if they are small enough.
+     */
+    private void vacuum(SQLiteDatabase db, List<String> detail) throws InterruptedStep {
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        if (freePages == 0) {
+            return;
+        }
+        long autoVacuum = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null);
+        if (autoVacuum == 0) {
+            long bytes = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                    * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+            if (freePages < CONVERT_MIN_FREE_PAGES || bytes > CONVERT_MAX_BYTES) {
+                return;
+            }
+            // The new mode is only written to the file by the VACUUM.
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            execute(db, "VACUUM");
+            detail.add("converted, " + freePages + " pages released");
+            return;
+        }
+        long released = 0;
+        try {
+            while (freePages > 0) {
+                execute(db, "PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STATEMENT + ")");
+                long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                released += freePages - left;
+                freePages = left;
+            }
+        } finally {
+            detail.add(released + " pages released, " + freePages + " left");
+        }
+    }
+
+    /**
+     * Execute a statement that returns no rows, interruptibly.
+     */
+    private void execute(SQLiteDatabase db, String sql) throws InterruptedStep {
+        query(db, sql).close();
+    }
+
+    /**
+     * Run a statement to completion with a signal that is cancelled when the step runs out of
+     * time or the app needs the database, and return its rows.
+     */
+    private Cursor query(SQLiteDatabase db, String sql) throws InterruptedStep {
+        long remaining = mStepDeadline - SystemClock.elapsedRealtime();
+        if (remaining <= 0) {
+            throw new InterruptedStep(OUTCOME_TIMED_OUT);
+        }
+        final CancellationSignal signal = new CancellationSignal();
+        mSignal = signal;
+        ScheduledFuture<?> timeout = mWatchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                signal.cancel();
+            }
+        }, remaining, TimeUnit.MILLISECONDS);
+        try {
+            // Checked after publishing the signal, so a concurrent yield can't be missed.
+            if (mYielded) {
+                throw new InterruptedStep(OUTCOME_YIELDED);
+            }
+            Cursor cursor = db.rawQuery(sql, null, signal);
+            try {
+                // Queries only run when their rows are needed.
+                cursor.getCount();
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+            return cursor;
+        } catch (OperationCanceledException e) {
+            throw new InterruptedStep(mYielded ? OUTCOME_YIELDED : OUTCOME_TIMED_OUT);
+        } finally {
+            timeout.cancel(false);
+            mSignal = null;
+        }
+    }
+
+    /**
+     * Add the steps to the maintenance log and drop the oldest runs.
+     */
+    private static void record(SQLiteDatabase db, long startedAt, List<Step> steps) {
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Step step : steps) {
+                values.put(COLUMN_STARTED_AT, startedAt);
+                values.put(COLUMN_STEP, step.name);
+                values.put(COLUMN_OUTCOME, step.outcome);
+                values.put(COLUMN_DURATION_MILLIS, step.durationMillis);
+                values.put(COLUMN_DETAIL, step.detail);
+                db.insert(TABLE_NAME, null, values);
+            }
+            db.delete(TABLE_NAME, COLUMN_STARTED_AT + " < (SELECT MIN(" + COLUMN_STARTED_AT +
+                    ") FROM (SELECT DISTINCT " + COLUMN_STARTED_AT + " FROM " + TABLE_NAME +
+                    " ORDER BY " + COLUMN_STARTED_AT + " DESC LIMIT " + MAX_LOG_ENTRIES + "))",
+                    null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.pets.data;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.R;
+
+/**
+ * Background job that runs the database maintenance of every shelter, see
+ * {@link PetMaintenance}. It wakes up a few times a day once {@link #schedule} has been called
+ * and only does anything while the app is idle; shelters it has to skip are dealt with on a
+ * later run.
+ */
+public class PetMaintenanceService extends IntentService {
+
+    public static final String LOG_TAG = PetMaintenanceService.class.getSimpleName();
+
+    public PetMaintenanceService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * Schedule the maintenance runs, unless they're scheduled already. Fine to call on every
+     * start of the app.
+     */
+    public static void schedule(Context context) {
+        if (context.getResources().getBoolean(R.bool.in_memory_pet_store)) {
+            // No database files to maintain.
+            return;
+        }
+        Intent intent = new Intent(context, PetMaintenanceService.class);
+        // Same as PetArchiveService: don't push the first run back on every start.
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent operation = PendingIntent.getService(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HALF_DAY,
+                AlarmManager.INTERVAL_HALF_DAY, operation);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Bundle shelters = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                PetContract.METHOD_LIST_SHELTERS, null, null);
+        for (long shelterId : shelters.getLongArray(PetContract.EXTRA_IDS)) {
+            Bundle extras = new Bundle();
+            extras.putLong(PetContract.EXTRA_SHELTER_ID, shelterId);
+            Bundle result = getContentResolver().call(PetContract.PetEntry.CONTENT_URI,
+                    PetContract.METHOD_MAINTAIN, null, extras);
+            if (result.getBoolean(PetContract.EXTRA_MAINTENANCE_SKIPPED)) {
+                Log.i(LOG_TAG, "App busy, maintenance put off");
+                return;
+            }
+            for (String step : result.getStringArray(PetContract.EXTRA_MAINTENANCE_STEPS)) {
+                Log.i(LOG_TAG, "Shelter " + shelterId + " " + step);
+            }
+        }
+    }
+}
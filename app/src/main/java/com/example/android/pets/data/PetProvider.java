@@ -1,18 +1,105 @@
 package com.example.android.pets.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.example.android.pets.R;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.example.android.pets.data.PetContract.AdopterEntry;
+import static com.example.android.pets.data.PetContract.AdoptionEntry;
 import static com.example.android.pets.data.PetContract.CONTENT_AUTHORITY;
+import static com.example.android.pets.data.PetContract.CatalogEntry;
+import static com.example.android.pets.data.PetContract.DEFAULT_SHELTER_ID;
+import static com.example.android.pets.data.PetContract.DuplicateEntry;
+import static com.example.android.pets.data.PetContract.EXTRA_ARCHIVE_INACTIVE_SINCE;
+import static com.example.android.pets.data.PetContract.EXTRA_BACKUP_BYTES;
+import static com.example.android.pets.data.PetContract.EXTRA_BACKUP_DURATION_MILLIS;
+import static com.example.android.pets.data.PetContract.EXTRA_BACKUP_MAX_STEP_MILLIS;
+import static com.example.android.pets.data.PetContract.EXTRA_BACKUP_MAX_WRITER_STALL_MILLIS;
+import static com.example.android.pets.data.PetContract.EXTRA_BACKUP_ROWS;
+import static com.example.android.pets.data.PetContract.EXTRA_COUNT;
+import static com.example.android.pets.data.PetContract.EXTRA_EXISTS;
+import static com.example.android.pets.data.PetContract.EXTRA_IDS;
+import static com.example.android.pets.data.PetContract.EXTRA_MAINTENANCE_SKIPPED;
+import static com.example.android.pets.data.PetContract.EXTRA_MAINTENANCE_STEPS;
+import static com.example.android.pets.data.PetContract.EXTRA_ROWS_AFFECTED;
+import static com.example.android.pets.data.PetContract.EXTRA_SELECTION;
+import static com.example.android.pets.data.PetContract.EXTRA_SELECTION_ARGS;
+import static com.example.android.pets.data.PetContract.EXTRA_SHELTER_ID;
+import static com.example.android.pets.data.PetContract.EXTRA_SORT_ORDER;
+import static com.example.android.pets.data.PetContract.EXTRA_SYNC_APPLIED;
+import static com.example.android.pets.data.PetContract.EXTRA_SYNC_CHANGES;
+import static com.example.android.pets.data.PetContract.EXTRA_SYNC_LAST_SEQ;
+import static com.example.android.pets.data.PetContract.EXTRA_SYNC_MAX_BYTES;
+import static com.example.android.pets.data.PetContract.EXTRA_SYNC_SKIPPED;
+import static com.example.android.pets.data.PetContract.EXTRA_UNDOABLE;
+import static com.example.android.pets.data.PetContract.EXTRA_UNDO_TOKEN;
+import static com.example.android.pets.data.PetContract.EXTRA_VALUES;
+import static com.example.android.pets.data.PetContract.METHOD_ARCHIVE;
+import static com.example.android.pets.data.PetContract.METHOD_BACKUP;
+import static com.example.android.pets.data.PetContract.METHOD_COUNT;
+import static com.example.android.pets.data.PetContract.METHOD_DELETE_IDS;
+import static com.example.android.pets.data.PetContract.METHOD_EXISTS;
+import static com.example.android.pets.data.PetContract.METHOD_FIND_DUPLICATES;
+import static com.example.android.pets.data.PetContract.METHOD_LIST_IDS;
+import static com.example.android.pets.data.PetContract.METHOD_LIST_SHELTERS;
+import static com.example.android.pets.data.PetContract.METHOD_MAINTAIN;
+import static com.example.android.pets.data.PetContract.METHOD_RESTORE;
+import static com.example.android.pets.data.PetContract.METHOD_SYNC_ACK_CHANGES;
+import static com.example.android.pets.data.PetContract.METHOD_SYNC_APPLY_CHANGES;
+import static com.example.android.pets.data.PetContract.METHOD_SYNC_READ_CHANGES;
+import static com.example.android.pets.data.PetContract.METHOD_TRACE_START;
+import static com.example.android.pets.data.PetContract.METHOD_TRACE_STOP;
+import static com.example.android.pets.data.PetContract.METHOD_UNDO_DELETE;
+import static com.example.android.pets.data.PetContract.METHOD_UPDATE_IDS;
+import static com.example.android.pets.data.PetContract.PATH_ADOPTERS;
+import static com.example.android.pets.data.PetContract.PATH_ADOPTIONS;
+import static com.example.android.pets.data.PetContract.PATH_CATALOG;
+import static com.example.android.pets.data.PetContract.PATH_DUPLICATES;
 import static com.example.android.pets.data.PetContract.PATH_PETS;
+import static com.example.android.pets.data.PetContract.PATH_SHELTERS;
+import static com.example.android.pets.data.PetContract.PATH_WEIGHTS;
 import static com.example.android.pets.data.PetContract.PetEntry;
+import static com.example.android.pets.data.PetContract.UNDO_WINDOW_MILLIS;
+import static com.example.android.pets.data.PetContract.WeightEntry;
 
 /**
  * Created by Nissan on 6/16/2017.
@@ -28,8 +115,82 @@ public class PetProvider extends ContentProvider {
      */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
-    /*Database helper object*/
-    private PetDbHelper mDbHelper;
+    /**
+     * How long a restore waits for the cursors still reading the database to be closed.
+     */
+    private static final long RESTORE_WAIT_MILLIS = 5000;
+
+    /*Storage of the shelters, one database file (or in-memory store) per shelter*/
+    private PetShardManager mShards;
+
+    /**
+     * Every operation holds the read lock while it uses the database. A restore takes the write
+     * lock, so it can close the database and swap the file without anyone still using it.
+     */
+    private final ReentrantReadWriteLock mDatabaseLock = new ReentrantReadWriteLock();
+
+    /**
+     * Total time operations spent taking the read lock of {@link #mDatabaseLock}, for the
+     * debug stress tool.
+     */
+    private final AtomicLong mLockWaitNanos = new AtomicLong();
+
+    /**
+     * Number of backups in progress. While there is one, every insert, update, delete and call
+     * that writes records how long it took in {@link #mBackupMaxWriteNanos}, so the backup can report the
+     * longest a writer was held up.
+     */
+    private final AtomicInteger mBackupsRunning = new AtomicInteger();
+
+    /**
+     * Longest write since the first of the running backups started, in nanoseconds.
+     */
+    private final AtomicLong mBackupMaxWriteNanos = new AtomicLong();
+
+    /**
+     * When the last operation started, in {@link SystemClock#elapsedRealtime} time, or 0 if
+     * there hasn't been one yet. Maintenance only runs once this is a while ago.
+     */
+    private final AtomicLong mLastOperationAt = new AtomicLong();
+
+    /**
+     * The maintenance run in progress, or null. It's interrupted by every other operation.
+     */
+    private volatile PetMaintenance mRunningMaintenance;
+
+    /**
+     * Held by the maintenance run in progress, so shelters are maintained one at a time.
+     */
+    private final Object mMaintenanceLock = new Object();
+
+    /**
+     * Notifications held back by the batch running on the thread, see {@link #beginBatch}.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<>();
+
+    /**
+     * Where calls are recorded while {@link PetContract#METHOD_TRACE_START} is in effect, or
+     * null.
+     */
+    private volatile PetTrace.Recorder mTraceRecorder;
+
+    /**
+     * Pets deleted by undoable deletes, by undo token, oldest first. Entries are dropped once
+     * their undo window is over.
+     */
+    private final LinkedHashMap<String, PendingUndo> mPendingUndos = new LinkedHashMap<>();
+
+    private static class PendingUndo {
+        final long shelterId;
+        final PetTombstone tombstone;
+        final long expiresAt;
+
+        PendingUndo(long shelterId, PetTombstone tombstone, long expiresAt) {
+            this.shelterId = shelterId;
+            this.tombstone = tombstone;
+            this.expiresAt = expiresAt;
+        }
+    }
 
     /**
      * URI matcher code for the content URI for the pets table
@@ -41,6 +202,66 @@ public class PetProvider extends ContentProvider {
      */
     private static final int PET_ID = 101;
 
+    /**
+     * URI matcher code for the content URI for the pets table of a particular shelter
+     */
+    private static final int SHELTER_PETS = 102;
+
+    /**
+     * URI matcher code for the content URI for a single pet of a particular shelter
+     */
+    private static final int SHELTER_PET_ID = 103;
+
+    /**
+     * URI matcher code for the content URI for the pets of all shelters
+     */
+    private static final int ALL_SHELTERS_PETS = 104;
+
+    /**
+     * URI matcher code for the content URI for the weight history of a single pet
+     */
+    private static final int PET_WEIGHTS = 105;
+
+    /**
+     * URI matcher code for the content URI for the weight history of a pet of a particular shelter
+     */
+    private static final int SHELTER_PET_WEIGHTS = 106;
+
+    /**
+     * URI matcher codes for the adopters and adoptions, in the default shelter or a particular
+     * one, either all of them or a single row
+     */
+    private static final int ADOPTERS = 107;
+    private static final int ADOPTER_ID = 108;
+    private static final int ADOPTIONS = 109;
+    private static final int ADOPTION_ID = 110;
+    private static final int SHELTER_ADOPTERS = 111;
+    private static final int SHELTER_ADOPTER_ID = 112;
+    private static final int SHELTER_ADOPTIONS = 113;
+    private static final int SHELTER_ADOPTION_ID = 114;
+
+    /**
+     * URI matcher codes for the catalog of the default shelter or a particular one
+     */
+    private static final int CATALOG = 115;
+    private static final int SHELTER_CATALOG = 116;
+
+    /**
+     * URI matcher codes for the likely duplicates of the default shelter or a particular one
+     */
+    private static final int DUPLICATES = 117;
+    private static final int SHELTER_DUPLICATES = 118;
+
+    /**
+     * How many rows are merged between checks of a query's cancellation signal.
+     */
+    private static final int CANCEL_CHECK_INTERVAL_ROWS = 256;
+
+    /**
+     * What {@link BaseColumns#_COUNT} in a pets projection stands for.
+     */
+    private static final String COUNT_ALL = "COUNT(*)";
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -51,16 +272,312 @@ public class PetProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS, PETS);
         sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_PETS, SHELTER_PETS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_PETS + "/#",
+                SHELTER_PET_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/" + PATH_PETS, ALL_SHELTERS_PETS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/#/" + PATH_WEIGHTS, PET_WEIGHTS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_PETS + "/#/" +
+                PATH_WEIGHTS, SHELTER_PET_WEIGHTS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_ADOPTERS, ADOPTERS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_ADOPTERS + "/#", ADOPTER_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_ADOPTIONS, ADOPTIONS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_ADOPTIONS + "/#", ADOPTION_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_ADOPTERS,
+                SHELTER_ADOPTERS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_ADOPTERS + "/#",
+                SHELTER_ADOPTER_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_ADOPTIONS,
+                SHELTER_ADOPTIONS);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_ADOPTIONS + "/#",
+                SHELTER_ADOPTION_ID);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_CATALOG, CATALOG);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_CATALOG,
+                SHELTER_CATALOG);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_DUPLICATES, DUPLICATES);
+        sUriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/#/" + PATH_DUPLICATES,
+                SHELTER_DUPLICATES);
 
     }
 
     @Override
     public boolean onCreate() {
-        //Create and initialize a PetDbHelper object to gain access to the pets database.
-        mDbHelper = new PetDbHelper(getContext());
+        //Create the shard manager, which opens each shelter's store when it's first used.
+        //Kiosk builds can switch to the in-memory engine through the in_memory_pet_store flag.
+        mShards = new PetShardManager(getContext(),
+                getContext().getResources().getBoolean(R.bool.in_memory_pet_store));
         return false;
     }
 
+    /**
+     * Return the ID of the shelter the URI refers to.
+     */
+    private static long shelterIdFor(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        if (match == SHELTER_PETS || match == SHELTER_PET_ID || match == SHELTER_PET_WEIGHTS ||
+                match == SHELTER_ADOPTERS || match == SHELTER_ADOPTER_ID ||
+                match == SHELTER_ADOPTIONS || match == SHELTER_ADOPTION_ID ||
+                match == SHELTER_CATALOG || match == SHELTER_DUPLICATES) {
+            // content://com.example.android.pets/shelters/3/pets -> 3
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+        return DEFAULT_SHELTER_ID;
+    }
+
+    /**
+     * Return the ID of the pet whose weight history the URI refers to.
+     */
+    private static long petIdForWeights(Uri uri) {
+        // content://com.example.android.pets/pets/5/weights -> 5
+        List<String> segments = uri.getPathSegments();
+        return Long.parseLong(segments.get(segments.size() - 2));
+    }
+
+    /**
+     * Return the weight history of the given shelter. It needs the rollup tables and triggers,
+     * so it only exists in the SQLite store.
+     */
+    private PetWeightHistory weightHistory(long shelterId) {
+        PetStore store = mShards.get(shelterId);
+        if (!(store instanceof SqlitePetStore)) {
+            throw new UnsupportedOperationException("The in-memory store has no weight history");
+        }
+        return new PetWeightHistory(((SqlitePetStore) store).getDbHelper());
+    }
+
+    /**
+     * Return the table of the adopters, adoptions or catalog URI with the given match, or null
+     * if the URI is about something else.
+     */
+    private static String adoptionTableFor(int match) {
+        switch (match) {
+            case ADOPTERS:
+            case ADOPTER_ID:
+            case SHELTER_ADOPTERS:
+            case SHELTER_ADOPTER_ID:
+                return AdopterEntry.TABLE_NAME;
+            case ADOPTIONS:
+            case ADOPTION_ID:
+            case SHELTER_ADOPTIONS:
+            case SHELTER_ADOPTION_ID:
+                return AdoptionEntry.TABLE_NAME;
+            case CATALOG:
+            case SHELTER_CATALOG:
+                return CatalogEntry.TABLE_NAME;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isAdoptionItem(int match) {
+        return match == ADOPTER_ID || match == SHELTER_ADOPTER_ID || match == ADOPTION_ID ||
+                match == SHELTER_ADOPTION_ID;
+    }
+
+    /**
+     * Return the adopters and adoptions of the given shelter. They need the adoption tables and
+     * triggers, so they only exist in the SQLite store.
+     */
+    private PetAdoptions adoptions(long shelterId) {
+        PetStore store = mShards.get(shelterId);
+        if (!(store instanceof SqlitePetStore)) {
+            throw new UnsupportedOperationException("The in-memory store has no adoptions");
+        }
+        return new PetAdoptions(((SqlitePetStore) store).getDbHelper());
+    }
+
+    /**
+     * Return the duplicate detection of the given shelter. It's fed by triggers, so it only
+     * exists in the SQLite store.
+     */
+    private PetDuplicates duplicates(long shelterId) {
+        PetStore store = mShards.get(shelterId);
+        if (!(store instanceof SqlitePetStore)) {
+            throw new UnsupportedOperationException("The in-memory store has no duplicate detection");
+        }
+        return new PetDuplicates(((SqlitePetStore) store).getDbHelper());
+    }
+
+    /**
+     * Take the read lock for an operation, adding the time it took to {@link #getLockWaitNanos}.
+     * Any maintenance in progress is interrupted first, so the operation doesn't wait for it.
+     */
+    private void lockDatabase() {
+        mLastOperationAt.set(SystemClock.elapsedRealtime());
+        yieldMaintenance();
+        long start = System.nanoTime();
+        mDatabaseLock.readLock().lock();
+        mLockWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Record a write that started at the given {@link System#nanoTime} if a backup is running.
+     */
+    private void recordWrite(long start) {
+        if (mBackupsRunning.get() == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        long max = mBackupMaxWriteNanos.get();
+        while (nanos > max && !mBackupMaxWriteNanos.compareAndSet(max, nanos)) {
+            max = mBackupMaxWriteNanos.get();
+        }
+    }
+
+    private void yieldMaintenance() {
+        PetMaintenance maintenance = mRunningMaintenance;
+        if (maintenance != null) {
+            maintenance.yieldToForeground();
+        }
+    }
+
+    /**
+     * Record a finished call, if a trace is being recorded.
+     */
+    private void trace(PetTrace.Call call, long startNanos, long result, boolean failed) {
+        PetTrace.Recorder recorder = mTraceRecorder;
+        if (recorder != null) {
+            recorder.record(call, startNanos, System.nanoTime() - startNanos, result, failed);
+        }
+    }
+
+    /**
+     * Start recording every call to the trace file at the given path.
+     */
+    private synchronized void startTrace(String path) {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("No trace file given");
+        }
+        if (mTraceRecorder != null) {
+            throw new IllegalStateException("Already recording a trace");
+        }
+        try {
+            mTraceRecorder = new PetTrace.Recorder(new File(path));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create trace file " + path, e);
+        }
+        Log.i(LOG_TAG, "Recording calls to " + path);
+    }
+
+    /**
+     * Stop recording and return the number of recorded calls, 0 if nothing was recorded.
+     */
+    private synchronized long stopTrace() {
+        PetTrace.Recorder recorder = mTraceRecorder;
+        if (recorder == null) {
+            return 0;
+        }
+        mTraceRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not finish the trace", e);
+        }
+        return recorder.getCount();
+    }
+
+    /**
+     * Return the total time operations have spent waiting for the database lock since the
+     * provider was created. Only a restore holds the lock exclusively, so this mostly measures
+     * the cost of taking it.
+     */
+    public long getLockWaitNanos() {
+        return mLockWaitNanos.get();
+    }
+
+    /**
+     * Notify observers of the given URI, those watching all shelters and those watching the
+     * shelter's catalog, which copies the pets, that pets were inserted or changed.
+     * <p>
+     * The changed pets are waiting to be checked for duplicates now, so this also schedules the
+     * check in the background.
+     */
+    private void notifyChange(Uri uri) {
+        notifyChange(uri, false);
+    }
+
+    /**
+     * Like {@link #notifyChange(Uri)}, for changes that may have deleted pets. Deleted pets take
+     * their duplicates with them, so those observers are notified too. Other changes only show
+     * up there once the background check is done, which notifies them itself.
+     */
+    private void notifyChange(Uri uri, boolean petsDeleted) {
+        long shelterId = shelterIdFor(uri);
+        sendNotification(uri);
+        sendNotification(PetEntry.ALL_SHELTERS_CONTENT_URI);
+        sendNotification(CatalogEntry.contentUriForShelter(shelterId));
+        if (petsDeleted) {
+            sendNotification(DuplicateEntry.contentUriForShelter(shelterId));
+        }
+        PetDuplicateService.schedule(getContext(), shelterId);
+    }
+
+    /**
+     * Notify observers of the given adopters or adoptions URI, and those watching the shelter's
+     * catalog, which shows the adoptions, that they changed.
+     */
+    private void notifyAdoptionChange(Uri uri) {
+        sendNotification(uri);
+        sendNotification(CatalogEntry.contentUriForShelter(shelterIdFor(uri)));
+    }
+
+    /**
+     * Notify the observers of the URI, or, in the middle of a batch, once the batch is done.
+     */
+    private void sendNotification(Uri uri) {
+        Set<Uri> batchNotifications = mBatchNotifications.get();
+        if (batchNotifications != null) {
+            batchNotifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Start holding back this thread's notifications until {@link #endBatch}, unless a batch is
+     * already running on it.
+     *
+     * @return whether this started the batch, to be passed to {@link #endBatch}.
+     */
+    private boolean beginBatch() {
+        if (mBatchNotifications.get() != null) {
+            return false;
+        }
+        mBatchNotifications.set(new LinkedHashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * Send the notifications held back since {@link #beginBatch}, each URI once, if the batch
+     * was started by the matching call.
+     */
+    private void endBatch(boolean started) {
+        if (!started) {
+            return;
+        }
+        Set<Uri> batchNotifications = mBatchNotifications.get();
+        mBatchNotifications.remove();
+        for (Uri uri : batchNotifications) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Apply the operations, notifying observers once at the end instead of after every one.
+     * Like {@link ContentProvider#applyBatch}, the operations before a failing one stay applied.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        boolean started = beginBatch();
+        try {
+            return super.applyBatch(operations);
+        } finally {
+            endBatch(started);
+        }
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
@@ -68,9 +585,73 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
-        // Get readable database
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Perform the query for the given URI, giving up with an {@link OperationCanceledException}
+     * as soon as the signal is cancelled. A CursorLoader cancels it when its query is no longer
+     * wanted, e.g. when the user leaves the screen, so the scan stops and its connection is
+     * free for the next caller. Newer platforms route their other query forms here too.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        MainThreadGuard.check("query", uri);
+        long start = System.nanoTime();
+        int rows = -1;
+        lockDatabase();
+        try {
+            if (cancellationSignal != null) {
+                cancellationSignal.throwIfCanceled();
+            }
+            Cursor cursor;
+            if (sUriMatcher.match(uri) == ALL_SHELTERS_PETS) {
+                cursor = queryAllShelters(uri, checkPetProjection(uri, projection), selection,
+                        selectionArgs, sortOrder, cancellationSignal);
+            } else {
+                long shelterId = shelterIdFor(uri);
+                mShards.acquireForRead(shelterId);
+                try {
+                    cursor = queryLocked(shelterId, uri, projection, selection, selectionArgs,
+                            sortOrder, cancellationSignal);
+                    // Fill the first window while we still hold the lock. This is where SQLite
+                    // does the work, so it's also where a cancelled query stops.
+                    fillWindow(cursor);
+                    // The rows past the first window are read later, from the open database.
+                    cursor = mShards.keepOpenWhile(shelterId, cursor);
+                } finally {
+                    mShards.release(shelterId);
+                }
+            }
+            rows = cursor.getCount();
+            return cursor;
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            if (mTraceRecorder != null) {
+                trace(PetTrace.Call.query(uri.toString(), projection, selection, selectionArgs,
+                        sortOrder), start, rows, rows == -1);
+            }
+        }
+    }
+
+    /**
+     * Run the cursor's query by counting its rows. If that fails, e.g. because it was
+     * cancelled, the cursor is closed right away instead of waiting for the garbage collector.
+     */
+    private static void fillWindow(Cursor cursor) {
+        try {
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        }
+    }
 
+    private Cursor queryLocked(long shelterId, @NonNull Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder,
+                               CancellationSignal cancellationSignal) {
         // This cursor will hold the result of the query
         Cursor cursor;
 
@@ -82,17 +663,20 @@ public class PetProvider extends ContentProvider {
             //i.e. if the ID is NOT provided in the URI
             //Eg: content://com.example.android.pets/pets
             case PETS:
+            case SHELTER_PETS:
                 // For the PETS code, query the pets table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the pets table.
 
-                cursor = db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder, null);
+                projection = checkPetProjection(uri, projection);
+                cursor = queryPartition(shelterId, uri, projection, selection, selectionArgs,
+                        sortOrder, cancellationSignal);
                 break;
 
             //Call this if the ID is provided in the URI
             //Eg: content://com.example.android.pets/pets/5
             case PET_ID:
+            case SHELTER_PET_ID:
                 // For the PET_ID code, extract out the ID from the URI.
                 // For an example URI such as "content://com.example.android.pets/pets/3",
                 // the selection will be "_id=?" and the selection argument will be a
@@ -110,8 +694,52 @@ public class PetProvider extends ContentProvider {
 
                 // This will perform a query on the pets table where the _id equals 5 to return a
                 // Cursor containing that row of the table.
-                cursor = db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null,
-                        sortOrder, null);
+                projection = checkPetProjection(uri, projection);
+                cursor = queryPartition(shelterId, uri, projection, selection, selectionArgs,
+                        sortOrder, cancellationSignal);
+                break;
+
+            //Weight history of a pet, either every measurement or one row per day/week/month
+            //Eg: content://com.example.android.pets/pets/5/weights?resolution=week
+            case PET_WEIGHTS:
+            case SHELTER_PET_WEIGHTS:
+                String resolution = uri.getQueryParameter(WeightEntry.QUERY_PARAMETER_RESOLUTION);
+                if (resolution == null) {
+                    resolution = WeightEntry.RESOLUTION_RAW;
+                }
+                if (!WeightEntry.isValidResolution(resolution)) {
+                    throw new IllegalArgumentException("Unknown resolution " + resolution);
+                }
+                cursor = weightHistory(shelterId).query(petIdForWeights(uri), resolution,
+                        projection, selection, selectionArgs, sortOrder, cancellationSignal);
+                break;
+
+            //Adopters, adoptions and the catalog, which lists the pets with their adoptions
+            //Eg: content://com.example.android.pets/adoptions/2
+            case ADOPTERS:
+            case ADOPTER_ID:
+            case SHELTER_ADOPTERS:
+            case SHELTER_ADOPTER_ID:
+            case ADOPTIONS:
+            case ADOPTION_ID:
+            case SHELTER_ADOPTIONS:
+            case SHELTER_ADOPTION_ID:
+            case CATALOG:
+            case SHELTER_CATALOG:
+                if (isAdoptionItem(match)) {
+                    selection = BaseColumns._ID + "=?";
+                    selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                }
+                cursor = queryAdoptionTable(shelterId, adoptionTableFor(match), projection,
+                        selection, selectionArgs, sortOrder, cancellationSignal);
+                break;
+
+            //Likely duplicates among the pets, the most likely first
+            //Eg: content://com.example.android.pets/duplicates
+            case DUPLICATES:
+            case SHELTER_DUPLICATES:
+                cursor = duplicates(shelterId).query(projection, selection, selectionArgs,
+                        sortOrder, cancellationSignal);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot Query. Unknown URI " + uri);
@@ -127,65 +755,456 @@ public class PetProvider extends ContentProvider {
 
 
     /**
-     * Returns the MIME type of data for the content URI.
+     * Query the adopters, adoptions or catalog of the shelter. Nobody adopts from the in-memory
+     * store, so its catalog is its pets without the adoption column.
      */
-
-    @Override
-    public String getType(@NonNull Uri uri) {
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return PetEntry.CONTENT_LIST_TYPE;
-            case PET_ID:
-                return PetEntry.CONTENT_ITEM_TYPE;
-            default:
-                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
+    private Cursor queryAdoptionTable(long shelterId, String table, String[] projection,
+                                      String selection, String[] selectionArgs,
+                                      String sortOrder, CancellationSignal cancellationSignal) {
+        PetStore store = mShards.get(shelterId);
+        if (CatalogEntry.TABLE_NAME.equals(table) && !(store instanceof SqlitePetStore)) {
+            if (projection != null) {
+                List<String> petColumns = new ArrayList<>(Arrays.asList(projection));
+                petColumns.remove(CatalogEntry.COLUMN_ADOPTED_AT);
+                projection = petColumns.toArray(new String[petColumns.size()]);
+            }
+            return store.query(projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
         }
+        return adoptions(shelterId).query(table, projection, selection, selectionArgs, sortOrder,
+                cancellationSignal);
     }
 
     /**
-     * Insert new data into the provider with the given ContentValues.
+     * Return the projection to query the pets with. A query without one gets
+     * {@link PetEntry#DEFAULT_PROJECTION} and a warning, so its rows don't grow with the table.
+     * {@link BaseColumns#_COUNT} becomes a count of the rows. Anything else that isn't a pet
+     * column, e.g. "*" or an expression, is passed on as it is, with a warning.
      */
-
-    @Override
-    public Uri insert(@NonNull Uri uri, ContentValues values) {
-        int match = sUriMatcher.match(uri);
-        switch (match) {
-            case PETS:
-                return insertPet(uri, values);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for: " + uri);
+    private static String[] checkPetProjection(Uri uri, String[] projection) {
+        if (projection == null) {
+            Log.w(LOG_TAG, "Query of " + uri + " without a projection, returning the default "
+                    + "columns only");
+            return PetEntry.DEFAULT_PROJECTION;
+        }
+        String[] checked = projection;
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (PetEntry.isValidColumn(column) || COUNT_ALL.equalsIgnoreCase(column)) {
+                continue;
+            }
+            if (BaseColumns._COUNT.equals(column)) {
+                if (checked == projection) {
+                    checked = projection.clone();
+                }
+                checked[i] = COUNT_ALL + " AS " + BaseColumns._COUNT;
+                continue;
+            }
+            Log.w(LOG_TAG, "Query of " + uri + " asks for " + column + ", which isn't a pet "
+                    + "column");
         }
+        return checked;
     }
 
     /**
-     * Insert a pet into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Only the SQLite store has the {@link PetEntry#WIDE_COLUMNS wide columns}.
      */
-    private Uri insertPet(Uri uri, ContentValues values) {
-        String petName = values.getAsString(PetEntry.COLUMN_PET_NAME);
-        if (petName == null || petName.equals("") || petName.equals(" ")) {
-            throw new IllegalArgumentException("Pet requires a name");
+    private static void checkStoreColumns(PetStore store, String[] projection) {
+        if (store instanceof SqlitePetStore) {
+            return;
+        }
+        for (String column : projection) {
+            if (PetEntry.isWideColumn(column)) {
+                throw new UnsupportedOperationException("The in-memory store has no column "
+                        + column);
+            }
         }
+    }
 
-        Integer petGender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-        if (petGender == null || !PetEntry.isValidGender(petGender)) {
-            throw new IllegalArgumentException("Invalid gender value: " + petGender);
+    /**
+     * Query the partition of the shelter's pets given in the URI. The current residents are
+     * queried unless the archive is asked for, so the usual queries never touch it.
+     */
+    private Cursor queryPartition(long shelterId, Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder,
+                                  CancellationSignal cancellationSignal) {
+        String partition = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_PARTITION);
+        if (partition == null || PetEntry.PARTITION_HOT.equals(partition)) {
+            PetStore store = mShards.get(shelterId);
+            checkStoreColumns(store, projection);
+            return store.query(projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
         }
-        Integer petWeight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-        if (petWeight == null || petWeight < 0) {
-            throw new IllegalArgumentException("Weight cannot be negative");
+        if (!PetEntry.isValidPartition(partition)) {
+            throw new IllegalArgumentException("Unknown partition " + partition);
         }
+        return archive(shelterId).query(partition, projection, selection, selectionArgs,
+                sortOrder, cancellationSignal);
+    }
 
-        // No need to check the breed, any value is valid (including null).
+    /**
+     * Query every shelter's shard with the same projection, selection and sort order, and merge
+     * the results into one cursor. Each shard returns its rows already sorted, so merging them
+     * keeps the overall sort order. Every row gets a {@link PetEntry#COLUMN_SHELTER_ID} column.
+     * The signal is checked between the shards and while merging, so a cancelled query doesn't
+     * go on to the next shard.
+     */
+    private Cursor queryAllShelters(Uri uri, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder,
+                                    CancellationSignal cancellationSignal) {
+        final List<SortKey> sortKeys = SortKey.parse(sortOrder);
+        // The shards have to return the sort columns too, even if the caller didn't ask for them.
+        List<String> shardColumns = new ArrayList<>(Arrays.asList(projection));
+        for (SortKey sortKey : sortKeys) {
+            if (!shardColumns.contains(sortKey.column)) {
+                shardColumns.add(sortKey.column);
+            }
+        }
+        String[] shardProjection = shardColumns.toArray(new String[shardColumns.size()]);
 
-        //Get writable database
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        List<Long> shelterIds = mShards.listShelterIds();
+        List<ShardCursor> shardCursors = new ArrayList<>(shelterIds.size());
+        try {
+            for (long shelterId : shelterIds) {
+                if (cancellationSignal != null) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                mShards.acquireForRead(shelterId);
+                try {
+                    PetStore store = mShards.get(shelterId);
+                    checkStoreColumns(store, shardProjection);
+                    Cursor cursor = store.query(shardProjection, selection, selectionArgs,
+                            sortOrder, cancellationSignal);
+                    fillWindow(cursor);
+                    // The merge below reads the rows past the first window, after the shard
+                    // was released. Closing the shard cursors lets it go again.
+                    shardCursors.add(new ShardCursor(shelterId,
+                            mShards.keepOpenWhile(shelterId, cursor), sortKeys));
+                } finally {
+                    mShards.release(shelterId);
+                }
+            }
 
-        // Insert the new pet with the given values
-        long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
+            // The columns are read by position: one like "*" or "COUNT(*) AS _count" doesn't come
+            // back under the name it was asked for. The sort columns added above come last.
+            String[] outputColumns = projection;
+            if (!shardCursors.isEmpty()) {
+                String[] shardColumnNames = shardCursors.get(0).cursor.getColumnNames();
+                outputColumns = Arrays.copyOf(shardColumnNames,
+                        shardColumnNames.length - (shardProjection.length - projection.length));
+            }
+            String[] columns = Arrays.copyOf(outputColumns, outputColumns.length + 1);
+            columns[outputColumns.length] = PetEntry.COLUMN_SHELTER_ID;
+            MatrixCursor result = new MatrixCursor(columns);
 
-        // If the ID is -1, then the insertion failed. Log an error and return null.
+            // K-way merge: repeatedly take the smallest current row of all shards.
+            PriorityQueue<ShardCursor> queue = new PriorityQueue<>(
+                    Math.max(1, shardCursors.size()), new Comparator<ShardCursor>() {
+                        @Override
+                        public int compare(ShardCursor a, ShardCursor b) {
+                            int order = SortKey.compare(sortKeys, a, b);
+                            if (order != 0 || a.shelterId == b.shelterId) {
+                                return order;
+                            }
+                            return a.shelterId < b.shelterId ? -1 : 1;
+                        }
+                    });
+            for (ShardCursor shardCursor : shardCursors) {
+                if (shardCursor.cursor.moveToFirst()) {
+                    queue.add(shardCursor);
+                }
+            }
+            int merged = 0;
+            while (!queue.isEmpty()) {
+                if (cancellationSignal != null && ++merged % CANCEL_CHECK_INTERVAL_ROWS == 0) {
+                    cancellationSignal.throwIfCanceled();
+                }
+                ShardCursor next = queue.poll();
+                Object[] row = new Object[columns.length];
+                for (int i = 0; i < outputColumns.length; i++) {
+                    row[i] = valueAt(next.cursor, i);
+                }
+                row[outputColumns.length] = next.shelterId;
+                result.addRow(row);
+                if (next.cursor.moveToNext()) {
+                    queue.add(next);
+                }
+            }
+            result.setNotificationUri(getContext().getContentResolver(), uri);
+            return result;
+        } finally {
+            for (ShardCursor shardCursor : shardCursors) {
+                shardCursor.cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Return the value of the given column in the current row, keeping its type.
+     */
+    private static Object valueAt(Cursor cursor, int columnIndex) {
+        switch (cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(columnIndex);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(columnIndex);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(columnIndex);
+            default:
+                return cursor.getString(columnIndex);
+        }
+    }
+
+    /**
+     * The cursor of one shard taking part in a merge.
+     */
+    private static class ShardCursor {
+        final long shelterId;
+        final Cursor cursor;
+        final int[] sortColumnIndexes;
+
+        ShardCursor(long shelterId, Cursor cursor, List<SortKey> sortKeys) {
+            this.shelterId = shelterId;
+            this.cursor = cursor;
+            sortColumnIndexes = new int[sortKeys.size()];
+            for (int i = 0; i < sortKeys.size(); i++) {
+                sortColumnIndexes[i] = cursor.getColumnIndexOrThrow(sortKeys.get(i).column);
+            }
+        }
+    }
+
+    /**
+     * One "column [ASC|DESC]" term of a sort order.
+     */
+    private static class SortKey {
+        final String column;
+        final boolean descending;
+
+        SortKey(String column, boolean descending) {
+            this.column = column;
+            this.descending = descending;
+        }
+
+        /**
+         * Parse a plain sort order such as "name ASC, weight DESC". Anything more elaborate
+         * (expressions, COLLATE) can't be merged across shards and is rejected.
+         */
+        static List<SortKey> parse(String sortOrder) {
+            List<SortKey> sortKeys = new ArrayList<>();
+            if (TextUtils.isEmpty(sortOrder)) {
+                return sortKeys;
+            }
+            for (String term : sortOrder.split(",")) {
+                String[] parts = term.trim().split("\\s+");
+                boolean descending = false;
+                if (parts.length == 2) {
+                    String direction = parts[1].toUpperCase(Locale.US);
+                    if (direction.equals("DESC")) {
+                        descending = true;
+                    } else if (!direction.equals("ASC")) {
+                        parts = null;
+                    }
+                }
+                if (parts == null || parts.length > 2 || !parts[0].matches("[A-Za-z_]+")) {
+                    throw new IllegalArgumentException("Unsupported sort order for all shelters: "
+                            + sortOrder);
+                }
+                sortKeys.add(new SortKey(parts[0], descending));
+            }
+            return sortKeys;
+        }
+
+        /**
+         * Compare the current rows of two shard cursors the way SQLite sorts them: NULLs first,
+         * then numbers, then text.
+         */
+        static int compare(List<SortKey> sortKeys, ShardCursor a, ShardCursor b) {
+            for (int i = 0; i < sortKeys.size(); i++) {
+                int order = compareValues(a.cursor, a.sortColumnIndexes[i],
+                        b.cursor, b.sortColumnIndexes[i]);
+                if (order != 0) {
+                    return sortKeys.get(i).descending ? -order : order;
+                }
+            }
+            return 0;
+        }
+
+        private static int compareValues(Cursor a, int columnA, Cursor b, int columnB) {
+            int typeA = a.getType(columnA);
+            int typeB = b.getType(columnB);
+            int rankA = typeRank(typeA);
+            int rankB = typeRank(typeB);
+            if (rankA != rankB) {
+                return rankA < rankB ? -1 : 1;
+            }
+            switch (typeA) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return 0;
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    if (typeA == Cursor.FIELD_TYPE_INTEGER && typeB == Cursor.FIELD_TYPE_INTEGER) {
+                        long longA = a.getLong(columnA);
+                        long longB = b.getLong(columnB);
+                        return longA < longB ? -1 : (longA == longB ? 0 : 1);
+                    }
+                    return Double.compare(a.getDouble(columnA), b.getDouble(columnB));
+                default:
+                    return a.getString(columnA).compareTo(b.getString(columnB));
+            }
+        }
+
+        private static int typeRank(int type) {
+            switch (type) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return 0;
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return 1;
+                default:
+                    return 2;
+            }
+        }
+    }
+
+    /**
+     * Returns the MIME type of data for the content URI.
+     */
+
+    @Override
+    public String getType(@NonNull Uri uri) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+            case SHELTER_PETS:
+            case ALL_SHELTERS_PETS:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_ID:
+            case SHELTER_PET_ID:
+                return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_WEIGHTS:
+            case SHELTER_PET_WEIGHTS:
+                return WeightEntry.CONTENT_LIST_TYPE;
+            case ADOPTERS:
+            case SHELTER_ADOPTERS:
+                return AdopterEntry.CONTENT_LIST_TYPE;
+            case ADOPTER_ID:
+            case SHELTER_ADOPTER_ID:
+                return AdopterEntry.CONTENT_ITEM_TYPE;
+            case ADOPTIONS:
+            case SHELTER_ADOPTIONS:
+                return AdoptionEntry.CONTENT_LIST_TYPE;
+            case ADOPTION_ID:
+            case SHELTER_ADOPTION_ID:
+                return AdoptionEntry.CONTENT_ITEM_TYPE;
+            case CATALOG:
+            case SHELTER_CATALOG:
+                return CatalogEntry.CONTENT_LIST_TYPE;
+            case DUPLICATES:
+            case SHELTER_DUPLICATES:
+                return DuplicateEntry.CONTENT_LIST_TYPE;
+            default:
+                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
+        }
+    }
+
+    /**
+     * Insert new data into the provider with the given ContentValues.
+     */
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        MainThreadGuard.check("insert", uri);
+        long start = System.nanoTime();
+        Uri newUri = null;
+        lockDatabase();
+        try {
+            long shelterId = shelterIdFor(uri);
+            mShards.acquire(shelterId);
+            try {
+                newUri = insertLocked(shelterId, uri, values);
+                return newUri;
+            } finally {
+                mShards.release(shelterId);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            recordWrite(start);
+            if (mTraceRecorder != null) {
+                trace(PetTrace.Call.insert(uri.toString(), values), start,
+                        newUri == null ? -1 : ContentUris.parseId(newUri), newUri == null);
+            }
+        }
+    }
+
+    private Uri insertLocked(long shelterId, @NonNull Uri uri, ContentValues values) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+            case SHELTER_PETS:
+                return insertPet(shelterId, uri, values);
+            case PET_WEIGHTS:
+            case SHELTER_PET_WEIGHTS:
+                return insertWeight(shelterId, uri, values);
+            case ADOPTERS:
+            case SHELTER_ADOPTERS:
+            case ADOPTIONS:
+            case SHELTER_ADOPTIONS:
+                return insertAdoptionRow(shelterId, uri, adoptionTableFor(match), values);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for: " + uri);
+        }
+    }
+
+    /**
+     * Insert an adopter or an adoption. Return the URI of the new row, or null if it failed,
+     * e.g. because the pet is already adopted or the pet or adopter doesn't exist.
+     */
+    private Uri insertAdoptionRow(long shelterId, Uri uri, String table, ContentValues values) {
+        if (AdopterEntry.TABLE_NAME.equals(table)) {
+            String adopterName = values.getAsString(AdopterEntry.COLUMN_ADOPTER_NAME);
+            if (TextUtils.isEmpty(adopterName) || adopterName.trim().isEmpty()) {
+                throw new IllegalArgumentException("Adopter requires a name");
+            }
+        } else {
+            if (values.getAsLong(AdoptionEntry.COLUMN_ADOPTION_PET_ID) == null) {
+                throw new IllegalArgumentException("Adoption requires a pet");
+            }
+            if (values.getAsLong(AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID) == null) {
+                throw new IllegalArgumentException("Adoption requires an adopter");
+            }
+            if (values.getAsLong(AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT) == null) {
+                values = new ContentValues(values);
+                values.put(AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT, System.currentTimeMillis());
+            }
+        }
+
+        long newRowId = adoptions(shelterId).insert(table, values);
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        notifyAdoptionChange(uri);
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
+    /**
+     * Insert a pet into the database with the given content values. Return the new content URI
+     * for that specific row in the database.
+     */
+    private Uri insertPet(long shelterId, Uri uri, ContentValues values) {
+        validateNewPet(values);
+
+        String upsertKey = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_UPSERT);
+        if (upsertKey != null) {
+            return upsertPet(shelterId, uri, values, upsertKey);
+        }
+
+        // Insert the new pet with the given values into the shelter's store
+        long newRowId = mShards.get(shelterId).insert(values);
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
         if (newRowId == -1) {
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
             return null;
@@ -193,33 +1212,206 @@ public class PetProvider extends ContentProvider {
         // Now that the data is inserted, we need to call notifyChange to notify call listeners
         // that the data has changed for the pet content URI and to ensure that the list gets updated.
         // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
         return ContentUris.withAppendedId(uri, newRowId);
     }
 
+    /**
+     * Check the content values of a new pet, which has to have every required column.
+     */
+    private static void validateNewPet(ContentValues values) {
+        String petName = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        if (petName == null || petName.equals("") || petName.equals(" ")) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+
+        Integer petGender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        if (petGender == null || !PetEntry.isValidGender(petGender)) {
+            throw new IllegalArgumentException("Invalid gender value: " + petGender);
+        }
+        Integer petWeight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (petWeight == null || petWeight < 0) {
+            throw new IllegalArgumentException("Weight cannot be negative");
+        }
+
+        // No need to check the breed, any value is valid (including null).
+    }
+
+    /**
+     * Return the SQLite store of the given shelter for an upsert, checking the key column.
+     */
+    private SqlitePetStore upsertStore(long shelterId, String keyColumn) {
+        if (!PetEntry.isValidUpsertKey(keyColumn)) {
+            throw new IllegalArgumentException("Invalid upsert key " + keyColumn);
+        }
+        PetStore store = mShards.get(shelterId);
+        if (!(store instanceof SqlitePetStore)) {
+            throw new UnsupportedOperationException("The in-memory store doesn't support upserts");
+        }
+        return (SqlitePetStore) store;
+    }
+
+    /**
+     * Insert or update the pet keyed by the given column. Return the pet's URI with the outcome
+     * as a query parameter, or null if it failed. Observers are only notified if the pet was
+     * actually written.
+     */
+    private Uri upsertPet(long shelterId, Uri uri, ContentValues values, String keyColumn) {
+        SqlitePetStore.Upsert upsert = upsertStore(shelterId, keyColumn).upsert(values, keyColumn);
+        if (upsert.id == -1) {
+            Log.e(LOG_TAG, "Failed to upsert row for " + uri);
+            return null;
+        }
+        Uri petsUri = uri.buildUpon().clearQuery().build();
+        if (!PetEntry.UPSERT_RESULT_UNCHANGED.equals(upsert.result)) {
+            notifyChange(petsUri);
+        }
+        return ContentUris.withAppendedId(petsUri, upsert.id).buildUpon()
+                .appendQueryParameter(PetEntry.QUERY_PARAMETER_UPSERT_RESULT, upsert.result)
+                .build();
+    }
+
+    /**
+     * Insert many pets. An upsert URI writes all of them in one transaction and notifies
+     * observers once, counting only the pets that were inserted or updated. Anything else is
+     * inserted one by one, with the notifications sent once at the end.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        String upsertKey = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_UPSERT);
+        int match = sUriMatcher.match(uri);
+        if (upsertKey == null || (match != PETS && match != SHELTER_PETS)) {
+            boolean started = beginBatch();
+            try {
+                return super.bulkInsert(uri, values);
+            } finally {
+                endBatch(started);
+            }
+        }
+        MainThreadGuard.check("bulkInsert", uri);
+        for (ContentValues pet : values) {
+            validateNewPet(pet);
+        }
+        // Only upserts are recorded as one bulk insert, the others as the inserts they make.
+        long start = System.nanoTime();
+        int written = -1;
+        lockDatabase();
+        try {
+            long shelterId = shelterIdFor(uri);
+            mShards.acquire(shelterId);
+            try {
+                written = upsertStore(shelterId, upsertKey).upsertAll(values, upsertKey);
+                if (written != 0) {
+                    notifyChange(uri.buildUpon().clearQuery().build());
+                }
+                return written;
+            } finally {
+                mShards.release(shelterId);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            recordWrite(start);
+            if (mTraceRecorder != null) {
+                trace(PetTrace.Call.bulkInsert(uri.toString(), values), start, written,
+                        written == -1);
+            }
+        }
+    }
+
+    /**
+     * Append a weight measurement to the history of the pet in the URI. Return the URI of the
+     * new measurement, or null if there is no such pet.
+     */
+    private Uri insertWeight(long shelterId, Uri uri, ContentValues values) {
+        Integer weight = values.getAsInteger(WeightEntry.COLUMN_WEIGHT_VALUE);
+        if (weight == null || weight < 0) {
+            throw new IllegalArgumentException("Weight cannot be negative");
+        }
+        Long measuredAt = values.getAsLong(WeightEntry.COLUMN_WEIGHT_MEASURED_AT);
+        if (measuredAt == null) {
+            measuredAt = System.currentTimeMillis();
+        }
+
+        long newRowId = weightHistory(shelterId).insert(petIdForWeights(uri), weight, measuredAt);
+        if (newRowId == -1) {
+            Log.e(LOG_TAG, "Failed to insert weight for " + uri);
+            return null;
+        }
+        sendNotification(uri);
+        return ContentUris.withAppendedId(uri, newRowId);
+    }
+
     /**
      * Delete the data at the given selection and selection arguments.
      */
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        MainThreadGuard.check("delete", uri);
+        long start = System.nanoTime();
+        int deleted = -1;
+        lockDatabase();
+        try {
+            long shelterId = shelterIdFor(uri);
+            mShards.acquire(shelterId);
+            try {
+                deleted = deleteLocked(shelterId, uri, selection, selectionArgs);
+                return deleted;
+            } finally {
+                mShards.release(shelterId);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            recordWrite(start);
+            if (mTraceRecorder != null) {
+                trace(PetTrace.Call.delete(uri.toString(), selection, selectionArgs), start,
+                        deleted, deleted == -1);
+            }
+        }
+    }
+
+    private int deleteLocked(long shelterId, @NonNull Uri uri, String selection,
+                             String[] selectionArgs) {
         int match = sUriMatcher.match(uri);
         int numberOfRowsDeleted = -1;
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        PetStore store = mShards.get(shelterId);
         switch (match) {
             case PETS:
+            case SHELTER_PETS:
                 // Delete all rows that match the selection and selection args
-                numberOfRowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                numberOfRowsDeleted = store.delete(selection, selectionArgs);
                 break;
             case PET_ID:
+            case SHELTER_PET_ID:
                 // Delete a single row given by the ID in the URI
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                numberOfRowsDeleted = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                numberOfRowsDeleted = store.delete(selection, selectionArgs);
                 break;
 
+            // An adopter who still has an adoption can't be deleted, that throws a
+            // SQLiteConstraintException. Deleting an adoption makes its pet available again.
+            case ADOPTERS:
+            case ADOPTER_ID:
+            case SHELTER_ADOPTERS:
+            case SHELTER_ADOPTER_ID:
+            case ADOPTIONS:
+            case ADOPTION_ID:
+            case SHELTER_ADOPTIONS:
+            case SHELTER_ADOPTION_ID:
+                if (isAdoptionItem(match)) {
+                    selection = BaseColumns._ID + "=?";
+                    selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                }
+                int numberOfAdoptionRowsDeleted = adoptions(shelterId).delete(
+                        adoptionTableFor(match), selection, selectionArgs);
+                if (numberOfAdoptionRowsDeleted != 0) {
+                    notifyAdoptionChange(uri);
+                }
+                return numberOfAdoptionRowsDeleted;
+
             default:
                 throw new IllegalArgumentException("Deletion is not supported for URI: " + uri);
         }
@@ -228,7 +1420,7 @@ public class PetProvider extends ContentProvider {
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (numberOfRowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri, true);
         }
         return numberOfRowsDeleted;
 
@@ -240,34 +1432,49 @@ public class PetProvider extends ContentProvider {
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection,
                       String[] selectionArgs) {
+        MainThreadGuard.check("update", uri);
+        long start = System.nanoTime();
+        int updated = -1;
+        lockDatabase();
+        try {
+            long shelterId = shelterIdFor(uri);
+            mShards.acquire(shelterId);
+            try {
+                updated = updateLocked(shelterId, uri, values, selection, selectionArgs);
+                return updated;
+            } finally {
+                mShards.release(shelterId);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            recordWrite(start);
+            if (mTraceRecorder != null) {
+                trace(PetTrace.Call.update(uri.toString(), values, selection, selectionArgs),
+                        start, updated, updated == -1);
+            }
+        }
+    }
+
+    private int updateLocked(long shelterId, @NonNull Uri uri, ContentValues values,
+                             String selection, String[] selectionArgs) {
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
         }
-        if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
-            String petName = values.getAsString(PetEntry.COLUMN_PET_NAME);
-            if (petName == null || petName.equals("") || petName.equals(" ")) {
-                throw new IllegalArgumentException("Pet requires a name");
-            }
-        }
-        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
-            Integer petGender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-            if (petGender == null || !PetEntry.isValidGender(petGender)) {
-                throw new IllegalArgumentException("Invalid gender value: " + petGender);
-            }
-        }
-        if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
-            Integer petWeight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-            if (petWeight == null || petWeight < 0) {
-                throw new IllegalArgumentException("Weight cannot be negative");
-            }
+        int match = sUriMatcher.match(uri);
+        String adoptionTable = adoptionTableFor(match);
+        if (adoptionTable != null && !CatalogEntry.TABLE_NAME.equals(adoptionTable)) {
+            return updateAdoptionRows(shelterId, uri, match, adoptionTable, values, selection,
+                    selectionArgs);
         }
+        validateUpdateValues(values);
 
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return updatePet(values, selection, selectionArgs);
+            case SHELTER_PETS:
+                return updatePet(shelterId, values, selection, selectionArgs);
             case PET_ID:
+            case SHELTER_PET_ID:
                 // For the PET_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
@@ -275,11 +1482,11 @@ public class PetProvider extends ContentProvider {
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
 
                 // Perform the update on the database and get the number of rows affected
-                int numberOfPetsUpdated = updatePet(values, selection, selectionArgs);
+                int numberOfPetsUpdated = updatePet(shelterId, values, selection, selectionArgs);
 
                 //Now that the data is updated, we need to call notifyChange to ensure that the list gets updated.
                 if (numberOfPetsUpdated != 0) {
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    notifyChange(uri);
                 }
                 return numberOfPetsUpdated;
 
@@ -288,13 +1495,546 @@ public class PetProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Check the content values of an update. Only the columns present are validated, since an
+     * update doesn't have to change every column.
+     */
+    private static void validateUpdateValues(ContentValues values) {
+        if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
+            String petName = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            if (petName == null || petName.equals("") || petName.equals(" ")) {
+                throw new IllegalArgumentException("Pet requires a name");
+            }
+        }
+        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)) {
+            Integer petGender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            if (petGender == null || !PetEntry.isValidGender(petGender)) {
+                throw new IllegalArgumentException("Invalid gender value: " + petGender);
+            }
+        }
+        if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+            Integer petWeight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            if (petWeight == null || petWeight < 0) {
+                throw new IllegalArgumentException("Weight cannot be negative");
+            }
+        }
+        if (values.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+            Integer petVersion = values.getAsInteger(PetEntry.COLUMN_PET_VERSION);
+            if (petVersion == null || petVersion < 0) {
+                throw new IllegalArgumentException("Invalid version value: " + petVersion);
+            }
+        }
+    }
+
+    /**
+     * Update adopters or adoptions, checking the columns present like
+     * {@link #validateUpdateValues} does for pets.
+     */
+    private int updateAdoptionRows(long shelterId, Uri uri, int match, String table,
+                                   ContentValues values, String selection,
+                                   String[] selectionArgs) {
+        if (AdopterEntry.TABLE_NAME.equals(table)) {
+            if (values.containsKey(AdopterEntry.COLUMN_ADOPTER_NAME)) {
+                String adopterName = values.getAsString(AdopterEntry.COLUMN_ADOPTER_NAME);
+                if (TextUtils.isEmpty(adopterName) || adopterName.trim().isEmpty()) {
+                    throw new IllegalArgumentException("Adopter requires a name");
+                }
+            }
+        } else {
+            for (String column : new String[]{AdoptionEntry.COLUMN_ADOPTION_PET_ID,
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID,
+                    AdoptionEntry.COLUMN_ADOPTION_ADOPTED_AT}) {
+                if (values.containsKey(column) && values.getAsLong(column) == null) {
+                    throw new IllegalArgumentException("Invalid " + column + " value");
+                }
+            }
+        }
+        if (isAdoptionItem(match)) {
+            selection = BaseColumns._ID + "=?";
+            selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+        }
+        int numberOfRowsUpdated = adoptions(shelterId).update(table, values, selection,
+                selectionArgs);
+        if (numberOfRowsUpdated != 0) {
+            notifyAdoptionChange(uri);
+        }
+        return numberOfRowsUpdated;
+    }
+
     /**
      * Update pets in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more pets).
      * Return the number of rows that were successfully updated.
      */
-    private int updatePet(ContentValues values, String selection, String[] selectionArgs) {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        return db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+    private int updatePet(long shelterId, ContentValues values, String selection,
+                          String[] selectionArgs) {
+        return mShards.get(shelterId).update(values, selection, selectionArgs);
+    }
+
+    /**
+     * Run one of the compound operations in {@link PetContract}, e.g. {@link PetContract#METHOD_COUNT}.
+     * These answer simple questions or apply a change to many ids in a single transaction and
+     * return a small {@link Bundle}, without building a {@link Cursor} for the caller.
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        MainThreadGuard.check("call", method);
+        if (extras == null) {
+            extras = Bundle.EMPTY;
+        }
+        long shelterId = extras.getLong(EXTRA_SHELTER_ID, DEFAULT_SHELTER_ID);
+        // Backup reads through its own connection and restore takes the write lock itself.
+        if (METHOD_BACKUP.equals(method)) {
+            return backupDatabase(shelterId, arg);
+        }
+        if (METHOD_RESTORE.equals(method)) {
+            restoreDatabase(shelterId, arg);
+            return null;
+        }
+        if (METHOD_TRACE_START.equals(method)) {
+            startTrace(arg);
+            return null;
+        }
+        if (METHOD_TRACE_STOP.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(EXTRA_COUNT, stopTrace());
+            return result;
+        }
+        // Maintenance doesn't count as activity of the app, so it doesn't go through
+        // lockDatabase().
+        if (METHOD_MAINTAIN.equals(method)) {
+            return maintainDatabase(shelterId);
+        }
+        if (METHOD_LIST_SHELTERS.equals(method)) {
+            List<Long> shelterIds = mShards.listShelterIds();
+            long[] ids = new long[shelterIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = shelterIds.get(i);
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(EXTRA_IDS, ids);
+            return result;
+        }
+        boolean readOnly = isReadOnlyMethod(method);
+        long start = System.nanoTime();
+        Bundle result = null;
+        boolean failed = true;
+        lockDatabase();
+        try {
+            if (readOnly) {
+                mShards.acquireForRead(shelterId);
+            } else {
+                mShards.acquire(shelterId);
+            }
+            try {
+                result = callLocked(shelterId, method, arg, extras);
+                failed = false;
+                return result;
+            } finally {
+                mShards.release(shelterId);
+            }
+        } finally {
+            mDatabaseLock.readLock().unlock();
+            if (!readOnly) {
+                recordWrite(start);
+            }
+            if (mTraceRecorder != null) {
+                trace(PetTrace.Call.call(method, arg, extras), start,
+                        result == null ? -1 : result.getInt(EXTRA_ROWS_AFFECTED, -1), failed);
+            }
+        }
+    }
+
+    /**
+     * Whether the call method only reads, so it doesn't need to create the shelter's database.
+     */
+    private static boolean isReadOnlyMethod(String method) {
+        return METHOD_COUNT.equals(method) || METHOD_EXISTS.equals(method)
+                || METHOD_LIST_IDS.equals(method);
+    }
+
+    private Bundle callLocked(long shelterId, @NonNull String method, String arg, Bundle extras) {
+        Bundle result = new Bundle();
+        switch (method) {
+            case METHOD_COUNT:
+                result.putLong(EXTRA_COUNT, countPets(shelterId, extras.getString(EXTRA_SELECTION),
+                        extras.getStringArray(EXTRA_SELECTION_ARGS)));
+                return result;
+            case METHOD_EXISTS:
+                result.putBoolean(EXTRA_EXISTS, petExists(shelterId, Long.parseLong(arg)));
+                return result;
+            case METHOD_LIST_IDS:
+                result.putLongArray(EXTRA_IDS, listPetIds(shelterId, extras.getString(EXTRA_SELECTION),
+                        extras.getStringArray(EXTRA_SELECTION_ARGS),
+                        extras.getString(EXTRA_SORT_ORDER)));
+                return result;
+            case METHOD_DELETE_IDS:
+                if (extras.getBoolean(EXTRA_UNDOABLE)) {
+                    return deletePetIdsUndoable(shelterId, requireIds(extras));
+                }
+                result.putInt(EXTRA_ROWS_AFFECTED, deletePetIds(shelterId, requireIds(extras)));
+                return result;
+            case METHOD_UNDO_DELETE:
+                result.putInt(EXTRA_ROWS_AFFECTED,
+                        undoDelete(shelterId, extras.getString(EXTRA_UNDO_TOKEN)));
+                return result;
+            case METHOD_UPDATE_IDS:
+                ContentValues values = extras.getParcelable(EXTRA_VALUES);
+                if (values == null || values.size() == 0) {
+                    throw new IllegalArgumentException("No values given for " + method);
+                }
+                // A version is the expected version of a single pet, see PetEntry, so it can't
+                // be the same for a set of pets.
+                if (values.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+                    throw new IllegalArgumentException("No version can be given for " + method);
+                }
+                validateUpdateValues(values);
+                result.putInt(EXTRA_ROWS_AFFECTED, updatePetIds(shelterId, requireIds(extras),
+                        values));
+                return result;
+            case METHOD_ARCHIVE:
+                result.putInt(EXTRA_ROWS_AFFECTED, archivePets(shelterId, extras));
+                return result;
+            case METHOD_SYNC_READ_CHANGES:
+                PetChangeLog.Batch batch = changeLog(shelterId).readPending(
+                        extras.getInt(EXTRA_SYNC_MAX_BYTES, Integer.MAX_VALUE));
+                result.putString(EXTRA_SYNC_CHANGES, batch.json);
+                result.putInt(EXTRA_COUNT, batch.count);
+                result.putLong(EXTRA_SYNC_LAST_SEQ, batch.lastSeq);
+                return result;
+            case METHOD_SYNC_ACK_CHANGES:
+                if (!extras.containsKey(EXTRA_SYNC_LAST_SEQ)) {
+                    throw new IllegalArgumentException("No change log position given for " + method);
+                }
+                result.putInt(EXTRA_ROWS_AFFECTED,
+                        changeLog(shelterId).acknowledge(extras.getLong(EXTRA_SYNC_LAST_SEQ)));
+                return result;
+            case METHOD_SYNC_APPLY_CHANGES:
+                return applyRemoteChanges(shelterId, extras.getString(EXTRA_SYNC_CHANGES));
+            case METHOD_FIND_DUPLICATES:
+                PetDuplicates.Batch duplicateBatch = duplicates(shelterId).findDuplicates();
+                if (duplicateBatch.checked != 0) {
+                    sendNotification(DuplicateEntry.contentUriForShelter(shelterId));
+                }
+                result.putInt(EXTRA_ROWS_AFFECTED, duplicateBatch.checked);
+                result.putInt(EXTRA_COUNT, duplicateBatch.found);
+                return result;
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Return the archive partition of the given shelter. Only the SQLite store has one.
+     */
+    private PetArchive archive(long shelterId) {
+        PetStore store = mShards.get(shelterId);
+        if (!(store instanceof SqlitePetStore)) {
+            throw new UnsupportedOperationException("The in-memory store has no archive");
+        }
+        return new PetArchive(((SqlitePetStore) store).getDbHelper());
+    }
+
+    /**
+     * Move the inactive pets of the given shelter to its archive.
+     */
+    private int archivePets(long shelterId, Bundle extras) {
+        if (!extras.containsKey(EXTRA_ARCHIVE_INACTIVE_SINCE)) {
+            throw new IllegalArgumentException("No inactivity time given");
+        }
+        int moved = archive(shelterId).archive(extras.getLong(EXTRA_ARCHIVE_INACTIVE_SINCE),
+                extras.getString(EXTRA_SELECTION), extras.getStringArray(EXTRA_SELECTION_ARGS));
+        if (moved != 0) {
+            notifyChange(PetEntry.contentUriForShelter(shelterId), true);
+        }
+        return moved;
+    }
+
+    /**
+     * Return the change log of the given shelter. It's kept by triggers, so it only exists in
+     * the SQLite store.
+     */
+    private PetChangeLog changeLog(long shelterId) {
+        PetStore store = mShards.get(shelterId);
+        if (!(store instanceof SqlitePetStore)) {
+            throw new UnsupportedOperationException("The in-memory store can't be synced");
+        }
+        return new PetChangeLog(((SqlitePetStore) store).getDbHelper());
+    }
+
+    /**
+     * Apply a JSON array of changes downloaded from the registry in one transaction.
+     */
+    private Bundle applyRemoteChanges(long shelterId, String json) {
+        if (json == null) {
+            throw new IllegalArgumentException("No changes given");
+        }
+        JSONArray changes;
+        try {
+            changes = new JSONArray(json);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Malformed changes", e);
+        }
+        int[] counts = changeLog(shelterId).apply(changes);
+        if (counts[0] != 0) {
+            notifyChange(PetEntry.contentUriForShelter(shelterId), true);
+        }
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_SYNC_APPLIED, counts[0]);
+        result.putInt(EXTRA_SYNC_SKIPPED, counts[1]);
+        return result;
+    }
+
+    /**
+     * Back up the live database to the file at the given path while it stays in use.
+     */
+    private Bundle backupDatabase(long shelterId, String path) {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("No backup file given");
+        }
+        if (mShards.isInMemory()) {
+            throw new UnsupportedOperationException("The in-memory store has no file to back up");
+        }
+        File database = getContext().getDatabasePath(PetShardManager.databaseName(shelterId));
+        if (database.exists()) {
+            // Open the shard, so a database last used by an older version of the app is in WAL
+            // mode before the backup reads it.
+            lockDatabase();
+            try {
+                mShards.acquire(shelterId);
+                try {
+                    ((SqlitePetStore) mShards.get(shelterId)).getDbHelper().getWritableDatabase();
+                } finally {
+                    mShards.release(shelterId);
+                }
+            } finally {
+                mDatabaseLock.readLock().unlock();
+            }
+        }
+        PetBackup.Stats stats;
+        long maxWriteNanos;
+        if (mBackupsRunning.getAndIncrement() == 0) {
+            mBackupMaxWriteNanos.set(0);
+        }
+        try {
+            stats = new PetBackup().backup(database, new File(path));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Backup to " + path + " failed", e);
+            throw new IllegalStateException("Backup to " + path + " failed", e);
+        } finally {
+            maxWriteNanos = mBackupMaxWriteNanos.get();
+            mBackupsRunning.decrementAndGet();
+        }
+        Bundle result = new Bundle();
+        result.putLong(EXTRA_BACKUP_ROWS, stats.rows);
+        result.putLong(EXTRA_BACKUP_BYTES, stats.bytes);
+        result.putLong(EXTRA_BACKUP_DURATION_MILLIS, stats.durationMillis);
+        result.putLong(EXTRA_BACKUP_MAX_STEP_MILLIS, stats.maxStepMillis);
+        result.putLong(EXTRA_BACKUP_MAX_WRITER_STALL_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(maxWriteNanos));
+        return result;
+    }
+
+    /**
+     * Replace the live database with the backup at the given path. The backup is verified and
+     * copied next to the database first, then swapped in with a rename while no other
+     * operation is using the database.
+     */
+    private void restoreDatabase(long shelterId, String path) {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("No backup file given");
+        }
+        if (mShards.isInMemory()) {
+            throw new UnsupportedOperationException("The in-memory store can't be restored");
+        }
+        File database = getContext().getDatabasePath(PetShardManager.databaseName(shelterId));
+        File restoreFile;
+        try {
+            restoreFile = PetBackup.prepareRestore(new File(path), database);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Restore from " + path + " failed", e);
+            throw new IllegalStateException("Restore from " + path + " failed", e);
+        }
+
+        yieldMaintenance();
+        mDatabaseLock.writeLock().lock();
+        try {
+            // Cursors from earlier queries may still read from the old file. Its write-ahead log
+            // must not be deleted under them, so give up if they aren't closed in time.
+            try {
+                mShards.close(shelterId, RESTORE_WAIT_MILLIS);
+            } catch (IllegalStateException e) {
+                restoreFile.delete();
+                throw e;
+            }
+            new File(database.getPath() + "-journal").delete();
+            new File(database.getPath() + "-wal").delete();
+            new File(database.getPath() + "-shm").delete();
+            if (!restoreFile.renameTo(database)) {
+                restoreFile.delete();
+                throw new IllegalStateException("Could not move " + restoreFile + " into place");
+            }
+            // The shard is opened again on its next use, upgrading the restored file if the
+            // backup came from an older version.
+        } finally {
+            mDatabaseLock.writeLock().unlock();
+        }
+        Log.i(LOG_TAG, "Restored database from " + path);
+        notifyChange(PetEntry.contentUriForShelter(shelterId), true);
+    }
+
+    /**
+     * Run the maintenance of the given shelter's database, unless the app has used the
+     * provider recently. Another operation interrupts the run, see {@link #lockDatabase}.
+     */
+    private Bundle maintainDatabase(long shelterId) {
+        if (mShards.isInMemory()) {
+            throw new UnsupportedOperationException("The in-memory store needs no maintenance");
+        }
+        Bundle result = new Bundle();
+        long idleMillis = getContext().getResources().getInteger(R.integer.maintenance_idle_seconds)
+                * DateUtils.SECOND_IN_MILLIS;
+        long lastOperationAt = mLastOperationAt.get();
+        if (lastOperationAt != 0 && SystemClock.elapsedRealtime() - lastOperationAt < idleMillis) {
+            result.putBoolean(EXTRA_MAINTENANCE_SKIPPED, true);
+            return result;
+        }
+        List<PetMaintenance.Step> steps;
+        synchronized (mMaintenanceLock) {
+            mDatabaseLock.readLock().lock();
+            try {
+                PetStore store = mShards.acquire(shelterId);
+                try {
+                    PetMaintenance maintenance =
+                            new PetMaintenance(((SqlitePetStore) store).getDbHelper());
+                    mRunningMaintenance = maintenance;
+                    try {
+                        steps = maintenance.run();
+                    } finally {
+                        mRunningMaintenance = null;
+                    }
+                } finally {
+                    mShards.release(shelterId);
+                }
+            } finally {
+                mDatabaseLock.readLock().unlock();
+            }
+        }
+        String[] lines = new String[steps.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = steps.get(i).toString();
+        }
+        result.putStringArray(EXTRA_MAINTENANCE_STEPS, lines);
+        return result;
+    }
+
+    private static long[] requireIds(Bundle extras) {
+        long[] ids = extras.getLongArray(EXTRA_IDS);
+        if (ids == null) {
+            throw new IllegalArgumentException("No ids given");
+        }
+        return ids;
+    }
+
+    /**
+     * Count the pets matching the selection.
+     */
+    private long countPets(long shelterId, String selection, String[] selectionArgs) {
+        return mShards.get(shelterId).count(selection, selectionArgs);
+    }
+
+    /**
+     * Check whether a pet with the given ID exists.
+     */
+    private boolean petExists(long shelterId, long id) {
+        return mShards.get(shelterId).exists(id);
+    }
+
+    /**
+     * Return the IDs of the pets matching the selection.
+     */
+    private long[] listPetIds(long shelterId, String selection, String[] selectionArgs,
+                              String sortOrder) {
+        return mShards.get(shelterId).listIds(selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Delete all pets with the given IDs at once and notify observers once.
+     */
+    private int deletePetIds(long shelterId, long[] ids) {
+        int numberOfRowsDeleted = mShards.get(shelterId).deleteIds(ids);
+        if (numberOfRowsDeleted != 0) {
+            notifyChange(PetEntry.contentUriForShelter(shelterId), true);
+        }
+        return numberOfRowsDeleted;
+    }
+
+    /**
+     * Delete all pets with the given IDs at once, keeping them in {@link #mPendingUndos} so the
+     * delete can be undone, and notify observers once.
+     */
+    private Bundle deletePetIdsUndoable(long shelterId, long[] ids) {
+        PetTombstone tombstone = mShards.get(shelterId).deleteIdsKeeping(ids);
+        Bundle result = new Bundle();
+        result.putInt(EXTRA_ROWS_AFFECTED, tombstone.size());
+        if (tombstone.size() == 0) {
+            return result;
+        }
+        String token = UUID.randomUUID().toString();
+        synchronized (mPendingUndos) {
+            dropExpiredUndos();
+            mPendingUndos.put(token, new PendingUndo(shelterId, tombstone,
+                    SystemClock.elapsedRealtime() + UNDO_WINDOW_MILLIS));
+        }
+        result.putString(EXTRA_UNDO_TOKEN, token);
+        notifyChange(PetEntry.contentUriForShelter(shelterId), true);
+        return result;
+    }
+
+    /**
+     * Put back the pets of an undoable delete, if its undo window isn't over yet, and notify
+     * observers once.
+     */
+    private int undoDelete(long shelterId, String token) {
+        if (token == null) {
+            throw new IllegalArgumentException("No undo token given");
+        }
+        PendingUndo pendingUndo;
+        synchronized (mPendingUndos) {
+            dropExpiredUndos();
+            pendingUndo = mPendingUndos.get(token);
+            if (pendingUndo == null || pendingUndo.shelterId != shelterId) {
+                return 0;
+            }
+            mPendingUndos.remove(token);
+        }
+        int restored = mShards.get(shelterId).restore(pendingUndo.tombstone);
+        if (restored != 0) {
+            notifyChange(PetEntry.contentUriForShelter(shelterId));
+        }
+        return restored;
+    }
+
+    /**
+     * Forget the deletes whose undo window is over. Call while holding {@link #mPendingUndos}.
+     */
+    private void dropExpiredUndos() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<PendingUndo> iterator = mPendingUndos.values().iterator();
+        // All entries have the same window, so the expired ones are at the front.
+        while (iterator.hasNext() && iterator.next().expiresAt <= now) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Apply the same values to all pets with the given IDs at once and notify observers once.
+     */
+    private int updatePetIds(long shelterId, long[] ids, ContentValues values) {
+        int numberOfPetsUpdated = mShards.get(shelterId).updateIds(ids, values);
+        if (numberOfPetsUpdated != 0) {
+            notifyChange(PetEntry.contentUriForShelter(shelterId));
+        }
+        return numberOfPetsUpdated;
     }
 }
@@ -0,0 +1,351 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Observes provider queries for the activities, replacing their loaders.
+ * <p>
+ * Queries run on a small pool of background threads. Observers of the same query share one
+ * live query: a single execution, and a single requery when the provider reports a change.
+ * Changes that arrive while a query is running are folded into one more run after it. A result
+ * with the same content as the previous one is dropped instead of being delivered again, so a
+ * change elsewhere in the table doesn't rebind the views. When the last observer of a query
+ * goes away, the running query is cancelled and its result closed.
+ * <p>
+ * The {@link PetContract.PetEntry#WIDE_COLUMNS wide columns} of a pets query are left out of
+ * the query and fetched by ID afterwards, still on the query thread, see
+ * {@link LazyColumnCursor}.
+ * <p>
+ * Everything except the queries themselves happens on the main thread, including the calls to
+ * {@link Observer#onChanged}.
+ */
+public class PetRepository {
+
+    public static final String LOG_TAG = PetRepository.class.getSimpleName();
+
+    /**
+     * Number of threads running queries. Queries of the same kind are deduplicated, so there
+     * are never more in the queue than there are live queries.
+     */
+    private static final int QUERY_THREADS = 2;
+
+    /**
+     * How long an idle query thread is kept around.
+     */
+    private static final long QUERY_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Receives the results of an observed query.
+     */
+    public interface Observer {
+        /**
+         * Called on the main thread with the first result of the query, and again every time
+         * its content changes. The cursor belongs to the repository: it stays valid until the
+         * next call or until the subscription is cancelled, and must not be closed. It is null
+         * if the query failed.
+         */
+        void onChanged(Cursor cursor);
+    }
+
+    /**
+     * Handle of an observer returned by {@link #observe}.
+     */
+    public interface Subscription {
+        /**
+         * Stop delivering results to the observer. Must be called on the main thread.
+         */
+        void cancel();
+    }
+
+    private static PetRepository sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Live queries by {@link #queryKey}. Only touched on the main thread.
+     */
+    private final Map<String, LiveQuery> mLiveQueries = new HashMap<>();
+
+    public static synchronized PetRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetRepository(Context context) {
+        mResolver = context.getContentResolver();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS,
+                QUERY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "pet-repository-" + threadNumber.incrementAndGet());
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start observing the given query. If another observer is already watching the same query
+     * its current result is handed over right away, otherwise the query is started. Must be
+     * called on the main thread.
+     */
+    public Subscription observe(Uri uri, String[] projection, String selection,
+                                String[] selectionArgs, String sortOrder,
+                                final Observer observer) {
+        final String key = queryKey(uri, projection, selection, selectionArgs, sortOrder);
+        LiveQuery liveQuery = mLiveQueries.get(key);
+        if (liveQuery == null) {
+            liveQuery = new LiveQuery(key, uri, projection, selection, selectionArgs, sortOrder);
+            mLiveQueries.put(key, liveQuery);
+            liveQuery.start();
+        }
+        liveQuery.addObserver(observer);
+        final LiveQuery subscribed = liveQuery;
+        return new Subscription() {
+            @Override
+            public void cancel() {
+                subscribed.removeObserver(observer);
+            }
+        };
+    }
+
+    private static String queryKey(Uri uri, String[] projection, String selection,
+                                   String[] selectionArgs, String sortOrder) {
+        return uri + "|" + Arrays.toString(projection) + "|" + selection + "|" +
+                Arrays.toString(selectionArgs) + "|" + sortOrder;
+    }
+
+    /**
+     * Return a hash of every value in the cursor, leaving it before the first row.
+     */
+    private static long fingerprint(Cursor cursor) {
+        long hash = 1125899906842597L;
+        int columns = cursor.getColumnCount();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < columns; i++) {
+                int type = cursor.getType(i);
+                long value;
+                switch (type) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        value = 0;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        value = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        value = Double.doubleToLongBits(cursor.getDouble(i));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        value = Arrays.hashCode(cursor.getBlob(i));
+                        break;
+                    default:
+                        value = cursor.getString(i).hashCode();
+                        break;
+                }
+                hash = 31 * (31 * hash + type) + value;
+            }
+        }
+        cursor.moveToPosition(-1);
+        return 31 * hash + cursor.getCount();
+    }
+
+    /**
+     * One query and the observers sharing it.
+     */
+    private class LiveQuery {
+
+        private final String mKey;
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+
+        private final List<Observer> mObservers = new ArrayList<>();
+        private final ContentObserver mContentObserver;
+
+        /**
+         * The last delivered result and its {@link #fingerprint}.
+         */
+        private Cursor mCursor;
+        private long mFingerprint;
+
+        /**
+         * The query currently queued or running, or null.
+         */
+        private Future<?> mRunning;
+        private CancellationSignal mCancellationSignal;
+
+        /**
+         * Whether the provider reported a change since the running query started.
+         */
+        private boolean mDirty;
+
+        LiveQuery(String key, Uri uri, String[] projection, String selection,
+                  String[] selectionArgs, String sortOrder) {
+            mKey = key;
+            mUri = uri;
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mContentObserver = new ContentObserver(mMainHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    onContentChanged();
+                }
+            };
+            mResolver.registerContentObserver(uri, true, mContentObserver);
+        }
+
+        void addObserver(final Observer observer) {
+            mObservers.add(observer);
+            if (mCursor != null) {
+                // Deliver asynchronously like a fresh result, so observers never get called
+                // from inside observe().
+                final Cursor cursor = mCursor;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCursor == cursor && mObservers.contains(observer)) {
+                            observer.onChanged(cursor);
+                        }
+                    }
+                });
+            }
+        }
+
+        void removeObserver(Observer observer) {
+            if (!mObservers.remove(observer) || !mObservers.isEmpty()) {
+                return;
+            }
+            // Nobody is interested any more: stop the work and let go of the result.
+            mLiveQueries.remove(mKey);
+            mResolver.unregisterContentObserver(mContentObserver);
+            if (mRunning != null) {
+                mRunning.cancel(false);
+                mCancellationSignal.cancel();
+                mRunning = null;
+                mCancellationSignal = null;
+            }
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+
+        void onContentChanged() {
+            if (mRunning != null) {
+                mDirty = true;
+            } else if (!mObservers.isEmpty()) {
+                start();
+            }
+        }
+
+        void start() {
+            final CancellationSignal cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+            mDirty = false;
+            mRunning = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runQuery(cancellationSignal);
+                }
+            });
+        }
+
+        /**
+         * Run the query on a background thread and hand the result to the main thread.
+         */
+        private void runQuery(final CancellationSignal cancellationSignal) {
+            Cursor cursor = null;
+            long fingerprint = 0;
+            try {
+                cursor = LazyColumnCursor.query(mResolver, mUri, mProjection, mSelection,
+                        mSelectionArgs, mSortOrder, cancellationSignal);
+                if (cursor instanceof LazyColumnCursor) {
+                    // The observers read the cursor on the main thread, where loading the wide
+                    // columns on their first read would query the provider.
+                    ((LazyColumnCursor) cursor).loadWideColumns(cancellationSignal);
+                    // The narrow columns are enough. They include the version, which every
+                    // write to a pet moves on, so a change to the wide ones shows too.
+                    fingerprint = fingerprint(((LazyColumnCursor) cursor).getWrappedCursor());
+                } else if (cursor != null) {
+                    fingerprint = fingerprint(cursor);
+                }
+            } catch (OperationCanceledException e) {
+                // The last observer went away, finished() closes whatever we got.
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Query failed: " + mUri, e);
+            }
+            final Cursor result = cursor;
+            final long resultFingerprint = fingerprint;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finished(cancellationSignal, result, resultFingerprint);
+                }
+            });
+        }
+
+        private void finished(CancellationSignal cancellationSignal, Cursor cursor,
+                              long fingerprint) {
+            if (cancellationSignal != mCancellationSignal) {
+                // Cancelled in the meantime.
+                if (cursor != null) {
+                    cursor.close();
+                }
+                return;
+            }
+            mRunning = null;
+            mCancellationSignal = null;
+            if (cursor != null && mCursor != null && fingerprint == mFingerprint) {
+                // Same content as what the observers already have.
+                cursor.close();
+            } else if (cursor != null || mCursor == null) {
+                Cursor previous = mCursor;
+                mCursor = cursor;
+                mFingerprint = fingerprint;
+                for (Observer observer : new ArrayList<>(mObservers)) {
+                    // Skip observers cancelled by an earlier one.
+                    if (mObservers.contains(observer)) {
+                        observer.onChanged(cursor);
+                    }
+                }
+                if (previous != null) {
+                    previous.close();
+                }
+            }
+            if (mDirty) {
+                start();
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of the per-shelter database files ("shards") used by {@link PetProvider}.
+ * <p>
+ * Each shelter has its own database file, so operations on one shelter only ever touch that
+ * shelter's pets. Shards are opened lazily on first use. Only a few are kept open at a time: once
+ * there are more, the least recently used shard that nobody is using is closed.
+ * <p>
+ * Callers must {@link #acquire} a shard before using its store and {@link #release} it
+ * afterwards, so it isn't closed underneath them. Operations that only read use
+ * {@link #acquireForRead} instead, which doesn't create the database file of a shelter that has
+ * none yet. A cursor that outlives the operation keeps its
+ * shard open through {@link #keepOpenWhile}.
+ * <p>
+ * In in-memory mode every shard is an {@link InMemoryPetStore} instead of a database file. Those
+ * are never closed, since that would lose their pets.
+ */
+public class PetShardManager {
+
+    public static final String LOG_TAG = PetShardManager.class.getSimpleName();
+
+    /**
+     * Number of shards kept open when they're idle.
+     */
+    public static final int DEFAULT_MAX_OPEN_SHARDS = 4;
+
+    /**
+     * Database files of shelters other than {@link PetContract#DEFAULT_SHELTER_ID}.
+     */
+    private static final Pattern SHARD_NAME_PATTERN = Pattern.compile("shelter_(\\d+)\\.db");
+
+    private final Context mContext;
+    private final int mMaxOpenShards;
+    private final boolean mInMemory;
+
+    /**
+     * Open shards in access order, least recently used first.
+     */
+    private final LinkedHashMap<Long, Shard> mOpenShards = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Store without any pets, shared by the shards of shelters that have only been read so far,
+     * see {@link #acquireForRead}. It's never closed.
+     */
+    private PetStore mEmptyStore;
+
+    private static class Shard {
+        /**
+         * The shelter's store, or {@link PetShardManager#mEmptyStore} until the shelter is first written to.
+         */
+        PetStore store;
+        /**
+         * Number of callers that acquired the shard and haven't released it yet.
+         */
+        int users;
+
+        Shard(PetStore store) {
+            this.store = store;
+        }
+    }
+
+    public PetShardManager(Context context, boolean inMemory) {
+        this(context, DEFAULT_MAX_OPEN_SHARDS, inMemory);
+    }
+
+    public PetShardManager(Context context, int maxOpenShards, boolean inMemory) {
+        mContext = context;
+        mMaxOpenShards = maxOpenShards;
+        mInMemory = inMemory;
+    }
+
+    /**
+     * Whether the shards are kept in memory rather than in database files.
+     */
+    public boolean isInMemory() {
+        return mInMemory;
+    }
+
+    /**
+     * Name of the database file of the given shelter. The default shelter keeps the original
+     * shelter.db, so existing installs don't need to move anything.
+     */
+    public static String databaseName(long shelterId) {
+        if (shelterId == PetContract.DEFAULT_SHELTER_ID) {
+            return PetDbHelper.DATABASE_NAME;
+        }
+        return "shelter_" + shelterId + ".db";
+    }
+
+    /**
+     * Open the shard of the given shelter if needed and mark it as in use.
+     */
+    public synchronized PetStore acquire(long shelterId) {
+        if (shelterId < 0) {
+            throw new IllegalArgumentException("Invalid shelter id: " + shelterId);
+        }
+        Shard shard = mOpenShards.get(shelterId);
+        if (shard == null) {
+            shard = new Shard(newStore(shelterId));
+            mOpenShards.put(shelterId, shard);
+        } else if (shard.store == mEmptyStore) {
+            // Readers that still hold the empty store go on reading it, it's never closed.
+            shard.store = newStore(shelterId);
+        }
+        shard.users++;
+        closeIdleShards();
+        return shard.store;
+    }
+
+    /**
+     * Like {@link #acquire}, for operations that only read. The store of a shelter that doesn't
+     * exist yet is one without any pets, so reading a shelter doesn't create it: its database
+     * file only appears once it's written to. The default shelter always exists.
+     */
+    public synchronized PetStore acquireForRead(long shelterId) {
+        if (shelterId < 0) {
+            throw new IllegalArgumentException("Invalid shelter id: " + shelterId);
+        }
+        Shard shard = mOpenShards.get(shelterId);
+        if (shard == null) {
+            if (shelterId == PetContract.DEFAULT_SHELTER_ID || (!mInMemory
+                    && mContext.getDatabasePath(databaseName(shelterId)).exists())) {
+                return acquire(shelterId);
+            }
+            if (mEmptyStore == null) {
+                // A database without a name is kept in memory, with the full schema.
+                mEmptyStore = mInMemory ? new InMemoryPetStore()
+                        : new SqlitePetStore(new PetDbHelper(mContext, null));
+            }
+            shard = new Shard(mEmptyStore);
+            mOpenShards.put(shelterId, shard);
+        }
+        shard.users++;
+        closeIdleShards();
+        return shard.store;
+    }
+
+    private PetStore newStore(long shelterId) {
+        return mInMemory ? new InMemoryPetStore()
+                : new SqlitePetStore(new PetDbHelper(mContext, databaseName(shelterId)));
+    }
+
+    /**
+     * Close the store of a shard that is no longer open, unless it's the shared empty store.
+     */
+    private void closeStore(Shard shard) {
+        if (shard.store != mEmptyStore) {
+            shard.store.close();
+        }
+    }
+
+    /**
+     * Mark the shard of the given shelter as no longer used by the caller.
+     */
+    public synchronized void release(long shelterId) {
+        Shard shard = mOpenShards.get(shelterId);
+        if (shard != null) {
+            shard.users--;
+        }
+        closeIdleShards();
+        // Wake up close() if it's waiting for the shard.
+        notifyAll();
+    }
+
+    /**
+     * Keep the shard of the given shelter open until the cursor, queried from its store, is
+     * closed. A database cursor only reads its first window of rows in the query; the others are
+     * read as the caller moves through the rows, long after the operation released the shard.
+     * The caller must have acquired the shard.
+     * <p>
+     * A cursor that is never closed keeps its shard open for good.
+     */
+    public synchronized Cursor keepOpenWhile(long shelterId, Cursor cursor) {
+        final Shard shard = mOpenShards.get(shelterId);
+        if (shard == null || shard.users == 0) {
+            throw new IllegalStateException("Shard of shelter " + shelterId + " isn't acquired");
+        }
+        shard.users++;
+        return new CursorWrapper(cursor) {
+            private boolean mReleased;
+
+            @Override
+            public void close() {
+                super.close();
+                synchronized (PetShardManager.this) {
+                    if (!mReleased) {
+                        mReleased = true;
+                        shard.users--;
+                        closeIdleShards();
+                        PetShardManager.this.notifyAll();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the store of a shard the caller has acquired.
+     */
+    public synchronized PetStore get(long shelterId) {
+        Shard shard = mOpenShards.get(shelterId);
+        if (shard == null || shard.users == 0) {
+            throw new IllegalStateException("Shard of shelter " + shelterId + " isn't acquired");
+        }
+        return shard.store;
+    }
+
+    /**
+     * Close the shard of the given shelter, e.g. before its file gets replaced. Cursors kept open
+     * through {@link #keepOpenWhile} still use the shard's connection, so this waits up to the
+     * given time for them to be closed. The caller has to make sure nothing acquires the shard
+     * meanwhile.
+     *
+     * @throws IllegalStateException if the shard is still in use after the timeout; it's left
+     *                               open then.
+     */
+    public synchronized void close(long shelterId, long timeoutMillis) {
+        Shard shard = mOpenShards.get(shelterId);
+        if (shard == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (shard.users > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Shard of shelter " + shelterId +
+                            " still has " + shard.users + " open cursors");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted closing the shard of shelter " +
+                    shelterId, e);
+        }
+        mOpenShards.remove(shelterId);
+        closeStore(shard);
+    }
+
+    /**
+     * Close least recently used shards that nobody is using until at most
+     * {@link #mMaxOpenShards} are open.
+     */
+    private void closeIdleShards() {
+        if (mInMemory) {
+            return;
+        }
+        Iterator<Map.Entry<Long, Shard>> iterator = mOpenShards.entrySet().iterator();
+        while (mOpenShards.size() > mMaxOpenShards && iterator.hasNext()) {
+            Map.Entry<Long, Shard> entry = iterator.next();
+            if (entry.getValue().users == 0) {
+                Log.v(LOG_TAG, "Closing idle shard of shelter " + entry.getKey());
+                closeStore(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the IDs of all shelters that have a database file (or in in-memory mode, that have
+     * been written to), in ascending order.
+     */
+    public List<Long> listShelterIds() {
+        List<Long> shelterIds = new ArrayList<>();
+        if (mInMemory) {
+            synchronized (this) {
+                for (Map.Entry<Long, Shard> entry : mOpenShards.entrySet()) {
+                    if (entry.getValue().store != mEmptyStore) {
+                        shelterIds.add(entry.getKey());
+                    }
+                }
+            }
+            Collections.sort(shelterIds);
+            return shelterIds;
+        }
+        for (String name : mContext.databaseList()) {
+            if (PetDbHelper.DATABASE_NAME.equals(name)) {
+                shelterIds.add(PetContract.DEFAULT_SHELTER_ID);
+                continue;
+            }
+            Matcher matcher = SHARD_NAME_PATTERN.matcher(name);
+            if (matcher.matches()) {
+                shelterIds.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+        Collections.sort(shelterIds);
+        return shelterIds;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+
+/**
+ * Storage engine for the pets of one shelter, used by {@link PetProvider}.
+ * <p>
+ * Selections use the SQL syntax of the pets table ("name=? AND gender=?"), but engines other than
+ * SQLite may only support a subset and throw {@link UnsupportedOperationException} for the rest.
+ * Validation of the values and change notifications are left to the provider.
+ */
+public interface PetStore {
+
+    /**
+     * Return the pets matching the selection, in the given sort order. The query stops with an
+     * {@link android.os.OperationCanceledException} once the signal, if any, is cancelled.
+     */
+    Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder,
+                 CancellationSignal cancellationSignal);
+
+    /**
+     * Insert a pet and return its ID, or -1 if it couldn't be inserted.
+     */
+    long insert(ContentValues values);
+
+    /**
+     * Update the pets matching the selection and return how many were updated.
+     * <p>
+     * If the values include {@link PetContract.PetEntry#COLUMN_PET_VERSION}, only pets that still
+     * have that version are updated, see the column's documentation.
+     */
+    int update(ContentValues values, String selection, String[] selectionArgs);
+
+    /**
+     * Delete the pets matching the selection and return how many were deleted.
+     */
+    int delete(String selection, String[] selectionArgs);
+
+    /**
+     * Count the pets matching the selection.
+     */
+    long count(String selection, String[] selectionArgs);
+
+    /**
+     * Whether a pet with the given ID exists.
+     */
+    boolean exists(long id);
+
+    /**
+     * Return the IDs of the pets matching the selection, in the given sort order.
+     */
+    long[] listIds(String selection, String[] selectionArgs, String sortOrder);
+
+    /**
+     * Delete the pets with the given IDs at once and return how many were deleted.
+     */
+    int deleteIds(long[] ids);
+
+    /**
+     * Delete the pets with the given IDs at once, like {@link #deleteIds}, and return what is
+     * needed to put them back with {@link #restore}.
+     */
+    PetTombstone deleteIdsKeeping(long[] ids);
+
+    /**
+     * Put back pets deleted by {@link #deleteIdsKeeping}, as changed now. A pet whose ID has been
+     * taken in the meantime gets a new one. Return how many pets were put back.
+     */
+    int restore(PetTombstone tombstone);
+
+    /**
+     * Apply the same values to the pets with the given IDs at once and return how many were
+     * updated.
+     */
+    int updateIds(long[] ids, ContentValues values);
+
+    /**
+     * Release the resources held by the store.
+     */
+    void close();
+}
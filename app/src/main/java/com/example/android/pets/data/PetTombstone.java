@@ -0,0 +1,41 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import java.util.List;
+
+/**
+ * Pets deleted by {@link PetStore#deleteIdsKeeping}, held in memory so the delete can be undone
+ * with {@link PetStore#restore}. Only meaningful to the store that created it.
+ */
+public class PetTombstone {
+
+    /**
+     * The deleted pets, with all their columns.
+     */
+    final List<ContentValues> mPets;
+
+    /**
+     * The weight measurements of the deleted pets, empty for engines without a weight history.
+     */
+    final List<ContentValues> mWeights;
+
+    /**
+     * The adoptions of the deleted pets, empty for engines without adoptions.
+     */
+    final List<ContentValues> mAdoptions;
+
+    PetTombstone(List<ContentValues> pets, List<ContentValues> weights,
+                 List<ContentValues> adoptions) {
+        mPets = pets;
+        mWeights = weights;
+        mAdoptions = adoptions;
+    }
+
+    /**
+     * Return the number of deleted pets.
+     */
+    public int size() {
+        return mPets.size();
+    }
+}
@@ -0,0 +1,636 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary trace of the calls made to {@link PetProvider}, for replaying a real workload later.
+ * <p>
+ * Every call is recorded with its operation, URI or method, projection, selection, argument
+ * values, result, start time, duration and thread. Strings that repeat from call to call (URIs,
+ * column names, selections, thread names) are written once and referred to by number after
+ * that, and numbers are written as varints, so a trace stays small enough to record on a
+ * device for a while. Selection arguments and other values are written as they are.
+ */
+public class PetTrace {
+
+    public static final String LOG_TAG = PetTrace.class.getSimpleName();
+
+    /*Operations of a call*/
+    public static final int OP_QUERY = 1;
+    public static final int OP_INSERT = 2;
+    public static final int OP_BULK_INSERT = 3;
+    public static final int OP_UPDATE = 4;
+    public static final int OP_DELETE = 5;
+    public static final int OP_CALL = 6;
+
+    private static final int MAGIC = 0x50545243; // "PTRC"
+    private static final int VERSION = 1;
+
+    /*Kinds of entries in the file*/
+    private static final int ENTRY_STRING = 1;
+    private static final int ENTRY_CALL = 2;
+
+    /*Types of values*/
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_DOUBLE = 4;
+    private static final int TYPE_FLOAT = 5;
+    private static final int TYPE_BOOLEAN = 6;
+    private static final int TYPE_BLOB = 7;
+    private static final int TYPE_LONG_ARRAY = 8;
+    private static final int TYPE_STRING_ARRAY = 9;
+    private static final int TYPE_VALUES = 10;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One recorded call. Only the fields that belong to its operation are set.
+     */
+    public static class Call {
+        public int op;
+        /**
+         * Time from the start of the trace to the start of the call.
+         */
+        public long startNanos;
+        public long durationNanos;
+        public long threadId;
+        public String threadName;
+        /**
+         * The URI, or the method for {@link #OP_CALL}.
+         */
+        public String target;
+        public String[] projection;
+        public String selection;
+        public String[] selectionArgs;
+        public String sortOrder;
+        /**
+         * The values of an insert or update, or every row of a bulk insert.
+         */
+        public ContentValues[] values;
+        public String arg;
+        public Bundle extras;
+        /**
+         * Rows returned or affected, the ID of an inserted row, or -1.
+         */
+        public long result;
+        public boolean failed;
+
+        public static Call query(String uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+            Call call = new Call(OP_QUERY, uri);
+            call.projection = projection;
+            call.selection = selection;
+            call.selectionArgs = selectionArgs;
+            call.sortOrder = sortOrder;
+            return call;
+        }
+
+        public static Call insert(String uri, ContentValues values) {
+            Call call = new Call(OP_INSERT, uri);
+            call.values = new ContentValues[]{values};
+            return call;
+        }
+
+        public static Call bulkInsert(String uri, ContentValues[] values) {
+            Call call = new Call(OP_BULK_INSERT, uri);
+            call.values = values;
+            return call;
+        }
+
+        public static Call update(String uri, ContentValues values, String selection,
+                                  String[] selectionArgs) {
+            Call call = new Call(OP_UPDATE, uri);
+            call.values = new ContentValues[]{values};
+            call.selection = selection;
+            call.selectionArgs = selectionArgs;
+            return call;
+        }
+
+        public static Call delete(String uri, String selection, String[] selectionArgs) {
+            Call call = new Call(OP_DELETE, uri);
+            call.selection = selection;
+            call.selectionArgs = selectionArgs;
+            return call;
+        }
+
+        public static Call call(String method, String arg, Bundle extras) {
+            Call call = new Call(OP_CALL, method);
+            call.arg = arg;
+            call.extras = extras;
+            return call;
+        }
+
+        private Call(int op, String target) {
+            this.op = op;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Writes calls to a trace file. Can be used from many threads at once.
+     */
+    public static class Recorder implements Closeable {
+
+        private final DataOutputStream mOut;
+        private final long mStartNanos;
+        private final Map<String, Integer> mStrings = new HashMap<>();
+        private long mCount;
+        private boolean mBroken;
+
+        public Recorder(File file) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    64 * 1024));
+            mStartNanos = System.nanoTime();
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeLong(System.currentTimeMillis());
+        }
+
+        /**
+         * Add a call that started at the given {@link System#nanoTime} to the trace. A write
+         * error stops the recording, it never fails the call itself.
+         */
+        public synchronized void record(Call call, long startNanos, long durationNanos,
+                                        long result, boolean failed) {
+            if (mBroken) {
+                return;
+            }
+            Thread thread = Thread.currentThread();
+            try {
+                // Strings first, so the reader knows them by the time the call refers to them.
+                int threadName = intern(thread.getName());
+                int target = intern(call.target);
+                int[] projection = internAll(call.projection);
+                int selection = intern(call.selection);
+                int sortOrder = intern(call.sortOrder);
+                if (call.values != null) {
+                    for (ContentValues values : call.values) {
+                        internKeys(values);
+                    }
+                }
+                if (call.extras != null) {
+                    internKeys(call.extras);
+                }
+
+                mOut.writeByte(ENTRY_CALL);
+                mOut.writeByte(call.op);
+                // Calls already running when the recording started count as starting with it.
+                writeVarLong(mOut, Math.max(0, startNanos - mStartNanos));
+                writeVarLong(mOut, durationNanos);
+                writeVarLong(mOut, thread.getId());
+                writeVarLong(mOut, threadName);
+                writeVarLong(mOut, target);
+                writeRefs(projection);
+                writeVarLong(mOut, selection);
+                writeStrings(mOut, call.selectionArgs);
+                writeVarLong(mOut, sortOrder);
+                if (call.values == null) {
+                    writeVarLong(mOut, 0);
+                } else {
+                    writeVarLong(mOut, call.values.length + 1);
+                    for (ContentValues values : call.values) {
+                        writeValues(values);
+                    }
+                }
+                writeString(mOut, call.arg);
+                writeBundle(call.extras);
+                writeVarLong(mOut, zigzag(result));
+                mOut.writeBoolean(failed);
+                mCount++;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not write the trace, recording stopped", e);
+                mBroken = true;
+            }
+        }
+
+        /**
+         * Return the number of calls recorded so far.
+         */
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            mOut.close();
+        }
+
+        /**
+         * Return the reference of the given string, writing it to the trace if it's new.
+         * 0 stands for null.
+         */
+        private int intern(String string) throws IOException {
+            if (string == null) {
+                return 0;
+            }
+            Integer ref = mStrings.get(string);
+            if (ref == null) {
+                ref = mStrings.size() + 1;
+                mStrings.put(string, ref);
+                mOut.writeByte(ENTRY_STRING);
+                writeString(mOut, string);
+            }
+            return ref;
+        }
+
+        private int[] internAll(String[] strings) throws IOException {
+            if (strings == null) {
+                return null;
+            }
+            int[] refs = new int[strings.length];
+            for (int i = 0; i < strings.length; i++) {
+                refs[i] = intern(strings[i]);
+            }
+            return refs;
+        }
+
+        private void internKeys(ContentValues values) throws IOException {
+            if (values == null) {
+                return;
+            }
+            for (String key : values.keySet()) {
+                intern(key);
+            }
+        }
+
+        private void internKeys(Bundle extras) throws IOException {
+            for (String key : extras.keySet()) {
+                intern(key);
+                Object value = extras.get(key);
+                if (value instanceof ContentValues) {
+                    internKeys((ContentValues) value);
+                }
+            }
+        }
+
+        private void writeRefs(int[] refs) throws IOException {
+            if (refs == null) {
+                writeVarLong(mOut, 0);
+                return;
+            }
+            writeVarLong(mOut, refs.length + 1);
+            for (int ref : refs) {
+                writeVarLong(mOut, ref);
+            }
+        }
+
+        private void writeValues(ContentValues values) throws IOException {
+            if (values == null) {
+                writeVarLong(mOut, 0);
+                return;
+            }
+            writeVarLong(mOut, values.size() + 1);
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                writeVarLong(mOut, intern(entry.getKey()));
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeBundle(Bundle extras) throws IOException {
+            if (extras == null) {
+                writeVarLong(mOut, 0);
+                return;
+            }
+            writeVarLong(mOut, extras.size() + 1);
+            for (String key : extras.keySet()) {
+                writeVarLong(mOut, intern(key));
+                writeValue(extras.get(key));
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value instanceof String) {
+                mOut.writeByte(TYPE_STRING);
+                writeString(mOut, (String) value);
+            } else if (value instanceof Integer || value instanceof Short
+                    || value instanceof Byte) {
+                mOut.writeByte(TYPE_INT);
+                writeVarLong(mOut, zigzag(((Number) value).longValue()));
+            } else if (value instanceof Long) {
+                mOut.writeByte(TYPE_LONG);
+                writeVarLong(mOut, zigzag((Long) value));
+            } else if (value instanceof Double) {
+                mOut.writeByte(TYPE_DOUBLE);
+                mOut.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                mOut.writeByte(TYPE_FLOAT);
+                mOut.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                mOut.writeByte(TYPE_BOOLEAN);
+                mOut.writeBoolean((Boolean) value);
+            } else if (value instanceof byte[]) {
+                byte[] blob = (byte[]) value;
+                mOut.writeByte(TYPE_BLOB);
+                writeVarLong(mOut, blob.length);
+                mOut.write(blob);
+            } else if (value instanceof long[]) {
+                long[] longs = (long[]) value;
+                mOut.writeByte(TYPE_LONG_ARRAY);
+                writeVarLong(mOut, longs.length);
+                for (long l : longs) {
+                    writeVarLong(mOut, zigzag(l));
+                }
+            } else if (value instanceof String[]) {
+                mOut.writeByte(TYPE_STRING_ARRAY);
+                writeStrings(mOut, (String[]) value);
+            } else if (value instanceof ContentValues) {
+                mOut.writeByte(TYPE_VALUES);
+                writeValues((ContentValues) value);
+            } else {
+                // Nothing the provider reads is of another type.
+                mOut.writeByte(TYPE_NULL);
+            }
+        }
+    }
+
+    /**
+     * Reads the calls of a trace file in the order they were recorded.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream mIn;
+        private final List<String> mStrings = new ArrayList<>();
+        private final long mStartedAtMillis;
+
+        public Reader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    64 * 1024));
+            if (mIn.readInt() != MAGIC) {
+                mIn.close();
+                throw new IOException(file + " is not a pets trace");
+            }
+            int version = mIn.readInt();
+            if (version != VERSION) {
+                mIn.close();
+                throw new IOException("Unsupported trace version " + version);
+            }
+            mStartedAtMillis = mIn.readLong();
+        }
+
+        /**
+         * Return the wall clock time the recording started, in milliseconds since the epoch.
+         */
+        public long getStartedAtMillis() {
+            return mStartedAtMillis;
+        }
+
+        /**
+         * Return the next call, or null at the end of the trace.
+         */
+        public Call next() throws IOException {
+            while (true) {
+                int entry = mIn.read();
+                if (entry == -1) {
+                    return null;
+                }
+                if (entry == ENTRY_STRING) {
+                    mStrings.add(readString(mIn));
+                    continue;
+                }
+                if (entry != ENTRY_CALL) {
+                    throw new IOException("Corrupt trace: entry " + entry);
+                }
+                Call call = new Call(mIn.readUnsignedByte(), null);
+                call.startNanos = readVarLong(mIn);
+                call.durationNanos = readVarLong(mIn);
+                call.threadId = readVarLong(mIn);
+                call.threadName = ref();
+                call.target = ref();
+                int projection = (int) readVarLong(mIn);
+                if (projection != 0) {
+                    call.projection = new String[projection - 1];
+                    for (int i = 0; i < call.projection.length; i++) {
+                        call.projection[i] = ref();
+                    }
+                }
+                call.selection = ref();
+                call.selectionArgs = readStrings(mIn);
+                call.sortOrder = ref();
+                int values = (int) readVarLong(mIn);
+                if (values != 0) {
+                    call.values = new ContentValues[values - 1];
+                    for (int i = 0; i < call.values.length; i++) {
+                        call.values[i] = readValues();
+                    }
+                }
+                call.arg = readString(mIn);
+                call.extras = readBundle();
+                call.result = unzigzag(readVarLong(mIn));
+                call.failed = mIn.readBoolean();
+                return call;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private String ref() throws IOException {
+            int ref = (int) readVarLong(mIn);
+            if (ref > mStrings.size()) {
+                throw new IOException("Corrupt trace: unknown string " + ref);
+            }
+            return ref == 0 ? null : mStrings.get(ref - 1);
+        }
+
+        private ContentValues readValues() throws IOException {
+            int size = (int) readVarLong(mIn);
+            if (size == 0) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < size - 1; i++) {
+                String key = ref();
+                Object value = readValue();
+                if (value == null) {
+                    values.putNull(key);
+                } else if (value instanceof String) {
+                    values.put(key, (String) value);
+                } else if (value instanceof Integer) {
+                    values.put(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    values.put(key, (Long) value);
+                } else if (value instanceof Double) {
+                    values.put(key, (Double) value);
+                } else if (value instanceof Float) {
+                    values.put(key, (Float) value);
+                } else if (value instanceof Boolean) {
+                    values.put(key, (Boolean) value);
+                } else if (value instanceof byte[]) {
+                    values.put(key, (byte[]) value);
+                }
+            }
+            return values;
+        }
+
+        private Bundle readBundle() throws IOException {
+            int size = (int) readVarLong(mIn);
+            if (size == 0) {
+                return null;
+            }
+            Bundle extras = new Bundle();
+            for (int i = 0; i < size - 1; i++) {
+                String key = ref();
+                Object value = readValue();
+                if (value == null) {
+                    extras.putString(key, null);
+                } else if (value instanceof String) {
+                    extras.putString(key, (String) value);
+                } else if (value instanceof Integer) {
+                    extras.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    extras.putLong(key, (Long) value);
+                } else if (value instanceof Double) {
+                    extras.putDouble(key, (Double) value);
+                } else if (value instanceof Float) {
+                    extras.putFloat(key, (Float) value);
+                } else if (value instanceof Boolean) {
+                    extras.putBoolean(key, (Boolean) value);
+                } else if (value instanceof byte[]) {
+                    extras.putByteArray(key, (byte[]) value);
+                } else if (value instanceof long[]) {
+                    extras.putLongArray(key, (long[]) value);
+                } else if (value instanceof String[]) {
+                    extras.putStringArray(key, (String[]) value);
+                } else if (value instanceof Parcelable) {
+                    extras.putParcelable(key, (Parcelable) value);
+                }
+            }
+            return extras;
+        }
+
+        private Object readValue() throws IOException {
+            int type = mIn.readUnsignedByte();
+            switch (type) {
+                case TYPE_NULL:
+                    return null;
+                case TYPE_STRING:
+                    return readString(mIn);
+                case TYPE_INT:
+                    return (int) unzigzag(readVarLong(mIn));
+                case TYPE_LONG:
+                    return unzigzag(readVarLong(mIn));
+                case TYPE_DOUBLE:
+                    return mIn.readDouble();
+                case TYPE_FLOAT:
+                    return mIn.readFloat();
+                case TYPE_BOOLEAN:
+                    return mIn.readBoolean();
+                case TYPE_BLOB:
+                    byte[] blob = new byte[(int) readVarLong(mIn)];
+                    mIn.readFully(blob);
+                    return blob;
+                case TYPE_LONG_ARRAY:
+                    long[] longs = new long[(int) readVarLong(mIn)];
+                    for (int i = 0; i < longs.length; i++) {
+                        longs[i] = unzigzag(readVarLong(mIn));
+                    }
+                    return longs;
+                case TYPE_STRING_ARRAY:
+                    return readStrings(mIn);
+                case TYPE_VALUES:
+                    return readValues();
+                default:
+                    throw new IOException("Corrupt trace: value type " + type);
+            }
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Write a non-negative number in 7-bit groups, low group first.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt trace: varint too long");
+    }
+
+    /**
+     * Write a string as its UTF-8 length plus one and its bytes; 0 stands for null.
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = (int) readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        if (strings == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, strings.length + 1);
+        for (String string : strings) {
+            writeString(out, string);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int length = (int) readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        String[] strings = new String[length - 1];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.WeightEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Weight history of the pets in a SQLite store. The rollup tables are kept up to date by the
+ * triggers created in {@link PetDbHelper}, so this class only appends measurements and reads
+ * either the measurements or one of the rollups.
+ */
+public class PetWeightHistory {
+
+    /**
+     * Columns of the rollup tables, plus the average computed from the sum and count.
+     */
+    private static final Map<String, String> sRollupProjectionMap = new HashMap<>();
+
+    static {
+        sRollupProjectionMap.put(WeightEntry.COLUMN_WEIGHT_PET_ID, WeightEntry.COLUMN_WEIGHT_PET_ID);
+        sRollupProjectionMap.put(WeightEntry.COLUMN_BUCKET_START, WeightEntry.COLUMN_BUCKET_START);
+        sRollupProjectionMap.put(WeightEntry.COLUMN_MEASUREMENT_COUNT,
+                WeightEntry.COLUMN_MEASUREMENT_COUNT);
+        sRollupProjectionMap.put(WeightEntry.COLUMN_WEIGHT_SUM, WeightEntry.COLUMN_WEIGHT_SUM);
+        sRollupProjectionMap.put(WeightEntry.COLUMN_WEIGHT_MIN, WeightEntry.COLUMN_WEIGHT_MIN);
+        sRollupProjectionMap.put(WeightEntry.COLUMN_WEIGHT_MAX, WeightEntry.COLUMN_WEIGHT_MAX);
+        sRollupProjectionMap.put(WeightEntry.COLUMN_WEIGHT_AVERAGE,
+                "CAST(" + WeightEntry.COLUMN_WEIGHT_SUM + " AS REAL) / " +
+                        WeightEntry.COLUMN_MEASUREMENT_COUNT + " AS " +
+                        WeightEntry.COLUMN_WEIGHT_AVERAGE);
+    }
+
+    private static final String[] DEFAULT_ROLLUP_PROJECTION = {
+            WeightEntry.COLUMN_WEIGHT_PET_ID,
+            WeightEntry.COLUMN_BUCKET_START,
+            WeightEntry.COLUMN_MEASUREMENT_COUNT,
+            WeightEntry.COLUMN_WEIGHT_SUM,
+            WeightEntry.COLUMN_WEIGHT_MIN,
+            WeightEntry.COLUMN_WEIGHT_MAX,
+            WeightEntry.COLUMN_WEIGHT_AVERAGE
+    };
+
+    private final PetDbHelper mDbHelper;
+
+    public PetWeightHistory(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Append a measurement for the given pet. The rollups are updated by the same statement.
+     *
+     * @return the ID of the new measurement, or -1 if the pet doesn't exist.
+     */
+    public long insert(long petId, int weight, long measuredAt) {
+        ContentValues values = new ContentValues();
+        values.put(WeightEntry.COLUMN_WEIGHT_PET_ID, petId);
+        values.put(WeightEntry.COLUMN_WEIGHT_VALUE, weight);
+        values.put(WeightEntry.COLUMN_WEIGHT_MEASURED_AT, measuredAt);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.insert(WeightEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Query the history of the given pet at the given resolution. The selection is combined
+     * with the pet ID. Rows come back oldest first unless a sort order is given.
+     */
+    public Cursor query(long petId, String resolution, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        String timeColumn;
+        switch (resolution) {
+            case WeightEntry.RESOLUTION_RAW:
+                builder.setTables(WeightEntry.TABLE_NAME);
+                timeColumn = WeightEntry.COLUMN_WEIGHT_MEASURED_AT;
+                break;
+            case WeightEntry.RESOLUTION_DAY:
+                builder.setTables(WeightEntry.TABLE_NAME_DAY);
+                timeColumn = WeightEntry.COLUMN_BUCKET_START;
+                break;
+            case WeightEntry.RESOLUTION_WEEK:
+                builder.setTables(WeightEntry.TABLE_NAME_WEEK);
+                timeColumn = WeightEntry.COLUMN_BUCKET_START;
+                break;
+            case WeightEntry.RESOLUTION_MONTH:
+                builder.setTables(WeightEntry.TABLE_NAME_MONTH);
+                timeColumn = WeightEntry.COLUMN_BUCKET_START;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown resolution " + resolution);
+        }
+        if (!WeightEntry.RESOLUTION_RAW.equals(resolution)) {
+            builder.setProjectionMap(sRollupProjectionMap);
+            if (projection == null) {
+                projection = DEFAULT_ROLLUP_PROJECTION;
+            }
+        }
+        // Both the measurements and the rollups are keyed on (pet_id, time), so this is a range
+        // scan over the pet's rows only.
+        builder.appendWhere(WeightEntry.COLUMN_WEIGHT_PET_ID + "=" + petId);
+        if (sortOrder == null) {
+            sortOrder = timeColumn;
+        }
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return builder.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+                null, cancellationSignal);
+    }
+}
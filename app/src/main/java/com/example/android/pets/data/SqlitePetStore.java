@@ -0,0 +1,588 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import com.example.android.pets.data.PetContract.AdopterEntry;
+import com.example.android.pets.data.PetContract.AdoptionEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.WeightEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * {@link PetStore} backed by a SQLite database file, opened through a {@link PetDbHelper}.
+ */
+public class SqlitePetStore implements PetStore {
+
+    /**
+     * Maximum number of ids bound into a single "_id IN (...)" clause. SQLite refuses statements
+     * with more than 999 bound arguments, so larger sets go through {@link #SELECTED_IDS_TABLE}.
+     */
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    /**
+     * Temporary table holding large ID sets. Temporary tables belong to the connection, so it's
+     * only filled and read inside a transaction.
+     */
+    private static final String SELECTED_IDS_TABLE = "temp.selected_pet_ids";
+
+    private final PetDbHelper mDbHelper;
+
+    public SqlitePetStore(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Return the database helper, for the features that only exist on SQLite.
+     */
+    public PetDbHelper getDbHelper() {
+        return mDbHelper;
+    }
+
+    @Override
+    public Cursor query(String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        // SQLite checks the signal while it steps through the rows, so a cancelled scan stops
+        // where it is and hands its connection back.
+        return db.query(false, PetEntry.TABLE_NAME, projection, selection, selectionArgs, null,
+                null, sortOrder, null, cancellationSignal);
+    }
+
+    @Override
+    public long insert(ContentValues values) {
+        // Give the pet its registry identity and change time, unless sync is inserting one
+        // that already has them.
+        values = new ContentValues(values);
+        if (!values.containsKey(PetEntry.COLUMN_PET_SYNC_ID)) {
+            values.put(PetEntry.COLUMN_PET_SYNC_ID, UUID.randomUUID().toString());
+        }
+        stampUpdatedAt(values);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        if (values.containsKey(PetEntry._ID)) {
+            return db.insert(PetEntry.TABLE_NAME, null, values);
+        }
+        // Pick the ID ourselves so it's never one of an archived pet, in the same transaction as
+        // the insert so no other insert can take it in between.
+        db.beginTransaction();
+        try {
+            values.put(PetEntry._ID, PetArchive.nextPetId(db));
+            long newRowId = db.insert(PetEntry.TABLE_NAME, null, values);
+            db.setTransactionSuccessful();
+            return newRowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Outcome of an {@link #upsert}.
+     */
+    public static class Upsert {
+        /**
+         * ID of the pet, or -1 if it could be neither inserted nor updated.
+         */
+        public final long id;
+        /**
+         * One of the {@code PetEntry.UPSERT_RESULT_*} values.
+         */
+        public final String result;
+
+        Upsert(long id, String result) {
+            this.id = id;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Insert the pet, or update the pet that has the same value in the given key column. The
+     * update only happens if one of the given values differs, so resending a pet doesn't bump
+     * its version or log a change for sync.
+     * <p>
+     * Android's SQLite predates INSERT ... ON CONFLICT DO UPDATE, so this is an INSERT OR IGNORE
+     * followed, on a conflict, by a conditional UPDATE, in one transaction. A pet with the key
+     * that was archived is moved back first.
+     */
+    public Upsert upsert(ContentValues values, String keyColumn) {
+        String key = values.getAsString(keyColumn);
+        if (key == null) {
+            throw new IllegalArgumentException("Upsert requires a value for " + keyColumn);
+        }
+        String keySelection = keyColumn + "=?";
+        String[] keyArgs = {key};
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            PetArchive.unarchive(db, keySelection, keyArgs);
+
+            ContentValues insertValues = new ContentValues(values);
+            if (!insertValues.containsKey(PetEntry.COLUMN_PET_SYNC_ID)) {
+                insertValues.put(PetEntry.COLUMN_PET_SYNC_ID, UUID.randomUUID().toString());
+            }
+            stampUpdatedAt(insertValues);
+            if (!insertValues.containsKey(PetEntry._ID)) {
+                insertValues.put(PetEntry._ID, PetArchive.nextPetId(db));
+            }
+            long id = db.insertWithOnConflict(PetEntry.TABLE_NAME, null, insertValues,
+                    SQLiteDatabase.CONFLICT_IGNORE);
+            Upsert upsert;
+            if (id != -1) {
+                upsert = new Upsert(id, PetEntry.UPSERT_RESULT_INSERTED);
+            } else {
+                upsert = updateByKey(db, values, keyColumn, keySelection, keyArgs);
+            }
+            db.setTransactionSuccessful();
+            return upsert;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Upsert all pets in one transaction.
+     *
+     * @return the number of pets that were inserted or updated.
+     */
+    public int upsertAll(ContentValues[] values, String keyColumn) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int written = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues pet : values) {
+                String result = upsert(pet, keyColumn).result;
+                if (PetEntry.UPSERT_RESULT_INSERTED.equals(result)
+                        || PetEntry.UPSERT_RESULT_UPDATED.equals(result)) {
+                    written++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return written;
+    }
+
+    private static Upsert updateByKey(SQLiteDatabase db, ContentValues values, String keyColumn,
+                                      String keySelection, String[] keyArgs) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID}, keySelection,
+                keyArgs, null, null, null);
+        long id;
+        try {
+            if (!cursor.moveToFirst()) {
+                // The insert conflicted on something other than the key, e.g. the sync ID of
+                // another pet.
+                return new Upsert(-1, null);
+            }
+            id = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues updateValues = new ContentValues(values);
+        updateValues.remove(keyColumn);
+        updateValues.remove(PetEntry._ID);
+        updateValues.remove(PetEntry.COLUMN_PET_UPDATED_AT);
+        updateValues.remove(PetEntry.COLUMN_PET_VERSION);
+        if (updateValues.size() == 0) {
+            return new Upsert(id, PetEntry.UPSERT_RESULT_UNCHANGED);
+        }
+        // Only write if at least one value differs. IS compares NULLs as equal, and the column
+        // affinity makes the string arguments compare as numbers where needed.
+        StringBuilder unchanged = new StringBuilder();
+        String[] args = new String[updateValues.size() + 1];
+        args[0] = String.valueOf(id);
+        int argCount = 1;
+        for (String column : updateValues.keySet()) {
+            if (unchanged.length() > 0) {
+                unchanged.append(" AND ");
+            }
+            Object value = updateValues.get(column);
+            if (value == null) {
+                unchanged.append(column).append(" IS NULL");
+            } else {
+                unchanged.append(column).append(" IS ?");
+                args[argCount++] = value.toString();
+            }
+        }
+        stampUpdatedAt(updateValues);
+        int rows = updatePets(db, updateValues,
+                PetEntry._ID + "=? AND NOT (" + unchanged + ")",
+                Arrays.copyOf(args, argCount));
+        return new Upsert(id, rows == 0 ? PetEntry.UPSERT_RESULT_UNCHANGED
+                : PetEntry.UPSERT_RESULT_UPDATED);
+    }
+
+    /**
+     * Set the change time of the pets being written to now, unless it was given.
+     */
+    private static void stampUpdatedAt(ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_UPDATED_AT)) {
+            values.put(PetEntry.COLUMN_PET_UPDATED_AT, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Update the pets like {@link SQLiteDatabase#update}, and give the ones that don't have a sync
+     * ID yet one of their own. Pets that came with the seed database are the same on every
+     * device, so they only get theirs once they're written and there is a change to sync. Doing it
+     * in the same statement means the triggers log and version the change only once.
+     */
+    private static int updatePets(SQLiteDatabase db, ContentValues values, String whereClause,
+                                  String[] whereArgs) {
+        int argCount = whereArgs == null ? 0 : whereArgs.length;
+        Object[] bindArgs = new Object[values.size() + argCount];
+        StringBuilder sql = new StringBuilder("UPDATE " + PetEntry.TABLE_NAME + " SET ");
+        int i = 0;
+        for (String column : values.keySet()) {
+            sql.append(i > 0 ? ", " : "").append(column).append("=?");
+            bindArgs[i++] = values.get(column);
+        }
+        if (!values.containsKey(PetEntry.COLUMN_PET_SYNC_ID)) {
+            sql.append(i > 0 ? ", " : "").append(PetEntry.COLUMN_PET_SYNC_ID)
+                    .append("=IFNULL(").append(PetEntry.COLUMN_PET_SYNC_ID).append(", ")
+                    .append(PetDbHelper.SQL_RANDOM_UUID).append(")");
+        }
+        if (whereClause != null && !whereClause.isEmpty()) {
+            sql.append(" WHERE ").append(whereClause);
+        }
+        for (int arg = 0; arg < argCount; arg++) {
+            bindArgs[i++] = whereArgs[arg];
+        }
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (int index = 0; index < bindArgs.length; index++) {
+                DatabaseUtils.bindObjectToProgram(statement, index + 1, bindArgs[index]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public int update(ContentValues values, String selection, String[] selectionArgs) {
+        // If the caller passed the version it read, only update rows that still have that
+        // version and move them on to the next one. A concurrent edit in between means no rows
+        // match, which the caller sees as 0 rows updated, without us reading the row first.
+        if (values.containsKey(PetEntry.COLUMN_PET_VERSION)) {
+            int expectedVersion = values.getAsInteger(PetEntry.COLUMN_PET_VERSION);
+            values = new ContentValues(values);
+            values.put(PetEntry.COLUMN_PET_VERSION, expectedVersion + 1);
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_VERSION + "=?");
+            selectionArgs = appendSelectionArgs(selectionArgs, String.valueOf(expectedVersion));
+        } else {
+            values = new ContentValues(values);
+        }
+        stampUpdatedAt(values);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return updatePets(db, values, selection, selectionArgs);
+    }
+
+    @Override
+    public int delete(String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    /**
+     * Count the pets matching the selection with a single SELECT count(*) statement.
+     */
+    @Override
+    public long count(String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME, selection, selectionArgs);
+    }
+
+    @Override
+    public boolean exists(long id) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS(SELECT 1 FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry._ID + "=?)", new String[]{String.valueOf(id)}) == 1;
+    }
+
+    /**
+     * Return the IDs of the pets matching the selection. Only the ID column is queried, so a
+     * cursor window holds many IDs at a time.
+     */
+    @Override
+    public long[] listIds(String selection, String[] selectionArgs, String sortOrder) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        // A plain query: SQLite doesn't promise to keep the order of a subquery through an
+        // aggregate like group_concat().
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID}, selection,
+                selectionArgs, null, null, sortOrder);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Delete all pets with the given IDs with a single statement, in one transaction.
+     */
+    @Override
+    public int deleteIds(long[] ids) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            IdSet selected = selectIds(db, ids);
+            int numberOfRowsDeleted = db.delete(PetEntry.TABLE_NAME, selected.on(PetEntry._ID),
+                    selected.args);
+            db.setTransactionSuccessful();
+            return numberOfRowsDeleted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copy the pets with the given IDs, their weight history and their adoptions, then delete
+     * the pets, all in one transaction. The delete triggers take care of the history, the
+     * adoptions, the catalog and the change log.
+     */
+    @Override
+    public PetTombstone deleteIdsKeeping(long[] ids) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            IdSet selected = selectIds(db, ids);
+            List<ContentValues> pets = readRows(db, PetEntry.TABLE_NAME,
+                    selected.on(PetEntry._ID), selected.args);
+            List<ContentValues> weights = readRows(db, WeightEntry.TABLE_NAME,
+                    selected.on(WeightEntry.COLUMN_WEIGHT_PET_ID), selected.args);
+            List<ContentValues> adoptions = readRows(db, AdoptionEntry.TABLE_NAME,
+                    selected.on(AdoptionEntry.COLUMN_ADOPTION_PET_ID), selected.args);
+            db.delete(PetEntry.TABLE_NAME, selected.on(PetEntry._ID), selected.args);
+            db.setTransactionSuccessful();
+            return new PetTombstone(pets, weights, adoptions);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Insert the pets of the tombstone again, then their measurements, which rebuilds the
+     * rollups through the weight triggers, and their adoptions, unless the adopter was deleted
+     * in the meantime. The pets get a new updated_at, so the restore wins over the delete on
+     * every synced device.
+     */
+    @Override
+    public int restore(PetTombstone tombstone) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int restored = 0;
+        db.beginTransaction();
+        try {
+            Map<Long, Long> newIds = new HashMap<>();
+            for (ContentValues pet : tombstone.mPets) {
+                ContentValues values = new ContentValues(pet);
+                long oldId = values.getAsLong(PetEntry._ID);
+                if (isIdTaken(db, oldId)) {
+                    values.put(PetEntry._ID, PetArchive.nextPetId(db));
+                }
+                values.put(PetEntry.COLUMN_PET_UPDATED_AT, System.currentTimeMillis());
+                // Like an update, so a result that still holds the pet from before the delete
+                // doesn't look the same to PetRepository.
+                values.put(PetEntry.COLUMN_PET_VERSION,
+                        values.getAsInteger(PetEntry.COLUMN_PET_VERSION) + 1);
+                // A pet whose sync ID came back through sync in the meantime is left alone.
+                long newId = db.insertWithOnConflict(PetEntry.TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+                if (newId != -1) {
+                    newIds.put(oldId, newId);
+                    restored++;
+                }
+            }
+            for (ContentValues weight : tombstone.mWeights) {
+                Long petId = newIds.get(weight.getAsLong(WeightEntry.COLUMN_WEIGHT_PET_ID));
+                if (petId == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues(weight);
+                values.remove(WeightEntry._ID);
+                values.put(WeightEntry.COLUMN_WEIGHT_PET_ID, petId);
+                db.insertOrThrow(WeightEntry.TABLE_NAME, null, values);
+            }
+            for (ContentValues adoption : tombstone.mAdoptions) {
+                Long petId = newIds.get(adoption.getAsLong(AdoptionEntry.COLUMN_ADOPTION_PET_ID));
+                if (petId == null || !adopterExists(db,
+                        adoption.getAsLong(AdoptionEntry.COLUMN_ADOPTION_ADOPTER_ID))) {
+                    continue;
+                }
+                ContentValues values = new ContentValues(adoption);
+                values.remove(AdoptionEntry._ID);
+                values.put(AdoptionEntry.COLUMN_ADOPTION_PET_ID, petId);
+                db.insertOrThrow(AdoptionEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return restored;
+    }
+
+    private static boolean isIdTaken(SQLiteDatabase db, long id) {
+        String[] idArgs = {String.valueOf(id), String.valueOf(id)};
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS(SELECT 1 FROM " +
+                PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + "=?) OR EXISTS(SELECT 1 FROM " +
+                PetArchive.TABLE_NAME + " WHERE " + PetEntry._ID + "=?)", idArgs) == 1;
+    }
+
+    private static boolean adopterExists(SQLiteDatabase db, long id) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS(SELECT 1 FROM " +
+                AdopterEntry.TABLE_NAME + " WHERE " + AdopterEntry._ID + "=?)",
+                new String[]{String.valueOf(id)}) == 1;
+    }
+
+    private static List<ContentValues> readRows(SQLiteDatabase db, String table,
+                                                String selection, String[] selectionArgs) {
+        List<ContentValues> rows = new ArrayList<>();
+        Cursor cursor = db.query(table, null, selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                rows.add(values);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Apply the same values to all pets with the given IDs with a single statement, in one
+     * transaction.
+     */
+    @Override
+    public int updateIds(long[] ids, ContentValues values) {
+        values = new ContentValues(values);
+        stampUpdatedAt(values);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            IdSet selected = selectIds(db, ids);
+            int numberOfPetsUpdated = updatePets(db, values, selected.on(PetEntry._ID),
+                    selected.args);
+            db.setTransactionSuccessful();
+            return numberOfPetsUpdated;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * A set of IDs ready to be used in a selection, see {@link #selectIds}.
+     */
+    private static class IdSet {
+        private final String mInClause;
+        final String[] args;
+
+        IdSet(String inClause, String[] args) {
+            mInClause = inClause;
+            this.args = args;
+        }
+
+        /**
+         * Return a selection matching the rows whose given column is one of the IDs.
+         */
+        String on(String column) {
+            return column + " IN " + mInClause;
+        }
+    }
+
+    /**
+     * Prepare the given IDs for a set-based statement. Up to {@link #MAX_IDS_PER_STATEMENT} IDs
+     * are bound as arguments of an IN list. Larger sets are written to
+     * {@link #SELECTED_IDS_TABLE} and selected from there, so a single statement still covers
+     * all of them. Call inside a transaction, and use the result before calling it again.
+     */
+    private static IdSet selectIds(SQLiteDatabase db, long[] ids) {
+        if (ids.length <= MAX_IDS_PER_STATEMENT) {
+            String[] args = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                args[i] = String.valueOf(ids[i]);
+            }
+            return new IdSet("(" + placeholders(ids.length) + ")", args);
+        }
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS selected_pet_ids (id INTEGER PRIMARY KEY)");
+        db.execSQL("DELETE FROM " + SELECTED_IDS_TABLE);
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " +
+                SELECTED_IDS_TABLE + " VALUES (?)");
+        try {
+            for (long id : ids) {
+                insert.bindLong(1, id);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+        return new IdSet("(SELECT id FROM " + SELECTED_IDS_TABLE + ")", null);
+    }
+
+    @Override
+    public void close() {
+        mDbHelper.close();
+    }
+
+    /**
+     * AND the extra clause onto the given selection, which may be null.
+     */
+    static String appendSelection(String selection, String clause) {
+        if (selection == null || selection.isEmpty()) {
+            return clause;
+        }
+        return "(" + selection + ") AND " + clause;
+    }
+
+    /**
+     * Append an argument to the given selection arguments, which may be null.
+     */
+    static String[] appendSelectionArgs(String[] selectionArgs, String arg) {
+        if (selectionArgs == null) {
+            return new String[]{arg};
+        }
+        String[] newArgs = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, newArgs, 0, selectionArgs.length);
+        newArgs[selectionArgs.length] = arg;
+        return newArgs;
+    }
+
+    /**
+     * Return "?,?,...,?" with the given number of placeholders.
+     */
+    static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Bind ids[start, end) to the statement, starting at the given (1-based) bind index.
+     */
+    static void bindIds(SQLiteStatement statement, long[] ids, int start, int end,
+                        int firstIndex) {
+        for (int i = start; i < end; i++) {
+            statement.bindLong(firstIndex + i - start, ids[i]);
+        }
+    }
+}
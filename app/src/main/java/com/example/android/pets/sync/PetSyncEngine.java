@@ -0,0 +1,213 @@
+package com.example.android.pets.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Syncs the pets of a shelter with the shelter registry, sending only what changed since the
+ * last sync instead of full dumps.
+ * <p>
+ * Local changes are read from the provider's change log in batches of at most
+ * {@link #DEFAULT_MAX_BATCH_BYTES} of JSON, gzipped and uploaded, and acknowledged once the
+ * registry has stored them. Remote changes are downloaded page by page and each page is applied
+ * by the provider in one transaction, which also resolves conflicts. The download position is
+ * kept in shared preferences, so an interrupted sync carries on where it stopped.
+ * <p>
+ * Does network and database work, so never call {@link #sync} on the main thread.
+ */
+public class PetSyncEngine {
+
+    public static final String LOG_TAG = PetSyncEngine.class.getSimpleName();
+
+    /**
+     * Largest upload batch, in bytes of uncompressed JSON.
+     */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Largest number of changes asked for per download page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private static final String PREFERENCES_NAME = "pet_sync";
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_CURSOR_PREFIX = "cursor_";
+
+    /**
+     * Throughput of one sync, for both directions.
+     */
+    public static class Stats {
+        public int uploadedChanges;
+        public int uploadedBatches;
+        /**
+         * Bytes sent on the wire, compressed.
+         */
+        public long uploadedBytes;
+        public long uploadMillis;
+        public int downloadedChanges;
+        public int downloadedPages;
+        /**
+         * Bytes received on the wire, compressed.
+         */
+        public long downloadedBytes;
+        public long downloadMillis;
+        /**
+         * Downloaded changes that lost against a newer local change, or were invalid.
+         */
+        public int skippedChanges;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "up: %d changes in %d batches, %d bytes, %d ms (%.1f changes/s, %.1f KB/s); "
+                            + "down: %d changes in %d pages, %d bytes, %d ms (%.1f changes/s, "
+                            + "%.1f KB/s), %d skipped",
+                    uploadedChanges, uploadedBatches, uploadedBytes, uploadMillis,
+                    perSecond(uploadedChanges, uploadMillis),
+                    perSecond(uploadedBytes, uploadMillis) / 1024,
+                    downloadedChanges, downloadedPages, downloadedBytes, downloadMillis,
+                    perSecond(downloadedChanges, downloadMillis),
+                    perSecond(downloadedBytes, downloadMillis) / 1024, skippedChanges);
+        }
+
+        private static double perSecond(long amount, long millis) {
+            return millis == 0 ? 0 : amount * 1000.0 / millis;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+    private final RegistryClient mClient;
+    private int mMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int mPageSize = DEFAULT_PAGE_SIZE;
+
+    public PetSyncEngine(Context context, String registryUrl) {
+        this(context, new RegistryClient(registryUrl));
+    }
+
+    public PetSyncEngine(Context context, RegistryClient client) {
+        mResolver = context.getContentResolver();
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mClient = client;
+    }
+
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchBytes);
+        }
+        mMaxBatchBytes = maxBatchBytes;
+    }
+
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Return the ID this device identifies itself with to the registry, creating it on first use.
+     */
+    public synchronized String getDeviceId() {
+        String deviceId = mPreferences.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            mPreferences.edit().putString(KEY_DEVICE_ID, deviceId).apply();
+        }
+        return deviceId;
+    }
+
+    /**
+     * Forget how far the remote changes of the given shelter have been downloaded, so the next
+     * sync downloads all of them again.
+     */
+    public void resetDownloadCursor(long shelterId) {
+        mPreferences.edit().remove(KEY_CURSOR_PREFIX + shelterId).apply();
+    }
+
+    /**
+     * Upload the local changes of the given shelter, then download and apply the remote ones.
+     * Uploading first means our changes are in the registry before we compare against theirs.
+     */
+    public Stats sync(long shelterId) throws IOException {
+        Stats stats = new Stats();
+        upload(shelterId, stats);
+        download(shelterId, stats);
+        Log.i(LOG_TAG, "Synced shelter " + shelterId + ": " + stats);
+        return stats;
+    }
+
+    private void upload(long shelterId, Stats stats) throws IOException {
+        String deviceId = getDeviceId();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            while (true) {
+                Bundle extras = shelterExtras(shelterId);
+                extras.putInt(PetContract.EXTRA_SYNC_MAX_BYTES, mMaxBatchBytes);
+                Bundle batch = mResolver.call(PetContract.PetEntry.CONTENT_URI,
+                        PetContract.METHOD_SYNC_READ_CHANGES, null, extras);
+                int count = batch.getInt(PetContract.EXTRA_COUNT);
+                if (count == 0) {
+                    return;
+                }
+                stats.uploadedBytes += mClient.upload(shelterId, deviceId,
+                        batch.getString(PetContract.EXTRA_SYNC_CHANGES));
+                stats.uploadedChanges += count;
+                stats.uploadedBatches++;
+
+                // Only forget the changes once the registry has them. If we die before this,
+                // the batch is sent again and applying it twice changes nothing.
+                Bundle ack = shelterExtras(shelterId);
+                ack.putLong(PetContract.EXTRA_SYNC_LAST_SEQ,
+                        batch.getLong(PetContract.EXTRA_SYNC_LAST_SEQ));
+                mResolver.call(PetContract.PetEntry.CONTENT_URI,
+                        PetContract.METHOD_SYNC_ACK_CHANGES, null, ack);
+            }
+        } finally {
+            stats.uploadMillis += SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private void download(long shelterId, Stats stats) throws IOException {
+        String deviceId = getDeviceId();
+        String cursorKey = KEY_CURSOR_PREFIX + shelterId;
+        long start = SystemClock.elapsedRealtime();
+        try {
+            RegistryClient.Page page;
+            do {
+                String cursor = mPreferences.getString(cursorKey, "");
+                page = mClient.download(shelterId, deviceId, cursor, mPageSize);
+                stats.downloadedBytes += page.bytes;
+                stats.downloadedPages++;
+                if (page.changes.length() > 0) {
+                    Bundle extras = shelterExtras(shelterId);
+                    extras.putString(PetContract.EXTRA_SYNC_CHANGES, page.changes.toString());
+                    Bundle result = mResolver.call(PetContract.PetEntry.CONTENT_URI,
+                            PetContract.METHOD_SYNC_APPLY_CHANGES, null, extras);
+                    stats.downloadedChanges += page.changes.length();
+                    stats.skippedChanges += result.getInt(PetContract.EXTRA_SYNC_SKIPPED);
+                }
+                // Move on only after the page is applied, so a crash downloads it again.
+                mPreferences.edit().putString(cursorKey, page.cursor).commit();
+            } while (page.more);
+        } finally {
+            stats.downloadMillis += SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private static Bundle shelterExtras(long shelterId) {
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_SHELTER_ID, shelterId);
+        return extras;
+    }
+}
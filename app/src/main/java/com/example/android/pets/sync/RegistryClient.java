@@ -0,0 +1,203 @@
+package com.example.android.pets.sync;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP client for the shelter registry. Both directions carry gzipped JSON.
+ * <p>
+ * Upload: POST [base]/shelters/[id]/changes with the body
+ * {"device": "...", "changes": [...]}. Any 2xx response means the registry stored the batch.
+ * <p>
+ * Download: GET [base]/shelters/[id]/changes?device=...&amp;since=...&amp;limit=... answers
+ * {"cursor": "...", "more": true|false, "changes": [...]} with the changes made by other
+ * devices after the given cursor. An empty cursor starts from the beginning.
+ * <p>
+ * A change is a JSON object with the pet's sync_id and updated_at, and either its name, breed,
+ * gender and weight, or "deleted": true.
+ */
+public class RegistryClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * One page of remote changes.
+     */
+    public static class Page {
+        public final JSONArray changes;
+        public final String cursor;
+        public final boolean more;
+        /**
+         * Size of the response on the wire, compressed.
+         */
+        public final long bytes;
+
+        Page(JSONArray changes, String cursor, boolean more, long bytes) {
+            this.changes = changes;
+            this.cursor = cursor;
+            this.more = more;
+            this.bytes = bytes;
+        }
+    }
+
+    private final String mBaseUrl;
+
+    /**
+     * @param baseUrl URL of the registry, without a trailing slash.
+     */
+    public RegistryClient(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    private String changesUrl(long shelterId) {
+        return mBaseUrl + "/shelters/" + shelterId + "/changes";
+    }
+
+    /**
+     * Upload a JSON array of local changes.
+     *
+     * @return the size of the request body on the wire, compressed.
+     */
+    public long upload(long shelterId, String deviceId, String changesJson) throws IOException {
+        byte[] body;
+        try {
+            JSONObject request = new JSONObject();
+            request.put("device", deviceId);
+            request.put("changes", new JSONArray(changesJson));
+            body = gzip(request.toString().getBytes("UTF-8"));
+        } catch (JSONException e) {
+            throw new IOException("Could not encode changes", e);
+        }
+
+        HttpURLConnection connection = open(changesUrl(shelterId));
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Upload rejected by registry: HTTP " + status);
+            }
+            return body.length;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Download the next page of remote changes after the given cursor.
+     */
+    public Page download(long shelterId, String deviceId, String cursor, int limit)
+            throws IOException {
+        String url = changesUrl(shelterId) + "?device=" + URLEncoder.encode(deviceId, "UTF-8")
+                + "&since=" + URLEncoder.encode(cursor == null ? "" : cursor, "UTF-8")
+                + "&limit=" + limit;
+        HttpURLConnection connection = open(url);
+        try {
+            // Asking for gzip ourselves means we also have to unzip ourselves, but it lets us
+            // count the compressed bytes.
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Download rejected by registry: HTTP " + status);
+            }
+            CountingInputStream counted = new CountingInputStream(connection.getInputStream());
+            InputStream in = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                    ? new GZIPInputStream(counted) : counted;
+            String text;
+            try {
+                text = readFully(in);
+            } finally {
+                in.close();
+            }
+            try {
+                JSONObject response = new JSONObject(text);
+                return new Page(response.getJSONArray("changes"),
+                        response.optString("cursor", cursor), response.optBoolean("more"),
+                        counted.count);
+            } catch (JSONException e) {
+                throw new IOException("Malformed response from registry", e);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link MainThreadGuard}. Robolectric runs the tests on the main looper's thread, so
+ * everything they do directly counts as main thread work.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class MainThreadGuardTest {
+
+    private static final String[] PROJECTION = {PetEntry._ID};
+
+    private ContentResolver mResolver;
+    private int mMode;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mMode = MainThreadGuard.getMode();
+        MainThreadGuard.setMode(MainThreadGuard.MODE_LOG);
+        MainThreadGuard.reset();
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadGuard.setMode(mMode);
+        MainThreadGuard.reset();
+    }
+
+    @Test
+    public void mainThreadQueryIsCountedOnce() {
+        // Both the provider and the database engine see the query.
+        query();
+        assertEquals(1, totalCount());
+    }
+
+    @Test
+    public void backgroundQueryIsNotCounted() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    query();
+                    return null;
+                }
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, totalCount());
+    }
+
+    @Test
+    public void queryWithTheGuardOffIsNotCounted() {
+        MainThreadGuard.setMode(MainThreadGuard.MODE_OFF);
+        query();
+        assertEquals(0, totalCount());
+    }
+
+    @Test
+    public void directDatabaseOpenIsCounted() {
+        PetDbHelper dbHelper = new PetDbHelper(RuntimeEnvironment.application);
+        try {
+            dbHelper.getReadableDatabase();
+        } finally {
+            dbHelper.close();
+        }
+        assertEquals(1, totalCount());
+    }
+
+    @Test
+    public void throwModeThrows() {
+        MainThreadGuard.setMode(MainThreadGuard.MODE_THROW);
+        try {
+            query();
+            fail("Main thread query was allowed");
+        } catch (IllegalStateException expected) {
+            // The call site is still counted.
+            assertEquals(1, totalCount());
+        }
+    }
+
+    private void query() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null);
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    private static int totalCount() {
+        int total = 0;
+        for (int count : MainThreadGuard.getCallSiteCounts().values()) {
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs writers and readers against {@link PetProvider} at the same time and checks that no
+ * write is lost and that readers only ever see valid pets, like the stress debug tool does on a
+ * device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class ProviderConcurrencyTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 2;
+    private static final int PETS_PER_WRITER = 100;
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT};
+
+    private ContentResolver mResolver;
+    private int mMode;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mMode = MainThreadGuard.getMode();
+        MainThreadGuard.setMode(MainThreadGuard.MODE_OFF);
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadGuard.setMode(mMode);
+    }
+
+    @Test
+    public void concurrentWritesAreAllKept() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        try {
+            List<Future<Integer>> writers = new ArrayList<>();
+            for (int writer = 0; writer < WRITERS; writer++) {
+                final int number = writer;
+                writers.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return write(number);
+                    }
+                }));
+            }
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int reader = 0; reader < READERS; reader++) {
+                readers.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return readValidPets();
+                    }
+                }));
+            }
+            for (Future<Integer> writer : writers) {
+                assertEquals(PETS_PER_WRITER, (int) writer.get(60, TimeUnit.SECONDS));
+            }
+            for (Future<Integer> reader : readers) {
+                assertTrue(reader.get(60, TimeUnit.SECONDS) <= WRITERS * PETS_PER_WRITER);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(WRITERS * PETS_PER_WRITER, readValidPets());
+    }
+
+    /**
+     * Insert the writer's pets one by one and update each once. Return the number of pets
+     * whose insert and update both took.
+     */
+    private int write(int writer) {
+        int written = 0;
+        for (int i = 0; i < PETS_PER_WRITER; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Writer " + writer + " pet " + i);
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i % 50);
+            Uri petUri = mResolver.insert(PetEntry.CONTENT_URI, values);
+            if (petUri == null) {
+                continue;
+            }
+            ContentValues update = new ContentValues();
+            update.put(PetEntry.COLUMN_PET_WEIGHT, i % 50 + 1);
+            if (mResolver.update(petUri, update, null, null) == 1) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Read every pet, fail if one of them breaks the provider's validation, and return how many
+     * there are.
+     */
+    private int readValidPets() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                assertTrue(!cursor.isNull(1) && !cursor.getString(1).isEmpty());
+                assertTrue(PetEntry.isValidGender(cursor.getInt(2)));
+                assertTrue(cursor.getInt(3) >= 0);
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that {@link PetProvider} honors the cancellation signal of a query, and that an abandoned
+ * query doesn't keep its shelter's database in use.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class QueryCancellationTest {
+
+    private static final long OTHER_SHELTER_ID = 3;
+
+    /**
+     * The default shelter is queried first and quickly, the other one takes a while. A query
+     * of all shelters cancelled during the other one's scan has the default shelter's cursor
+     * open already.
+     */
+    private static final int DEFAULT_SHELTER_PETS = 10;
+    private static final int OTHER_SHELTER_PETS = 1500;
+
+    /**
+     * Counts every pet's namesakes with an unindexed subquery, so the scan takes quadratic time
+     * in the number of pets, like PetQueryCancelTool's.
+     */
+    private static final String SLOW_SELECTION = "(SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME +
+            " AS other WHERE other." + PetEntry.COLUMN_PET_NAME + " = " + PetEntry.TABLE_NAME +
+            "." + PetEntry.COLUMN_PET_NAME + ") > 0";
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+
+    private ContentResolver mResolver;
+    private int mMode;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        // The tests query on the main thread.
+        mMode = MainThreadGuard.getMode();
+        MainThreadGuard.setMode(MainThreadGuard.MODE_OFF);
+        addPets(PetEntry.CONTENT_URI, DEFAULT_SHELTER_PETS);
+        addPets(PetEntry.contentUriForShelter(OTHER_SHELTER_ID), OTHER_SHELTER_PETS);
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadGuard.setMode(mMode);
+    }
+
+    @Test
+    public void preCancelledQueryThrows() {
+        assertRefused(PetEntry.CONTENT_URI);
+    }
+
+    @Test
+    public void preCancelledAllSheltersQueryThrows() {
+        assertRefused(PetEntry.ALL_SHELTERS_CONTENT_URI);
+    }
+
+    @Test
+    public void uncancelledQueryReturnsEveryPet() {
+        assertEquals(DEFAULT_SHELTER_PETS + OTHER_SHELTER_PETS,
+                count(PetEntry.ALL_SHELTERS_CONTENT_URI, SLOW_SELECTION, new CancellationSignal()));
+    }
+
+    @Test
+    public void abandonedQueryFreesTheDatabase() throws Exception {
+        long start = System.nanoTime();
+        count(PetEntry.ALL_SHELTERS_CONTENT_URI, SLOW_SELECTION, null);
+        long fullMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // Cancel the same query halfway through.
+        final CancellationSignal signal = new CancellationSignal();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> query = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return count(PetEntry.ALL_SHELTERS_CONTENT_URI, SLOW_SELECTION, signal);
+                }
+            });
+            Thread.sleep(fullMillis / 2);
+            signal.cancel();
+            try {
+                query.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof OperationCanceledException)) {
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // A restore closes the database, so it fails if a cursor of the query still uses it.
+        File backup = new File(RuntimeEnvironment.application.getCacheDir(), "backup.db");
+        assertNotNull(mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_BACKUP,
+                backup.getPath(), null));
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_RESTORE, backup.getPath(), null);
+
+        // And the provider goes on as usual.
+        assertNotNull(mResolver.insert(PetEntry.CONTENT_URI, pet(0)));
+        assertEquals(DEFAULT_SHELTER_PETS + 1, count(PetEntry.CONTENT_URI, null, null));
+    }
+
+    private void assertRefused(Uri uri) {
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            count(uri, SLOW_SELECTION, signal);
+            fail("Cancelled query of " + uri + " ran anyway");
+        } catch (OperationCanceledException expected) {
+        }
+        // The next query runs as usual.
+        assertEquals(DEFAULT_SHELTER_PETS, count(PetEntry.CONTENT_URI, null, null));
+    }
+
+    private int count(Uri uri, String selection, CancellationSignal signal) {
+        Cursor cursor = mResolver.query(uri, PROJECTION, selection, null, null, signal);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void addPets(Uri uri, int count) {
+        ContentValues[] pets = new ContentValues[count];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = pet(i);
+        }
+        mResolver.bulkInsert(uri, pets);
+    }
+
+    private static ContentValues pet(int number) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Cancel " + number);
+        values.put(PetEntry.COLUMN_PET_BREED, "Cancel");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + number % 50);
+        return values;
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the change log and of how {@link PetProvider} resolves conflicts between local and
+ * remote changes: the newer updated_at wins and ties go to the remote side.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 25)
+public class SyncConflictTest {
+
+    private static final String[] PROJECTION = {PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_SYNC_ID, PetEntry.COLUMN_PET_UPDATED_AT};
+
+    private ContentResolver mResolver;
+    private int mMode;
+    private String mSyncId;
+    private long mUpdatedAt;
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mMode = MainThreadGuard.getMode();
+        MainThreadGuard.setMode(MainThreadGuard.MODE_OFF);
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Local");
+        values.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        Uri petUri = mResolver.insert(PetEntry.CONTENT_URI, values);
+        Cursor cursor = mResolver.query(petUri, PROJECTION, null, null, null);
+        try {
+            cursor.moveToFirst();
+            mSyncId = cursor.getString(1);
+            mUpdatedAt = cursor.getLong(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadGuard.setMode(mMode);
+    }
+
+    @Test
+    public void localInsertIsPendingUntilAcknowledged() throws Exception {
+        Bundle batch = call(PetContract.METHOD_SYNC_READ_CHANGES, new Bundle());
+        assertEquals(1, batch.getInt(PetContract.EXTRA_COUNT));
+        JSONObject change = new JSONArray(batch.getString(PetContract.EXTRA_SYNC_CHANGES))
+                .getJSONObject(0);
+        assertEquals(mSyncId, change.getString(PetEntry.COLUMN_PET_SYNC_ID));
+        assertEquals("Local", change.getString(PetEntry.COLUMN_PET_NAME));
+
+        Bundle ack = new Bundle();
+        ack.putLong(PetContract.EXTRA_SYNC_LAST_SEQ,
+                batch.getLong(PetContract.EXTRA_SYNC_LAST_SEQ));
+        call(PetContract.METHOD_SYNC_ACK_CHANGES, ack);
+        assertEquals(0, call(PetContract.METHOD_SYNC_READ_CHANGES, new Bundle())
+                .getInt(PetContract.EXTRA_COUNT));
+    }
+
+    @Test
+    public void newerRemoteChangeWins() throws Exception {
+        assertApplied(1, remoteChange("Remote", mUpdatedAt + 1));
+        assertEquals("Remote", localName());
+    }
+
+    @Test
+    public void olderRemoteChangeLoses() throws Exception {
+        assertApplied(0, remoteChange("Remote", mUpdatedAt - 1));
+        assertEquals("Local", localName());
+    }
+
+    @Test
+    public void tieGoesToTheRemoteSide() throws Exception {
+        assertApplied(1, remoteChange("Remote", mUpdatedAt));
+        assertEquals("Remote", localName());
+    }
+
+    @Test
+    public void newerChangeWinsInEitherOrder() throws Exception {
+        assertApplied(1, remoteChange("Newer", mUpdatedAt + 2),
+                remoteChange("Older", mUpdatedAt + 1));
+        assertEquals("Newer", localName());
+    }
+
+    @Test
+    public void newerChangeWinsWhenItComesLast() throws Exception {
+        assertApplied(2, remoteChange("Older", mUpdatedAt + 1),
+                remoteChange("Newer", mUpdatedAt + 2));
+        assertEquals("Newer", localName());
+    }
+
+    @Test
+    public void remoteDeleteOlderThanTheLocalChangeLoses() throws Exception {
+        JSONObject delete = new JSONObject();
+        delete.put(PetEntry.COLUMN_PET_SYNC_ID, mSyncId);
+        delete.put(PetChangeLog.JSON_DELETED, true);
+        delete.put(PetEntry.COLUMN_PET_UPDATED_AT, mUpdatedAt - 1);
+        assertApplied(0, delete);
+        assertEquals("Local", localName());
+    }
+
+    private JSONObject remoteChange(String name, long updatedAt) throws Exception {
+        JSONObject change = new JSONObject();
+        change.put(PetEntry.COLUMN_PET_SYNC_ID, mSyncId);
+        change.put(PetEntry.COLUMN_PET_NAME, name);
+        change.put(PetEntry.COLUMN_PET_BREED, "Tabby");
+        change.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        change.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        change.put(PetEntry.COLUMN_PET_UPDATED_AT, updatedAt);
+        return change;
+    }
+
+    private void assertApplied(int applied, JSONObject... changes) {
+        JSONArray array = new JSONArray();
+        for (JSONObject change : changes) {
+            array.put(change);
+        }
+        Bundle extras = new Bundle();
+        extras.putString(PetContract.EXTRA_SYNC_CHANGES, array.toString());
+        Bundle result = call(PetContract.METHOD_SYNC_APPLY_CHANGES, extras);
+        assertEquals(applied, result.getInt(PetContract.EXTRA_SYNC_APPLIED));
+        assertEquals(changes.length - applied, result.getInt(PetContract.EXTRA_SYNC_SKIPPED));
+    }
+
+    private String localName() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, PROJECTION,
+                PetEntry.COLUMN_PET_SYNC_ID + "=?", new String[]{mSyncId}, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle call(String method, Bundle extras) {
+        return mResolver.call(PetEntry.CONTENT_URI, method, null, extras);
+    }
+}